@@ -0,0 +1,145 @@
+package com.thingworx.sdk.steam.benchmark;
+
+import com.thingworx.metadata.PropertyDefinition;
+import com.thingworx.sdk.steam.SteamThing;
+import com.thingworx.sdk.steam.flush.FlushCoordinator;
+import com.thingworx.sdk.steam.state.FaultEventQueue;
+import com.thingworx.types.InfoTable;
+import com.thingworx.types.primitives.NumberPrimitive;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+// Baseline of the SteamThing hot paths against an in-process stub client.
+// Every benchmark reports its throughput and, from the sample mode, its latency percentiles. The gc profiler set in
+// build.gradle adds the allocation rate and the bytes allocated per operation.
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SteamThingBenchmark {
+    // High enough that the simulated temperature (400-440) never raises a fault
+    private static final double NO_FAULT_LIMIT = 10000;
+    // Low enough that every scan is above it
+    private static final double FAULT_LIMIT = 1;
+    // The default of the client, the coordinator lingers for one scan
+    private static final int SCAN_RATE = 1000;
+
+    @State(Scope.Thread)
+    public static class ThingState {
+        StubConnectedThingClient client;
+        // Pushes its own updates at the end of every scan, through the stub client
+        SteamThing thing;
+        // Only marks itself dirty, the coordinator is never started so nothing is flushed
+        SteamThing deferredThing;
+        // Pushes its own updates like thing, without a limit on its fault events
+        SteamThing faultThing;
+        PropertyDefinition temperatureLimit;
+        NumberPrimitive noFaultLimit;
+        NumberPrimitive faultLimit;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            client = new StubConnectedThingClient(NO_FAULT_LIMIT);
+            thing = newThing(client, "BenchmarkSensor");
+            deferredThing = newThing(client, "BenchmarkSensorDeferred");
+            deferredThing.setFlushCoordinator(new FlushCoordinator(500, SCAN_RATE, 1, 15000, 60000, null));
+            // With the default limits the token bucket lets a few events through per minute, and the fault
+            // benchmark would mostly measure it coalescing the rest
+            faultThing = newThing(client, "BenchmarkSensorFaults");
+            faultThing.setFaultEventLimits(FaultEventQueue.DEFAULT_CAPACITY, Double.MAX_VALUE, Integer.MAX_VALUE);
+            temperatureLimit = thing.getProperty("TemperatureLimit").getPropertyDefinition();
+            noFaultLimit = new NumberPrimitive((Number) NO_FAULT_LIMIT);
+            faultLimit = new NumberPrimitive((Number) FAULT_LIMIT);
+            // Fill the readings store so the service returns full pages
+            for (int i = 0; i < 1000; i++) {
+                thing.scanDevice();
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            client.shutdown();
+        }
+    }
+
+    static SteamThing newThing(StubConnectedThingClient client, String name) throws Exception {
+        SteamThing thing = new SteamThing(name, "Benchmark sensor", null, client, null);
+        // Normally done when the platform acknowledges the bind, without the subscriptions nothing would be sent
+        thing.setBound(true);
+        thing.loadPropertySubscriptions();
+        thing.loadEventSubscriptions();
+        thing.synchronizeState();
+        thing.processPropertyWrite(thing.getProperty("TemperatureLimit").getPropertyDefinition(),
+                new NumberPrimitive((Number) NO_FAULT_LIMIT));
+        return thing;
+    }
+
+    @Benchmark
+    public void scanDevice(ThingState state) throws Exception {
+        state.thing.scanDevice();
+    }
+
+    @Benchmark
+    public void scanDeviceDeferredFlush(ThingState state) throws Exception {
+        state.deferredThing.scanDevice();
+    }
+
+    // A deferred scan and what the flush coordinator does for the thing: box the values that changed into
+    // properties stamped with the time of their scan and push them
+    @Benchmark
+    public void scanDeviceDeferredPublish(ThingState state) throws Exception {
+        SteamThing thing = state.deferredThing;
+        thing.scanDevice();
+        thing.publishState();
+        if (!thing.getPendingPropertyUpdates().isEmpty()) {
+            thing.updateSubscribedProperties(15000);
+        }
+        if (!thing.getPendingEvents().isEmpty()) {
+            thing.updateSubscribedEvents(60000);
+        }
+    }
+
+    @Benchmark
+    public void processScanRequest(ThingState state) throws Exception {
+        state.thing.processScanRequest();
+    }
+
+    // The same page twice in a row, served from the cached table
+    @Benchmark
+    public InfoTable getSteamSensorReadingsCached(ThingState state) {
+        return state.thing.GetSteamSensorReadings(0, 100, null, null);
+    }
+
+    // A new reading invalidates the cached page, so the page is built again
+    @Benchmark
+    public InfoTable getSteamSensorReadingsAfterScan(ThingState state) throws Exception {
+        state.deferredThing.scanDevice();
+        return state.deferredThing.GetSteamSensorReadings(0, 100, null, null);
+    }
+
+    @Benchmark
+    public String getBigString(ThingState state) {
+        return state.thing.GetBigString();
+    }
+
+    // One scan that raises a fault and one that clears it, so every operation queues and sends one fault event
+    @Benchmark
+    public void faultEventQueuing(ThingState state) throws Exception {
+        state.faultThing.processPropertyWrite(state.temperatureLimit, state.faultLimit);
+        state.faultThing.scanDevice();
+        state.faultThing.processPropertyWrite(state.temperatureLimit, state.noFaultLimit);
+        state.faultThing.scanDevice();
+    }
+
+    @Benchmark
+    public SteamThing construction(ThingState state) throws Exception {
+        return new SteamThing("BenchmarkSensorNew", "Benchmark sensor", null, state.client, null);
+    }
+}
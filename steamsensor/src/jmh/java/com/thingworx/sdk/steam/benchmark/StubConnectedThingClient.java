@@ -0,0 +1,127 @@
+package com.thingworx.sdk.steam.benchmark;
+
+import com.thingworx.communications.client.ClientConfigurator;
+import com.thingworx.communications.client.ConnectedThingClient;
+import com.thingworx.communications.client.connection.IClientConnection;
+import com.thingworx.communications.client.connection.IClientConnectionFactory;
+import com.thingworx.metadata.DataShapeDefinition;
+import com.thingworx.metadata.FieldDefinition;
+import com.thingworx.metadata.collections.FieldDefinitionCollection;
+import com.thingworx.relationships.RelationshipTypes;
+import com.thingworx.types.BaseTypes;
+import com.thingworx.types.InfoTable;
+import com.thingworx.types.collections.ValueCollection;
+import com.thingworx.types.constants.DataChangeType;
+
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A ConnectedThingClient that never opens a connection. It reports itself connected, answers every service call with
+// an empty result and every property read with the configured TemperatureLimit, so the things can be benchmarked
+// in-process without a ThingWorx server. Like the template of a steam sensor on the platform, it subscribes every
+// thing to the pushed properties and the fault event, so the updates of a thing are queued and sent.
+public class StubConnectedThingClient extends ConnectedThingClient {
+    private static final String[] PUSHED_PROPERTIES = {"Temperature", "Pressure", "TotalFlow", "InletValve",
+            "FaultStatus", "Location"};
+    private static final String FAULT_EVENT = "SteamSensorFault";
+
+    private final InfoTable temperatureLimit;
+    private final InfoTable propertySubscriptions;
+    private final InfoTable eventSubscriptions;
+    private final AtomicLong serviceCalls = new AtomicLong();
+
+    public StubConnectedThingClient(double temperatureLimit) throws Exception {
+        super(newConfiguration(), new IClientConnectionFactory() {
+            @Override
+            public IClientConnection createConnection(String name, URI uri, Integer timeout, boolean ignoreSSLErrors) {
+                throw new UnsupportedOperationException("The stub client does not connect");
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+        FieldDefinitionCollection fields = new FieldDefinitionCollection();
+        fields.addFieldDefinition(new FieldDefinition("TemperatureLimit", BaseTypes.NUMBER));
+        this.temperatureLimit = new InfoTable(new DataShapeDefinition(fields));
+        ValueCollection row = new ValueCollection();
+        row.SetNumberValue("TemperatureLimit", temperatureLimit);
+        this.temperatureLimit.addRow(row);
+        this.propertySubscriptions = propertySubscriptions();
+        this.eventSubscriptions = eventSubscriptions();
+    }
+
+    private static InfoTable propertySubscriptions() throws Exception {
+        FieldDefinitionCollection fields = new FieldDefinitionCollection();
+        fields.addFieldDefinition(new FieldDefinition("edgeName", BaseTypes.STRING));
+        fields.addFieldDefinition(new FieldDefinition("pushThreshold", BaseTypes.NUMBER));
+        fields.addFieldDefinition(new FieldDefinition("pushType", BaseTypes.STRING));
+        InfoTable table = new InfoTable(new DataShapeDefinition(fields));
+        for (String property : PUSHED_PROPERTIES) {
+            ValueCollection row = new ValueCollection();
+            row.SetStringValue("edgeName", property);
+            row.SetNumberValue("pushThreshold", 0.0);
+            row.SetStringValue("pushType", DataChangeType.ALWAYS.name());
+            table.addRow(row);
+        }
+        return table;
+    }
+
+    private static InfoTable eventSubscriptions() throws Exception {
+        FieldDefinitionCollection fields = new FieldDefinitionCollection();
+        fields.addFieldDefinition(new FieldDefinition("edgeName", BaseTypes.STRING));
+        InfoTable table = new InfoTable(new DataShapeDefinition(fields));
+        ValueCollection row = new ValueCollection();
+        row.SetStringValue("edgeName", FAULT_EVENT);
+        table.addRow(row);
+        return table;
+    }
+
+    private static ClientConfigurator newConfiguration() {
+        ClientConfigurator config = new ClientConfigurator();
+        config.setUri("ws://localhost:0/Thingworx/WS");
+        config.setName("BenchmarkGateway");
+        return config;
+    }
+
+    public long getServiceCalls() {
+        return serviceCalls.get();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return true;
+    }
+
+    @Override
+    public InfoTable invokeService(RelationshipTypes.ThingworxEntityTypes entityType, String entityName,
+                                   String serviceName, ValueCollection parameters, Integer timeout) {
+        if ("GetPropertySubscriptions".equals(serviceName)) {
+            return propertySubscriptions;
+        }
+        if ("GetEventSubscriptions".equals(serviceName)) {
+            return eventSubscriptions;
+        }
+        serviceCalls.incrementAndGet();
+        return new InfoTable();
+    }
+
+    @Override
+    public InfoTable invokeService(RelationshipTypes.ThingworxEntityTypes entityType, String entityName,
+                                   String serviceName, ValueCollection parameters, boolean async, Integer timeout) {
+        serviceCalls.incrementAndGet();
+        return new InfoTable();
+    }
+
+    @Override
+    public InfoTable readProperty(RelationshipTypes.ThingworxEntityTypes entityType, String entityName,
+                                  String propertyName, Integer timeout) {
+        return temperatureLimit;
+    }
+
+    @Override
+    public InfoTable readProperty(RelationshipTypes.ThingworxEntityTypes entityType, String entityName,
+                                  String propertyName, boolean async, Integer timeout) {
+        return temperatureLimit;
+    }
+}
@@ -0,0 +1,108 @@
+package com.thingworx.sdk.steam;
+
+import com.thingworx.communications.client.ConnectedThingClient;
+import com.thingworx.communications.client.things.VirtualThing;
+import com.thingworx.metadata.annotations.ThingworxPropertyDefinition;
+import com.thingworx.metadata.annotations.ThingworxPropertyDefinitions;
+import com.thingworx.metadata.annotations.ThingworxServiceDefinition;
+import com.thingworx.metadata.annotations.ThingworxServiceResult;
+import com.thingworx.sdk.steam.flush.FlushCoordinator;
+import com.thingworx.sdk.steam.flush.FlushRegistration;
+import com.thingworx.sdk.steam.flush.StatePublisher;
+import com.thingworx.sdk.steam.metrics.AgentMetrics;
+import com.thingworx.sdk.steam.metrics.Histogram;
+import com.thingworx.types.InfoTable;
+import com.thingworx.types.constants.CommonPropertyNames;
+
+import java.util.Map;
+
+// Property Definitions
+// The 99th percentiles of the histograms are in milliseconds, the counters and gauges are plain counts
+@SuppressWarnings("serial")
+@ThingworxPropertyDefinitions(properties = {
+        @ThingworxPropertyDefinition(name = "ScanDurationP99", description = "99th percentile of the scan time of one sensor in ms",
+                baseType = "NUMBER", category = "Scan", aspects = { "isReadOnly:true" }),
+        @ThingworxPropertyDefinition(name = "ScanCycleDurationP99", description = "99th percentile of the time from the start of a scan cycle to the end of its last shard scan in ms",
+                baseType = "NUMBER", category = "Scan", aspects = { "isReadOnly:true" }),
+        @ThingworxPropertyDefinition(name = "ShardScanDurationP99", description = "99th percentile of the time a shard takes to scan its sensors in ms",
+                baseType = "NUMBER", category = "Scan", aspects = { "isReadOnly:true" }),
+        @ThingworxPropertyDefinition(name = "ScanErrors", description = "Scans that failed",
+                baseType = "NUMBER", category = "Scan", aspects = { "isReadOnly:true" }),
+        @ThingworxPropertyDefinition(name = "ScanOverruns", description = "Scan cycles that overran the scan rate",
+                baseType = "NUMBER", category = "Scan", aspects = { "isReadOnly:true" }),
+        @ThingworxPropertyDefinition(name = "PropertyPushLatencyP99", description = "99th percentile of the property push time in ms",
+                baseType = "NUMBER", category = "Push", aspects = { "isReadOnly:true" }),
+        @ThingworxPropertyDefinition(name = "EventPushLatencyP99", description = "99th percentile of the event push time in ms",
+                baseType = "NUMBER", category = "Push", aspects = { "isReadOnly:true" }),
+        @ThingworxPropertyDefinition(name = "PushErrors", description = "Pushes that failed",
+                baseType = "NUMBER", category = "Push", aspects = { "isReadOnly:true" }),
+        @ThingworxPropertyDefinition(name = "PendingEvents", description = "Events queued by the sensors and not yet sent",
+                baseType = "NUMBER", category = "Queues", aspects = { "isReadOnly:true" }),
+        @ThingworxPropertyDefinition(name = "PendingPropertyUpdates", description = "Property updates queued by the sensors and not yet sent",
+                baseType = "NUMBER", category = "Queues", aspects = { "isReadOnly:true" }),
+        @ThingworxPropertyDefinition(name = "Reconnects", description = "Times the agent reconnected to the platform",
+                baseType = "NUMBER", category = "Connection", aspects = { "isReadOnly:true" }), })
+
+// A thing representing the agent itself, it publishes the agent metrics as properties on every scan. With a flush
+// coordinator the scan only marks it dirty, and the metrics are read and sent on the flush thread like the updates of
+// the sensors.
+public class AgentThing extends VirtualThing implements StatePublisher {
+    private static final String[] HISTOGRAMS = { AgentMetrics.SCAN_DURATION, AgentMetrics.SCAN_CYCLE_DURATION,
+            AgentMetrics.SHARD_SCAN_DURATION, AgentMetrics.PROPERTY_PUSH_LATENCY, AgentMetrics.EVENT_PUSH_LATENCY };
+
+    private final AgentMetrics metrics;
+    private volatile FlushRegistration flushRegistration;
+
+    public AgentThing(String name, String description, ConnectedThingClient client, AgentMetrics metrics)
+            throws Exception {
+        super(name, description, client);
+        this.metrics = metrics;
+        defineDataShapeDefinition(AgentMetrics.DATA_SHAPE, AgentMetrics.dataShapeFields());
+        // Unlike FileTransferVirtualThing, VirtualThing leaves the annotations to its subclasses
+        initializeFromAnnotations();
+    }
+
+    @Override
+    public void synchronizeState() {
+        super.synchronizeState();
+        super.syncProperties();
+    }
+
+    // When a flush coordinator is set the scan only marks this thing dirty, without one the scan pushes the metrics
+    public void setFlushCoordinator(FlushCoordinator flushCoordinator) {
+        this.flushRegistration = flushCoordinator == null ? null : flushCoordinator.register(this);
+    }
+
+    @Override
+    public void processScanRequest() throws Exception {
+        FlushRegistration registration = flushRegistration;
+        if (registration != null) {
+            registration.markDirty();
+        } else {
+            publishState();
+            super.updateSubscribedProperties(15000);
+        }
+    }
+
+    @Override
+    public void publishState() throws Exception {
+        for (String name : HISTOGRAMS) {
+            Histogram histogram = metrics.getHistogram(name);
+            super.setProperty(name + "P99", histogram.getP99() / 1000.0);
+        }
+        // Gauges registered by other parts of the agent only have a property when one is defined above
+        for (Map.Entry<String, Long> entry : metrics.getValues().entrySet()) {
+            if (getProperty(entry.getKey()) != null) {
+                super.setProperty(entry.getKey(), entry.getValue().doubleValue());
+            }
+        }
+    }
+
+    @ThingworxServiceDefinition(name = "GetAgentMetrics",
+            description = "Get the scan, push and queue metrics of the agent")
+    @ThingworxServiceResult(name = CommonPropertyNames.PROP_RESULT, description = "Result",
+            baseType = "INFOTABLE", aspects = { "dataShape:" + AgentMetrics.DATA_SHAPE })
+    public InfoTable GetAgentMetrics() throws Exception {
+        return metrics.toInfoTable(getDataShapeDefinition(AgentMetrics.DATA_SHAPE));
+    }
+}
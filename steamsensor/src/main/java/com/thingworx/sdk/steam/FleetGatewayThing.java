@@ -0,0 +1,48 @@
+package com.thingworx.sdk.steam;
+
+import com.thingworx.common.RESTAPIConstants;
+import com.thingworx.common.exceptions.InvalidRequestException;
+import com.thingworx.communications.client.ConnectedThingClient;
+import com.thingworx.communications.client.things.SDKGatewayThing;
+import com.thingworx.metadata.annotations.ThingworxServiceDefinition;
+import com.thingworx.metadata.annotations.ThingworxServiceParameter;
+import com.thingworx.metadata.annotations.ThingworxServiceResult;
+import com.thingworx.sdk.steam.fleet.FleetView;
+import com.thingworx.types.InfoTable;
+import com.thingworx.types.constants.CommonPropertyNames;
+
+// The gateway thing of a connection, bound in place of the one the SDK binds for -g. Besides the services of the
+// SDK gateway it returns the current values of every sensor of the agent in one call, from the FleetView the scans
+// keep up to date, so a dashboard does not have to read the sensors one by one.
+@SuppressWarnings("serial")
+public class FleetGatewayThing extends SDKGatewayThing {
+    private final FleetView fleetView;
+
+    public FleetGatewayThing(String gatewayName, ConnectedThingClient client, FleetView fleetView) throws Exception {
+        super(gatewayName, client);
+        this.fleetView = fleetView;
+        defineDataShapeDefinition(FleetView.DATA_SHAPE, FleetView.dataShapeFields());
+        // The SDK gateway does not read its annotations either, this also defines GetRegisteredThings
+        initializeFromAnnotations();
+    }
+
+    @ThingworxServiceDefinition(name = "GetFleetSnapshot",
+            description = "Get the current values of all the steam sensors of the agent")
+    @ThingworxServiceResult(name = CommonPropertyNames.PROP_RESULT, description = "Result",
+            baseType = "INFOTABLE", aspects = { "dataShape:" + FleetView.DATA_SHAPE })
+    public InfoTable GetFleetSnapshot(
+            @ThingworxServiceParameter(name = "fields", description = "Comma separated fields to return besides the SensorName, all of them by default",
+                    baseType = "STRING") String fields,
+            @ThingworxServiceParameter(name = "namePrefix", description = "Only the sensors whose name starts with this",
+                    baseType = "STRING") String namePrefix,
+            @ThingworxServiceParameter(name = "faultedOnly", description = "Only the sensors with a fault",
+                    baseType = "BOOLEAN") Boolean faultedOnly) throws Exception {
+        // An unknown field is a bad request with the reason, not an internal error of the agent
+        try {
+            FleetView.checkFields(fields);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidRequestException(e.getMessage(), RESTAPIConstants.StatusCode.STATUS_BAD_REQUEST);
+        }
+        return fleetView.snapshot(fields, namePrefix, faultedOnly != null && faultedOnly);
+    }
+}
@@ -1,14 +1,49 @@
 package com.thingworx.sdk.steam;
 
 import ch.qos.logback.classic.Level;
-import ch.qos.logback.classic.LoggerContext;
 import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.core.Appender;
 import com.thingworx.communications.client.ClientConfigurator;
 import com.thingworx.communications.client.ConnectedThingClient;
-import com.thingworx.communications.client.things.VirtualThing;
+import com.thingworx.communications.client.connection.IClientConnectionFactory;
 import com.thingworx.communications.client.things.VirtualThingPropertyChangeEvent;
 import com.thingworx.communications.client.things.VirtualThingPropertyChangeListener;
+import com.thingworx.communications.common.messaging.RequestMessage;
+import com.thingworx.communications.common.messaging.ResponseMessage;
+import com.thingworx.sdk.steam.buffer.EvictionPolicy;
+import com.thingworx.sdk.steam.buffer.StoreAndForward;
+import com.thingworx.sdk.steam.buffer.StoreAndForwardBuffer;
+import com.thingworx.sdk.steam.checkpoint.Checkpointer;
+import com.thingworx.sdk.steam.connection.ClientConnections;
+import com.thingworx.sdk.steam.connection.ConnectionStats;
+import com.thingworx.sdk.steam.deadband.DeadbandConfig;
+import com.thingworx.sdk.steam.faults.FaultRule;
+import com.thingworx.sdk.steam.faults.FaultRuleEngine;
+import com.thingworx.sdk.steam.faults.FaultRules;
+import com.thingworx.sdk.steam.fleet.FleetView;
+import com.thingworx.sdk.steam.flush.FlushCoordinator;
+import com.thingworx.sdk.steam.history.PropertyHistory;
+import com.thingworx.sdk.steam.loadtest.LoadTestRunner;
+import com.thingworx.sdk.steam.logging.LogControl;
+import com.thingworx.sdk.steam.logging.LogShipper;
+import com.thingworx.sdk.steam.metrics.AgentMetrics;
+import com.thingworx.sdk.steam.metrics.DirectMemory;
+import com.thingworx.sdk.steam.metrics.Gauge;
+import com.thingworx.sdk.steam.readings.ReadingsStore;
+import com.thingworx.sdk.steam.recording.RecordingReader;
+import com.thingworx.sdk.steam.recording.RecordingWriter;
+import com.thingworx.sdk.steam.recording.Replay;
+import com.thingworx.sdk.steam.sampling.FleetSampling;
+import com.thingworx.sdk.steam.sampling.SamplingConfig;
+import com.thingworx.sdk.steam.scan.FixedRateScanScheduler;
+import com.thingworx.sdk.steam.scan.OutboundRateMonitor;
+import com.thingworx.sdk.steam.scan.OverrunPolicy;
+import com.thingworx.sdk.steam.scan.ScanPhasing;
+import com.thingworx.sdk.steam.scan.ScanWorkerPools;
+import com.thingworx.sdk.steam.settings.InitialSettingsLoader;
+import com.thingworx.sdk.steam.simulation.SimulationConfig;
+import com.thingworx.sdk.steam.startup.FleetStartup;
+import com.thingworx.sdk.steam.state.FaultEventQueue;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
@@ -17,17 +52,95 @@ import org.apache.commons.cli.Options;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
 public class SteamSensorClient extends ConnectedThingClient {
     private static final Logger LOG = LoggerFactory.getLogger(SteamSensorClient.class);
     static String hostName = "";
     static int port = 8080;
     static int logLevel = 2;
     static String thingworxUri = "";
+    private volatile ConnectionStats connectionStats;
 
     public SteamSensorClient(ClientConfigurator config) throws Exception {
         super(config);
     }
 
+    // Connects through the given factory instead of a WebSocket, used by the load test
+    public SteamSensorClient(ClientConfigurator config, IClientConnectionFactory connectionFactory) throws Exception {
+        super(config, connectionFactory);
+    }
+
+    // Every request this client sends to the platform is recorded in these stats
+    public void setConnectionStats(ConnectionStats connectionStats) {
+        this.connectionStats = connectionStats;
+    }
+
+    @Override
+    protected ResponseMessage sendRequest(RequestMessage request, Integer timeout) throws Exception {
+        ConnectionStats stats = connectionStats;
+        if (stats == null) {
+            return super.sendRequest(request, timeout);
+        }
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            ResponseMessage response = super.sendRequest(request, timeout);
+            failed = response.getResponseContext().getResultCode().isError();
+            return response;
+        } finally {
+            stats.recordRequest(start, failed);
+        }
+    }
+
+    // The configuration of one connection to the platform, the gateway of each connection has its own name
+    private static ClientConfigurator newConfigurator(CommandLine cmd, int reconnectInterval, String gatewayName) {
+        // Set the required configuration information
+        ClientConfigurator config = new ClientConfigurator();
+        config.setUri(thingworxUri);
+
+        // Reconnect every reconnectInterval seconds if a disconnect occurs or if initial connection cannot be made
+        config.setReconnectInterval(reconnectInterval);
+
+        // Enable tunneling if requested
+        if(cmd.hasOption("n")) {
+            config.tunnelsEnabled(true);
+        }
+
+        // Configure Proxy if required
+        if(cmd.hasOption("j")) {
+            config.setProxyHost(cmd.getOptionValue("j"));
+            config.setProxyPort(Integer.parseInt(cmd.getOptionValue("r")));
+            config.setProxyUser(cmd.getOptionValue("u"));
+            
+            if(cmd.hasOption("q")) {
+            	config.setProxyPassCallback( new SamplePasswordCallback(cmd.getOptionValue("q")) );
+            }
+        }
+
+        // Set the security using an Application Key
+        config.setSecurityClaims( new SamplePasswordCallback( cmd.getOptionValue("k") ) );
+        
+
+        // Set the name of the gateway
+        if(gatewayName != null) {
+            config.setName(gatewayName);
+            config.setAsSDKType();
+        } else {
+            config.setName(null);
+        }
+
+        // This will allow us to test against a server using a self-signed certificate.
+        // This should be removed for production systems.
+        if(cmd.hasOption("d")) {
+            config.ignoreSSLErrors(true); // All self signed certs
+        }
+        return config;
+    }
+
     public static void main(String[] args) throws Exception {
 
         Options options = new Options();
@@ -39,17 +152,70 @@ public class SteamSensorClient extends ConnectedThingClient {
         options.addOption("p", true, "Port used by ThingWorx Platform (Defaults to 8080)");
         options.addOption("k", true, "appKey used to authenticate");
         options.addOption("l", true, "Logging level 1=TRACE,(2=DEBUG),3=INFO,4=WARN,5=ERROR,6=FORCE,7=AUDIT");
-        options.addOption("g", true, "Gateway Name (If not given, no gateway will be created)");
+        options.addOption("g", true, "Gateway Name, its GetFleetSnapshot service returns all the sensors (If not given, no gateway will be created)");
         options.addOption("j", true, "Proxy Hostname (If not provided, no proxy will be used)");
         options.addOption("q", true, "Proxy Password (Optional)");
         options.addOption("r", true, "Proxy Port (Optional)");
         options.addOption("u", true, "Proxy User (Optional)");
         options.addOption("n", false, "Enable Tunneling (Optional, Defaults to false)");
+        options.addOption(null, "log-file", false, "Write the rolling log file from the start (Optional, Defaults to only after the StartLogging service)");
+        options.addOption(null, "connections", true, "Number of connections the things are spread over, each with its own client, -g names one gateway per connection (Optional, Defaults to 1)");
+        options.addOption(null, "scan-rate", true, "Scan period in milliseconds (Optional, Defaults to 3000)");
+        options.addOption(null, "scan-threads", true, "Number of scan worker threads (Optional, Defaults to the number of CPUs)");
+        options.addOption(null, "scan-shards", true, "Number of shards the things are split into for scanning, each ticked at its own phase (Optional, Defaults to scan-threads, 4 per scan thread with phasing)");
+        options.addOption(null, "virtual-threads", false, "Scan on virtual threads when running on Java 21+ (Optional)");
+        options.addOption(null, "overrun-policy", true, "What to do when a shard scan overruns its period: SKIP or CATCH_UP (Optional, Defaults to SKIP)");
+        options.addOption(null, "scan-phasing", true, "How scans are placed inside the scan period: NONE, HASH or SPREAD (Optional, Defaults to SPREAD)");
+        options.addOption(null, "flush-batch-size", true, "Maximum number of things flushed in one batch (Optional, Defaults to 500)");
+        options.addOption(null, "flush-linger", true, "Most milliseconds a batch waits for its shard to finish scanning before it is flushed (Optional, Defaults to the scan rate)");
+        options.addOption(null, "flush-threads", true, "Number of threads sending flush batches (Optional, Defaults to 4)");
+        options.addOption(null, "buffer-dir", true, "Directory of the store-and-forward buffer, keeps readings while disconnected (Optional, Defaults to no buffering)");
+        options.addOption(null, "buffer-budget", true, "Disk budget of the store-and-forward buffer in MB (Optional, Defaults to 256)");
+        options.addOption(null, "buffer-segment", true, "Size of one store-and-forward segment file in KB (Optional, Defaults to 4096)");
+        options.addOption(null, "buffer-eviction", true, "What to do when the buffer is full: DROP_OLDEST or DOWNSAMPLE (Optional, Defaults to DROP_OLDEST)");
+        options.addOption(null, "replay-batch-size", true, "Number of buffered records replayed per batch (Optional, Defaults to 500)");
+        options.addOption(null, "replay-rate", true, "Maximum number of buffered records replayed per second, besides the new records buffered until the replay caught up (Optional, Defaults to 2000)");
+        options.addOption(null, "readings-capacity", true, "Number of readings each sensor keeps for GetSteamSensorReadings (Optional, Defaults to 1000)");
+        options.addOption(null, "property-history", false, "Keep a local history of the sampled values off the heap for QueryPropertyHistory, about 200 KB of direct memory per sensor with the default points (Optional, Defaults to no history)");
+        options.addOption(null, "history-raw-points", true, "Raw samples of each property kept with --property-history (Optional, Defaults to 1200)");
+        options.addOption(null, "history-minute-points", true, "One minute means of each property kept with --property-history (Optional, Defaults to 1440)");
+        options.addOption(null, "history-hour-points", true, "One hour means of each property kept with --property-history (Optional, Defaults to 168)");
+        options.addOption(null, "aggregate-window", true, "Window in milliseconds over which Temperature and Pressure statistics are pushed instead of the raw values (Optional, Defaults to no aggregation)");
+        options.addOption(null, "aggregate-slide", true, "Milliseconds a sliding aggregate window advances, a divisor of the window (Optional, Defaults to the window, tumbling)");
+        options.addOption(null, "aggregate-raw", false, "Keep pushing the raw Temperature and Pressure values next to their statistics (Optional)");
+        options.addOption(null, "deadband-config", true, "Properties file overriding the deadbands of the sensor properties (Optional)");
+        options.addOption(null, "sampling-config", true, "Properties file with the sampling periods of the sensor readings, which can adapt to how fast a reading changes (Optional, Defaults to every scan for Temperature and Location and every third for Pressure and TotalFlow)");
+        options.addOption(null, "checkpoint-file", true, "Memory-mapped file the state of the sensors is checkpointed to and restored from at startup (Optional, Defaults to no checkpoints)");
+        options.addOption(null, "checkpoint-interval", true, "Milliseconds between two checkpoints of the state of the sensors with --checkpoint-file (Optional, Defaults to 30000)");
+        options.addOption(null, "settings-cache", true, "File the last known settings read from the platform are kept in and applied from at startup (Optional, Defaults to no cache)");
+        options.addOption(null, "settings-concurrency", true, "Number of settings read from the platform at the same time (Optional, Defaults to 8)");
+        options.addOption(null, "settings-timeout", true, "Timeout in milliseconds of one settings read (Optional, Defaults to 10000)");
+        options.addOption(null, "fault-rules", true, "Properties file with the fault rules of the sensors (Optional, Defaults to Temperature above TemperatureLimit)");
+        options.addOption(null, "fault-threads", true, "Number of threads the fault rules are evaluated on (Optional, Defaults to the number of CPUs)");
+        options.addOption(null, "fault-event-queue", true, "Number of fault events of a sensor that wait to be sent before the oldest is dropped (Optional, Defaults to 8)");
+        options.addOption(null, "fault-event-rate", true, "Fault events per minute a sensor may send, repeated faults in between are coalesced (Optional, Defaults to 6)");
+        options.addOption(null, "fault-event-burst", true, "Fault events a sensor may send at once after a quiet period (Optional, Defaults to 3)");
+        options.addOption(null, "sim-seed", true, "Seed of the simulated sensor readings, the same seed gives the same readings (Optional, Defaults to a random seed, 1 in a load test)");
+        options.addOption(null, "sim-config", true, "Properties file overriding the waveforms of the simulated sensor readings (Optional)");
+        options.addOption(null, "record-dir", true, "Directory the readings and faults of the sensors are recorded to, in a compact binary format --playback-dir plays back (Optional, Defaults to no recording)");
+        options.addOption(null, "record-segment", true, "Size in MB of the memory-mapped segment files of a recording (Optional, Defaults to 64)");
+        options.addOption(null, "record-flush", true, "Milliseconds between two blocks written to a recording (Optional, Defaults to 10000)");
+        options.addOption(null, "playback-dir", true, "Directory of a recording the sensor readings are replayed from instead of simulated, also in a load test (Optional)");
+        options.addOption(null, "playback-speed", true, "Speed of the playback, from 1 to 1000 times as fast as recorded, faster than recorded each scan skips the samples recorded since the last one (Optional, Defaults to 1)");
+        options.addOption(null, "startup-threads", true, "Number of threads the things are built on at startup (Optional, Defaults to the number of CPUs)");
+        options.addOption(null, "bind-timeout", true, "Milliseconds to wait for all things to be bound before scanning, the things bound by then are scanned when it passes (Optional, Defaults to 10 per thing, at least 60000)");
+        options.addOption(null, "metrics-thing", true, "Name of a Thing the agent metrics are published to as properties (Optional, Defaults to none)");
+        options.addOption(null, "load-test", false, "Ramp up sensors against a local stand-in server and report how the agent scales, -h and -k are not needed (Optional)");
+        options.addOption(null, "load-steps", true, "Comma separated sensor counts of the load test (Optional, Defaults to 1,10,100,1000,5000,10000,25000,50000)");
+        options.addOption(null, "load-step-duration", true, "Seconds each load test step is measured (Optional, Defaults to 60)");
+        options.addOption(null, "load-latency", true, "Milliseconds the stand-in server waits before every response (Optional, Defaults to 5)");
+        options.addOption(null, "load-report", true, "Directory the load test report is written to (Optional, Defaults to loadtest-report)");
 
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = parser.parse( options, args);
 
-        if (args.length == 0 || !cmd.hasOption("h")|| !cmd.hasOption("k")) {
+        boolean loadTest = cmd.hasOption("load-test");
+        if (args.length == 0 || (!loadTest && (!cmd.hasOption("h")|| !cmd.hasOption("k")))) {
             HelpFormatter formatter = new HelpFormatter();
             formatter.printHelp("SteamSensor", options);
             System.exit(-1);
@@ -66,37 +232,13 @@ public class SteamSensorClient extends ConnectedThingClient {
             thingworxUri="ws://"+cmd.getOptionValue("h")+":"+port+"/Thingworx/WS";
         }
 
-        // Set the required configuration information
-        ClientConfigurator config = new ClientConfigurator();
-        config.setUri(thingworxUri);
-
-        // Reconnect every 15 seconds if a disconnect occurs or if initial connection cannot be made
-        config.setReconnectInterval(15);
-
-        // Enable tunneling if requested
-        if(cmd.hasOption("n")) {
-            config.tunnelsEnabled(true);
-        }
-
-        // Configure Proxy if required
-        if(cmd.hasOption("j")) {
-            config.setProxyHost(cmd.getOptionValue("j"));
-            config.setProxyPort(Integer.parseInt(cmd.getOptionValue("r")));
-            config.setProxyUser(cmd.getOptionValue("u"));
-            
-            if(cmd.hasOption("q")) {
-            	config.setProxyPassCallback( new SamplePasswordCallback(cmd.getOptionValue("q")) );
-            }
-        }
-        
         // Override default log levels
-        LoggerContext loggerContext = (LoggerContext) LoggerFactory.getILoggerFactory();
-        //StatusPrinter.print(loggerContext);
-        ch.qos.logback.classic.Logger logger = loggerContext.getLogger("ROOT");
-        Appender<ILoggingEvent> fileLogAppender = logger.getAppender("ROLLING");
-        if(fileLogAppender!=null){
+        // The rolling log file is only written after the StartLogging service attaches it again, unless --log-file
+        final Appender<ILoggingEvent> fileLogAppender = cmd.hasOption("log-file")
+                ? LogControl.rootLogger().getAppender(LogControl.FILE_APPENDER)
+                : LogControl.detach(LogControl.FILE_APPENDER);
+        if(fileLogAppender!=null && !cmd.hasOption("log-file")){
             System.out.println("***** Detaching rolling appender.");
-            logger.detachAppender("ROLLING");
         }
 
         if(cmd.hasOption("l")) {
@@ -104,6 +246,7 @@ public class SteamSensorClient extends ConnectedThingClient {
             try {
                 level = Integer.parseInt(cmd.getOptionValue("l"));
             } catch (NumberFormatException e){ }
+            ch.qos.logback.classic.Logger logger = LogControl.rootLogger();
             switch(level) {
                 case 1:
                     logger.setLevel(Level.TRACE);
@@ -127,53 +270,405 @@ public class SteamSensorClient extends ConnectedThingClient {
             }
         }
 
-        // Set the security using an Application Key
-        config.setSecurityClaims( new SamplePasswordCallback( cmd.getOptionValue("k") ) );
-        
-
-        // Set the name of the gateway
-        if(cmd.hasOption("g")) {
-            config.setName(cmd.getOptionValue("g"));
-            config.setAsSDKType();
-        } else {
-            config.setName(null);
-        }
-
-        // This will allow us to test against a server using a self-signed certificate.
-        // This should be removed for production systems.
-        if(cmd.hasOption("d")) {
-            config.ignoreSSLErrors(true); // All self signed certs
+        // The things are spread over several connections to the platform, each with its own client
+        int connectionCount = 1;
+        if(cmd.hasOption("connections")) {
+            connectionCount = Integer.parseInt(cmd.getOptionValue("connections"));
         }
 
         // Get the scan rate (milliseconds) that is specific to this example
         // The example will execute the processScanRequest of the VirtualThing
         // based on this scan rate
         int scanRate = 3000; // 3 seconds
+        if(cmd.hasOption("scan-rate")) {
+            scanRate = Integer.parseInt(cmd.getOptionValue("scan-rate"));
+        }
+
+        // The things are split into shards that are scanned in parallel on a pool of worker threads
+        int scanThreads = Runtime.getRuntime().availableProcessors();
+        if(cmd.hasOption("scan-threads")) {
+            scanThreads = Integer.parseInt(cmd.getOptionValue("scan-threads"));
+        }
+        OverrunPolicy overrunPolicy = OverrunPolicy.fromString(cmd.getOptionValue("overrun-policy"));
+
+        // Each thing is given its own phase inside the scan period so their pushes do not all leave at once, the
+        // shards are ticked at the phases
+        ScanPhasing scanPhasing = ScanPhasing.fromString(cmd.getOptionValue("scan-phasing"));
+        int scanShards = FixedRateScanScheduler.defaultShardCount(scanThreads, scanPhasing);
+        if(cmd.hasOption("scan-shards")) {
+            scanShards = Integer.parseInt(cmd.getOptionValue("scan-shards"));
+        }
 
-        // decide how many things will be created and create a latch to use
-        // to wait for each bind notification to complete
-        int startSensor = 0;
+        // The things do not push their own updates, a flush coordinator sends them in batches.
+        // Four periods of history in buckets of a twentieth of the period are kept to report the outbound rate.
+        int flushBatchSize = 500;
+        if(cmd.hasOption("flush-batch-size")) {
+            flushBatchSize = Integer.parseInt(cmd.getOptionValue("flush-batch-size"));
+        }
+        int flushLinger = scanRate;
+        if(cmd.hasOption("flush-linger")) {
+            flushLinger = Integer.parseInt(cmd.getOptionValue("flush-linger"));
+        }
+        int flushThreads = 4;
+        if(cmd.hasOption("flush-threads")) {
+            flushThreads = Integer.parseInt(cmd.getOptionValue("flush-threads"));
+        }
+        OutboundRateMonitor outboundRate = new OutboundRateMonitor(4L * scanRate, 80);
+        FlushCoordinator flushCoordinator = new FlushCoordinator(flushBatchSize, flushLinger, flushThreads,
+                15000, 60000, outboundRate);
+
+        // Property deadbands default to the DeadbandDefinitions of SteamThing
+        DeadbandConfig deadbandConfig = DeadbandConfig.fromAnnotations(SteamThing.class);
+        if(cmd.hasOption("deadband-config")) {
+            deadbandConfig = deadbandConfig.withOverrides(new File(cmd.getOptionValue("deadband-config")));
+            LOG.info("Using property deadbands {}", deadbandConfig);
+        }
+
+        // Every reading is sampled at its own period, in whole scans, which may adapt to how fast the reading changes
+        SamplingConfig samplingConfig = SamplingConfig.defaults(scanRate);
+        if(cmd.hasOption("sampling-config")) {
+            samplingConfig = samplingConfig.withOverrides(new File(cmd.getOptionValue("sampling-config")));
+            LOG.info("Sampling the sensor readings with {}", samplingConfig);
+        }
+
+        // The fault rules of all sensors are evaluated together, apart from the scans
+        List<FaultRule> faultRules = FaultRules.defaults();
+        if(cmd.hasOption("fault-rules")) {
+            faultRules = FaultRules.fromFile(new File(cmd.getOptionValue("fault-rules")));
+        }
+        int faultThreads = Runtime.getRuntime().availableProcessors();
+        if(cmd.hasOption("fault-threads")) {
+            faultThreads = Integer.parseInt(cmd.getOptionValue("fault-threads"));
+        }
+        // A sensor flapping around a limit sends a few coalesced fault events instead of one per transition
+        int faultEventQueue = FaultEventQueue.DEFAULT_CAPACITY;
+        if(cmd.hasOption("fault-event-queue")) {
+            faultEventQueue = Integer.parseInt(cmd.getOptionValue("fault-event-queue"));
+        }
+        double faultEventRate = FaultEventQueue.DEFAULT_EVENTS_PER_MINUTE;
+        if(cmd.hasOption("fault-event-rate")) {
+            faultEventRate = Double.parseDouble(cmd.getOptionValue("fault-event-rate"));
+        }
+        int faultEventBurst = FaultEventQueue.DEFAULT_BURST;
+        if(cmd.hasOption("fault-event-burst")) {
+            faultEventBurst = Integer.parseInt(cmd.getOptionValue("fault-event-burst"));
+        }
+
+        // The readings of every sensor are simulated from one seed, which is logged so a run can be repeated.
+        // A load test uses a fixed seed so its runs are comparable.
+        long simulationSeed = loadTest ? 1 : new Random().nextLong();
+        if(cmd.hasOption("sim-seed")) {
+            simulationSeed = Long.parseLong(cmd.getOptionValue("sim-seed"));
+        }
+        SimulationConfig simulation = SimulationConfig.defaults(simulationSeed);
+        if(cmd.hasOption("sim-config")) {
+            simulation = simulation.withOverrides(new File(cmd.getOptionValue("sim-config")));
+        }
+        // A recording replaces the simulation, the sensors replay the recorded sensors of the same name
+        RecordingReader replayRecording = null;
+        double replaySpeed = 1;
+        if(cmd.hasOption("playback-speed")) {
+            replaySpeed = Double.parseDouble(cmd.getOptionValue("playback-speed"));
+        }
+        Replay replay = null;
+        if(cmd.hasOption("playback-dir")) {
+            replayRecording = RecordingReader.open(new File(cmd.getOptionValue("playback-dir")));
+            replay = new Replay(replayRecording, replaySpeed);
+            LOG.info("Replaying sensor readings of {}", replay);
+            double samplesPerScan = replay.samplesPerScan(scanRate);
+            if(samplesPerScan > 1.5) {
+                LOG.warn(String.format("Every scan replays one of about %.0f recorded samples of a sensor, the others are skipped.",
+                        samplesPerScan));
+            }
+        } else {
+            LOG.info("Simulating sensor readings with {}", simulation);
+        }
+
+        // Each sensor keeps its most recent readings for the GetSteamSensorReadings service
+        int readingsCapacity = 1000;
+        if(cmd.hasOption("readings-capacity")) {
+            readingsCapacity = Integer.parseInt(cmd.getOptionValue("readings-capacity"));
+        }
+
+        // With --property-history each sensor keeps a local history of its sampled values off the heap, in a fixed amount of
+        // direct memory
+        int historyRawPoints = 1200;
+        if(cmd.hasOption("history-raw-points")) {
+            historyRawPoints = Integer.parseInt(cmd.getOptionValue("history-raw-points"));
+        }
+        int historyMinutePoints = 1440;
+        if(cmd.hasOption("history-minute-points")) {
+            historyMinutePoints = Integer.parseInt(cmd.getOptionValue("history-minute-points"));
+        }
+        int historyHourPoints = 168;
+        if(cmd.hasOption("history-hour-points")) {
+            historyHourPoints = Integer.parseInt(cmd.getOptionValue("history-hour-points"));
+        }
+        boolean keepHistory = cmd.hasOption("property-history") && historyRawPoints + historyMinutePoints + historyHourPoints > 0;
+
+        // Temperature and Pressure can be pushed as window statistics instead of every raw value
+        long aggregateWindow = 0;
+        if(cmd.hasOption("aggregate-window")) {
+            aggregateWindow = Long.parseLong(cmd.getOptionValue("aggregate-window"));
+        }
+        long aggregateSlide = aggregateWindow;
+        if(cmd.hasOption("aggregate-slide")) {
+            aggregateSlide = Long.parseLong(cmd.getOptionValue("aggregate-slide"));
+        }
+        boolean aggregateRaw = cmd.hasOption("aggregate-raw");
+
+        // In load test mode the sensors are bound to a local stand-in server instead of the platform
+        if(loadTest) {
+            String loadSteps = "1,10,100,1000,5000,10000,25000,50000";
+            if(cmd.hasOption("load-steps")) {
+                loadSteps = cmd.getOptionValue("load-steps");
+            }
+            long loadStepDuration = 60;
+            if(cmd.hasOption("load-step-duration")) {
+                loadStepDuration = Long.parseLong(cmd.getOptionValue("load-step-duration"));
+            }
+            long loadLatency = 5;
+            if(cmd.hasOption("load-latency")) {
+                loadLatency = Long.parseLong(cmd.getOptionValue("load-latency"));
+            }
+            LoadTestRunner loadTestRunner = new LoadTestRunner(LoadTestRunner.parseSteps(loadSteps),
+                    loadStepDuration * 1000, loadLatency, new File(cmd.getOptionValue("load-report", "loadtest-report")));
+            loadTestRunner.setScanSettings(scanRate, scanThreads, scanShards, cmd.hasOption("virtual-threads"),
+                    overrunPolicy, scanPhasing);
+            loadTestRunner.setFlushSettings(flushBatchSize, flushLinger, flushThreads);
+            loadTestRunner.setSensorSettings(deadbandConfig, readingsCapacity);
+            loadTestRunner.setSamplingConfig(samplingConfig);
+            loadTestRunner.setFaultSettings(faultRules, faultThreads);
+            loadTestRunner.setSimulation(simulation);
+            if(replayRecording != null) {
+                loadTestRunner.setReplay(replayRecording, replaySpeed);
+            }
+            loadTestRunner.setConnections(connectionCount);
+            if(aggregateWindow > 0) {
+                loadTestRunner.setAggregationSettings(aggregateWindow, aggregateSlide, aggregateRaw);
+            }
+            if(keepHistory) {
+                loadTestRunner.setHistorySettings(historyRawPoints, historyMinutePoints, historyHourPoints);
+            }
+            loadTestRunner.run();
+            return;
+        }
+
+        // decide how many things will be created, the fleet startup builds them in parallel and
+        // waits for each bind notification to complete before scanning
+        final int startSensor = 0;
         int nSensors = 1;
         if(cmd.hasOption("c")){
             nSensors=Integer.parseInt(cmd.getOptionValue("c"));
         }
 
-        // Create the client passing in the configuration from above
-        SteamSensorClient client = new SteamSensorClient(config);
+        if(keepHistory) {
+            long historyBytes = PropertyHistory.bytesPerSensor(historyRawPoints, historyMinutePoints, historyHourPoints);
+            // Found out now rather than by an OutOfMemoryError once most of the sensors are running
+            long directMax = DirectMemory.max();
+            if(historyBytes * nSensors > directMax) {
+                throw new IllegalArgumentException(String.format("The property history of %d sensors takes %d MB of "
+                                + "direct memory, more than the %d MB the JVM allows. Keep fewer history points or "
+                                + "raise -XX:MaxDirectMemorySize.", nSensors, historyBytes * nSensors / (1024 * 1024),
+                        directMax / (1024 * 1024)));
+            }
+            LOG.info("Property history takes {} KB off the heap per sensor, {} MB for {} sensors.",
+                    historyBytes / 1024, historyBytes * nSensors / (1024 * 1024), nSensors);
+        }
+
+        int startupThreads = Runtime.getRuntime().availableProcessors();
+        if(cmd.hasOption("startup-threads")) {
+            startupThreads = Integer.parseInt(cmd.getOptionValue("startup-threads"));
+        }
+        // Give every thousand sensors ten seconds to bind, and at least a minute
+        long bindTimeout = Math.max(60000, nSensors * 10L);
+        if(cmd.hasOption("bind-timeout")) {
+            bindTimeout = Long.parseLong(cmd.getOptionValue("bind-timeout"));
+        }
+        FleetStartup fleetStartup = new FleetStartup(startupThreads);
+        FaultRuleEngine faultRuleEngine = new FaultRuleEngine(nSensors, faultRules, faultThreads);
+        // The gateways return the current values of all the sensors with GetFleetSnapshot, from a view the scans
+        // keep up to date
+        final FleetView fleetView = cmd.hasOption("g") ? new FleetView(nSensors) : null;
+
+        // Create the clients, one per connection. Reconnect every 15 seconds if a disconnect occurs or if initial
+        // connection cannot be made, the later connections a little later so they do not all try at once.
+        final CommandLine clientOptions = cmd;
+        final int connectionTotal = connectionCount;
+        final ClientConnections connections = new ClientConnections(connectionCount, new ClientConnections.ClientFactory() {
+            @Override
+            public ConnectedThingClient create(int index, ConnectionStats stats) throws Exception {
+                String gatewayName = clientOptions.getOptionValue("g");
+                if(gatewayName != null && connectionTotal > 1)
+                    gatewayName = gatewayName + "-" + index;
+                SteamSensorClient client = new SteamSensorClient(newConfigurator(clientOptions,
+                        ClientConnections.reconnectInterval(15, index, connectionTotal), gatewayName));
+                client.setConnectionStats(stats);
+                // Replaces the gateway thing the client bound for the name, before the client connects
+                if(gatewayName != null)
+                    client.bindThing(new FleetGatewayThing(gatewayName, client, fleetView));
+                return client;
+            }
+        });
+        if(connectionCount > 1) {
+            LOG.info("Spreading {} sensors over {} connections.", nSensors, connectionCount);
+        }
+
+        // The scan, push and queue metrics of the agent, reported by GetAgentMetrics and over JMX
+        AgentMetrics agentMetrics = new AgentMetrics();
+        agentMetrics.attach(connections.getClients());
+        final FlushCoordinator flushQueue = flushCoordinator;
+        agentMetrics.registerGauge("FlushQueueDepth", new Gauge() {
+            @Override
+            public long getValue() {
+                return flushQueue.getDirtyCount();
+            }
+        });
+        agentMetrics.registerGauge("LogEventsDropped", new Gauge() {
+            @Override
+            public long getValue() {
+                return LogControl.droppedEvents(fileLogAppender);
+            }
+        });
+        fleetStartup.registerGauges(agentMetrics);
+        faultRuleEngine.registerGauges(agentMetrics);
+        connections.registerGauges(agentMetrics);
+        if(fleetView != null) {
+            fleetView.registerGauges(agentMetrics);
+        }
+        FleetSampling sampling = new FleetSampling(samplingConfig, scanRate);
+        sampling.registerGauges(agentMetrics);
+        agentMetrics.registerMBeans();
+        flushCoordinator.setAgentMetrics(agentMetrics);
+
+        // Logs are shipped incrementally by the GetLogDelta service
+        LogShipper logShipper = new LogShipper(new File("./logs"));
+
+        // The settings held on the platform are read for all the things apart from the scans, and with
+        // --settings-cache kept in a local file
+        int settingsConcurrency = Integer.parseInt(cmd.getOptionValue("settings-concurrency", "8"));
+        int settingsTimeout = Integer.parseInt(cmd.getOptionValue("settings-timeout", "10000"));
+        InitialSettingsLoader settingsLoader = new InitialSettingsLoader(connections.get(0).getClient(),
+                cmd.hasOption("settings-cache") ? new File(cmd.getOptionValue("settings-cache")) : null,
+                settingsConcurrency, settingsTimeout, 60000);
+
+        // With --checkpoint-file the totals, fault states and settings of the things are checkpointed to a
+        // memory-mapped file, so a restarted agent continues with them
+        long checkpointInterval = 30000;
+        if(cmd.hasOption("checkpoint-interval")) {
+            checkpointInterval = Long.parseLong(cmd.getOptionValue("checkpoint-interval"));
+        }
+        Checkpointer checkpointer = null;
+        if(cmd.hasOption("checkpoint-file")) {
+            checkpointer = new Checkpointer(new File(cmd.getOptionValue("checkpoint-file")));
+            checkpointer.registerGauges(agentMetrics);
+        }
+
+        // Store-and-forward keeps the readings while a client is disconnected and replays them after it reconnects.
+        // Every connection has a buffer of its own, in a directory of its own when there are several, so the
+        // things of the other connections keep sending live while one connection catches up.
+        List<StoreAndForward> storesAndForwards = new ArrayList<StoreAndForward>();
+        if(cmd.hasOption("buffer-dir")) {
+            long bufferBudget = 256;
+            if(cmd.hasOption("buffer-budget")) {
+                bufferBudget = Long.parseLong(cmd.getOptionValue("buffer-budget"));
+            }
+            int bufferSegment = 4096;
+            if(cmd.hasOption("buffer-segment")) {
+                bufferSegment = Integer.parseInt(cmd.getOptionValue("buffer-segment"));
+            }
+            int replayBatchSize = 500;
+            if(cmd.hasOption("replay-batch-size")) {
+                replayBatchSize = Integer.parseInt(cmd.getOptionValue("replay-batch-size"));
+            }
+            int replayRate = 2000;
+            if(cmd.hasOption("replay-rate")) {
+                replayRate = Integer.parseInt(cmd.getOptionValue("replay-rate"));
+            }
+            for (int i = 0; i < connections.size(); i++) {
+                File bufferDir = new File(cmd.getOptionValue("buffer-dir"));
+                if(connections.size() > 1)
+                    bufferDir = new File(bufferDir, "connection-" + i);
+                StoreAndForwardBuffer buffer = new StoreAndForwardBuffer(bufferDir,
+                        bufferBudget * 1024 * 1024 / connections.size(), bufferSegment * 1024,
+                        EvictionPolicy.fromString(cmd.getOptionValue("buffer-eviction")));
+                ConnectedThingClient client = connections.get(i).getClient();
+                StoreAndForward storeAndForward = new StoreAndForward(client, buffer, replayBatchSize,
+                        replayRate / connections.size(), 15000);
+                flushCoordinator.setStoreAndForward(client, storeAndForward);
+                storesAndForwards.add(storeAndForward);
+            }
+        }
+
+        // The readings and faults of every scan can be recorded, to be replayed later
+        RecordingWriter recording = null;
+        if(cmd.hasOption("record-dir")) {
+            int recordSegment = 64;
+            if(cmd.hasOption("record-segment")) {
+                recordSegment = Integer.parseInt(cmd.getOptionValue("record-segment"));
+            }
+            recording = new RecordingWriter(new File(cmd.getOptionValue("record-dir")), recordSegment * 1024 * 1024);
+            recording.registerGauges(agentMetrics);
+        }
+        long recordFlush = 10000;
+        if(cmd.hasOption("record-flush")) {
+            recordFlush = Long.parseLong(cmd.getOptionValue("record-flush"));
+        }
 
         String thingBaseName = "SteamSensor";
         if(cmd.hasOption("t")) {
             thingBaseName = cmd.getOptionValue("t");
         }
 
-        for (int sensor = 0; sensor < nSensors; sensor++) {
-            int sensorID = startSensor + sensor;
-            String thingName = thingBaseName + sensorID;
-            if(1==nSensors)
-                thingName = thingBaseName;
-            final SteamThing steamSensorThing =
-                    new SteamThing(thingName, "Steam Sensor #" + sensorID, null, client,fileLogAppender);
-            client.bindThing(steamSensorThing);
+        final String baseName = thingBaseName;
+        final boolean singleSensor = 1 == nSensors;
+        final SimulationConfig sensorSimulation = simulation;
+        final Replay sensorReplay = replay;
+        List<SteamThing> steamSensorThings = fleetStartup.build(nSensors, new FleetStartup.ThingFactory<SteamThing>() {
+            @Override
+            public SteamThing create(int sensor) throws Exception {
+                int sensorID = startSensor + sensor;
+                String thingName = baseName + sensorID;
+                if(singleSensor)
+                    thingName = baseName;
+                SteamThing thing = new SteamThing(thingName, "Steam Sensor #" + sensorID, null,
+                        connections.clientOf(thingName), fileLogAppender);
+                // Seeded by the sensor ID, so a sensor keeps its readings whichever thread builds it
+                if(sensorReplay != null)
+                    thing.setSensorSource(sensorReplay.newSource(thingName, sensorID));
+                else
+                    thing.setSensorSource(sensorSimulation.newSensor(sensorID));
+                return thing;
+            }
+        });
+
+        for (final SteamThing steamSensorThing : steamSensorThings) {
+            steamSensorThing.setFleetStartup(fleetStartup);
+            steamSensorThing.setFaultRuleEngine(faultRuleEngine);
+            steamSensorThing.setFaultEventLimits(faultEventQueue, faultEventRate, faultEventBurst);
+            steamSensorThing.setFlushCoordinator(flushCoordinator);
+            steamSensorThing.setDeadbandConfig(deadbandConfig);
+            steamSensorThing.setSampling(sampling);
+            steamSensorThing.setReadingsStore(new ReadingsStore(readingsCapacity));
+            steamSensorThing.setAgentMetrics(agentMetrics);
+            steamSensorThing.setLogShipper(logShipper);
+            steamSensorThing.setSettingsLoader(settingsLoader);
+            if(recording != null) {
+                steamSensorThing.setRecorder(recording.sensor(steamSensorThing.getName()));
+            }
+            if(checkpointer != null) {
+                checkpointer.register(steamSensorThing);
+            }
+            if(fleetView != null) {
+                steamSensorThing.setFleetView(fleetView);
+            }
+            settingsLoader.register(steamSensorThing, steamSensorThing.getClient());
+            if(aggregateWindow > 0) {
+                steamSensorThing.setAggregation(aggregateWindow, aggregateSlide, aggregateRaw);
+            }
+            if(keepHistory) {
+                steamSensorThing.setPropertyHistory(new PropertyHistory(historyRawPoints, historyMinutePoints, historyHourPoints));
+            }
 
             steamSensorThing.addPropertyChangeListener(new VirtualThingPropertyChangeListener() {
                 @Override
@@ -185,29 +680,72 @@ public class SteamSensorClient extends ConnectedThingClient {
                 }
             });
         }
+        fleetStartup.bind(steamSensorThings);
 
-        try {
-            // Start the client
-            client.start();
-        } catch (Exception eStart) {
-            System.out.println("Initial Start Failed : " + eStart.getMessage());
-        }
-
-        // As long as the client has not been shutdown, continue
-        while (!client.isShutdown()) {
-            // Only process the Virtual Things if the client is connected
-            if (client.isConnected()) {
-                // Loop over all the Virtual Things and process them
-                for (VirtualThing thing : client.getThings().values()) {
-                    try {
-                        thing.processScanRequest();
-                    } catch (Exception eProcessing) {
-                        System.out.println("Error Processing Scan Request for [" + thing.getName() + "] : " + eProcessing.getMessage());
-                    }
-                }
+        if(cmd.hasOption("metrics-thing")) {
+            String metricsThing = cmd.getOptionValue("metrics-thing");
+            ConnectedThingClient client = connections.clientOf(metricsThing);
+            AgentThing agentThing = new AgentThing(metricsThing, "Steam sensor agent metrics", client, agentMetrics);
+            agentThing.setFlushCoordinator(flushCoordinator);
+            client.bindThing(agentThing);
+        }
+
+        // The checkpointed state and the cached settings apply from the first scan, the platform values follow once
+        // they are read
+        if(checkpointer != null) {
+            checkpointer.restore();
+        }
+        settingsLoader.applyCached();
+
+        // Start the clients
+        connections.start();
+        settingsLoader.start();
+
+        // Scan all the Virtual Things at a fixed rate until a client has been shutdown
+        FixedRateScanScheduler scanScheduler = new FixedRateScanScheduler(connections.getClients(), scanRate, scanShards,
+                overrunPolicy, scanPhasing, ScanWorkerPools.newWorkerPool(scanThreads, cmd.hasOption("virtual-threads")),
+                outboundRate);
+        scanScheduler.setAgentMetrics(agentMetrics);
+        scanScheduler.setFlushCoordinator(flushCoordinator);
+        if(!storesAndForwards.isEmpty()) {
+            scanScheduler.setScanWhileDisconnected(true);
+            for (StoreAndForward storeAndForward : storesAndForwards) {
+                storeAndForward.start();
             }
-            // Suspend processing at the scan rate interval
-            Thread.sleep(scanRate);
         }
+        flushCoordinator.start();
+        // Scans of things that are not bound yet do nothing, wait for the binds so the first cycle does real work.
+        // When some are not bound in time the others are scanned, and the late ones once they are bound.
+        fleetStartup.awaitBound(bindTimeout);
+        if(recording != null) {
+            recording.start(recordFlush);
+        }
+        scanScheduler.start();
+        fleetStartup.reportFirstPush(agentMetrics, bindTimeout);
+        faultRuleEngine.start(scanRate);
+        if(checkpointer != null) {
+            checkpointer.start(checkpointInterval);
+        }
+        while (!connections.isShutdown()) {
+            Thread.sleep(1000);
+        }
+        scanScheduler.shutdown(scanRate);
+        faultRuleEngine.shutdown(scanRate);
+        if(checkpointer != null) {
+            checkpointer.shutdown();
+        }
+        if(recording != null) {
+            recording.close();
+        }
+        if(replayRecording != null) {
+            replayRecording.close();
+        }
+        flushCoordinator.shutdown(scanRate);
+        for (StoreAndForward storeAndForward : storesAndForwards) {
+            storeAndForward.shutdown(scanRate);
+        }
+        connections.shutdown();
+        settingsLoader.shutdown();
+        agentMetrics.unregisterMBeans();
     }
 }
@@ -1,15 +1,56 @@
 package com.thingworx.sdk.steam;
 
-import ch.qos.logback.classic.LoggerContext;
 import ch.qos.logback.classic.spi.ILoggingEvent;
 import ch.qos.logback.core.Appender;
 import com.thingworx.communications.client.things.filetransfer.FileTransferVirtualThing;
-import com.thingworx.relationships.RelationshipTypes;
+import com.thingworx.sdk.steam.aggregate.WindowAccumulator;
+import com.thingworx.sdk.steam.aggregate.WindowAggregator;
+import com.thingworx.sdk.steam.checkpoint.CheckpointRecord;
+import com.thingworx.sdk.steam.checkpoint.Checkpointable;
+import com.thingworx.sdk.steam.deadband.Deadband;
+import com.thingworx.sdk.steam.deadband.DeadbandConfig;
+import com.thingworx.sdk.steam.faults.FaultListener;
+import com.thingworx.sdk.steam.faults.FaultRuleEngine;
+import com.thingworx.sdk.steam.faults.FleetColumns;
+import com.thingworx.sdk.steam.deadband.DeadbandDefinition;
+import com.thingworx.sdk.steam.deadband.DeadbandDefinitions;
+import com.thingworx.sdk.steam.fleet.FleetView;
+import com.thingworx.sdk.steam.flush.FlushCoordinator;
+import com.thingworx.sdk.steam.flush.FlushRegistration;
+import com.thingworx.sdk.steam.flush.StatePublisher;
+import com.thingworx.sdk.steam.history.PropertyHistory;
+import com.thingworx.sdk.steam.logging.LogControl;
+import com.thingworx.sdk.steam.logging.LogShipper;
+import com.thingworx.sdk.steam.metrics.AgentMetrics;
+import com.thingworx.sdk.steam.payload.ChunkedPayload;
+import com.thingworx.sdk.steam.payload.Compression;
+import com.thingworx.sdk.steam.payload.PayloadCache;
+import com.thingworx.sdk.steam.readings.ReadingsStore;
+import com.thingworx.sdk.steam.recording.SensorRecorder;
+import com.thingworx.sdk.steam.sampling.FleetSampling;
+import com.thingworx.sdk.steam.sampling.SamplingConfig;
+import com.thingworx.sdk.steam.sampling.SamplingSchedule;
+import com.thingworx.sdk.steam.settings.ConfigurableThing;
+import com.thingworx.sdk.steam.settings.InitialSettingsLoader;
+import com.thingworx.sdk.steam.simulation.SensorSource;
+import com.thingworx.sdk.steam.simulation.SimulationConfig;
+import com.thingworx.sdk.steam.startup.FleetStartup;
+import com.thingworx.sdk.steam.state.FaultEventQueue;
+import com.thingworx.sdk.steam.state.SensorState;
+import com.thingworx.types.primitives.BlobPrimitive;
+import com.thingworx.types.primitives.DatetimePrimitive;
+import com.thingworx.types.primitives.IPrimitiveType;
 import com.thingworx.types.primitives.LocationPrimitive;
+import com.thingworx.types.primitives.structs.VTQ;
+import com.thingworx.types.properties.Property;
 import org.joda.time.DateTime;
 
+import com.thingworx.common.RESTAPIConstants;
+import com.thingworx.common.exceptions.InvalidRequestException;
 import com.thingworx.communications.client.ConnectedThingClient;
+import com.thingworx.metadata.DataShapeDefinition;
 import com.thingworx.metadata.FieldDefinition;
+import com.thingworx.metadata.PropertyDefinition;
 import com.thingworx.metadata.annotations.ThingworxEventDefinition;
 import com.thingworx.metadata.annotations.ThingworxEventDefinitions;
 import com.thingworx.metadata.annotations.ThingworxPropertyDefinition;
@@ -17,16 +58,20 @@ import com.thingworx.metadata.annotations.ThingworxPropertyDefinitions;
 import com.thingworx.metadata.annotations.ThingworxServiceDefinition;
 import com.thingworx.metadata.annotations.ThingworxServiceParameter;
 import com.thingworx.metadata.annotations.ThingworxServiceResult;
+import com.thingworx.metadata.collections.DataShapeDefinitionCollection;
 import com.thingworx.metadata.collections.FieldDefinitionCollection;
 import com.thingworx.types.BaseTypes;
 import com.thingworx.types.InfoTable;
 import com.thingworx.types.collections.ValueCollection;
 import com.thingworx.types.constants.CommonPropertyNames;
+import com.thingworx.types.constants.QualityStatus;
 import com.thingworx.types.primitives.StringPrimitive;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 // Refer to the "Steam Sensor Example" section of the documentation
 // for a detailed explanation of this example's operation
@@ -48,7 +93,41 @@ import java.io.File;
         @ThingworxPropertyDefinition(name = "Location", description = "location of sensor",
                 baseType = "LOCATION", category = "Status", aspects = { "isReadOnly:true" }),
         @ThingworxPropertyDefinition(name = "TotalFlow", description = "Total flow",
-                baseType = "NUMBER", category = "Aggregates", aspects = { "isReadOnly:true" }), })
+                baseType = "NUMBER", category = "Aggregates", aspects = { "isReadOnly:true" }),
+        @ThingworxPropertyDefinition(name = "TemperatureMin", description = "Minimum temperature of the last window",
+                baseType = "NUMBER", category = "Aggregates", aspects = { "isReadOnly:true" }),
+        @ThingworxPropertyDefinition(name = "TemperatureMax", description = "Maximum temperature of the last window",
+                baseType = "NUMBER", category = "Aggregates", aspects = { "isReadOnly:true" }),
+        @ThingworxPropertyDefinition(name = "TemperatureMean", description = "Mean temperature of the last window",
+                baseType = "NUMBER", category = "Aggregates", aspects = { "isReadOnly:true" }),
+        @ThingworxPropertyDefinition(name = "TemperatureStdDev", description = "Standard deviation of temperature over the last window",
+                baseType = "NUMBER", category = "Aggregates", aspects = { "isReadOnly:true" }),
+        @ThingworxPropertyDefinition(name = "TemperatureRate", description = "Change of temperature per second over the last window",
+                baseType = "NUMBER", category = "Aggregates", aspects = { "isReadOnly:true" }),
+        @ThingworxPropertyDefinition(name = "TemperatureCount", description = "Number of temperature samples in the last window",
+                baseType = "INTEGER", category = "Aggregates", aspects = { "isReadOnly:true" }),
+        @ThingworxPropertyDefinition(name = "PressureMin", description = "Minimum pressure of the last window",
+                baseType = "NUMBER", category = "Aggregates", aspects = { "isReadOnly:true" }),
+        @ThingworxPropertyDefinition(name = "PressureMax", description = "Maximum pressure of the last window",
+                baseType = "NUMBER", category = "Aggregates", aspects = { "isReadOnly:true" }),
+        @ThingworxPropertyDefinition(name = "PressureMean", description = "Mean pressure of the last window",
+                baseType = "NUMBER", category = "Aggregates", aspects = { "isReadOnly:true" }),
+        @ThingworxPropertyDefinition(name = "PressureStdDev", description = "Standard deviation of pressure over the last window",
+                baseType = "NUMBER", category = "Aggregates", aspects = { "isReadOnly:true" }),
+        @ThingworxPropertyDefinition(name = "PressureRate", description = "Change of pressure per second over the last window",
+                baseType = "NUMBER", category = "Aggregates", aspects = { "isReadOnly:true" }),
+        @ThingworxPropertyDefinition(name = "PressureCount", description = "Number of pressure samples in the last window",
+                baseType = "INTEGER", category = "Aggregates", aspects = { "isReadOnly:true" }), })
+
+// Deadband Definitions
+// A value that stays inside the deadband of its property is not set, so it never reaches the subscribed property queue
+@DeadbandDefinitions(deadbands = {
+        @DeadbandDefinition(name = "Temperature", absolute = 0.5, maxInterval = 60000),
+        @DeadbandDefinition(name = "Pressure", percent = 1.0, maxInterval = 60000),
+        @DeadbandDefinition(name = "TotalFlow", absolute = 1.0, maxInterval = 60000),
+        @DeadbandDefinition(name = "InletValve", maxInterval = 60000),
+        @DeadbandDefinition(name = "FaultStatus", maxInterval = 60000),
+        @DeadbandDefinition(name = "Location", absolute = 0.0005, maxInterval = 60000) })
 
 // Event Definitions
 @ThingworxEventDefinitions(events = { @ThingworxEventDefinition(name = "SteamSensorFault",
@@ -56,58 +135,166 @@ import java.io.File;
         isInvocable = true, isPropertyEvent = false) })
 
 // Steam Thing virtual thing class that simulates a Steam Sensor
-public class SteamThing extends FileTransferVirtualThing implements Runnable {
+public class SteamThing extends FileTransferVirtualThing implements Runnable, StatePublisher, ConfigurableThing, FaultListener,
+        Checkpointable {
     private static final Logger LOG = LoggerFactory.getLogger(SteamThing.class);
+    private static final DeadbandConfig DEFAULT_DEADBANDS = DeadbandConfig.fromAnnotations(SteamThing.class);
+    private static final String[] SETTING_NAMES = { "TemperatureLimit" };
+    // Sensors that are not given a simulator of their own get one of an unseeded simulation
+    private static final SimulationConfig DEFAULT_SIMULATION = SimulationConfig.defaults(System.nanoTime());
+    private static final AtomicInteger NEXT_SENSOR = new AtomicInteger();
+    // Sensors that are not given the sampling of their fleet sample at the default periods of a 3 second scan rate
+    private static final FleetSampling DEFAULT_SAMPLING = new FleetSampling(SamplingConfig.defaults(3000), 3000);
+    // The name the check of the TemperatureLimit without a fault rule engine records its faults under, the same
+    // as the default rule of the engine
+    private static final String INLINE_FAULT_RULE = "HighTemperature";
     private final Appender<ILoggingEvent> fileLogAppender;
     private double _totalFlow = 0.0;
     private Thread _shutdownThread = null;
-    private int counter = 0;
     private boolean readyToSend = false;
-    private boolean requestedValuesFromThingworx = false;
-    private final static String TEMPERATURE_FIELD = "OutsideTemperature";
-    private final static String SENSOR_NAME_FIELD = "SensorName";
-    private final static String ACTIVE_TIME_FIELD = "ActivationTime";
-    private final static String PRESSURE_FIELD = "BarometricPressure";
-    private final static String FAULT_STATUS_FIELD = "CurrentFaultStatus";
-    private final static String INLET_VALVE_FIELD = "CurrentInletValve";
-    private final static String TEMPERATURE_LIMIT_FIELD = "RatedTemperatureLimit";
-    private final static String TOTAL_FLOW_FIELD = "TotalFlowAmount";
+    private final static String TEMPERATURE_FIELD = ReadingsStore.TEMPERATURE_FIELD;
+    private final static String SENSOR_NAME_FIELD = ReadingsStore.SENSOR_NAME_FIELD;
+    private final static String ACTIVE_TIME_FIELD = ReadingsStore.ACTIVE_TIME_FIELD;
+    private final static String PRESSURE_FIELD = ReadingsStore.PRESSURE_FIELD;
+    private final static String FAULT_STATUS_FIELD = ReadingsStore.FAULT_STATUS_FIELD;
+    private final static String INLET_VALVE_FIELD = ReadingsStore.INLET_VALVE_FIELD;
+    private final static String TEMPERATURE_LIMIT_FIELD = ReadingsStore.TEMPERATURE_LIMIT_FIELD;
+    private final static String TOTAL_FLOW_FIELD = ReadingsStore.TOTAL_FLOW_FIELD;
+    private final static int DEFAULT_READINGS_CAPACITY = 1000;
+    private final static String PAYLOAD_ID_FIELD = "payloadId";
+    private final static String CHUNK_COUNT_FIELD = "chunkCount";
+    private final static String FAULT_COUNT_FIELD = "count";
+    private final static String FIRST_FAULT_FIELD = "firstTime";
+    private final static String LAST_FAULT_FIELD = "lastTime";
+    private final static int DEFAULT_CHUNK_SIZE = 64 * 1024;
+    private final static String BIG_STRING = new String(new char[24000]).replace('\0', '0');
+    // Prepared payloads shared by all things, up to 256 MB after compression
+    private final static PayloadCache PAYLOADS = new PayloadCache(256L * 1024 * 1024);
+    // Ships the shared log directory incrementally, replaced by the client with one that also seals rotated segments
+    private final static LogShipper LOGS = new LogShipper(new File("./logs"));
+    private final static DataShapeDefinitionCollection DATA_SHAPES = dataShapes();
+    private static String logDirectoryPath;
     private final File logDirectory;
+    private volatile LogShipper logShipper = LOGS;
+    private volatile InitialSettingsLoader settingsLoader;
+    private volatile FleetStartup fleetStartup;
+    private volatile FaultRuleEngine faultRuleEngine;
+    private int faultSlot = -1;
+    private volatile FlushRegistration flushRegistration;
+    private volatile AgentMetrics agentMetrics;
+    private Deadband temperatureDeadband;
+    private Deadband pressureDeadband;
+    private Deadband totalFlowDeadband;
+    private Deadband inletValveDeadband;
+    private Deadband faultStatusDeadband;
+    private Deadband locationDeadband;
+    // The fault status of the previous scan. It is kept here because the FaultStatus property only holds the
+    // last published value, which may be older when the deadband held the update back.
+    // Written by the fault rule engine when one is set
+    private volatile boolean lastFaultStatus = false;
+    private final SensorState state = new SensorState();
+    private final SensorState.Snapshot publishedState = new SensorState.Snapshot();
+    // Whether the last flush left faults waiting for the rate limit, guarded by publishedState
+    private boolean faultBackpressured;
+    // Every scan records one reading, GetSteamSensorReadings pages through them
+    private volatile ReadingsStore readings = new ReadingsStore(DEFAULT_READINGS_CAPACITY);
+    private DataShapeDefinition readingsShape;
+    // Windowed statistics of the sampled Temperature and Pressure, none unless set. When publishRawValues is false
+    // only the window results are pushed, the raw values stay available from the readings and the history.
+    private WindowAggregator temperatureWindow;
+    private WindowAggregator pressureWindow;
+    private boolean publishRawValues = true;
+    // Local history of the sampled values for QueryPropertyHistory, none unless set
+    private volatile PropertyHistory history;
+    // The values as of the last scan that sampled them, before any deadband
+    private double lastTemperature = 0.0;
+    private double lastPressure = 0.0;
+    private boolean lastInletValve = true;
+    private double lastLatitude = 0.0;
+    private double lastLongitude = 0.0;
+    private double lastFlow = 0.0;
+
+    // When each reading is sampled, see setSampling
+    private SamplingSchedule temperatureSampling = DEFAULT_SAMPLING.newSchedule(SamplingConfig.TEMPERATURE);
+    private SamplingSchedule pressureSampling = DEFAULT_SAMPLING.newSchedule(SamplingConfig.PRESSURE);
+    private SamplingSchedule totalFlowSampling = DEFAULT_SAMPLING.newSchedule(SamplingConfig.TOTAL_FLOW);
+    private SamplingSchedule locationSampling = DEFAULT_SAMPLING.newSchedule(SamplingConfig.LOCATION);
+
+    // The readings of this sensor, simulated unless replaced with a seeded simulation or a replay by the client.
+    // The simulated Location moves along a precomputed route to simulate movement of the Steam Sensor.
+    private SensorSource source = DEFAULT_SIMULATION.newSensor(NEXT_SENSOR.getAndIncrement());
+    // Records the readings and faults of every scan, none unless set
+    private volatile SensorRecorder recorder;
+    // The row of this sensor in the fleet view of the gateway, none unless set
+    private volatile FleetView fleetView;
+    private int fleetSlot = -1;
+
+    // The data shapes of the fault event and the services
+    private static DataShapeDefinitionCollection dataShapes() {
+        DataShapeDefinitionCollection shapes = new DataShapeDefinitionCollection();
 
-    /* The array below represents a set of location coordinates that will make the Location
-          Property change over time to simulate movement of the Steam Sensor. */
-    private int routeIndex=0;
-    private LocationPrimitive[] route = {
-        new LocationPrimitive(40.0573, -75.67072,0.0),
-        new LocationPrimitive(40.05971,-75.67428,0.0),
-        new LocationPrimitive(40.06189,-75.67595,0.0),
-        new LocationPrimitive(40.06322,-75.67791,0.0),
-        new LocationPrimitive(40.06469,-75.67906,0.0),
-        new LocationPrimitive(40.06534,-75.68052,0.0),
-        new LocationPrimitive(40.06577,-75.68218,0.0),
-        new LocationPrimitive(40.06498,-75.68393,0.0),
-        new LocationPrimitive(40.06431,-75.68457,0.0),
-        new LocationPrimitive(40.06374,-75.6851 ,0.0),
-        new LocationPrimitive(40.06302,-75.68588,0.0),
-        new LocationPrimitive(40.06259,-75.68534,0.0),
-        new LocationPrimitive(40.06213,-75.68449,0.0),
-        new LocationPrimitive(40.06133,-75.68366,0.0),
-        new LocationPrimitive(40.0618 ,-75.68459,0.0),
-        new LocationPrimitive(40.06133,-75.68366,0.0),
-        new LocationPrimitive(40.06213,-75.68449,0.0),
-        new LocationPrimitive(40.06259,-75.68534,0.0),
-        new LocationPrimitive(40.06302,-75.68588,0.0),
-        new LocationPrimitive(40.06374,-75.6851 ,0.0),
-        new LocationPrimitive(40.06431,-75.68457,0.0),
-        new LocationPrimitive(40.06498,-75.68393,0.0),
-        new LocationPrimitive(40.06577,-75.68218,0.0),
-        new LocationPrimitive(40.06534,-75.68052,0.0),
-        new LocationPrimitive(40.06469,-75.67906,0.0),
-        new LocationPrimitive(40.06322,-75.67791,0.0),
-        new LocationPrimitive(40.06189,-75.67595,0.0),
-        new LocationPrimitive(40.05971,-75.67428,0.0),
-        new LocationPrimitive(40.0573 ,-75.67072,0.0)
-    };
+        // Data Shape definition that is used by the steam sensor fault event
+        // The message describes the last fault, repeated faults of one rule are coalesced into one event with
+        // their count and the times of the first and the last
+        FieldDefinitionCollection faultFields = new FieldDefinitionCollection();
+        faultFields.addFieldDefinition(
+                new FieldDefinition(CommonPropertyNames.PROP_MESSAGE, BaseTypes.STRING));
+        faultFields.addFieldDefinition(new FieldDefinition(FAULT_COUNT_FIELD, BaseTypes.INTEGER));
+        faultFields.addFieldDefinition(new FieldDefinition(FIRST_FAULT_FIELD, BaseTypes.DATETIME));
+        faultFields.addFieldDefinition(new FieldDefinition(LAST_FAULT_FIELD, BaseTypes.DATETIME));
+        shapes.put("SteamSensor.Fault", new DataShapeDefinition(faultFields));
+
+        FieldDefinitionCollection fields = new FieldDefinitionCollection();
+        fields.addFieldDefinition(new FieldDefinition(SENSOR_NAME_FIELD, BaseTypes.STRING));
+        fields.addFieldDefinition(new FieldDefinition(ACTIVE_TIME_FIELD, BaseTypes.DATETIME));
+        fields.addFieldDefinition(new FieldDefinition(TEMPERATURE_FIELD, BaseTypes.NUMBER));
+        fields.addFieldDefinition(new FieldDefinition(PRESSURE_FIELD, BaseTypes.NUMBER));
+        fields.addFieldDefinition(new FieldDefinition(FAULT_STATUS_FIELD, BaseTypes.BOOLEAN));
+        fields.addFieldDefinition(new FieldDefinition(INLET_VALVE_FIELD, BaseTypes.BOOLEAN));
+        fields.addFieldDefinition(new FieldDefinition(TEMPERATURE_LIMIT_FIELD, BaseTypes.NUMBER));
+        fields.addFieldDefinition(new FieldDefinition(TOTAL_FLOW_FIELD, BaseTypes.INTEGER));
+        shapes.put("SteamSensorReadings", new DataShapeDefinition(fields));
+
+        // Data Shape definitions of the chunked payload services
+        FieldDefinitionCollection payloadFields = new FieldDefinitionCollection();
+        payloadFields.addFieldDefinition(new FieldDefinition(PAYLOAD_ID_FIELD, BaseTypes.STRING));
+        payloadFields.addFieldDefinition(new FieldDefinition("size", BaseTypes.INTEGER));
+        payloadFields.addFieldDefinition(new FieldDefinition("compression", BaseTypes.STRING));
+        payloadFields.addFieldDefinition(new FieldDefinition("chunkSize", BaseTypes.INTEGER));
+        payloadFields.addFieldDefinition(new FieldDefinition(CHUNK_COUNT_FIELD, BaseTypes.INTEGER));
+        payloadFields.addFieldDefinition(new FieldDefinition("storedSize", BaseTypes.LONG));
+        shapes.put("SteamSensor.PayloadInfo", new DataShapeDefinition(payloadFields));
+
+        FieldDefinitionCollection chunkFields = new FieldDefinitionCollection();
+        chunkFields.addFieldDefinition(new FieldDefinition(PAYLOAD_ID_FIELD, BaseTypes.STRING));
+        chunkFields.addFieldDefinition(new FieldDefinition("sequence", BaseTypes.INTEGER));
+        chunkFields.addFieldDefinition(new FieldDefinition(CHUNK_COUNT_FIELD, BaseTypes.INTEGER));
+        chunkFields.addFieldDefinition(new FieldDefinition("checksum", BaseTypes.LONG));
+        chunkFields.addFieldDefinition(new FieldDefinition("data", BaseTypes.BLOB));
+        shapes.put("SteamSensor.PayloadChunk", new DataShapeDefinition(chunkFields));
+
+        // Data Shape definition of the agent metrics, one row per metric
+        shapes.put(AgentMetrics.DATA_SHAPE, new DataShapeDefinition(AgentMetrics.dataShapeFields()));
+
+        // Data Shape definition of the property history, one row per point
+        shapes.put(PropertyHistory.DATA_SHAPE, new DataShapeDefinition(PropertyHistory.dataShapeFields()));
+
+        // Data Shape definitions of the incremental log services
+        shapes.put(LogShipper.DATA_SHAPE, new DataShapeDefinition(LogShipper.dataShapeFields()));
+        shapes.put(LogShipper.FILE_DATA_SHAPE, new DataShapeDefinition(LogShipper.fileDataShapeFields()));
+        return shapes;
+    }
+
+    // The logs directory is created and resolved by the first sensor
+    private static synchronized String logDirectoryPath() throws IOException {
+        if (logDirectoryPath == null) {
+            File directory = new File("./logs");
+            if (!directory.exists())
+                directory.mkdir();
+            logDirectoryPath = directory.getCanonicalPath();
+        }
+        return logDirectoryPath;
+    }
 
     public SteamThing(String name, String description, String identifier,
                       ConnectedThingClient client, Appender<ILoggingEvent> fileLogAppender) throws Exception {
@@ -116,21 +303,14 @@ public class SteamThing extends FileTransferVirtualThing implements Runnable {
 
         // Create and share for file transfer, a directory containing this application's
         // logs
-        logDirectory = new File("./logs");
-        if(!logDirectory.exists())
-            logDirectory.mkdir();
-        addVirtualDirectory("logs", logDirectory.getCanonicalPath());
+        logDirectory = new File(logDirectoryPath());
+        addVirtualDirectory("logs", logDirectory.getPath());
         this.fileLogAppender=fileLogAppender;
 
+        // The data shapes are the same for every sensor, the definitions are built once and shared
+        getDataShapeDefinitions().putAll(DATA_SHAPES);
 
-        // Data Shape definition that is used by the steam sensor fault event
-        // The event only has one field, the message
-        FieldDefinitionCollection faultFields = new FieldDefinitionCollection();
-        faultFields.addFieldDefinition(
-                new FieldDefinition(CommonPropertyNames.PROP_MESSAGE, BaseTypes.STRING));
-        defineDataShapeDefinition("SteamSensor.Fault", faultFields);
-
-        this.init();
+        setDeadbandConfig(DEFAULT_DEADBANDS);
     }
 
     // This method will get called when a bind or a configuration of the bound properties of this thing has changed on
@@ -138,102 +318,218 @@ public class SteamThing extends FileTransferVirtualThing implements Runnable {
     // Until this event occurs for the first time after binding no property pushes should be made because they
     // will not get sent to the platform
     public void synchronizeState() {
+        boolean first = !readyToSend;
         readyToSend = true;
+        FleetStartup startup = fleetStartup;
+        if (first && startup != null)
+            startup.thingSynchronized();
         // Send the property values to ThingWorx when a synchronization is required
         // This is more important for a solution that does not push its properties on a regular basis
         super.syncProperties();
     }
 
-    private void init() throws Exception {
+    // Told when the platform first synchronizes this thing, so startup can wait for all the sensors to be bound
+    public void setFleetStartup(FleetStartup fleetStartup) {
+        this.fleetStartup = fleetStartup;
+    }
 
-        FieldDefinitionCollection fields = new FieldDefinitionCollection();
-        fields.addFieldDefinition(new FieldDefinition(SENSOR_NAME_FIELD, BaseTypes.STRING));
-        fields.addFieldDefinition(new FieldDefinition(ACTIVE_TIME_FIELD, BaseTypes.DATETIME));
-        fields.addFieldDefinition(new FieldDefinition(TEMPERATURE_FIELD, BaseTypes.NUMBER));
-        fields.addFieldDefinition(new FieldDefinition(PRESSURE_FIELD, BaseTypes.NUMBER));
-        fields.addFieldDefinition(new FieldDefinition(FAULT_STATUS_FIELD, BaseTypes.BOOLEAN));
-        fields.addFieldDefinition(new FieldDefinition(INLET_VALVE_FIELD, BaseTypes.BOOLEAN));
-        fields.addFieldDefinition(new FieldDefinition(TEMPERATURE_LIMIT_FIELD, BaseTypes.NUMBER));
-        fields.addFieldDefinition(new FieldDefinition(TOTAL_FLOW_FIELD, BaseTypes.INTEGER));
-        defineDataShapeDefinition("SteamSensorReadings", fields);
+    // When a fault rule engine is set the scan only writes its readings into the columns of the engine, which
+    // evaluates the rules of all sensors together and reports the transitions back. Without one the scan checks
+    // the TemperatureLimit itself.
+    public void setFaultRuleEngine(FaultRuleEngine faultRuleEngine) {
+        this.faultSlot = faultRuleEngine.register(this);
+        this.faultRuleEngine = faultRuleEngine;
     }
 
-    @ThingworxServiceDefinition(name = "GetSteamSensorReadings",
-            description = "Get SteamSensor Readings")
-    @ThingworxServiceResult(name = CommonPropertyNames.PROP_RESULT, description = "Result",
-            baseType = "INFOTABLE", aspects = { "dataShape:SteamSensorReadings" })
-    public InfoTable GetSteamSensorReadings() {
-        InfoTable table = new InfoTable(getDataShapeDefinition("SteamSensorReadings"));
+    // Where the readings of this sensor come from, see SimulationConfig.newSensor and Replay.newSource
+    public void setSensorSource(SensorSource source) {
+        this.source = source;
+    }
 
-        ValueCollection entry = new ValueCollection();
+    // Every reading is sampled on its own schedule, which may adapt to how fast the reading changes. Set before the
+    // first scan.
+    public void setSampling(FleetSampling sampling) {
+        this.temperatureSampling = sampling.newSchedule(SamplingConfig.TEMPERATURE);
+        this.pressureSampling = sampling.newSchedule(SamplingConfig.PRESSURE);
+        this.totalFlowSampling = sampling.newSchedule(SamplingConfig.TOTAL_FLOW);
+        this.locationSampling = sampling.newSchedule(SamplingConfig.LOCATION);
+    }
+
+    // The state that survives a restart: the accumulated TotalFlow, the last values and fault states, the
+    // TemperatureLimit, the position of the sensor source and the sampling periods
+    @Override
+    public void saveCheckpoint(CheckpointRecord record) {
+        record.setTotalFlow(_totalFlow);
+        record.setTemperatureLimit(state.getTemperatureLimit());
+        record.setTemperature(lastTemperature);
+        record.setPressure(lastPressure);
+        record.setFlow(lastFlow);
+        record.setLocation(lastLatitude, lastLongitude);
+        record.setSourcePosition(source.getPosition());
+        FaultRuleEngine rules = faultRuleEngine;
+        record.setActiveFaults(rules != null ? rules.getActiveRules(faultSlot) : lastFaultStatus ? 1 : 0);
+        record.setFlags(lastFaultStatus, lastInletValve);
+        record.setSamplingPeriod(0, temperatureSampling.getPeriodScans());
+        record.setSamplingPeriod(1, pressureSampling.getPeriodScans());
+        record.setSamplingPeriod(2, totalFlowSampling.getPeriodScans());
+        record.setSamplingPeriod(3, locationSampling.getPeriodScans());
+    }
+
+    // Called before the first scan, after the fault rule engine and the sampling are set. The restored values are
+    // pushed with the first flush, and a fault that is still active is not raised again.
+    @Override
+    public void restoreCheckpoint(CheckpointRecord record) throws Exception {
+        _totalFlow = record.getTotalFlow();
+        lastTemperature = record.getTemperature();
+        lastPressure = record.getPressure();
+        lastFlow = record.getFlow();
+        lastLatitude = record.getLatitude();
+        lastLongitude = record.getLongitude();
+        lastFaultStatus = record.getFaultStatus();
+        lastInletValve = record.getInletValve();
+        source.setPosition(record.getSourcePosition());
+        FaultRuleEngine rules = faultRuleEngine;
+        if (rules != null)
+            rules.restoreActiveRules(faultSlot, record.getActiveFaults());
+        temperatureSampling.restorePeriod(record.getSamplingPeriod(0));
+        pressureSampling.restorePeriod(record.getSamplingPeriod(1));
+        totalFlowSampling.restorePeriod(record.getSamplingPeriod(2));
+        locationSampling.restorePeriod(record.getSamplingPeriod(3));
+        // A limit of 0 was never set
+        if (record.getTemperatureLimit() != 0)
+            applySetting("TemperatureLimit", record.getTemperatureLimit());
+        long now = System.currentTimeMillis();
+        state.setTotalFlow(_totalFlow, now);
+        state.setFaultStatus(lastFaultStatus, now);
+        state.setInletValve(lastInletValve, now);
+    }
+
+    public void setRecorder(SensorRecorder recorder) {
+        this.recorder = recorder;
+    }
 
-        DateTime now = DateTime.now();
+    // Every scan overwrites the row of this sensor in the fleet view, which GetFleetSnapshot reads
+    public void setFleetView(FleetView fleetView) {
+        this.fleetSlot = fleetView.register(getName());
+        this.fleetView = fleetView;
+    }
+
+    // Bounds the fault events of this sensor: at most capacity faults wait to be sent, repeated faults of a rule
+    // are coalesced, and events leave at eventsPerMinute with bursts of up to burst
+    public void setFaultEventLimits(int capacity, double eventsPerMinute, int burst) {
+        state.setFaultEventLimits(capacity, eventsPerMinute, burst);
+    }
+
+    @Override
+    public void faultRaised(int rule, double value, double limit, long time) {
+        state.raiseFault(rule, value, limit, time);
+        SensorRecorder recorder = this.recorder;
+        if (recorder != null)
+            recorder.recordFault(time, faultRuleEngine.getRule(rule).getName(), value, limit);
+    }
+
+    @Override
+    public void faultStatusChanged(boolean faulted) {
+        lastFaultStatus = faulted;
+    }
 
+    // When a flush coordinator is set the scan only marks this thing dirty and the coordinator sends the
+    // updates together with those of other things. Without one the scan pushes its own updates.
+    public void setFlushCoordinator(FlushCoordinator flushCoordinator) {
+        this.flushRegistration = flushCoordinator == null ? null : flushCoordinator.register(this);
+    }
+
+    // The metrics of the agent this thing runs in, reported by GetAgentMetrics. Pushes made by the thing itself,
+    // without a flush coordinator, are recorded in them as well.
+    public void setAgentMetrics(AgentMetrics agentMetrics) {
+        this.agentMetrics = agentMetrics;
+    }
+
+    // Replaces the deadbands of all properties, for example with settings loaded from an external file.
+    // The deadbands start over, so the next value of every property is published.
+    public void setDeadbandConfig(DeadbandConfig config) {
+        temperatureDeadband = config.newDeadband("Temperature");
+        pressureDeadband = config.newDeadband("Pressure");
+        totalFlowDeadband = config.newDeadband("TotalFlow");
+        inletValveDeadband = config.newDeadband("InletValve");
+        faultStatusDeadband = config.newDeadband("FaultStatus");
+        locationDeadband = config.newDeadband("Location");
+    }
+
+    // Replaces the readings store, for example to keep more readings than the default
+    public void setReadingsStore(ReadingsStore readings) {
+        this.readings = readings;
+    }
+
+    // Aggregates Temperature and Pressure over windows of windowMillis that advance by slideMillis, and pushes the
+    // statistics of every window as the aggregate properties. Must be set before the scans start.
+    public void setAggregation(long windowMillis, long slideMillis, boolean publishRawValues) {
+        this.temperatureWindow = new WindowAggregator(windowMillis, slideMillis);
+        this.pressureWindow = new WindowAggregator(windowMillis, slideMillis);
+        this.publishRawValues = publishRawValues;
+    }
+
+    // Serves ListLogFiles and GetLogDelta, all the things of a client share one
+    public void setLogShipper(LogShipper logShipper) {
+        this.logShipper = logShipper;
+    }
+
+    // Keeps the history of Temperature, Pressure, TotalFlow and Location for QueryPropertyHistory
+    public void setPropertyHistory(PropertyHistory history) {
+        this.history = history;
+    }
+
+    @ThingworxServiceDefinition(name = "GetSteamSensorReadings",
+            description = "Get SteamSensor Readings, newest first, in pages of at most 1000 readings")
+    @ThingworxServiceResult(name = CommonPropertyNames.PROP_RESULT, description = "Result",
+            baseType = "INFOTABLE", aspects = { "dataShape:SteamSensorReadings" })
+    public InfoTable GetSteamSensorReadings(
+            @ThingworxServiceParameter(name = "offset", description = "Number of newest readings to skip",
+                    baseType = "INTEGER") Integer offset,
+            @ThingworxServiceParameter(name = "limit", description = "Maximum number of readings, 100 by default",
+                    baseType = "INTEGER") Integer limit,
+            @ThingworxServiceParameter(name = "startDate", description = "Oldest reading time to return",
+                    baseType = "DATETIME") DateTime startDate,
+            @ThingworxServiceParameter(name = "endDate", description = "Newest reading time to return",
+                    baseType = "DATETIME") DateTime endDate) {
+        if (readingsShape == null) {
+            readingsShape = getDataShapeDefinition("SteamSensorReadings");
+        }
         try {
-            // entry 1
-            entry.clear();
-            entry.SetStringValue(SENSOR_NAME_FIELD, "Sensor Alpha");
-            entry.SetDateTimeValue(ACTIVE_TIME_FIELD, now.plusDays(1));
-            entry.SetNumberValue(TEMPERATURE_FIELD, 50);
-            entry.SetNumberValue(PRESSURE_FIELD, 15);
-            entry.SetBooleanValue(FAULT_STATUS_FIELD, false);
-            entry.SetBooleanValue(INLET_VALVE_FIELD, true);
-            entry.SetNumberValue(TEMPERATURE_LIMIT_FIELD, 150);
-            entry.SetNumberValue(TOTAL_FLOW_FIELD, 87);
-            table.addRow(entry.clone());
-
-            // entry 2
-            entry.clear();
-            entry.SetStringValue(SENSOR_NAME_FIELD, "Sensor Beta");
-            entry.SetDateTimeValue(ACTIVE_TIME_FIELD, now.plusDays(2));
-            entry.SetNumberValue(TEMPERATURE_FIELD, 60);
-            entry.SetNumberValue(PRESSURE_FIELD, 25);
-            entry.SetBooleanValue(FAULT_STATUS_FIELD, true);
-            entry.SetBooleanValue(INLET_VALVE_FIELD, true);
-            entry.SetNumberValue(TEMPERATURE_LIMIT_FIELD, 150);
-            entry.SetNumberValue(TOTAL_FLOW_FIELD, 77);
-            table.addRow(entry.clone());
-
-            // entry 3
-            entry.clear();
-            entry.SetStringValue(SENSOR_NAME_FIELD, "Sensor Gamma");
-            entry.SetDateTimeValue(ACTIVE_TIME_FIELD, now.plusDays(3));
-            entry.SetNumberValue(TEMPERATURE_FIELD, 70);
-            entry.SetNumberValue(PRESSURE_FIELD, 30);
-            entry.SetBooleanValue(FAULT_STATUS_FIELD, true);
-            entry.SetBooleanValue(INLET_VALVE_FIELD, true);
-            entry.SetNumberValue(TEMPERATURE_LIMIT_FIELD, 150);
-            entry.SetNumberValue(TOTAL_FLOW_FIELD, 67);
-            table.addRow(entry.clone());
-
-            // entry 4
-            entry.clear();
-            entry.SetStringValue(SENSOR_NAME_FIELD, "Sensor Delta");
-            entry.SetDateTimeValue(ACTIVE_TIME_FIELD, now.plusDays(4));
-            entry.SetNumberValue(TEMPERATURE_FIELD, 80);
-            entry.SetNumberValue(PRESSURE_FIELD, 35);
-            entry.SetBooleanValue(FAULT_STATUS_FIELD, false);
-            entry.SetBooleanValue(INLET_VALVE_FIELD, true);
-            entry.SetNumberValue(TEMPERATURE_LIMIT_FIELD, 150);
-            entry.SetNumberValue(TOTAL_FLOW_FIELD, 57);
-            table.addRow(entry.clone());
-
-            // entry 5
-            entry.clear();
-            entry.SetStringValue(SENSOR_NAME_FIELD, "Sensor Epsilon");
-            entry.SetDateTimeValue(ACTIVE_TIME_FIELD, now.plusDays(5));
-            entry.SetNumberValue(TEMPERATURE_FIELD, 90);
-            entry.SetNumberValue(PRESSURE_FIELD, 40);
-            entry.SetBooleanValue(FAULT_STATUS_FIELD, true);
-            entry.SetBooleanValue(INLET_VALVE_FIELD, false);
-            entry.SetNumberValue(TEMPERATURE_LIMIT_FIELD, 150);
-            entry.SetNumberValue(TOTAL_FLOW_FIELD, 47);
-            table.addRow(entry.clone());
+            return readings.query(getName(), readingsShape,
+                    offset == null ? 0 : offset,
+                    limit == null ? ReadingsStore.DEFAULT_LIMIT : limit,
+                    startDate == null ? Long.MIN_VALUE : startDate.getMillis(),
+                    endDate == null ? Long.MAX_VALUE : endDate.getMillis());
         } catch (Exception e) {
             e.printStackTrace();
+            return new InfoTable(readingsShape);
         }
+    }
 
-        return table;
+    @ThingworxServiceDefinition(name = "QueryPropertyHistory",
+            description = "Get the local history of Temperature, Pressure, TotalFlow or Location, oldest first")
+    @ThingworxServiceResult(name = CommonPropertyNames.PROP_RESULT, description = "Result",
+            baseType = "INFOTABLE", aspects = { "dataShape:" + PropertyHistory.DATA_SHAPE })
+    public InfoTable QueryPropertyHistory(
+            @ThingworxServiceParameter(name = "property", description = "Temperature, Pressure, TotalFlow or Location",
+                    baseType = "STRING") String property,
+            @ThingworxServiceParameter(name = "startDate", description = "Oldest time to return",
+                    baseType = "DATETIME") DateTime startDate,
+            @ThingworxServiceParameter(name = "endDate", description = "Newest time to return",
+                    baseType = "DATETIME") DateTime endDate,
+            @ThingworxServiceParameter(name = "maxPoints", description = "Maximum number of points, 500 by default",
+                    baseType = "INTEGER") Integer maxPoints)
+            throws Exception {
+        PropertyHistory current = history;
+        DataShapeDefinition shape = getDataShapeDefinition(PropertyHistory.DATA_SHAPE);
+        if (current == null) {
+            return new InfoTable(shape);
+        }
+        return current.query(property, shape,
+                startDate == null ? Long.MIN_VALUE : startDate.getMillis(),
+                endDate == null ? Long.MAX_VALUE : endDate.getMillis(),
+                maxPoints == null ? PropertyHistory.DEFAULT_MAX_POINTS : maxPoints);
     }
 
     // The processScanRequest is called by the SteamSensorClient every scan cycle
@@ -242,119 +538,281 @@ public class SteamThing extends FileTransferVirtualThing implements Runnable {
 
         // Execute the code for this simulation every scan
         if(readyToSend) {
-            try {
-                this.fetchInitialSettingsFromServer();
-            }
-            catch(Exception e){
-                LOG.info("Could not read initial setting from the server");
-            }
-
             this.scanDevice();
         }
     }
 
-    private void fetchInitialSettingsFromServer() {
-        // Some properties values on the thingworx server may be being used as part of this
-        // Agent's configuration. If this is the case therre initial values should be requested
-        // on startup
-        if(!this.requestedValuesFromThingworx){
-
-            this.requestedValuesFromThingworx=true;
-            try {
-                InfoTable result = getClient().readProperty(RelationshipTypes.ThingworxEntityTypes.Things, getName(), "TemperatureLimit", 10000);
-                Double temperatureLimit = (Double)result.getFirstRow().getValue("TemperatureLimit");
-                setProperty("TemperatureLimit",temperatureLimit);
-            }
-            catch(Exception e){
-                LOG.info("Could not read initial setting from the server");
-                return;
-            }
+    // Some properties values on the thingworx server are used as part of this Agent's configuration. The
+    // InitialSettingsLoader reads them on startup, apart from the scans, and applies them here.
+    @Override
+    public String[] getSettingNames() {
+        return SETTING_NAMES;
+    }
 
+    @Override
+    public void applySetting(String name, double value) throws Exception {
+        if ("TemperatureLimit".equals(name)) {
+            setProperty("TemperatureLimit", value);
+            state.setTemperatureLimit(value);
         }
     }
 
+    // Keeps the cache of the settings loader up to date with writes from the platform
+    public void setSettingsLoader(InitialSettingsLoader settingsLoader) {
+        this.settingsLoader = settingsLoader;
+    }
+
     // Performs the logic for the steam sensor, occurs every scan cycle
+    // The scan only updates the primitive SensorState, it allocates nothing in the steady state. The values reach the
+    // SDK properties and event queue in publishState(), when this thing is flushed.
     public void scanDevice() throws Exception {
-        ++counter;
-
-        if ((counter % 1) == 0) {
-            // Set the Temperature property value in the range of 400-440
-            double temperature = 400 + 40 * Math.random();
-            super.setProperty("Temperature", temperature);
+        long now = System.currentTimeMillis();
+        PropertyHistory history = this.history;
+        FaultRuleEngine rules = faultRuleEngine;
+        SensorSource source = this.source;
+        source.startScan(now);
+
+        if (temperatureSampling.isDue()) {
+            // Set the Temperature property value, in the range of 400-440 by default
+            double temperature = source.nextTemperature();
+            temperatureSampling.sampled(now, temperature - lastTemperature);
+            lastTemperature = temperature;
+            if (history != null)
+                history.recordTemperature(now, temperature);
+            if (temperatureWindow != null && temperatureWindow.add(now, temperature))
+                publishAggregate(SensorState.TEMPERATURE_AGGREGATE, temperatureWindow.getResult(), now);
+            if (publishRawValues && temperatureDeadband.accept(temperature, now))
+                state.setTemperature(temperature, now);
 
             // Get the TemperatureLimmit property value from memory
-            double temperatureLimit =
-                    (Double) getProperty("TemperatureLimit").getValue().getValue();
-
-            // Set the FaultStatus property value if the TemperatureLimit value is exceeded
-            // and it is greater than zero
-            boolean faultStatus = false;
-
-            if (temperatureLimit > 0 && temperature > temperatureLimit)
-                faultStatus = true;
-
-            // If the sensor has a fault...
-            if (faultStatus) {
-                // Get the previous value of the fault from the property
-                // This is the current value because it hasn't been set yet
-                // This is done because we don't want to send the event every time it enters the
-                // fault state,
-                // only send the fault on the transition from non-faulted to faulted
-                boolean previousFaultStatus =
-                        (Boolean) getProperty("FaultStatus").getValue().getValue();
-
-                // If the current value is not faulted, then create and queue the event
-                if (!previousFaultStatus) {
-                    // Set the event information of the defined data shape for the event
-                    ValueCollection eventInfo = new ValueCollection();
-                    eventInfo.put(CommonPropertyNames.PROP_MESSAGE,
-                            new StringPrimitive("Temperature at " + temperature
-                                    + " was above limit of " + temperatureLimit));
-                    // Queue the event
-                    super.queueEvent("SteamSensorFault", DateTime.now(), eventInfo);
+            double temperatureLimit = state.getTemperatureLimit();
+
+            if (rules != null) {
+                FleetColumns columns = rules.getColumns();
+                columns.set(FleetColumns.TEMPERATURE, faultSlot, now, temperature);
+                columns.set(FleetColumns.TEMPERATURE_LIMIT, faultSlot, now, temperatureLimit);
+            } else {
+                // Set the FaultStatus property value if the TemperatureLimit value is exceeded
+                // and it is greater than zero
+                boolean faultStatus = false;
+
+                if (temperatureLimit > 0 && temperature > temperatureLimit)
+                    faultStatus = true;
+
+                // If the sensor has a fault...
+                if (faultStatus) {
+                    // Get the previous value of the fault
+                    // This is done because we don't want to send the event every time it enters the
+                    // fault state,
+                    // only send the fault on the transition from non-faulted to faulted
+                    boolean previousFaultStatus = lastFaultStatus;
+
+                    // If the current value is not faulted, then raise the fault, the event is queued when published
+                    if (!previousFaultStatus) {
+                        state.raiseFault(temperature, temperatureLimit, now);
+                        SensorRecorder recorder = this.recorder;
+                        if (recorder != null)
+                            recorder.recordFault(now, INLINE_FAULT_RULE, temperature, temperatureLimit);
+                    }
                 }
-            }
 
-            // Set the fault status property value
-            super.setProperty("FaultStatus", faultStatus);
-            if(++routeIndex==route.length)
-                routeIndex=0;
-            setPropertyValue("Location", route[routeIndex]);
+                // Set the fault status property value
+                lastFaultStatus = faultStatus;
+            }
+            boolean faulted = lastFaultStatus;
+            if (faultStatusDeadband.accept(faulted, now))
+                state.setFaultStatus(faulted, now);
+        }
 
+        if (locationSampling.isDue()) {
+            source.nextLocation();
+            double latitude = source.latitude();
+            double longitude = source.longitude();
+            locationSampling.sampled(now, Math.abs(latitude - lastLatitude) + Math.abs(longitude - lastLongitude));
+            lastLatitude = latitude;
+            lastLongitude = longitude;
+            if (history != null)
+                history.recordLocation(now, latitude, longitude);
+            if (locationDeadband.accept(latitude, longitude, now))
+                state.setLocation(latitude, longitude, now);
         }
 
-        if ((counter % 2) == 0) {
-            // Set the Pressure property value in the range of 18-23
-            double pressure = 18 + 5 * Math.random();
+        if (pressureSampling.isDue()) {
+            // Set the Pressure property value, in the range of 18-23 by default
+            double pressure = source.nextPressure();
+            pressureSampling.sampled(now, pressure - lastPressure);
+            lastPressure = pressure;
+            if (rules != null)
+                rules.getColumns().set(FleetColumns.PRESSURE, faultSlot, now, pressure);
+            if (history != null)
+                history.recordPressure(now, pressure);
             // Set the property values
-            super.setProperty("Pressure", pressure);
+            if (pressureWindow != null && pressureWindow.add(now, pressure))
+                publishAggregate(SensorState.PRESSURE_AGGREGATE, pressureWindow.getResult(), now);
+            if (publishRawValues && pressureDeadband.accept(pressure, now))
+                state.setPressure(pressure, now);
         }
 
-        if ((counter % 3) == 0) {
-            // Add a random double value from 0.0-1.0 to the total flow
-            this._totalFlow += Math.random();
-
-            // Set the InletValve property value to true by default
-            boolean inletValveStatus = true;
+        if (totalFlowSampling.isDue()) {
+            // Add the simulated flow, a random value from 0.0-1.0 by default, to the total flow, its period adapts
+            // to the changes of the flow
+            double flow = source.nextFlow();
+            totalFlowSampling.sampled(now, flow - lastFlow);
+            lastFlow = flow;
+            this._totalFlow += flow;
+
+            // The InletValve is closed for one of every 15 samples by default
+            boolean inletValveStatus = source.nextInletValve();
+            lastInletValve = inletValveStatus;
+            if (history != null)
+                history.recordTotalFlow(now, _totalFlow);
+
+            if (totalFlowDeadband.accept(_totalFlow, now))
+                state.setTotalFlow(_totalFlow, now);
+            if (inletValveDeadband.accept(inletValveStatus, now))
+                state.setInletValve(inletValveStatus, now);
+        }
 
-            // If the current second value is divisible by 15, set the InletValve property value to
-            // false
-            int seconds = DateTime.now().getSecondOfMinute();
-            if ((seconds % 15) == 0)
-                inletValveStatus = false;
+        readings.append(now, lastTemperature, lastPressure, lastFaultStatus, lastInletValve,
+                state.getTemperatureLimit(), _totalFlow);
+        SensorRecorder recorder = this.recorder;
+        if (recorder != null)
+            recorder.recordSample(now, lastTemperature, lastPressure, _totalFlow, lastInletValve, lastLatitude,
+                    lastLongitude);
+        FleetView fleetView = this.fleetView;
+        if (fleetView != null)
+            fleetView.update(fleetSlot, now, lastTemperature, lastPressure, _totalFlow, state.getTemperatureLimit(),
+                    lastFaultStatus, lastInletValve, lastLatitude, lastLongitude);
 
+        // Update the subscribed properties and events to send any updates to Thingworx
+        // Without calling these methods, the property and event updates will not be sent
+        // The numbers are timeouts in milliseconds.
+        FlushRegistration registration = flushRegistration;
+        if (registration != null) {
+            registration.markDirty();
+        } else {
+            publishState();
+            AgentMetrics metrics = agentMetrics;
+            long start = System.nanoTime();
+            super.updateSubscribedProperties(15000);
+            if (metrics != null)
+                metrics.recordPropertyPush(start);
+            start = System.nanoTime();
+            super.updateSubscribedEvents(60000);
+            if (metrics != null)
+                metrics.getEventPushLatency().recordMicrosSince(start);
+        }
+    }
 
-            super.setProperty("TotalFlow", _totalFlow);
-            super.setProperty("InletValve", inletValveStatus);
+    private void publishAggregate(int property, WindowAccumulator window, long time) {
+        state.setAggregate(property, window.getCount(), window.getMin(), window.getMax(), window.getMean(),
+                window.getStdDev(), window.getRate(), time);
+    }
 
-            counter = 0;
+    // Moves the values the scans changed since the last flush into the properties, and queues the fault events.
+    // This is the only place where the scanned values are boxed into SDK objects. The values are pushed with the
+    // time of the scan that sampled them, not the time of the flush.
+    @Override
+    public void publishState() throws Exception {
+        synchronized (publishedState) {
+            // Fault events wait while the ones queued before could not be sent
+            state.drainTo(publishedState, System.currentTimeMillis(), !getPendingEvents().isEmpty());
+            if (publishedState.isDirty(SensorState.TEMPERATURE))
+                setSampledProperty("Temperature", publishedState.getTemperature(),
+                        publishedState.getTime(SensorState.TEMPERATURE));
+            if (publishedState.isDirty(SensorState.PRESSURE))
+                setSampledProperty("Pressure", publishedState.getPressure(),
+                        publishedState.getTime(SensorState.PRESSURE));
+            if (publishedState.isDirty(SensorState.TOTAL_FLOW))
+                setSampledProperty("TotalFlow", publishedState.getTotalFlow(),
+                        publishedState.getTime(SensorState.TOTAL_FLOW));
+            if (publishedState.isDirty(SensorState.INLET_VALVE))
+                setSampledProperty("InletValve", publishedState.getInletValve(),
+                        publishedState.getTime(SensorState.INLET_VALVE));
+            if (publishedState.isDirty(SensorState.FAULT_STATUS))
+                setSampledProperty("FaultStatus", publishedState.getFaultStatus(),
+                        publishedState.getTime(SensorState.FAULT_STATUS));
+            if (publishedState.isDirty(SensorState.LOCATION))
+                setSampledValue("Location", new LocationPrimitive(publishedState.getLatitude(),
+                        publishedState.getLongitude(), 0.0), publishedState.getTime(SensorState.LOCATION));
+            if (publishedState.isDirty(SensorState.TEMPERATURE_AGGREGATE))
+                setAggregateProperties("Temperature", publishedState.getTemperatureAggregate());
+            if (publishedState.isDirty(SensorState.PRESSURE_AGGREGATE))
+                setAggregateProperties("Pressure", publishedState.getPressureAggregate());
+
+            FaultEventQueue faults = publishedState.getFaultEvents();
+            AgentMetrics metrics = agentMetrics;
+            if (metrics != null)
+                metrics.countFaultEvents(faults.getDropped(), faults.getCoalesced(), faults.getWaiting() > 0);
+            if (faults.isBackpressured() != faultBackpressured) {
+                faultBackpressured = faults.isBackpressured();
+                if (metrics != null)
+                    metrics.countFaultBackpressure(faultBackpressured);
+                if (faultBackpressured)
+                    LOG.debug("Faults of [{}] arrive faster than they may be sent, {} are waiting and coalescing.",
+                            getName(), faults.getWaiting());
+                else
+                    LOG.debug("Fault backpressure of [{}] is over.", getName());
+            }
+            for (int fault = 0; fault < faults.size(); fault++) {
+                // Set the event information of the defined data shape for the event
+                ValueCollection eventInfo = new ValueCollection();
+                eventInfo.put(CommonPropertyNames.PROP_MESSAGE,
+                        new StringPrimitive(describeFault(faults.getRule(fault), faults.getValue(fault),
+                                faults.getLimit(fault))));
+                eventInfo.SetIntegerValue(FAULT_COUNT_FIELD, faults.getCount(fault));
+                DateTime firstTime = new DateTime(faults.getFirstTime(fault));
+                eventInfo.put(FIRST_FAULT_FIELD, new DatetimePrimitive(firstTime));
+                eventInfo.put(LAST_FAULT_FIELD, new DatetimePrimitive(new DateTime(faults.getLastTime(fault))));
+                // Queue the event
+                super.queueEvent("SteamSensorFault", firstTime, eventInfo);
+            }
         }
+    }
 
-        // Update the subscribed properties and events to send any updates to Thingworx
-        // Without calling these methods, the property and event updates will not be sent
-        // The numbers are timeouts in milliseconds.
-        super.updateSubscribedProperties(15000);
-        super.updateSubscribedEvents(60000);
+    private String describeFault(int rule, double value, double limit) {
+        FaultRuleEngine rules = faultRuleEngine;
+        if (rule == SensorState.TEMPERATURE_FAULT || rules == null)
+            return "Temperature at " + value + " was above limit of " + limit;
+        return rules.getRule(rule).describe(value, limit);
+    }
+
+    private void setAggregateProperties(String property, SensorState.Aggregate aggregate) throws Exception {
+        long time = aggregate.getTime();
+        setSampledProperty(property + "Min", aggregate.getMin(), time);
+        setSampledProperty(property + "Max", aggregate.getMax(), time);
+        setSampledProperty(property + "Mean", aggregate.getMean(), time);
+        setSampledProperty(property + "StdDev", aggregate.getStdDev(), time);
+        setSampledProperty(property + "Rate", aggregate.getRate(), time);
+        setSampledProperty(property + "Count", (int) aggregate.getCount(), time);
+    }
+
+    // Like setProperty, which stamps the value with the current time, but with the time it was sampled
+    private void setSampledProperty(String name, Object value, long time) throws Exception {
+        Property property = getProperty(name);
+        if (property == null)
+            throw new InvalidRequestException("Invalid Property: [" + name + "]", RESTAPIConstants.StatusCode.STATUS_NOT_FOUND);
+        setSampledValue(name, BaseTypes.ConvertToPrimitive(value, property.getPropertyDefinition().getBaseType()), time);
+    }
+
+    private void setSampledValue(String name, IPrimitiveType<?, ?> value, long time) throws Exception {
+        super.setPropertyVTQ(name, new VTQ(value, new DateTime(time), QualityStatus.GOOD), false);
+    }
+
+    // Keeps the primitive copy of the TemperatureLimit in step with writes from the platform
+    // The SDK declares the value with the raw type, an override has to as well
+    @Override
+    @SuppressWarnings("rawtypes")
+    public void processPropertyWrite(PropertyDefinition property, IPrimitiveType written) throws Exception {
+        super.processPropertyWrite(property, written);
+        IPrimitiveType<?, ?> value = written;
+        if ("TemperatureLimit".equals(property.getName()) && value != null && value.getValue() instanceof Number) {
+            double temperatureLimit = ((Number) value.getValue()).doubleValue();
+            state.setTemperatureLimit(temperatureLimit);
+            InitialSettingsLoader loader = settingsLoader;
+            if (loader != null)
+                loader.update(this, "TemperatureLimit", temperatureLimit);
+        }
     }
 
     @ThingworxServiceDefinition(name = "AddNumbers", description = "Add Two Numbers")
@@ -373,12 +831,18 @@ public class SteamThing extends FileTransferVirtualThing implements Runnable {
     @ThingworxServiceDefinition(name = "StartLogging", description = "starts creating local log files.")
     @ThingworxServiceResult(name = CommonPropertyNames.PROP_RESULT, description = "Result",
             baseType = "NOTHING")
-    public void StartLogging() throws Exception {
-        LoggerContext loggerContext = (LoggerContext) LoggerFactory.getILoggerFactory();
-        ch.qos.logback.classic.Logger logger = loggerContext.getLogger("ROOT");
-        logger.addAppender(fileLogAppender);
+    public void StartLogging(
+            @ThingworxServiceParameter(name = "level", description = "Level of the root logger, TRACE, DEBUG, INFO, WARN or ERROR (Optional, Defaults to unchanged)",
+                    baseType = "STRING") String level) throws Exception {
+        if (fileLogAppender == null) {
+            throw new IllegalStateException("The logging configuration has no " + LogControl.FILE_APPENDER + " appender");
+        }
+        if (level != null && !level.isEmpty()) {
+            LogControl.setLevel(null, level);
+        }
+        // The appender is shared by all the things, starting it again does nothing
+        LogControl.attach(fileLogAppender);
         LOG.info("Started Logging to File.");
-        logger.detachAppender("ROLLING");
     }
 
     @ThingworxServiceDefinition(name = "StopLogging", description = "stops creating local log files.")
@@ -386,22 +850,121 @@ public class SteamThing extends FileTransferVirtualThing implements Runnable {
             baseType = "NOTHING")
     public void StopLogging() throws Exception {
         LOG.info("Stopped Logging to File.");
-        LoggerContext loggerContext = (LoggerContext) LoggerFactory.getILoggerFactory();
-        ch.qos.logback.classic.Logger logger = loggerContext.getLogger("ROOT");
-        logger.detachAppender("ROLLING");
+        LogControl.detach(LogControl.FILE_APPENDER);
+    }
+
+    @ThingworxServiceDefinition(name = "SetLogLevel", description = "Sets the level of a logger of the agent")
+    @ThingworxServiceResult(name = CommonPropertyNames.PROP_RESULT, description = "Result",
+            baseType = "NOTHING")
+    public void SetLogLevel(
+            @ThingworxServiceParameter(name = "logger", description = "Logger name, such as com.thingworx (Optional, Defaults to the root logger)",
+                    baseType = "STRING") String loggerName,
+            @ThingworxServiceParameter(name = "level", description = "TRACE, DEBUG, INFO, WARN, ERROR or OFF",
+                    baseType = "STRING") String level) throws Exception {
+        LogControl.setLevel(loggerName, level);
+        LOG.info("Log level of {} set to {}.", loggerName == null || loggerName.isEmpty() ? "ROOT" : loggerName, level);
     }
 
     @ThingworxServiceDefinition(name = "GetBigString", description = "Get big string")
     @ThingworxServiceResult(name = CommonPropertyNames.PROP_RESULT, description = "Result",
             baseType = "STRING")
     public String GetBigString() {
-        StringBuilder sbValue = new StringBuilder();
+        // The string never changes, it is built once and shared by all calls
+        return BIG_STRING;
+    }
 
-        for (int i = 0; i < 24000; i++) {
-            sbValue.append('0');
-        }
+    // Large payloads are not returned in one result. PreparePayload describes the payload and GetPayloadChunk
+    // returns it one chunk at a time, so no single WebSocket frame gets huge and other requests are served in between.
+    @ThingworxServiceDefinition(name = "PreparePayload",
+            description = "Prepare a large payload that is fetched in chunks with GetPayloadChunk")
+    @ThingworxServiceResult(name = CommonPropertyNames.PROP_RESULT, description = "Result",
+            baseType = "INFOTABLE", aspects = { "dataShape:SteamSensor.PayloadInfo" })
+    public InfoTable PreparePayload(
+            @ThingworxServiceParameter(name = "size", description = "Payload size in bytes, 24000 by default",
+                    baseType = "INTEGER") Integer size,
+            @ThingworxServiceParameter(name = "compression", description = "NONE, GZIP or DEFLATE, GZIP by default",
+                    baseType = "STRING") String compression,
+            @ThingworxServiceParameter(name = "chunkSize", description = "Chunk size in bytes, 65536 by default",
+                    baseType = "INTEGER") Integer chunkSize)
+            throws Exception {
+        ChunkedPayload payload = PAYLOADS.get(size == null ? BIG_STRING.length() : size,
+                Compression.fromString(compression), chunkSize == null ? DEFAULT_CHUNK_SIZE : chunkSize);
 
-        return sbValue.toString();
+        InfoTable table = new InfoTable(getDataShapeDefinition("SteamSensor.PayloadInfo"));
+        ValueCollection entry = new ValueCollection();
+        entry.SetStringValue(PAYLOAD_ID_FIELD, payload.getId());
+        entry.SetIntegerValue("size", payload.getSize());
+        entry.SetStringValue("compression", payload.getCompression().name());
+        entry.SetIntegerValue("chunkSize", payload.getChunkSize());
+        entry.SetIntegerValue(CHUNK_COUNT_FIELD, payload.getChunkCount());
+        entry.SetLongValue("storedSize", payload.getStoredSize());
+        table.addRow(entry);
+        return table;
+    }
+
+    @ThingworxServiceDefinition(name = "GetPayloadChunk",
+            description = "Get one chunk of a payload prepared by PreparePayload, to resume ask for the next missing sequence")
+    @ThingworxServiceResult(name = CommonPropertyNames.PROP_RESULT, description = "Result",
+            baseType = "INFOTABLE", aspects = { "dataShape:SteamSensor.PayloadChunk" })
+    public InfoTable GetPayloadChunk(
+            @ThingworxServiceParameter(name = "payloadId", description = "Id returned by PreparePayload",
+                    baseType = "STRING") String payloadId,
+            @ThingworxServiceParameter(name = "sequence", description = "Chunk number, starting at 0",
+                    baseType = "INTEGER") Integer sequence)
+            throws Exception {
+        ChunkedPayload payload = PAYLOADS.get(payloadId);
+        int chunk = sequence == null ? 0 : sequence;
+
+        InfoTable table = new InfoTable(getDataShapeDefinition("SteamSensor.PayloadChunk"));
+        ValueCollection entry = new ValueCollection();
+        entry.SetStringValue(PAYLOAD_ID_FIELD, payload.getId());
+        entry.SetIntegerValue("sequence", chunk);
+        entry.SetIntegerValue(CHUNK_COUNT_FIELD, payload.getChunkCount());
+        entry.SetLongValue("checksum", payload.getChecksum(chunk));
+        entry.put("data", new BlobPrimitive(payload.getChunk(chunk)));
+        table.addRow(entry);
+        return table;
+    }
+
+    // The "logs" virtual directory only transfers whole files. These services ship what was appended to a log since
+    // the last call, compressed, which is all that is new when logs are pulled regularly.
+    @ThingworxServiceDefinition(name = "ListLogFiles",
+            description = "List the local log files with their size and the offset shipped to this thing so far")
+    @ThingworxServiceResult(name = CommonPropertyNames.PROP_RESULT, description = "Result",
+            baseType = "INFOTABLE", aspects = { "dataShape:" + LogShipper.FILE_DATA_SHAPE })
+    public InfoTable ListLogFiles() throws Exception {
+        return logShipper.listFiles(getName(), getDataShapeDefinition(LogShipper.FILE_DATA_SHAPE));
+    }
+
+    @ThingworxServiceDefinition(name = "GetLogDelta",
+            description = "Get the compressed bytes appended to a log file since an offset, continue from nextOffset")
+    @ThingworxServiceResult(name = CommonPropertyNames.PROP_RESULT, description = "Result",
+            baseType = "INFOTABLE", aspects = { "dataShape:" + LogShipper.DATA_SHAPE })
+    public InfoTable GetLogDelta(
+            @ThingworxServiceParameter(name = "file", description = "Log file name, " + LogShipper.ACTIVE_FILE + " by default",
+                    baseType = "STRING") String file,
+            @ThingworxServiceParameter(name = "offset", description = "Offset to read from (Optional, Defaults to where the last call of this thing for the file stopped)",
+                    baseType = "LONG") Long offset,
+            @ThingworxServiceParameter(name = "fileId", description = "The fileId the offset was returned with, the file is read from the start when it was rotated since (Optional)",
+                    baseType = "STRING") String fileId,
+            @ThingworxServiceParameter(name = "maxBytes", description = "Most bytes to read before compression, 262144 by default",
+                    baseType = "INTEGER") Integer maxBytes,
+            @ThingworxServiceParameter(name = "compression", description = "GZIP, DEFLATE or NONE, GZIP by default",
+                    baseType = "STRING") String compression)
+            throws Exception {
+        return logShipper.read(getName(), file == null || file.isEmpty() ? LogShipper.ACTIVE_FILE : file, offset,
+                fileId, maxBytes == null ? LogShipper.DEFAULT_MAX_BYTES : maxBytes, Compression.fromString(compression),
+                getDataShapeDefinition(LogShipper.DATA_SHAPE));
+    }
+
+    @ThingworxServiceDefinition(name = "GetAgentMetrics",
+            description = "Get the scan, push and queue metrics of the agent this sensor runs in")
+    @ThingworxServiceResult(name = CommonPropertyNames.PROP_RESULT, description = "Result",
+            baseType = "INFOTABLE", aspects = { "dataShape:" + AgentMetrics.DATA_SHAPE })
+    public InfoTable GetAgentMetrics() throws Exception {
+        AgentMetrics metrics = agentMetrics;
+        DataShapeDefinition shape = getDataShapeDefinition(AgentMetrics.DATA_SHAPE);
+        return metrics == null ? new InfoTable(shape) : metrics.toInfoTable(shape);
     }
 
     @ThingworxServiceDefinition(name = "Shutdown", description = "Shutdown the client")
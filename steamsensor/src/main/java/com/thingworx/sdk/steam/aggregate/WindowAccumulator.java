@@ -0,0 +1,99 @@
+package com.thingworx.sdk.steam.aggregate;
+
+// Running statistics of the samples in one window, or one pane of a window, in primitive fields.
+// The mean and variance are kept with Welford's method, and two accumulators are merged with the parallel form of
+// it (Chan et al.), so a sliding window can be assembled from the panes it spans without keeping the samples.
+public final class WindowAccumulator {
+    private long count;
+    private double mean;
+    // Sum of the squared differences from the mean
+    private double m2;
+    private double min;
+    private double max;
+    private long firstTime;
+    private double firstValue;
+    private long lastTime;
+    private double lastValue;
+
+    public void add(long time, double value) {
+        if (count == 0) {
+            min = value;
+            max = value;
+            firstTime = time;
+            firstValue = value;
+        } else {
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        count++;
+        double delta = value - mean;
+        mean += delta / count;
+        m2 += delta * (value - mean);
+        lastTime = time;
+        lastValue = value;
+    }
+
+    // Adds the samples of other, which must not be older than the samples already here
+    public void merge(WindowAccumulator other) {
+        if (other.count == 0) {
+            return;
+        }
+        if (count == 0) {
+            copyFrom(other);
+            return;
+        }
+        long total = count + other.count;
+        double delta = other.mean - mean;
+        mean += delta * other.count / total;
+        m2 += other.m2 + delta * delta * count * other.count / total;
+        count = total;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        lastTime = other.lastTime;
+        lastValue = other.lastValue;
+    }
+
+    public void copyFrom(WindowAccumulator other) {
+        count = other.count;
+        mean = other.mean;
+        m2 = other.m2;
+        min = other.min;
+        max = other.max;
+        firstTime = other.firstTime;
+        firstValue = other.firstValue;
+        lastTime = other.lastTime;
+        lastValue = other.lastValue;
+    }
+
+    public void reset() {
+        count = 0;
+        mean = 0;
+        m2 = 0;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMin() {
+        return count == 0 ? 0 : min;
+    }
+
+    public double getMax() {
+        return count == 0 ? 0 : max;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    // The population standard deviation of the samples
+    public double getStdDev() {
+        return count < 2 ? 0 : Math.sqrt(m2 / count);
+    }
+
+    // Change per second from the first to the last sample
+    public double getRate() {
+        return count < 2 || lastTime == firstTime ? 0 : (lastValue - firstValue) * 1000.0 / (lastTime - firstTime);
+    }
+}
@@ -0,0 +1,82 @@
+package com.thingworx.sdk.steam.aggregate;
+
+// Aggregates a stream of samples over windows of windowMillis that advance by slideMillis. A window equal to its
+// slide is a tumbling window, a longer one a sliding window.
+// The window is split into panes of one slide each, aligned to the clock. Every sample is added to the current
+// pane only, and when a sample arrives in a new pane the panes of the window that just ended are merged into the
+// result. A window result therefore costs one merge per pane and never looks at a sample twice.
+// Not thread safe, it is fed and read by the scan of one thing.
+public final class WindowAggregator {
+    private final long windowMillis;
+    private final long slideMillis;
+    private final WindowAccumulator[] panes;
+    private final WindowAccumulator result = new WindowAccumulator();
+    // Pane that receives the samples, and the start time of that pane
+    private int current = 0;
+    private long paneStart = Long.MIN_VALUE;
+    private long resultEnd;
+
+    public WindowAggregator(long windowMillis, long slideMillis) {
+        if (slideMillis <= 0 || windowMillis < slideMillis) {
+            throw new IllegalArgumentException("The slide must be positive and not longer than the window");
+        }
+        if (windowMillis % slideMillis != 0) {
+            throw new IllegalArgumentException("The window must be a multiple of the slide");
+        }
+        this.windowMillis = windowMillis;
+        this.slideMillis = slideMillis;
+        this.panes = new WindowAccumulator[(int) (windowMillis / slideMillis)];
+        for (int i = 0; i < panes.length; i++) {
+            panes[i] = new WindowAccumulator();
+        }
+    }
+
+    // Adds a sample. Returns true when the sample closed a window with samples in it, its statistics are then
+    // available from getResult() until the next window closes.
+    public boolean add(long time, double value) {
+        long pane = time - Math.floorMod(time, slideMillis);
+        boolean closed = false;
+        if (paneStart == Long.MIN_VALUE) {
+            paneStart = pane;
+        } else if (pane > paneStart) {
+            closed = closeWindow(paneStart + slideMillis);
+            // Skip over the panes without samples, at most a full window of them needs clearing
+            long skipped = Math.min((pane - paneStart) / slideMillis, panes.length);
+            for (long i = 0; i < skipped; i++) {
+                current = (current + 1) % panes.length;
+                panes[current].reset();
+            }
+            paneStart = pane;
+        }
+        // A sample from before the current pane, after the clock went back, is counted in the current pane
+        panes[current].add(time, value);
+        return closed;
+    }
+
+    // Merges the panes of the window ending at end, oldest first
+    private boolean closeWindow(long end) {
+        result.reset();
+        for (int i = 1; i <= panes.length; i++) {
+            result.merge(panes[(current + i) % panes.length]);
+        }
+        resultEnd = end;
+        return result.getCount() > 0;
+    }
+
+    public WindowAccumulator getResult() {
+        return result;
+    }
+
+    // The end time of the window of the last result
+    public long getResultEnd() {
+        return resultEnd;
+    }
+
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    public long getSlideMillis() {
+        return slideMillis;
+    }
+}
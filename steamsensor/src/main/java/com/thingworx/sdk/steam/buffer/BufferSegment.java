@@ -0,0 +1,144 @@
+package com.thingworx.sdk.steam.buffer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+// One fixed size, memory-mapped file of the store-and-forward buffer.
+// Layout: magic (int), write position (int), read position (int), reserved (int), then the records, each one
+// prefixed by its length. The positions are stored in the file so a restarted agent continues where it stopped.
+final class BufferSegment {
+    static final int HEADER_SIZE = 16;
+    private static final int MAGIC = 0x53414646; // "SAFF"
+    private static final int WRITE_POSITION = 4;
+    private static final int READ_POSITION = 8;
+    private static final String PREFIX = "segment-";
+    private static final String SUFFIX = ".dat";
+
+    private final long sequence;
+    private final File file;
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer map;
+
+    private BufferSegment(long sequence, File file, int size, boolean create) throws IOException {
+        this.sequence = sequence;
+        this.file = file;
+        this.raf = new RandomAccessFile(file, "rw");
+        if (create) {
+            raf.setLength(size);
+        }
+        this.map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+        if (create) {
+            map.putInt(0, MAGIC);
+            map.putInt(WRITE_POSITION, HEADER_SIZE);
+            map.putInt(READ_POSITION, HEADER_SIZE);
+        } else if (map.getInt(0) != MAGIC || getWritePosition() > map.capacity() || getReadPosition() > getWritePosition()) {
+            close();
+            throw new IOException("Not a valid store-and-forward segment: " + file);
+        }
+    }
+
+    static BufferSegment create(File directory, long sequence, int size) throws IOException {
+        return new BufferSegment(sequence, fileOf(directory, sequence), size, true);
+    }
+
+    static BufferSegment open(File file) throws IOException {
+        return new BufferSegment(sequenceOf(file), file, 0, false);
+    }
+
+    static File fileOf(File directory, long sequence) {
+        return new File(directory, String.format("%s%016d%s", PREFIX, sequence, SUFFIX));
+    }
+
+    static boolean isSegmentFile(File file) {
+        String name = file.getName();
+        return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+    }
+
+    static long sequenceOf(File file) {
+        String name = file.getName();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    long getSequence() {
+        return sequence;
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    int getCapacity() {
+        return map.capacity();
+    }
+
+    int getWritePosition() {
+        return map.getInt(WRITE_POSITION);
+    }
+
+    int getReadPosition() {
+        return map.getInt(READ_POSITION);
+    }
+
+    void setReadPosition(int position) {
+        map.putInt(READ_POSITION, position);
+    }
+
+    boolean hasUnread() {
+        return getReadPosition() < getWritePosition();
+    }
+
+    boolean fits(int recordLength) {
+        return getWritePosition() + 4 + recordLength <= map.capacity();
+    }
+
+    // The record is written before the write position is moved, so a crash never exposes half a record
+    void append(byte[] record) {
+        int position = getWritePosition();
+        map.putInt(position, record.length);
+        ByteBuffer target = map.duplicate();
+        target.position(position + 4);
+        target.put(record);
+        map.putInt(WRITE_POSITION, position + 4 + record.length);
+    }
+
+    byte[] readAt(int position) {
+        int length = map.getInt(position);
+        byte[] record = new byte[length];
+        ByteBuffer source = map.duplicate();
+        source.position(position + 4);
+        source.get(record);
+        return record;
+    }
+
+    int countUnread() {
+        int count = 0;
+        int end = getWritePosition();
+        for (int position = getReadPosition(); position < end; position += 4 + map.getInt(position)) {
+            count++;
+        }
+        return count;
+    }
+
+    static int next(int position, byte[] record) {
+        return position + 4 + record.length;
+    }
+
+    void force() {
+        map.force();
+    }
+
+    void close() throws IOException {
+        raf.close();
+    }
+
+    void delete() throws IOException {
+        close();
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.thingworx.sdk.steam.buffer;
+
+import com.thingworx.common.utils.EnhancedDataInputStream;
+import com.thingworx.common.utils.EnhancedDataOutputStream;
+import com.thingworx.types.collections.ValueCollection;
+import com.thingworx.types.primitives.IPrimitiveType;
+import com.thingworx.types.primitives.structs.VTQ;
+import com.thingworx.types.constants.QualityStatus;
+import org.joda.time.DateTime;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+// A property update or an event held in the store-and-forward buffer.
+// Encoded as: kind (byte), time (long), thing name, property or event name, then
+// - for a property, the VTQ in the SDK stream format
+// - for an event, the number of payload fields followed by each field name and value (as a VTQ)
+public final class BufferedRecord {
+    public static final byte PROPERTY = 1;
+    public static final byte EVENT = 2;
+
+    private final byte kind;
+    private final long time;
+    private final String thingName;
+    private final String name;
+    private final VTQ value;
+    private final ValueCollection payload;
+
+    private BufferedRecord(byte kind, long time, String thingName, String name, VTQ value, ValueCollection payload) {
+        this.kind = kind;
+        this.time = time;
+        this.thingName = thingName;
+        this.name = name;
+        this.value = value;
+        this.payload = payload;
+    }
+
+    public static BufferedRecord property(String thingName, String propertyName, VTQ value) {
+        DateTime time = value.getTime();
+        return new BufferedRecord(PROPERTY, time == null ? System.currentTimeMillis() : time.getMillis(),
+                thingName, propertyName, value, null);
+    }
+
+    public static BufferedRecord event(String thingName, String eventName, DateTime time, ValueCollection payload) {
+        return new BufferedRecord(EVENT, time == null ? System.currentTimeMillis() : time.getMillis(),
+                thingName, eventName, null, payload);
+    }
+
+    public boolean isEvent() {
+        return kind == EVENT;
+    }
+
+    public long getTime() {
+        return time;
+    }
+
+    public String getThingName() {
+        return thingName;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public VTQ getValue() {
+        return value;
+    }
+
+    public ValueCollection getPayload() {
+        return payload;
+    }
+
+    public byte[] encode() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        EnhancedDataOutputStream out = new EnhancedDataOutputStream(bytes);
+        out.writeByte(kind);
+        out.writeLong(time);
+        out.writeUTF8(thingName);
+        out.writeUTF8(name);
+        if (kind == PROPERTY) {
+            value.writeToStream(out);
+        } else {
+            out.writeShort(payload.size());
+            for (String field : payload.keySet()) {
+                IPrimitiveType<?, ?> fieldValue = payload.get(field);
+                out.writeUTF8(field);
+                new VTQ(fieldValue, null, QualityStatus.GOOD).writeToStream(out);
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    public static BufferedRecord decode(byte[] data) throws Exception {
+        EnhancedDataInputStream in = new EnhancedDataInputStream(new ByteArrayInputStream(data));
+        byte kind = in.readByte();
+        long time = in.readLong();
+        String thingName = in.readUTF8();
+        String name = in.readUTF8();
+        if (kind == PROPERTY) {
+            return new BufferedRecord(kind, time, thingName, name, VTQ.readFromStream(in), null);
+        }
+        if (kind == EVENT) {
+            ValueCollection payload = new ValueCollection();
+            int fields = in.readShort();
+            for (int i = 0; i < fields; i++) {
+                String field = in.readUTF8();
+                payload.put(field, VTQ.readFromStream(in).getValue());
+            }
+            return new BufferedRecord(kind, time, thingName, name, null, payload);
+        }
+        throw new IOException("Unknown buffered record kind " + kind);
+    }
+
+    // Reads only the header fields needed to downsample, without decoding the value
+    static String keyOf(byte[] data) throws IOException {
+        EnhancedDataInputStream in = new EnhancedDataInputStream(new ByteArrayInputStream(data));
+        byte kind = in.readByte();
+        if (kind != PROPERTY) {
+            return null;
+        }
+        in.readLong();
+        return in.readUTF8() + '/' + in.readUTF8();
+    }
+}
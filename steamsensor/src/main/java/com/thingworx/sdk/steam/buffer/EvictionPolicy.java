@@ -0,0 +1,16 @@
+package com.thingworx.sdk.steam.buffer;
+
+// What the store-and-forward buffer does when its disk budget is used up
+public enum EvictionPolicy {
+    // Delete the oldest segment with all its records
+    DROP_OLDEST,
+    // Merge the two oldest segments, keeping every other value of each property. Events are never dropped.
+    DOWNSAMPLE;
+
+    public static EvictionPolicy fromString(String value) {
+        if (value == null) {
+            return DROP_OLDEST;
+        }
+        return EvictionPolicy.valueOf(value.trim().toUpperCase().replace('-', '_'));
+    }
+}
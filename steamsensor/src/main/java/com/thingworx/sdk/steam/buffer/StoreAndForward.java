@@ -0,0 +1,230 @@
+package com.thingworx.sdk.steam.buffer;
+
+import com.thingworx.communications.client.ConnectedThingClient;
+import com.thingworx.communications.client.things.VirtualThing;
+import com.thingworx.relationships.RelationshipTypes;
+import com.thingworx.types.collections.ValueCollection;
+import com.thingworx.types.events.EventOccurrence;
+import com.thingworx.types.events.collections.PendingEvents;
+import com.thingworx.types.primitives.InfoTablePrimitive;
+import com.thingworx.types.properties.PropertyValue;
+import com.thingworx.types.properties.collections.PendingPropertyUpdatesByProperty;
+import com.thingworx.types.properties.collections.PropertyValueList;
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Keeps the updates of the things in a StoreAndForwardBuffer while the client is disconnected and replays them after
+// it reconnects. Until the backlog is replayed the new updates go to the end of the buffer as well, so the platform
+// gets every value in the order it was sampled and its current value is always the newest sample.
+// Replay reads bounded batches, sends them in timestamp order with the same services the SDK uses for live updates,
+// and is rate limited so catching up after a long outage does not flood the platform. The limit only applies to the
+// backlog: the records stored while connected are sent on top of it, so the backlog drains at the replay rate
+// however much the fleet produces in the meantime.
+public class StoreAndForward {
+    private static final Logger LOG = LoggerFactory.getLogger(StoreAndForward.class);
+    private static final String PROPERTY_UPDATE_SERVICE = "UpdateSubscribedPropertyValues";
+    private static final String EVENT_SERVICE = "ProcessRemoteEvents";
+    // How long the replay thread waits before looking at the connection again
+    private static final long IDLE_WAIT = 1000;
+
+    private final ConnectedThingClient client;
+    private final StoreAndForwardBuffer buffer;
+    private final int replayBatchSize;
+    private final int replayRate;
+    private final int timeout;
+    private final Thread replayThread;
+    private volatile boolean running = true;
+    private final AtomicLong storedCount = new AtomicLong();
+    private final AtomicLong replayedCount = new AtomicLong();
+    // Records stored while the client was connected that the rate limit has not accounted for yet
+    private final AtomicLong liveCredit = new AtomicLong();
+
+    // replayRate is the maximum number of records replayed per second
+    public StoreAndForward(ConnectedThingClient client, StoreAndForwardBuffer buffer, int replayBatchSize,
+                           int replayRate, int timeout) {
+        this.client = client;
+        this.buffer = buffer;
+        this.replayBatchSize = Math.max(1, replayBatchSize);
+        this.replayRate = Math.max(1, replayRate);
+        this.timeout = timeout;
+        this.replayThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                replay();
+            }
+        }, "store-and-forward-replay");
+        this.replayThread.setDaemon(true);
+    }
+
+    public void start() {
+        replayThread.start();
+    }
+
+    public void shutdown(long timeoutMillis) throws Exception {
+        running = false;
+        replayThread.interrupt();
+        replayThread.join(timeoutMillis);
+        buffer.close();
+    }
+
+    // True when the updates of a thing must go to the buffer instead of the platform: while the client is
+    // disconnected, and after it reconnected until the backlog is replayed, so no live value overtakes older ones
+    public boolean shouldStore() {
+        return !client.isConnected() || !buffer.isEmpty();
+    }
+
+    // Moves the pending property updates and events of the thing into the buffer. The records are built before
+    // anything is appended, and the ones that could not be appended are put back in the queues of the thing, so a
+    // failing append loses nothing and they are tried again with its next flush.
+    public void store(VirtualThing thing) throws Exception {
+        String thingName = thing.getBindingName();
+        PendingPropertyUpdatesByProperty updates = thing.getPendingPropertyUpdates().drainPendingPropertyUpdates();
+        PendingEvents events = thing.getPendingEvents().drainPendingEvents();
+        List<PropertyValue> values = new ArrayList<PropertyValue>();
+        List<BufferedRecord> records = new ArrayList<BufferedRecord>();
+        for (PropertyValueList list : updates.values()) {
+            for (PropertyValue value : list) {
+                values.add(value);
+                records.add(BufferedRecord.property(thingName, value.getName(), value.getVTQ()));
+            }
+        }
+        for (EventOccurrence event : events) {
+            records.add(BufferedRecord.event(thingName, event.getEventName(), event.getEventTime(), event.getPayload()));
+        }
+        int stored = 0;
+        boolean live = client.isConnected();
+        try {
+            for (BufferedRecord record : records) {
+                try {
+                    buffer.append(record);
+                } catch (IllegalArgumentException eTooLarge) {
+                    // It would never fit, putting it back would only fail the next flush again
+                    LOG.warn("Dropping {} of [{}] : {}", record.getName(), thingName, eTooLarge.getMessage());
+                }
+                stored++;
+            }
+        } catch (Exception e) {
+            requeue(thing, values, events, stored);
+            throw e;
+        } finally {
+            storedCount.addAndGet(stored);
+            if (live) {
+                liveCredit.addAndGet(stored);
+            }
+        }
+    }
+
+    // Puts the updates from index stored on, which were not handled, back in the queues of the thing
+    private static void requeue(VirtualThing thing, List<PropertyValue> values, PendingEvents events, int stored) {
+        for (int i = stored; i < values.size(); i++) {
+            thing.getPendingPropertyUpdates().queuePropertyUpdate(values.get(i));
+        }
+        for (int i = Math.max(0, stored - values.size()); i < events.size(); i++) {
+            thing.getPendingEvents().addEvent(events.get(i));
+        }
+    }
+
+    public long getStoredCount() {
+        return storedCount.get();
+    }
+
+    public long getReplayedCount() {
+        return replayedCount.get();
+    }
+
+    public StoreAndForwardBuffer getBuffer() {
+        return buffer;
+    }
+
+    private void replay() {
+        while (running) {
+            try {
+                if (!client.isConnected() || buffer.isEmpty()) {
+                    Thread.sleep(IDLE_WAIT);
+                    continue;
+                }
+                long started = System.currentTimeMillis();
+                StoreAndForwardBuffer.ReplayBatch batch = buffer.peek(replayBatchSize);
+                send(batch.getRecords());
+                buffer.commit(batch);
+                replayedCount.addAndGet(batch.getRecords().size());
+                if (buffer.isEmpty()) {
+                    liveCredit.set(0);
+                    LOG.info("Store-and-forward replay caught up, {} records replayed so far.", replayedCount.get());
+                }
+                // Rate limit: a batch of n backlog records may not take less than n / replayRate seconds, the records
+                // stored while connected are what the things would have sent live and do not count
+                int size = batch.getRecords().size();
+                long credit = Math.min(size, liveCredit.get());
+                liveCredit.addAndGet(-credit);
+                long minimumDuration = (size - credit) * 1000L / replayRate;
+                long elapsed = System.currentTimeMillis() - started;
+                if (elapsed < minimumDuration) {
+                    Thread.sleep(minimumDuration - elapsed);
+                }
+            } catch (InterruptedException e) {
+                break;
+            } catch (Exception e) {
+                // Nothing was committed, the same batch is tried again
+                LOG.warn("Store-and-forward replay failed, retrying : {}", e.getMessage());
+                try {
+                    Thread.sleep(IDLE_WAIT);
+                } catch (InterruptedException eInterrupted) {
+                    break;
+                }
+            }
+        }
+    }
+
+    private void send(List<BufferedRecord> records) throws Exception {
+        List<BufferedRecord> ordered = new ArrayList<BufferedRecord>(records);
+        Collections.sort(ordered, new Comparator<BufferedRecord>() {
+            @Override
+            public int compare(BufferedRecord a, BufferedRecord b) {
+                return Long.compare(a.getTime(), b.getTime());
+            }
+        });
+
+        Map<String, PendingPropertyUpdatesByProperty> updatesByThing = new LinkedHashMap<String, PendingPropertyUpdatesByProperty>();
+        Map<String, PendingEvents> eventsByThing = new LinkedHashMap<String, PendingEvents>();
+        for (BufferedRecord record : ordered) {
+            if (record.isEvent()) {
+                PendingEvents events = eventsByThing.get(record.getThingName());
+                if (events == null) {
+                    events = new PendingEvents();
+                    eventsByThing.put(record.getThingName(), events);
+                }
+                events.addEvent(new EventOccurrence(record.getName(), new DateTime(record.getTime()), record.getPayload()));
+            } else {
+                PendingPropertyUpdatesByProperty updates = updatesByThing.get(record.getThingName());
+                if (updates == null) {
+                    updates = new PendingPropertyUpdatesByProperty();
+                    updatesByThing.put(record.getThingName(), updates);
+                }
+                updates.queuePropertyUpdate(new PropertyValue(record.getName(), record.getValue()));
+            }
+        }
+
+        for (Map.Entry<String, PendingPropertyUpdatesByProperty> entry : updatesByThing.entrySet()) {
+            ValueCollection parameters = new ValueCollection();
+            parameters.put("values", new InfoTablePrimitive(entry.getValue().toInfoTable()));
+            client.invokeService(RelationshipTypes.ThingworxEntityTypes.Things, entry.getKey(),
+                    PROPERTY_UPDATE_SERVICE, parameters, timeout);
+        }
+        for (Map.Entry<String, PendingEvents> entry : eventsByThing.entrySet()) {
+            ValueCollection parameters = new ValueCollection();
+            parameters.put("values", new InfoTablePrimitive(entry.getValue().toInfoTable()));
+            client.invokeService(RelationshipTypes.ThingworxEntityTypes.Things, entry.getKey(),
+                    EVENT_SERVICE, parameters, timeout);
+        }
+    }
+}
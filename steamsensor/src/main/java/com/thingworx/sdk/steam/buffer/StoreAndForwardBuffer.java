@@ -0,0 +1,270 @@
+package com.thingworx.sdk.steam.buffer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+// A disk backed ring of memory-mapped segments holding the property updates and events produced while the client
+// cannot send them. Records are appended to the newest segment and read back from the oldest one. When the disk
+// budget is used up the EvictionPolicy makes room. Fully read segments are deleted.
+public class StoreAndForwardBuffer {
+    private static final Logger LOG = LoggerFactory.getLogger(StoreAndForwardBuffer.class);
+    // The largest downsampling stride tried before falling back to dropping the oldest records
+    private static final int MAX_DOWNSAMPLE_STRIDE = 64;
+
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final EvictionPolicy evictionPolicy;
+    private final ArrayDeque<BufferSegment> segments = new ArrayDeque<BufferSegment>();
+    private long nextSequence = 0;
+    // Changes whenever records that may be part of a batch being replayed are evicted
+    private long generation = 0;
+    private long evictedCount = 0;
+
+    public StoreAndForwardBuffer(File directory, long diskBudget, int segmentSize, EvictionPolicy evictionPolicy)
+            throws IOException {
+        if (diskBudget < 2L * segmentSize) {
+            throw new IllegalArgumentException("The store-and-forward disk budget must hold at least two segments");
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = (int) Math.min(Integer.MAX_VALUE, diskBudget / segmentSize);
+        this.evictionPolicy = evictionPolicy;
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Could not create store-and-forward directory " + directory);
+        }
+        openExistingSegments();
+    }
+
+    // Segments left by a previous run are replayed like any other
+    private void openExistingSegments() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            if (!BufferSegment.isSegmentFile(file)) {
+                continue;
+            }
+            try {
+                BufferSegment segment = BufferSegment.open(file);
+                segments.addLast(segment);
+                nextSequence = segment.getSequence() + 1;
+            } catch (Exception e) {
+                LOG.warn("Ignoring store-and-forward segment {} : {}", file, e.getMessage());
+            }
+        }
+        if (!segments.isEmpty()) {
+            LOG.info("Found {} store-and-forward segment(s) from a previous run.", segments.size());
+        }
+    }
+
+    public synchronized void append(BufferedRecord record) throws Exception {
+        byte[] data = record.encode();
+        if (data.length + 4 > segmentSize - BufferSegment.HEADER_SIZE) {
+            throw new IllegalArgumentException("Record of " + data.length + " bytes does not fit in a segment");
+        }
+        BufferSegment tail = segments.peekLast();
+        if (tail == null || !tail.fits(data.length)) {
+            if (tail != null) {
+                tail.force();
+            }
+            while (segments.size() >= maxSegments) {
+                evict();
+            }
+            tail = BufferSegment.create(directory, nextSequence++, segmentSize);
+            segments.addLast(tail);
+        }
+        tail.append(data);
+    }
+
+    public synchronized boolean isEmpty() {
+        for (BufferSegment segment : segments) {
+            if (segment.hasUnread()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    public synchronized long getEvictedCount() {
+        return evictedCount;
+    }
+
+    // Reads up to maxRecords of the oldest records without removing them, commit() removes them once they were sent
+    public synchronized ReplayBatch peek(int maxRecords) throws Exception {
+        List<BufferedRecord> records = new ArrayList<BufferedRecord>();
+        long endSequence = -1;
+        int endPosition = 0;
+        for (BufferSegment segment : segments) {
+            int position = segment.getReadPosition();
+            int end = segment.getWritePosition();
+            while (position < end && records.size() < maxRecords) {
+                byte[] data = segment.readAt(position);
+                position = BufferSegment.next(position, data);
+                try {
+                    records.add(BufferedRecord.decode(data));
+                } catch (Exception e) {
+                    LOG.warn("Skipping unreadable store-and-forward record in {} : {}", segment.getFile(), e.getMessage());
+                }
+            }
+            endSequence = segment.getSequence();
+            endPosition = position;
+            if (records.size() >= maxRecords) {
+                break;
+            }
+        }
+        return new ReplayBatch(records, generation, endSequence, endPosition);
+    }
+
+    public synchronized void commit(ReplayBatch batch) throws IOException {
+        if (batch.generation != generation) {
+            // Records of this batch were evicted while it was sent, the read positions no longer match it.
+            // Nothing is removed, so some records may be sent twice but none is lost.
+            LOG.debug("Store-and-forward buffer changed during replay, not committing the batch.");
+            return;
+        }
+        Iterator<BufferSegment> iterator = segments.iterator();
+        while (iterator.hasNext()) {
+            BufferSegment segment = iterator.next();
+            if (segment.getSequence() < batch.endSequence) {
+                iterator.remove();
+                segment.delete();
+            } else if (segment.getSequence() == batch.endSequence) {
+                segment.setReadPosition(batch.endPosition);
+                // The tail segment stays, it is still being written
+                if (!segment.hasUnread() && segment != segments.peekLast()) {
+                    iterator.remove();
+                    segment.delete();
+                }
+                break;
+            }
+        }
+    }
+
+    public synchronized void close() throws IOException {
+        for (BufferSegment segment : segments) {
+            segment.force();
+            segment.close();
+        }
+        segments.clear();
+    }
+
+    private void evict() throws IOException {
+        generation++;
+        if (evictionPolicy == EvictionPolicy.DOWNSAMPLE && segments.size() >= 2 && downsampleOldest()) {
+            return;
+        }
+        BufferSegment oldest = segments.pollFirst();
+        evictedCount += oldest.countUnread();
+        oldest.delete();
+        LOG.warn("Store-and-forward disk budget exhausted, dropped segment {}.", oldest.getFile().getName());
+    }
+
+    // Merges the unread records of the two oldest segments into one, keeping every stride-th value of each property
+    // and all events. The stride doubles until the records fit. Returns false if even the largest stride does not.
+    private boolean downsampleOldest() throws IOException {
+        BufferSegment first = segments.pollFirst();
+        BufferSegment second = segments.pollFirst();
+        List<byte[]> records = new ArrayList<byte[]>();
+        readUnread(first, records);
+        readUnread(second, records);
+
+        for (int stride = 2; stride <= MAX_DOWNSAMPLE_STRIDE; stride *= 2) {
+            List<byte[]> kept = downsample(records, stride);
+            if (fitsInOneSegment(kept)) {
+                first.delete();
+                second.delete();
+                // The merged segment takes the place of the oldest one
+                BufferSegment segment = BufferSegment.create(directory, first.getSequence(), segmentSize);
+                for (byte[] record : kept) {
+                    segment.append(record);
+                }
+                segments.addFirst(segment);
+                evictedCount += records.size() - kept.size();
+                LOG.warn("Store-and-forward disk budget exhausted, downsampled the oldest data by {}.", stride);
+                return true;
+            }
+        }
+        // Put them back untouched and let the caller drop the oldest segment
+        segments.addFirst(second);
+        segments.addFirst(first);
+        return false;
+    }
+
+    private static List<byte[]> downsample(List<byte[]> records, int stride) throws IOException {
+        Map<String, Integer> seen = new HashMap<String, Integer>();
+        List<byte[]> kept = new ArrayList<byte[]>();
+        for (byte[] record : records) {
+            String key = BufferedRecord.keyOf(record);
+            if (key == null) {
+                kept.add(record);
+                continue;
+            }
+            Integer count = seen.get(key);
+            int index = count == null ? 0 : count;
+            seen.put(key, index + 1);
+            if (index % stride == 0) {
+                kept.add(record);
+            }
+        }
+        return kept;
+    }
+
+    private boolean fitsInOneSegment(List<byte[]> records) {
+        long size = BufferSegment.HEADER_SIZE;
+        for (byte[] record : records) {
+            size += 4 + record.length;
+        }
+        return size <= segmentSize;
+    }
+
+    private static void readUnread(BufferSegment segment, List<byte[]> records) {
+        int position = segment.getReadPosition();
+        int end = segment.getWritePosition();
+        while (position < end) {
+            byte[] data = segment.readAt(position);
+            records.add(data);
+            position = BufferSegment.next(position, data);
+        }
+    }
+
+    // Records read from the buffer, and where reading stopped so the buffer can drop them once they were sent
+    public static final class ReplayBatch {
+        private final List<BufferedRecord> records;
+        private final long generation;
+        private final long endSequence;
+        private final int endPosition;
+
+        private ReplayBatch(List<BufferedRecord> records, long generation, long endSequence, int endPosition) {
+            this.records = Collections.unmodifiableList(records);
+            this.generation = generation;
+            this.endSequence = endSequence;
+            this.endPosition = endPosition;
+        }
+
+        public List<BufferedRecord> getRecords() {
+            return records;
+        }
+
+        public boolean isEmpty() {
+            return records.isEmpty();
+        }
+    }
+}
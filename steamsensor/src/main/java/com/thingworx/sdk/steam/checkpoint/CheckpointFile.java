@@ -0,0 +1,187 @@
+package com.thingworx.sdk.steam.checkpoint;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.zip.CRC32;
+
+// The memory-mapped checkpoint file. Layout: magic, version, record size and capacity (ints), padded to HEADER_SIZE,
+// then two regions of capacity records. A region starts with its sequence and time (longs), the number of records
+// and the CRC32 of the time, the number and the records (ints).
+// The checkpoints are written to the two regions in turn, the region of the last checkpoint is left alone. A region
+// is only valid once its checksum matches, so a crash while a checkpoint is written leaves the previous one to
+// restore from. A file that grows is written aside and only moved over the current one once its first checkpoint
+// is committed, so there is a valid checkpoint on disk at any time.
+final class CheckpointFile {
+    private static final int MAGIC = 0x53434b50; // "SCKP"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int REGION_HEADER_SIZE = 32;
+    private static final int SEQUENCE = 0;
+    private static final int TIME = 8;
+    private static final int COUNT = 16;
+    private static final int CHECKSUM = 20;
+
+    private final File file;
+    // The file written aside until install() moves it over file, null once it did
+    private File partial;
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer map;
+    private final int capacity;
+
+    private CheckpointFile(File file, File partial, RandomAccessFile raf, int capacity) throws IOException {
+        this.file = file;
+        this.partial = partial;
+        this.raf = raf;
+        this.capacity = capacity;
+        this.map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, sizeOf(capacity));
+    }
+
+    private static long sizeOf(int capacity) {
+        return HEADER_SIZE + 2L * regionSize(capacity);
+    }
+
+    private static long regionSize(int capacity) {
+        return REGION_HEADER_SIZE + (long) capacity * CheckpointRecord.SIZE;
+    }
+
+    // Maps the file, null if there is none or it is not a valid checkpoint file
+    static CheckpointFile open(File file) throws IOException {
+        if (!file.isFile() || file.length() < HEADER_SIZE) {
+            return null;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            int magic = raf.readInt();
+            int version = raf.readInt();
+            int recordSize = raf.readInt();
+            int capacity = raf.readInt();
+            if (magic != MAGIC || version != VERSION || recordSize != CheckpointRecord.SIZE || capacity < 0
+                    || raf.length() < sizeOf(capacity)) {
+                raf.close();
+                return null;
+            }
+            return new CheckpointFile(file, null, raf, capacity);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    // Creates an empty file of capacity records aside of file, install() moves it in place of the current one once
+    // a checkpoint is committed to it. The current file stays valid until then.
+    static CheckpointFile create(File file, int capacity) throws IOException {
+        File partial = new File(file.getPath() + ".tmp");
+        RandomAccessFile raf = new RandomAccessFile(partial, "rw");
+        try {
+            raf.setLength(0);
+            raf.setLength(sizeOf(capacity));
+            raf.writeInt(MAGIC);
+            raf.writeInt(VERSION);
+            raf.writeInt(CheckpointRecord.SIZE);
+            raf.writeInt(capacity);
+            return new CheckpointFile(file, partial, raf, capacity);
+        } catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    File getFile() {
+        return file;
+    }
+
+    // Moves a created file over the current one, after the first commit. The mapping stays on the moved file.
+    void install() throws IOException {
+        if (partial == null) {
+            return;
+        }
+        Files.move(partial.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        partial = null;
+    }
+
+    int getCapacity() {
+        return capacity;
+    }
+
+    ByteBuffer getBuffer() {
+        return map;
+    }
+
+    int recordOffset(int region, int index) {
+        return (int) (regionOffset(region) + REGION_HEADER_SIZE + (long) index * CheckpointRecord.SIZE);
+    }
+
+    private long regionOffset(int region) {
+        return HEADER_SIZE + region * regionSize(capacity);
+    }
+
+    long getSequence(int region) {
+        return map.getLong((int) regionOffset(region) + SEQUENCE);
+    }
+
+    long getTime(int region) {
+        return map.getLong((int) regionOffset(region) + TIME);
+    }
+
+    int getCount(int region) {
+        return map.getInt((int) regionOffset(region) + COUNT);
+    }
+
+    // The region of the latest valid checkpoint, -1 if there is none
+    int latestRegion() {
+        int latest = -1;
+        for (int region = 0; region < 2; region++) {
+            if (isValid(region) && (latest < 0 || getSequence(region) > getSequence(latest))) {
+                latest = region;
+            }
+        }
+        return latest;
+    }
+
+    private boolean isValid(int region) {
+        int count = getCount(region);
+        return getSequence(region) > 0 && count >= 0 && count <= capacity
+                && map.getInt((int) regionOffset(region) + CHECKSUM) == checksum(region, count);
+    }
+
+    private int checksum(int region, int count) {
+        int offset = (int) regionOffset(region);
+        ByteBuffer covered = map.duplicate();
+        covered.position(offset + TIME);
+        covered.limit(offset + CHECKSUM);
+        CRC32 crc = new CRC32();
+        crc.update(covered);
+        covered.limit(recordOffset(region, count));
+        covered.position(recordOffset(region, 0));
+        crc.update(covered);
+        return (int) crc.getValue();
+    }
+
+    // Makes the count records written to region the checkpoint of sequence. The records reach the disk before the
+    // header that makes them valid.
+    void commit(int region, long sequence, long time, int count) {
+        int offset = (int) regionOffset(region);
+        map.putLong(offset + TIME, time);
+        map.putInt(offset + COUNT, count);
+        map.putInt(offset + CHECKSUM, checksum(region, count));
+        map.force();
+        map.putLong(offset + SEQUENCE, sequence);
+        map.force();
+    }
+
+    // Marks region invalid before it is overwritten
+    void invalidate(int region) {
+        map.putLong((int) regionOffset(region) + SEQUENCE, 0);
+    }
+
+    void close() throws IOException {
+        raf.close();
+    }
+}
@@ -0,0 +1,151 @@
+package com.thingworx.sdk.steam.checkpoint;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+// The fixed layout of the checkpoint of one thing, read and written in place in the mapped file. The record is a
+// view that is moved from thing to thing, so a checkpoint allocates nothing.
+// Layout: name length (short) and UTF-8 name of up to NAME_BYTES bytes, then TotalFlow, TemperatureLimit and the
+// last Temperature, Pressure, flow, latitude and longitude (doubles), the position of the sensor source and the
+// active fault rules (longs), the FaultStatus and InletValve flags (int) and the sampling periods in scans (ints).
+// Names longer than NAME_BYTES in UTF-8 cannot be checkpointed.
+public final class CheckpointRecord {
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+    static final int NAME_BYTES = 94;
+    public static final int SAMPLING_PERIODS = 4;
+    private static final int NAME = 0;
+    private static final int TOTAL_FLOW = 96;
+    private static final int TEMPERATURE_LIMIT = 104;
+    private static final int TEMPERATURE = 112;
+    private static final int PRESSURE = 120;
+    private static final int FLOW = 128;
+    private static final int LATITUDE = 136;
+    private static final int LONGITUDE = 144;
+    private static final int SOURCE_POSITION = 152;
+    private static final int ACTIVE_FAULTS = 160;
+    private static final int FLAGS = 168;
+    private static final int SAMPLING = 172;
+    // Padded so the records stay 8 byte aligned
+    static final int SIZE = 192;
+    private static final int FAULT_STATUS_FLAG = 1;
+    private static final int INLET_VALVE_FLAG = 2;
+
+    private ByteBuffer buffer;
+    private int offset;
+
+    CheckpointRecord moveTo(ByteBuffer buffer, int offset) {
+        this.buffer = buffer;
+        this.offset = offset;
+        return this;
+    }
+
+    void setName(byte[] name) {
+        buffer.putShort(offset + NAME, (short) name.length);
+        for (int i = 0; i < name.length; i++) {
+            buffer.put(offset + NAME + 2 + i, name[i]);
+        }
+    }
+
+    String getName() {
+        int length = buffer.getShort(offset + NAME);
+        if (length < 0 || length > NAME_BYTES) {
+            return null;
+        }
+        byte[] name = new byte[length];
+        for (int i = 0; i < length; i++) {
+            name[i] = buffer.get(offset + NAME + 2 + i);
+        }
+        return new String(name, UTF_8);
+    }
+
+    public double getTotalFlow() {
+        return buffer.getDouble(offset + TOTAL_FLOW);
+    }
+
+    public void setTotalFlow(double totalFlow) {
+        buffer.putDouble(offset + TOTAL_FLOW, totalFlow);
+    }
+
+    public double getTemperatureLimit() {
+        return buffer.getDouble(offset + TEMPERATURE_LIMIT);
+    }
+
+    public void setTemperatureLimit(double temperatureLimit) {
+        buffer.putDouble(offset + TEMPERATURE_LIMIT, temperatureLimit);
+    }
+
+    public double getTemperature() {
+        return buffer.getDouble(offset + TEMPERATURE);
+    }
+
+    public void setTemperature(double temperature) {
+        buffer.putDouble(offset + TEMPERATURE, temperature);
+    }
+
+    public double getPressure() {
+        return buffer.getDouble(offset + PRESSURE);
+    }
+
+    public void setPressure(double pressure) {
+        buffer.putDouble(offset + PRESSURE, pressure);
+    }
+
+    public double getFlow() {
+        return buffer.getDouble(offset + FLOW);
+    }
+
+    public void setFlow(double flow) {
+        buffer.putDouble(offset + FLOW, flow);
+    }
+
+    public double getLatitude() {
+        return buffer.getDouble(offset + LATITUDE);
+    }
+
+    public double getLongitude() {
+        return buffer.getDouble(offset + LONGITUDE);
+    }
+
+    public void setLocation(double latitude, double longitude) {
+        buffer.putDouble(offset + LATITUDE, latitude);
+        buffer.putDouble(offset + LONGITUDE, longitude);
+    }
+
+    public long getSourcePosition() {
+        return buffer.getLong(offset + SOURCE_POSITION);
+    }
+
+    public void setSourcePosition(long position) {
+        buffer.putLong(offset + SOURCE_POSITION, position);
+    }
+
+    // One bit per active fault rule
+    public long getActiveFaults() {
+        return buffer.getLong(offset + ACTIVE_FAULTS);
+    }
+
+    public void setActiveFaults(long activeFaults) {
+        buffer.putLong(offset + ACTIVE_FAULTS, activeFaults);
+    }
+
+    public boolean getFaultStatus() {
+        return (buffer.getInt(offset + FLAGS) & FAULT_STATUS_FLAG) != 0;
+    }
+
+    public boolean getInletValve() {
+        return (buffer.getInt(offset + FLAGS) & INLET_VALVE_FLAG) != 0;
+    }
+
+    public void setFlags(boolean faultStatus, boolean inletValve) {
+        buffer.putInt(offset + FLAGS, (faultStatus ? FAULT_STATUS_FLAG : 0) | (inletValve ? INLET_VALVE_FLAG : 0));
+    }
+
+    // The period of sampled reading index in scans, 0 if unknown
+    public int getSamplingPeriod(int index) {
+        return buffer.getInt(offset + SAMPLING + 4 * index);
+    }
+
+    public void setSamplingPeriod(int index, int scans) {
+        buffer.putInt(offset + SAMPLING + 4 * index, scans);
+    }
+}
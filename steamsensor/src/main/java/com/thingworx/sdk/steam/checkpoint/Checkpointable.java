@@ -0,0 +1,12 @@
+package com.thingworx.sdk.steam.checkpoint;
+
+// A thing whose state is kept in the checkpoints of a Checkpointer
+public interface Checkpointable {
+    String getName();
+
+    // Called from the checkpoint thread while the thing is scanned, the values may be from consecutive scans
+    void saveCheckpoint(CheckpointRecord record);
+
+    // Called once before the first scan when the last checkpoint has a record of this thing
+    void restoreCheckpoint(CheckpointRecord record) throws Exception;
+}
@@ -0,0 +1,213 @@
+package com.thingworx.sdk.steam.checkpoint;
+
+import com.thingworx.sdk.steam.metrics.AgentMetrics;
+import com.thingworx.sdk.steam.metrics.Gauge;
+import com.thingworx.sdk.steam.scan.ScanWorkerPools;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// Keeps the state of the things in a memory-mapped checkpoint file, so a restarted agent continues with the
+// totals, fault states and settings it had instead of starting from zero. The things are registered while the agent
+// starts, restore() applies the last checkpoint to them before the first scan, and a checkpoint of all of them is
+// written at a fixed rate and when the agent stops, also when the JVM is stopped by a signal. The file holds two
+// regions of a 192 byte record per thing, about 3.8 MB for a fleet of 10000 things.
+public final class Checkpointer {
+    private static final Logger LOG = LoggerFactory.getLogger(Checkpointer.class);
+
+    private final File file;
+    private final List<Checkpointable> things = new ArrayList<Checkpointable>();
+    private final List<byte[]> names = new ArrayList<byte[]>();
+    private final CheckpointRecord record = new CheckpointRecord();
+    private final ScheduledExecutorService writer;
+    private final Thread shutdownHook;
+    private CheckpointFile checkpoint;
+    private boolean stopped;
+    private long sequence;
+    private int nextRegion;
+    private volatile long lastCheckpointTime;
+    private volatile long lastCheckpointMicros;
+
+    public Checkpointer(File file) {
+        this.file = file;
+        this.writer = Executors.newSingleThreadScheduledExecutor(ScanWorkerPools.namedDaemonThreads("checkpoint"));
+        this.shutdownHook = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                shutdown();
+            }
+        }, "checkpoint-shutdown");
+    }
+
+    // Returns false for a thing whose name is too long to be checkpointed
+    public synchronized boolean register(Checkpointable thing) {
+        byte[] name = thing.getName().getBytes(CheckpointRecord.UTF_8);
+        if (name.length > CheckpointRecord.NAME_BYTES) {
+            LOG.warn("The name of [{}] is longer than {} bytes, its state is not checkpointed.", thing.getName(),
+                    CheckpointRecord.NAME_BYTES);
+            return false;
+        }
+        things.add(thing);
+        names.add(name);
+        return true;
+    }
+
+    // Applies the last valid checkpoint to the registered things that are in it, and returns how many were
+    public synchronized int restore() throws IOException {
+        long start = System.nanoTime();
+        checkpoint = CheckpointFile.open(file);
+        if (checkpoint == null) {
+            LOG.info("No checkpoint in {}, the things start from scratch.", file);
+            return 0;
+        }
+        int region = checkpoint.latestRegion();
+        if (region < 0) {
+            LOG.warn("The checkpoint file {} holds no valid checkpoint, the things start from scratch.", file);
+            return 0;
+        }
+        sequence = checkpoint.getSequence(region);
+        nextRegion = 1 - region;
+        ByteBuffer buffer = checkpoint.getBuffer();
+        int count = checkpoint.getCount(region);
+        Map<String, Integer> indexes = new HashMap<String, Integer>(count * 2);
+        for (int index = 0; index < count; index++) {
+            String name = record.moveTo(buffer, checkpoint.recordOffset(region, index)).getName();
+            if (name != null) {
+                indexes.put(name, index);
+            }
+        }
+        int restored = 0;
+        for (Checkpointable thing : things) {
+            Integer index = indexes.get(thing.getName());
+            if (index == null) {
+                continue;
+            }
+            try {
+                thing.restoreCheckpoint(record.moveTo(buffer, checkpoint.recordOffset(region, index)));
+                restored++;
+            } catch (Exception e) {
+                LOG.warn("Could not restore [{}] from the checkpoint: {}", thing.getName(), e.getMessage());
+            }
+        }
+        LOG.info("Restored {} of {} things from the checkpoint of {} ms ago in {} ms.", restored, things.size(),
+                System.currentTimeMillis() - checkpoint.getTime(region), (System.nanoTime() - start) / 1000000);
+        return restored;
+    }
+
+    // Writes a checkpoint every periodMillis, and a last one when the JVM stops without shutdown() being called, like
+    // on SIGTERM. Only a JVM killed outright loses what changed since the last periodic checkpoint.
+    public void start(long periodMillis) {
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+        writer.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    checkpoint();
+                } catch (Throwable t) {
+                    // An exception escaping a scheduled task would cancel all following checkpoints
+                    LOG.error("Checkpoint failed", t);
+                }
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void checkpoint() throws IOException {
+        long start = System.nanoTime();
+        CheckpointFile target = checkpoint;
+        int region = nextRegion;
+        if (target == null || target.getCapacity() < things.size()) {
+            // A larger file is written aside, the last checkpoint stays valid on disk until the first checkpoint of
+            // the new file is committed and it replaces the old one
+            target = CheckpointFile.create(file, things.size());
+            region = 0;
+        }
+        long now;
+        boolean committed = false;
+        try {
+            target.invalidate(region);
+            ByteBuffer buffer = target.getBuffer();
+            for (int index = 0; index < things.size(); index++) {
+                record.moveTo(buffer, target.recordOffset(region, index));
+                record.setName(names.get(index));
+                things.get(index).saveCheckpoint(record);
+            }
+            now = System.currentTimeMillis();
+            target.commit(region, sequence + 1, now, things.size());
+            target.install();
+            committed = true;
+        } finally {
+            if (!committed && target != checkpoint) {
+                target.close();
+            }
+        }
+        if (target != checkpoint) {
+            if (checkpoint != null) {
+                checkpoint.close();
+            }
+            checkpoint = target;
+        }
+        sequence++;
+        nextRegion = 1 - region;
+        lastCheckpointTime = now;
+        lastCheckpointMicros = (System.nanoTime() - start) / 1000;
+    }
+
+    // Stops the periodic checkpoints and writes a last one, only the first call does
+    public void shutdown() {
+        synchronized (this) {
+            if (stopped) {
+                return;
+            }
+            stopped = true;
+        }
+        if (Thread.currentThread() != shutdownHook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(shutdownHook);
+            } catch (IllegalStateException e) {
+                // The JVM is stopping already, the hook finds the checkpointer stopped
+            }
+        }
+        writer.shutdownNow();
+        try {
+            writer.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            try {
+                checkpoint();
+                checkpoint.close();
+                LOG.info("Checkpointed {} things to {}.", things.size(), file);
+            } catch (IOException e) {
+                LOG.warn("Could not write the last checkpoint to {}: {}", file, e.getMessage());
+            }
+        }
+    }
+
+    // CheckpointMicros, how long the last checkpoint took, and CheckpointAge, how long ago it was written in ms
+    public void registerGauges(AgentMetrics metrics) {
+        metrics.registerGauge("CheckpointMicros", new Gauge() {
+            @Override
+            public long getValue() {
+                return lastCheckpointMicros;
+            }
+        });
+        metrics.registerGauge("CheckpointAge", new Gauge() {
+            @Override
+            public long getValue() {
+                long last = lastCheckpointTime;
+                return last == 0 ? 0 : System.currentTimeMillis() - last;
+            }
+        });
+    }
+}
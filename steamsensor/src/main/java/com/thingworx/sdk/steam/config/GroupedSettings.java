@@ -0,0 +1,34 @@
+package com.thingworx.sdk.steam.config;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+// The configuration files of the agent hold settings of the form <name>.<setting>, like Temperature.base or
+// HighTemperature.limit. The settings are grouped by name first, so the settings of a name are validated together.
+public final class GroupedSettings {
+    private GroupedSettings() {
+    }
+
+    // The trimmed settings by name, in the order of the names. kind and what only appear in the error of a key
+    // without a name, like "Sampling setting [base] must have the form <reading>.<setting>".
+    public static Map<String, Map<String, String>> byName(Properties properties, String kind, String what) {
+        Map<String, Map<String, String>> byName = new TreeMap<String, Map<String, String>>();
+        for (String key : properties.stringPropertyNames()) {
+            int dot = key.lastIndexOf('.');
+            if (dot <= 0) {
+                throw new IllegalArgumentException(kind + " setting [" + key + "] must have the form <" + what
+                        + ">.<setting>");
+            }
+            String name = key.substring(0, dot);
+            Map<String, String> settings = byName.get(name);
+            if (settings == null) {
+                settings = new HashMap<String, String>();
+                byName.put(name, settings);
+            }
+            settings.put(key.substring(dot + 1), properties.getProperty(key).trim());
+        }
+        return byName;
+    }
+}
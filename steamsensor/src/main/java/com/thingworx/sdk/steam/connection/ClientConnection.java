@@ -0,0 +1,115 @@
+package com.thingworx.sdk.steam.connection;
+
+import com.thingworx.communications.client.ConnectedThingClient;
+import com.thingworx.communications.client.ConnectedThingClientChangeEvent;
+import com.thingworx.communications.client.ConnectedThingClientChangeListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// One connection of the agent to the platform: a client with its own WebSocket, SDK queues and reconnect loop, and
+// the things bound through it. Keeps track of whether the connection is up, how often it was lost, and the rate of
+// the requests it carries.
+public class ClientConnection {
+    private static final Logger LOG = LoggerFactory.getLogger(ClientConnection.class);
+
+    private final int index;
+    private final ConnectedThingClient client;
+    private final ConnectionStats stats;
+    private final AtomicLong reconnects = new AtomicLong();
+    private volatile boolean opened = false;
+    // When the connection was lost, 0 while it is up
+    private volatile long disconnectedSince = System.currentTimeMillis();
+    private volatile double requestRate;
+    private volatile double failedRequestRate;
+    private long sampledRequests;
+    private long sampledFailedRequests;
+    private long sampledNanos = System.nanoTime();
+
+    ClientConnection(final int index, ConnectedThingClient client, ConnectionStats stats) {
+        this.index = index;
+        this.client = client;
+        this.stats = stats;
+        client.addChangeListener(new ConnectedThingClientChangeListener() {
+            @Override
+            public void clientChangeEventReceived(ConnectedThingClientChangeEvent event) {
+                if (event.getEventName() == ConnectedThingClientChangeEvent.EventName.ENDPOINT_OPENED) {
+                    // The first connection is not a reconnect
+                    if (opened) {
+                        reconnects.incrementAndGet();
+                        LOG.info("Connection {} reconnected after {} ms.", index, getDisconnectedMillis());
+                    }
+                    opened = true;
+                    disconnectedSince = 0;
+                } else if (event.getEventName() == ConnectedThingClientChangeEvent.EventName.ENDPOINT_CLOSED) {
+                    if (disconnectedSince == 0) {
+                        disconnectedSince = System.currentTimeMillis();
+                    }
+                    LOG.warn("Connection {} lost, its {} things wait for it to reconnect.", index, getThingCount());
+                }
+            }
+        });
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public ConnectedThingClient getClient() {
+        return client;
+    }
+
+    public ConnectionStats getStats() {
+        return stats;
+    }
+
+    public boolean isConnected() {
+        return client.isConnected();
+    }
+
+    public int getThingCount() {
+        return client.getThings().size();
+    }
+
+    public long getReconnectCount() {
+        return reconnects.get();
+    }
+
+    // How long the connection has been down, 0 while it is up
+    public long getDisconnectedMillis() {
+        long since = disconnectedSince;
+        return since == 0 ? 0 : System.currentTimeMillis() - since;
+    }
+
+    // Requests per second over the last sample period
+    public double getRequestRate() {
+        return requestRate;
+    }
+
+    public double getFailedRequestRate() {
+        return failedRequestRate;
+    }
+
+    // Takes the request rates since the previous sample, called periodically by ClientConnections
+    synchronized void sampleRates() {
+        long now = System.nanoTime();
+        long requests = stats.getRequestCount();
+        long failedRequests = stats.getFailedRequestCount();
+        double seconds = (now - sampledNanos) / 1e9;
+        if (seconds > 0) {
+            requestRate = (requests - sampledRequests) / seconds;
+            failedRequestRate = (failedRequests - sampledFailedRequests) / seconds;
+        }
+        sampledRequests = requests;
+        sampledFailedRequests = failedRequests;
+        sampledNanos = now;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("connection %d %s, %d things, %.1f requests/s, %.1f failed/s, mean %.1f ms, %d reconnects",
+                index, isConnected() ? "up" : "down for " + getDisconnectedMillis() + " ms", getThingCount(),
+                requestRate, failedRequestRate, stats.getRequestLatency().getMean() / 1000.0, getReconnectCount());
+    }
+}
@@ -0,0 +1,217 @@
+package com.thingworx.sdk.steam.connection;
+
+import com.thingworx.communications.client.ConnectedThingClient;
+import com.thingworx.sdk.steam.metrics.AgentMetrics;
+import com.thingworx.sdk.steam.metrics.Gauge;
+import com.thingworx.sdk.steam.scan.ScanWorkerPools;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// The connections of an agent to the platform. Every thing is put on one of them by the consistent hash of its
+// name, see ConsistentHashRing, and is created with and bound through the client of that connection.
+// Each connection has its own client, with its own WebSocket, SDK queues and reconnect loop, so the traffic of the
+// fleet is spread over several sockets and threads, and a slow or lost connection only holds up the things on it.
+// The agent stops when any of the clients is shut down, by the Shutdown service of one of its things.
+public class ClientConnections {
+    private static final Logger LOG = LoggerFactory.getLogger(ClientConnections.class);
+    // How often the request rates are sampled, and how many samples go by between two health reports
+    private static final long SAMPLE_PERIOD = 10000;
+    private static final int REPORT_EVERY_SAMPLES = 6;
+
+    public interface ClientFactory {
+        // Creates the client of connection index, which records its requests in stats
+        ConnectedThingClient create(int index, ConnectionStats stats) throws Exception;
+    }
+
+    private final ClientConnection[] connections;
+    private final ConsistentHashRing ring;
+    private final ScheduledExecutorService sampler;
+    private long samples;
+
+    public ClientConnections(int count, ClientFactory factory) throws Exception {
+        if (count <= 0) {
+            throw new IllegalArgumentException("There must be at least one connection");
+        }
+        this.connections = new ClientConnection[count];
+        for (int i = 0; i < count; i++) {
+            ConnectionStats stats = new ConnectionStats();
+            connections[i] = new ClientConnection(i, factory.create(i, stats), stats);
+        }
+        this.ring = new ConsistentHashRing(count);
+        this.sampler = Executors.newSingleThreadScheduledExecutor(ScanWorkerPools.namedDaemonThreads("connection-health"));
+    }
+
+    // The reconnect interval of connection index: the base interval for the first connection, up to twice the base
+    // interval for the last, so the connections do not all try again at the same moment after an outage
+    public static int reconnectInterval(int baseSeconds, int index, int count) {
+        return baseSeconds + baseSeconds * index / Math.max(1, count);
+    }
+
+    public int size() {
+        return connections.length;
+    }
+
+    public ClientConnection get(int index) {
+        return connections[index];
+    }
+
+    public ClientConnection connectionOf(String thingName) {
+        return connections[ring.connectionOf(thingName)];
+    }
+
+    // The client a thing of this name must be created with
+    public ConnectedThingClient clientOf(String thingName) {
+        return connectionOf(thingName).getClient();
+    }
+
+    public List<ConnectedThingClient> getClients() {
+        List<ConnectedThingClient> clients = new ArrayList<ConnectedThingClient>(connections.length);
+        for (ClientConnection connection : connections) {
+            clients.add(connection.getClient());
+        }
+        return clients;
+    }
+
+    // Starts every client. A client that cannot connect now keeps trying in its own reconnect loop.
+    public void start() {
+        for (ClientConnection connection : connections) {
+            try {
+                connection.getClient().start();
+            } catch (Exception eStart) {
+                LOG.warn("Initial start of connection {} failed : {}", connection.getIndex(), eStart.getMessage());
+            }
+        }
+        sampler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                sample();
+            }
+        }, SAMPLE_PERIOD, SAMPLE_PERIOD, TimeUnit.MILLISECONDS);
+    }
+
+    public boolean isShutdown() {
+        for (ClientConnection connection : connections) {
+            if (connection.getClient().isShutdown()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Shuts down the clients that are still running
+    public void shutdown() {
+        sampler.shutdownNow();
+        for (ClientConnection connection : connections) {
+            ConnectedThingClient client = connection.getClient();
+            if (client.isShutdown()) {
+                continue;
+            }
+            try {
+                client.shutdown();
+            } catch (Exception e) {
+                LOG.warn("Could not shut down connection {} : {}", connection.getIndex(), e.getMessage());
+            }
+        }
+    }
+
+    public int getConnectedCount() {
+        int connected = 0;
+        for (ClientConnection connection : connections) {
+            if (connection.isConnected()) {
+                connected++;
+            }
+        }
+        return connected;
+    }
+
+    // Requests per second of all connections together
+    public double getRequestRate() {
+        double rate = 0;
+        for (ClientConnection connection : connections) {
+            rate += connection.getRequestRate();
+        }
+        return rate;
+    }
+
+    private void sample() {
+        try {
+            for (ClientConnection connection : connections) {
+                connection.sampleRates();
+            }
+            // A single connection is already covered by the agent metrics
+            if (connections.length > 1 && ++samples % REPORT_EVERY_SAMPLES == 0) {
+                LOG.info(String.format("%d of %d connections up, %.1f requests/s", getConnectedCount(),
+                        connections.length, getRequestRate()));
+                for (ClientConnection connection : connections) {
+                    LOG.info("  {}", connection);
+                }
+            }
+        } catch (Throwable t) {
+            // An exception escaping a scheduled task would cancel all following samples
+            LOG.error("Connection health sample failed", t);
+        }
+    }
+
+    // Connections, ConnectionsUp and RequestsPerSecond for the whole agent, and per connection whether it is up,
+    // its things, requests per second, failed requests, reconnects and request latency
+    public void registerGauges(AgentMetrics metrics) {
+        metrics.registerGauge("Connections", new Gauge() {
+            @Override
+            public long getValue() {
+                return connections.length;
+            }
+        });
+        metrics.registerGauge("ConnectionsUp", new Gauge() {
+            @Override
+            public long getValue() {
+                return getConnectedCount();
+            }
+        });
+        metrics.registerGauge("RequestsPerSecond", new Gauge() {
+            @Override
+            public long getValue() {
+                return Math.round(getRequestRate());
+            }
+        });
+        for (final ClientConnection connection : connections) {
+            String prefix = "Connection" + connection.getIndex();
+            metrics.registerGauge(prefix + "Up", new Gauge() {
+                @Override
+                public long getValue() {
+                    return connection.isConnected() ? 1 : 0;
+                }
+            });
+            metrics.registerGauge(prefix + "Things", new Gauge() {
+                @Override
+                public long getValue() {
+                    return connection.getThingCount();
+                }
+            });
+            metrics.registerGauge(prefix + "RequestsPerSecond", new Gauge() {
+                @Override
+                public long getValue() {
+                    return Math.round(connection.getRequestRate());
+                }
+            });
+            metrics.registerGauge(prefix + "FailedRequests", new Gauge() {
+                @Override
+                public long getValue() {
+                    return connection.getStats().getFailedRequestCount();
+                }
+            });
+            metrics.registerGauge(prefix + "Reconnects", new Gauge() {
+                @Override
+                public long getValue() {
+                    return connection.getReconnectCount();
+                }
+            });
+            metrics.registerHistogram(prefix + "RequestLatency", connection.getStats().getRequestLatency());
+        }
+    }
+}
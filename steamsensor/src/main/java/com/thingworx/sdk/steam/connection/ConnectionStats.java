@@ -0,0 +1,34 @@
+package com.thingworx.sdk.steam.connection;
+
+import com.thingworx.sdk.steam.metrics.Histogram;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// The requests one client sent to the platform: how many, how many failed or timed out, and how long they took.
+// The client records every request it sends, the property and event pushes of its things included.
+public class ConnectionStats {
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong failedRequestCount = new AtomicLong();
+    private final Histogram requestLatency = new Histogram("us");
+
+    public void recordRequest(long startNanos, boolean failed) {
+        requestCount.incrementAndGet();
+        if (failed) {
+            failedRequestCount.incrementAndGet();
+        }
+        requestLatency.recordMicrosSince(startNanos);
+    }
+
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    public long getFailedRequestCount() {
+        return failedRequestCount.get();
+    }
+
+    // Time of one request until its response, in microseconds
+    public Histogram getRequestLatency() {
+        return requestLatency;
+    }
+}
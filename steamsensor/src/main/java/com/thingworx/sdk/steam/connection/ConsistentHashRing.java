@@ -0,0 +1,68 @@
+package com.thingworx.sdk.steam.connection;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+// Maps thing names to connections with consistent hashing. Every connection owns POINTS_PER_CONNECTION points on a
+// ring of 64 bit hashes, and a thing goes to the connection of the first point at or after the hash of its name.
+// The hash does not depend on the JVM, so a thing is bound through the same connection after every restart, and
+// when the number of connections changes only the things of about one connection in n move.
+public final class ConsistentHashRing {
+    // Enough points that the connections get within a few percent of the same number of things
+    private static final int POINTS_PER_CONNECTION = 160;
+
+    private final long[] points;
+    private final int[] owners;
+
+    public ConsistentHashRing(int connections) {
+        if (connections <= 0) {
+            throw new IllegalArgumentException("There must be at least one connection");
+        }
+        TreeMap<Long, Integer> ring = new TreeMap<Long, Integer>();
+        for (int connection = 0; connection < connections; connection++) {
+            for (int point = 0; point < POINTS_PER_CONNECTION; point++) {
+                ring.put(hash("connection-" + connection + "#" + point), connection);
+            }
+        }
+        points = new long[ring.size()];
+        owners = new int[ring.size()];
+        int i = 0;
+        for (Map.Entry<Long, Integer> entry : ring.entrySet()) {
+            points[i] = entry.getKey();
+            owners[i] = entry.getValue();
+            i++;
+        }
+    }
+
+    public int connectionOf(String thingName) {
+        long hash = hash(thingName);
+        // The first point at or after the hash, wrapping around to the first point of the ring
+        int low = 0;
+        int high = points.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (points[middle] < hash) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return owners[low == points.length ? 0 : low];
+    }
+
+    // FNV-1a over the characters, finished with the MurmurHash3 mix so names that only differ in a trailing
+    // number are spread over the whole ring
+    static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
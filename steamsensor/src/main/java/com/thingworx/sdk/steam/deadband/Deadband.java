@@ -0,0 +1,82 @@
+package com.thingworx.sdk.steam.deadband;
+
+// Change-of-value filter state of one property of one thing.
+// A value is published when
+// - nothing was published yet, or
+// - the maximum publish interval has elapsed since the last publish, or
+// - the minimum publish interval has elapsed and the value left the deadband around the last published value.
+// Not thread safe, each thing owns its deadbands and only its scan uses them.
+public final class Deadband {
+    private final DeadbandSettings settings;
+    private boolean published = false;
+    private double lastValue;
+    private double lastSecondValue;
+    private long lastPublishTime;
+
+    public Deadband(DeadbandSettings settings) {
+        this.settings = settings;
+    }
+
+    public DeadbandSettings getSettings() {
+        return settings;
+    }
+
+    // Returns true and remembers the value when it should be published
+    public boolean accept(double value, long now) {
+        if (!shouldPublish(Math.abs(value - lastValue), Math.abs(lastValue), now)) {
+            return false;
+        }
+        markPublished(value, 0, now);
+        return true;
+    }
+
+    public boolean accept(boolean value, long now) {
+        return accept(value ? 1.0 : 0.0, now);
+    }
+
+    // Two dimensional variant, used for locations. The change is the larger of the changes of both coordinates.
+    public boolean accept(double first, double second, long now) {
+        double change = Math.max(Math.abs(first - lastValue), Math.abs(second - lastSecondValue));
+        double reference = Math.max(Math.abs(lastValue), Math.abs(lastSecondValue));
+        if (!shouldPublish(change, reference, now)) {
+            return false;
+        }
+        markPublished(first, second, now);
+        return true;
+    }
+
+    private boolean shouldPublish(double change, double reference, long now) {
+        if (!published || !settings.isEnabled()) {
+            return true;
+        }
+        long elapsed = now - lastPublishTime;
+        if (elapsed < settings.getMinInterval()) {
+            return false;
+        }
+        if (settings.getMaxInterval() > 0 && elapsed >= settings.getMaxInterval()) {
+            return true;
+        }
+        boolean hasThreshold = false;
+        if (settings.getAbsolute() > 0) {
+            hasThreshold = true;
+            if (change > settings.getAbsolute()) {
+                return true;
+            }
+        }
+        if (settings.getPercent() > 0) {
+            hasThreshold = true;
+            if (change > reference * settings.getPercent() / 100.0) {
+                return true;
+            }
+        }
+        // Without a threshold any change is published
+        return !hasThreshold && change != 0;
+    }
+
+    private void markPublished(double first, double second, long now) {
+        published = true;
+        lastValue = first;
+        lastSecondValue = second;
+        lastPublishTime = now;
+    }
+}
@@ -0,0 +1,105 @@
+package com.thingworx.sdk.steam.deadband;
+
+import com.thingworx.sdk.steam.config.GroupedSettings;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+// The deadband settings of all the properties of a Virtual Thing class.
+// The defaults come from the DeadbandDefinitions annotation of the class and can be overridden by a properties file
+// with one entry per setting, for example:
+//   Temperature.absolute=0.5
+//   Pressure.percent=2
+//   Pressure.maxInterval=60000
+//   Location.enabled=false
+// Properties without settings are always published.
+public final class DeadbandConfig {
+    private static final String ABSOLUTE = "absolute";
+    private static final String PERCENT = "percent";
+    private static final String MIN_INTERVAL = "minInterval";
+    private static final String MAX_INTERVAL = "maxInterval";
+    private static final String ENABLED = "enabled";
+
+    private final Map<String, DeadbandSettings> settings;
+
+    private DeadbandConfig(Map<String, DeadbandSettings> settings) {
+        this.settings = Collections.unmodifiableMap(settings);
+    }
+
+    public static DeadbandConfig fromAnnotations(Class<?> thingClass) {
+        Map<String, DeadbandSettings> settings = new HashMap<String, DeadbandSettings>();
+        DeadbandDefinitions definitions = thingClass.getAnnotation(DeadbandDefinitions.class);
+        if (definitions != null) {
+            for (DeadbandDefinition definition : definitions.deadbands()) {
+                settings.put(definition.name(), DeadbandSettings.fromDefinition(definition));
+            }
+        }
+        return new DeadbandConfig(settings);
+    }
+
+    public DeadbandConfig withOverrides(File file) throws IOException {
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+        return withOverrides(properties);
+    }
+
+    public DeadbandConfig withOverrides(Properties overrides) {
+        Map<String, Map<String, String>> byProperty = GroupedSettings.byName(overrides, "Deadband", "property");
+
+        Map<String, DeadbandSettings> merged = new HashMap<String, DeadbandSettings>(settings);
+        for (Map.Entry<String, Map<String, String>> entry : byProperty.entrySet()) {
+            DeadbandSettings current = getSettings(entry.getKey());
+            double absolute = current.getAbsolute();
+            double percent = current.getPercent();
+            long minInterval = current.getMinInterval();
+            long maxInterval = current.getMaxInterval();
+            // Giving any setting for a property enables its deadband unless it is explicitly disabled
+            boolean enabled = true;
+            for (Map.Entry<String, String> setting : entry.getValue().entrySet()) {
+                String name = setting.getKey();
+                String value = setting.getValue();
+                if (ABSOLUTE.equals(name)) {
+                    absolute = Double.parseDouble(value);
+                } else if (PERCENT.equals(name)) {
+                    percent = Double.parseDouble(value);
+                } else if (MIN_INTERVAL.equals(name)) {
+                    minInterval = Long.parseLong(value);
+                } else if (MAX_INTERVAL.equals(name)) {
+                    maxInterval = Long.parseLong(value);
+                } else if (ENABLED.equals(name)) {
+                    enabled = Boolean.parseBoolean(value);
+                } else {
+                    throw new IllegalArgumentException("Unknown deadband setting [" + entry.getKey() + "." + name + "]");
+                }
+            }
+            merged.put(entry.getKey(), new DeadbandSettings(absolute, percent, minInterval, maxInterval, enabled));
+        }
+        return new DeadbandConfig(merged);
+    }
+
+    public DeadbandSettings getSettings(String property) {
+        DeadbandSettings result = settings.get(property);
+        return result == null ? DeadbandSettings.ALWAYS_PUBLISH : result;
+    }
+
+    // Creates fresh deadband state for one thing
+    public Deadband newDeadband(String property) {
+        return new Deadband(getSettings(property));
+    }
+
+    @Override
+    public String toString() {
+        return settings.toString();
+    }
+}
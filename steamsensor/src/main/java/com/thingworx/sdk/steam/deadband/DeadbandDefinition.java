@@ -0,0 +1,26 @@
+package com.thingworx.sdk.steam.deadband;
+
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+// Change-of-value filter for one property of a Virtual Thing, see Deadband.
+// A threshold of zero means any change is published. An interval of zero means no limit.
+@Retention(RetentionPolicy.RUNTIME)
+@Target({})
+public @interface DeadbandDefinition {
+    // Name of the property, as in its ThingworxPropertyDefinition
+    String name();
+
+    // Publish when the value moved by more than this amount since the last published value
+    double absolute() default 0;
+
+    // Publish when the value moved by more than this percentage of the last published value
+    double percent() default 0;
+
+    // Never publish more often than this, in milliseconds
+    long minInterval() default 0;
+
+    // Publish at least this often even if the value stays inside the deadband, in milliseconds
+    long maxInterval() default 0;
+}
@@ -0,0 +1,13 @@
+package com.thingworx.sdk.steam.deadband;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+// Declares the deadbands of the properties of a Virtual Thing class, next to its ThingworxPropertyDefinitions
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface DeadbandDefinitions {
+    DeadbandDefinition[] deadbands();
+}
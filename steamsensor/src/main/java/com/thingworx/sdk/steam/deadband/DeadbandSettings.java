@@ -0,0 +1,58 @@
+package com.thingworx.sdk.steam.deadband;
+
+// Immutable deadband configuration of one property
+public final class DeadbandSettings {
+    public static final DeadbandSettings ALWAYS_PUBLISH = new DeadbandSettings(0, 0, 0, 0, false);
+
+    private final double absolute;
+    private final double percent;
+    private final long minInterval;
+    private final long maxInterval;
+    private final boolean enabled;
+
+    public DeadbandSettings(double absolute, double percent, long minInterval, long maxInterval, boolean enabled) {
+        if (absolute < 0 || percent < 0 || minInterval < 0 || maxInterval < 0) {
+            throw new IllegalArgumentException("Deadband thresholds and intervals cannot be negative");
+        }
+        if (maxInterval > 0 && maxInterval < minInterval) {
+            throw new IllegalArgumentException("Deadband maxInterval cannot be smaller than minInterval");
+        }
+        this.absolute = absolute;
+        this.percent = percent;
+        this.minInterval = minInterval;
+        this.maxInterval = maxInterval;
+        this.enabled = enabled;
+    }
+
+    public static DeadbandSettings fromDefinition(DeadbandDefinition definition) {
+        return new DeadbandSettings(definition.absolute(), definition.percent(), definition.minInterval(),
+                definition.maxInterval(), true);
+    }
+
+    public double getAbsolute() {
+        return absolute;
+    }
+
+    public double getPercent() {
+        return percent;
+    }
+
+    public long getMinInterval() {
+        return minInterval;
+    }
+
+    public long getMaxInterval() {
+        return maxInterval;
+    }
+
+    // A disabled deadband publishes every value, as if there were no filter
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public String toString() {
+        return "absolute=" + absolute + ", percent=" + percent + ", minInterval=" + minInterval
+                + ", maxInterval=" + maxInterval + ", enabled=" + enabled;
+    }
+}
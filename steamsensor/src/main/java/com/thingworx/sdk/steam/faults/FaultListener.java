@@ -0,0 +1,10 @@
+package com.thingworx.sdk.steam.faults;
+
+// Told about the fault transitions of one sensor. Called on the threads of the FaultRuleEngine.
+public interface FaultListener {
+    // A rule became active, value and limit are what it compared
+    void faultRaised(int rule, double value, double limit, long time);
+
+    // The sensor went into fault because one of the rules became active, or out of it because none is left
+    void faultStatusChanged(boolean faulted);
+}
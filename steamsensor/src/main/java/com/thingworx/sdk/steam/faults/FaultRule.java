@@ -0,0 +1,57 @@
+package com.thingworx.sdk.steam.faults;
+
+// A condition on one reading column that puts a sensor into fault while it holds.
+// A rule is evaluated over a slice of the fleet at a time, in a plain loop over primitive arrays without calls or
+// allocation, so the JIT can unroll it and use vector instructions where the platform has them. The rule itself
+// is only a definition, the per-sensor results live in a State owned by the engine.
+public abstract class FaultRule {
+    private final String name;
+    protected final int column;
+
+    protected FaultRule(String name, int column) {
+        this.name = name;
+        this.column = column;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getColumn() {
+        return column;
+    }
+
+    // Sets state.active for the sensors from up to to. state.was holds the result of the previous evaluation.
+    public abstract void evaluate(FleetColumns columns, State state, int from, int to);
+
+    // The value the rule compared for a sensor, reported with the fault: the highest reading since the previous
+    // evaluation
+    public double valueOf(FleetColumns columns, State state, int sensor) {
+        return columns.highs(column)[sensor];
+    }
+
+    public abstract double limitOf(FleetColumns columns, int sensor);
+
+    // The message of the SteamSensorFault event
+    public String describe(double value, double limit) {
+        return FleetColumns.nameOf(column) + " at " + value + " was above limit of " + limit;
+    }
+
+    // The results of a rule for every sensor of the fleet
+    public static final class State {
+        final boolean[] was;
+        final boolean[] active;
+        // Scratch columns for rules that keep history of their own
+        final double[] lastValue;
+        final long[] lastTime;
+        final double[] observed;
+
+        State(int capacity) {
+            was = new boolean[capacity];
+            active = new boolean[capacity];
+            lastValue = new double[capacity];
+            lastTime = new long[capacity];
+            observed = new double[capacity];
+        }
+    }
+}
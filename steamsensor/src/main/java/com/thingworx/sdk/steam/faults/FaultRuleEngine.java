@@ -0,0 +1,206 @@
+package com.thingworx.sdk.steam.faults;
+
+import com.thingworx.sdk.steam.metrics.AgentMetrics;
+import com.thingworx.sdk.steam.metrics.Gauge;
+import com.thingworx.sdk.steam.scan.ScanWorkerPools;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Evaluates the fault rules of the whole fleet at a fixed rate, apart from the scans.
+// The readings are kept in FleetColumns and every rule runs as one loop over a slice of them. The columns latch the
+// highest and lowest reading between two evaluations, so a reading is evaluated even when it only lasted one scan. Large fleets are split
+// into slices that are evaluated in parallel on a fork/join pool. After the rules of a slice ran, the results are
+// compared with the previous evaluation and only the sensors whose result changed hear about it: a rule that
+// became active raises a SteamSensorFault, and the FaultStatus follows whether any rule is active.
+public class FaultRuleEngine {
+    private static final Logger LOG = LoggerFactory.getLogger(FaultRuleEngine.class);
+    // Slices of up to this many sensors are evaluated on one thread
+    private static final int SLICE_SIZE = 4096;
+
+    private final FleetColumns columns;
+    private final FaultRule[] rules;
+    private final FaultRule.State[] states;
+    private final FaultListener[] listeners;
+    private final boolean[] faulted;
+    private final ForkJoinPool pool;
+    private final ScheduledExecutorService ticker;
+    private final AtomicLong transitionCount = new AtomicLong();
+    private volatile long lastEvaluationMicros = 0;
+
+    public FaultRuleEngine(int capacity, List<FaultRule> rules, int threads) {
+        this.columns = new FleetColumns(capacity);
+        this.rules = rules.toArray(new FaultRule[0]);
+        this.states = new FaultRule.State[this.rules.length];
+        for (int rule = 0; rule < states.length; rule++) {
+            states[rule] = new FaultRule.State(capacity);
+        }
+        this.listeners = new FaultListener[capacity];
+        this.faulted = new boolean[capacity];
+        this.pool = new ForkJoinPool(Math.max(1, threads));
+        this.ticker = Executors.newSingleThreadScheduledExecutor(ScanWorkerPools.namedDaemonThreads("fault-rules"));
+    }
+
+    // Gives the sensor its slot in the columns. All sensors are registered before the engine is started.
+    public synchronized int register(FaultListener listener) {
+        int slot = columns.add();
+        listeners[slot] = listener;
+        return slot;
+    }
+
+    public FleetColumns getColumns() {
+        return columns;
+    }
+
+    public FaultRule getRule(int rule) {
+        return rules[rule];
+    }
+
+    public int getRuleCount() {
+        return rules.length;
+    }
+
+    public void start(long periodMillis) {
+        LOG.info("Evaluating {} fault rules every {} ms on {} threads.", rules.length, periodMillis,
+                pool.getParallelism());
+        ticker.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    evaluate();
+                } catch (Throwable t) {
+                    // An exception escaping a scheduled task would cancel all following evaluations
+                    LOG.error("Fault rule evaluation failed", t);
+                }
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void shutdown(long timeoutMillis) throws InterruptedException {
+        ticker.shutdownNow();
+        ticker.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+        pool.shutdown();
+        if (!pool.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+            LOG.warn("Fault rule workers did not finish within {} ms.", timeoutMillis);
+            pool.shutdownNow();
+        }
+    }
+
+    // Evaluates all rules for all registered sensors once
+    public void evaluate() {
+        int size = columns.size();
+        if (size == 0 || rules.length == 0) {
+            return;
+        }
+        long start = System.nanoTime();
+        pool.invoke(new Slice(0, size));
+        lastEvaluationMicros = (System.nanoTime() - start) / 1000;
+    }
+
+    // The rules active for the sensor in slot, one bit per rule for the first 64 rules
+    public long getActiveRules(int slot) {
+        long mask = 0;
+        for (int rule = 0; rule < Math.min(64, rules.length); rule++) {
+            if (states[rule].was[slot]) {
+                mask |= 1L << rule;
+            }
+        }
+        return mask;
+    }
+
+    // Restores the rules that were active for the sensor in slot before a restart, so they are not raised again
+    // while they stay active. Called before the engine is started.
+    public void restoreActiveRules(int slot, long mask) {
+        boolean any = false;
+        for (int rule = 0; rule < Math.min(64, rules.length); rule++) {
+            boolean active = (mask & (1L << rule)) != 0;
+            states[rule].was[slot] = active;
+            states[rule].active[slot] = active;
+            any |= active;
+        }
+        faulted[slot] = any;
+    }
+
+    public long getTransitionCount() {
+        return transitionCount.get();
+    }
+
+    public long getLastEvaluationMicros() {
+        return lastEvaluationMicros;
+    }
+
+    public void registerGauges(AgentMetrics metrics) {
+        metrics.registerGauge("FaultEvaluationMicros", new Gauge() {
+            @Override
+            public long getValue() {
+                return lastEvaluationMicros;
+            }
+        });
+        metrics.registerGauge("FaultTransitions", new Gauge() {
+            @Override
+            public long getValue() {
+                return transitionCount.get();
+            }
+        });
+    }
+
+    private void evaluateSlice(int from, int to) {
+        columns.take(from, to);
+        for (int rule = 0; rule < rules.length; rule++) {
+            rules[rule].evaluate(columns, states[rule], from, to);
+        }
+        long transitions = 0;
+        for (int sensor = from; sensor < to; sensor++) {
+            boolean any = false;
+            for (int rule = 0; rule < rules.length; rule++) {
+                FaultRule.State state = states[rule];
+                boolean active = state.active[sensor];
+                any |= active;
+                if (active != state.was[sensor]) {
+                    state.was[sensor] = active;
+                    transitions++;
+                    if (active) {
+                        FaultRule faultRule = rules[rule];
+                        listeners[sensor].faultRaised(rule, faultRule.valueOf(columns, state, sensor),
+                                faultRule.limitOf(columns, sensor), columns.times(faultRule.getColumn())[sensor]);
+                    }
+                }
+            }
+            if (any != faulted[sensor]) {
+                faulted[sensor] = any;
+                listeners[sensor].faultStatusChanged(any);
+            }
+        }
+        if (transitions > 0) {
+            transitionCount.addAndGet(transitions);
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private final class Slice extends RecursiveAction {
+        private final int from;
+        private final int to;
+
+        private Slice(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= SLICE_SIZE) {
+                evaluateSlice(from, to);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new Slice(from, middle), new Slice(middle, to));
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.thingworx.sdk.steam.faults;
+
+import com.thingworx.sdk.steam.config.GroupedSettings;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+// Builds the fault rules of the sensors. Without a file there is one rule, the Temperature above the
+// TemperatureLimit written from the platform. A properties file replaces it with rules named by the part of the
+// keys before the dot, for example:
+//   HighTemperature.type=threshold
+//   HighTemperature.reading=Temperature
+//   HighTemperature.limit=TemperatureLimit
+//   PressureSpike.type=rate
+//   PressureSpike.reading=Pressure
+//   PressureSpike.maxRate=2.5
+//   HighPressure.type=hysteresis
+//   HighPressure.reading=Pressure
+//   HighPressure.raise=22.5
+//   HighPressure.clear=21
+// The limit of a threshold rule is a number or the name of another reading. The rules are ordered by name.
+public final class FaultRules {
+    private static final String TYPE = "type";
+    private static final String READING = "reading";
+    private static final String LIMIT = "limit";
+    private static final String MAX_RATE = "maxRate";
+    private static final String RAISE = "raise";
+    private static final String CLEAR = "clear";
+
+    private FaultRules() {
+    }
+
+    public static List<FaultRule> defaults() {
+        List<FaultRule> rules = new ArrayList<FaultRule>();
+        rules.add(new ThresholdRule("HighTemperature", FleetColumns.TEMPERATURE, FleetColumns.TEMPERATURE_LIMIT));
+        return rules;
+    }
+
+    public static List<FaultRule> fromFile(File file) throws IOException {
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+        return fromProperties(properties);
+    }
+
+    public static List<FaultRule> fromProperties(Properties properties) {
+        Map<String, Map<String, String>> byRule = GroupedSettings.byName(properties, "Fault rule", "rule");
+        List<FaultRule> rules = new ArrayList<FaultRule>();
+        for (Map.Entry<String, Map<String, String>> entry : byRule.entrySet()) {
+            rules.add(createRule(entry.getKey(), entry.getValue()));
+        }
+        return rules;
+    }
+
+    private static FaultRule createRule(String name, Map<String, String> settings) {
+        for (String setting : settings.keySet()) {
+            if (!TYPE.equals(setting) && !READING.equals(setting) && !LIMIT.equals(setting)
+                    && !MAX_RATE.equals(setting) && !RAISE.equals(setting) && !CLEAR.equals(setting)) {
+                throw new IllegalArgumentException("Unknown fault rule setting [" + name + "." + setting + "]");
+            }
+        }
+        String type = required(name, settings, TYPE);
+        int column = FleetColumns.columnOf(required(name, settings, READING));
+        FaultRule rule;
+        if ("threshold".equals(type)) {
+            String limit = required(name, settings, LIMIT);
+            rule = isNumber(limit) ? new ThresholdRule(name, column, Double.parseDouble(limit))
+                    : new ThresholdRule(name, column, FleetColumns.columnOf(limit));
+        } else if ("rate".equals(type)) {
+            rule = new RateOfChangeRule(name, column, Double.parseDouble(required(name, settings, MAX_RATE)));
+        } else if ("hysteresis".equals(type)) {
+            rule = new HysteresisRule(name, column, Double.parseDouble(required(name, settings, RAISE)),
+                    Double.parseDouble(required(name, settings, CLEAR)));
+        } else {
+            throw new IllegalArgumentException("Unknown type [" + type + "] of fault rule [" + name
+                    + "], expected threshold, rate or hysteresis");
+        }
+        return rule;
+    }
+
+    private static String required(String rule, Map<String, String> settings, String setting) {
+        String value = settings.get(setting);
+        if (value == null || value.isEmpty()) {
+            throw new IllegalArgumentException("Fault rule [" + rule + "] has no " + setting);
+        }
+        return value;
+    }
+
+    private static boolean isNumber(String value) {
+        try {
+            Double.parseDouble(value);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+}
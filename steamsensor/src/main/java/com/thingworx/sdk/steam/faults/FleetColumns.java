@@ -0,0 +1,149 @@
+package com.thingworx.sdk.steam.faults;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// The current readings of all the sensors of the agent as structure-of-arrays columns, one primitive array per
+// reading indexed by the slot of the sensor. The scans write their readings here and the FaultRuleEngine evaluates
+// its rules over whole columns at once.
+// The scans write into atomic arrays, the doubles stored as their bits, so a reading is never seen half written.
+// Besides the latest reading every column latches the highest and lowest reading since the last evaluation, so a
+// reading that only lasted one scan is seen even when the next scan overwrote it before the rules ran. An
+// evaluation takes the readings of its slice into plain arrays first and runs the rules over those.
+public final class FleetColumns {
+    public static final int TEMPERATURE = 0;
+    public static final int PRESSURE = 1;
+    public static final int TEMPERATURE_LIMIT = 2;
+    private static final String[] NAMES = {"Temperature", "Pressure", "TemperatureLimit"};
+    // The latched highest and lowest reading of a window without readings
+    private static final long NO_HIGH = Double.doubleToRawLongBits(Double.NEGATIVE_INFINITY);
+    private static final long NO_LOW = Double.doubleToRawLongBits(Double.POSITIVE_INFINITY);
+
+    // Written by the scans
+    private final AtomicLongArray[] latest;
+    private final AtomicLongArray[] highest;
+    private final AtomicLongArray[] lowest;
+    // Time of the last reading of each column, 0 before the first one
+    private final AtomicLongArray[] written;
+    // Taken for the evaluation, only touched by the thread evaluating the slice of a sensor
+    private final double[][] values;
+    private final double[][] highs;
+    private final double[][] lows;
+    private final long[][] times;
+    private final AtomicInteger size = new AtomicInteger();
+
+    public FleetColumns(int capacity) {
+        latest = new AtomicLongArray[NAMES.length];
+        highest = new AtomicLongArray[NAMES.length];
+        lowest = new AtomicLongArray[NAMES.length];
+        written = new AtomicLongArray[NAMES.length];
+        for (int column = 0; column < NAMES.length; column++) {
+            latest[column] = new AtomicLongArray(capacity);
+            highest[column] = new AtomicLongArray(capacity);
+            lowest[column] = new AtomicLongArray(capacity);
+            written[column] = new AtomicLongArray(capacity);
+            for (int slot = 0; slot < capacity; slot++) {
+                highest[column].set(slot, NO_HIGH);
+                lowest[column].set(slot, NO_LOW);
+            }
+        }
+        values = new double[NAMES.length][capacity];
+        highs = new double[NAMES.length][capacity];
+        lows = new double[NAMES.length][capacity];
+        times = new long[NAMES.length][capacity];
+    }
+
+    // Reserves the slot of a new sensor
+    public int add() {
+        int slot = size.getAndIncrement();
+        if (slot >= getCapacity()) {
+            size.decrementAndGet();
+            throw new IllegalStateException("The fleet columns are full with " + getCapacity() + " sensors");
+        }
+        return slot;
+    }
+
+    // Called by the scan of the sensor in slot. The time is written last, so an evaluation that sees it sees the
+    // reading as well.
+    public void set(int column, int slot, long time, double value) {
+        long bits = Double.doubleToRawLongBits(value);
+        latest[column].lazySet(slot, bits);
+        // The evaluation resets the latched readings concurrently, so they are only replaced if they did not change
+        AtomicLongArray high = highest[column];
+        long current = high.get(slot);
+        while (value > Double.longBitsToDouble(current) && !high.compareAndSet(slot, current, bits)) {
+            current = high.get(slot);
+        }
+        AtomicLongArray low = lowest[column];
+        current = low.get(slot);
+        while (value < Double.longBitsToDouble(current) && !low.compareAndSet(slot, current, bits)) {
+            current = low.get(slot);
+        }
+        written[column].lazySet(slot, time);
+    }
+
+    // Takes the readings of the sensors from up to to for an evaluation and starts their next window. The highest
+    // and lowest reading include the latest one, so they are the latest reading of a sensor that was not scanned
+    // since the last evaluation.
+    void take(int from, int to) {
+        for (int column = 0; column < NAMES.length; column++) {
+            AtomicLongArray latestColumn = latest[column];
+            AtomicLongArray highColumn = highest[column];
+            AtomicLongArray lowColumn = lowest[column];
+            AtomicLongArray writtenColumn = written[column];
+            double[] valueColumn = values[column];
+            double[] highsColumn = highs[column];
+            double[] lowsColumn = lows[column];
+            long[] timeColumn = times[column];
+            for (int i = from; i < to; i++) {
+                timeColumn[i] = writtenColumn.get(i);
+                double high = Double.longBitsToDouble(highColumn.getAndSet(i, NO_HIGH));
+                double low = Double.longBitsToDouble(lowColumn.getAndSet(i, NO_LOW));
+                double value = Double.longBitsToDouble(latestColumn.get(i));
+                valueColumn[i] = value;
+                highsColumn[i] = Math.max(high, value);
+                lowsColumn[i] = Math.min(low, value);
+            }
+        }
+    }
+
+    // The latest readings taken for the evaluation
+    public double[] values(int column) {
+        return values[column];
+    }
+
+    // The highest readings since the previous evaluation
+    public double[] highs(int column) {
+        return highs[column];
+    }
+
+    // The lowest readings since the previous evaluation
+    public double[] lows(int column) {
+        return lows[column];
+    }
+
+    public long[] times(int column) {
+        return times[column];
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    public int getCapacity() {
+        return values[0].length;
+    }
+
+    public static int columnOf(String name) {
+        for (int column = 0; column < NAMES.length; column++) {
+            if (NAMES[column].equals(name)) {
+                return column;
+            }
+        }
+        throw new IllegalArgumentException("Unknown reading [" + name + "], expected one of Temperature, Pressure, TemperatureLimit");
+    }
+
+    public static String nameOf(int column) {
+        return NAMES[column];
+    }
+}
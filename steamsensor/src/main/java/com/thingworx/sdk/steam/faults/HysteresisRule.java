@@ -0,0 +1,39 @@
+package com.thingworx.sdk.steam.faults;
+
+// Becomes active when the reading rises above raiseAbove and stays active until it falls to clearBelow, so a
+// reading that hovers around one limit does not raise a fault on every other scan. A reading above raiseAbove since
+// the previous evaluation raises it, one at or below clearBelow clears it unless the latest reading is above
+// raiseAbove again.
+public final class HysteresisRule extends FaultRule {
+    private final double raiseAbove;
+    private final double clearBelow;
+
+    public HysteresisRule(String name, int column, double raiseAbove, double clearBelow) {
+        super(name, column);
+        if (clearBelow > raiseAbove) {
+            throw new IllegalArgumentException("Fault rule [" + name + "] must clear at or below the value it raises at");
+        }
+        this.raiseAbove = raiseAbove;
+        this.clearBelow = clearBelow;
+    }
+
+    @Override
+    public void evaluate(FleetColumns columns, State state, int from, int to) {
+        double[] values = columns.values(column);
+        double[] highs = columns.highs(column);
+        double[] lows = columns.lows(column);
+        long[] times = columns.times(column);
+        boolean[] was = state.was;
+        boolean[] active = state.active;
+        double raise = raiseAbove;
+        double clear = clearBelow;
+        for (int i = from; i < to; i++) {
+            active[i] = times[i] != 0 & (was[i] ? lows[i] > clear | values[i] > raise : highs[i] > raise);
+        }
+    }
+
+    @Override
+    public double limitOf(FleetColumns columns, int sensor) {
+        return raiseAbove;
+    }
+}
@@ -0,0 +1,61 @@
+package com.thingworx.sdk.steam.faults;
+
+// Active while the reading changes faster than maxRatePerSecond, in either direction, between two evaluations. The
+// change is the largest one from the reading of the previous evaluation to the highest or lowest reading since, so
+// a spike that is gone again by the evaluation counts as well. Sensors without a new reading since the last
+// evaluation keep their result.
+public final class RateOfChangeRule extends FaultRule {
+    private final double maxRatePerSecond;
+
+    public RateOfChangeRule(String name, int column, double maxRatePerSecond) {
+        super(name, column);
+        if (maxRatePerSecond <= 0) {
+            throw new IllegalArgumentException("Fault rule [" + name + "] must have a positive maxRate");
+        }
+        this.maxRatePerSecond = maxRatePerSecond;
+    }
+
+    @Override
+    public void evaluate(FleetColumns columns, State state, int from, int to) {
+        double[] values = columns.values(column);
+        double[] highs = columns.highs(column);
+        double[] lows = columns.lows(column);
+        long[] times = columns.times(column);
+        boolean[] was = state.was;
+        boolean[] active = state.active;
+        double[] lastValue = state.lastValue;
+        long[] lastTime = state.lastTime;
+        double[] observed = state.observed;
+        double maxRate = maxRatePerSecond;
+        for (int i = from; i < to; i++) {
+            long time = times[i];
+            long elapsed = time - lastTime[i];
+            if (elapsed > 0) {
+                double last = lastValue[i];
+                double rate = Math.max(Math.abs(highs[i] - last), Math.abs(lows[i] - last)) * 1000.0 / elapsed;
+                // The first reading has nothing to compare with
+                active[i] = lastTime[i] != 0 & rate > maxRate;
+                observed[i] = rate;
+                lastValue[i] = values[i];
+                lastTime[i] = time;
+            } else {
+                active[i] = was[i];
+            }
+        }
+    }
+
+    @Override
+    public double valueOf(FleetColumns columns, State state, int sensor) {
+        return state.observed[sensor];
+    }
+
+    @Override
+    public double limitOf(FleetColumns columns, int sensor) {
+        return maxRatePerSecond;
+    }
+
+    @Override
+    public String describe(double value, double limit) {
+        return FleetColumns.nameOf(column) + " changed by " + value + " per second, above limit of " + limit;
+    }
+}
@@ -0,0 +1,45 @@
+package com.thingworx.sdk.steam.faults;
+
+// Active while the reading is above a limit, or was since the previous evaluation. The limit is either a constant or
+// the latest reading of another column, like the TemperatureLimit written from the platform. A limit column of zero
+// or below means no limit is set.
+public final class ThresholdRule extends FaultRule {
+    private final int limitColumn;
+    private final double limit;
+
+    public ThresholdRule(String name, int column, int limitColumn) {
+        super(name, column);
+        this.limitColumn = limitColumn;
+        this.limit = 0;
+    }
+
+    public ThresholdRule(String name, int column, double limit) {
+        super(name, column);
+        this.limitColumn = -1;
+        this.limit = limit;
+    }
+
+    @Override
+    public void evaluate(FleetColumns columns, State state, int from, int to) {
+        double[] values = columns.highs(column);
+        long[] times = columns.times(column);
+        boolean[] active = state.active;
+        if (limitColumn >= 0) {
+            double[] limits = columns.values(limitColumn);
+            for (int i = from; i < to; i++) {
+                double sensorLimit = limits[i];
+                active[i] = times[i] != 0 & sensorLimit > 0 & values[i] > sensorLimit;
+            }
+        } else {
+            double fixedLimit = limit;
+            for (int i = from; i < to; i++) {
+                active[i] = times[i] != 0 & values[i] > fixedLimit;
+            }
+        }
+    }
+
+    @Override
+    public double limitOf(FleetColumns columns, int sensor) {
+        return limitColumn >= 0 ? columns.values(limitColumn)[sensor] : limit;
+    }
+}
@@ -0,0 +1,267 @@
+package com.thingworx.sdk.steam.fleet;
+
+import com.thingworx.metadata.DataShapeDefinition;
+import com.thingworx.metadata.FieldDefinition;
+import com.thingworx.metadata.collections.FieldDefinitionCollection;
+import com.thingworx.sdk.steam.metrics.AgentMetrics;
+import com.thingworx.sdk.steam.metrics.Gauge;
+import com.thingworx.types.BaseTypes;
+import com.thingworx.types.InfoTable;
+import com.thingworx.types.collections.ValueCollection;
+import com.thingworx.types.primitives.BooleanPrimitive;
+import com.thingworx.types.primitives.DatetimePrimitive;
+import com.thingworx.types.primitives.LocationPrimitive;
+import com.thingworx.types.primitives.StringPrimitive;
+import org.joda.time.DateTime;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// The current values of all the sensors of the agent, for the GetFleetSnapshot service of the gateway.
+// Every sensor has a row of its own, which its scan overwrites at the end of every scan, so the view is always up
+// to date without being built. A row is a version and the values of one sensor in a flat array of longs, the
+// doubles stored as their bits. The scan of a sensor is its only writer: it makes the version odd, writes the values
+// and makes the version even again. A snapshot reads a row without locking and reads it again when the version
+// was odd or changed while it was read, so it never mixes the values of two scans and never holds up a scan.
+public final class FleetView {
+    public static final String DATA_SHAPE = "SteamSensorFleetSnapshot";
+    public static final String SENSOR_NAME_FIELD = "SensorName";
+    public static final String TIME_FIELD = "ScanTime";
+    public static final String TEMPERATURE_FIELD = "Temperature";
+    public static final String PRESSURE_FIELD = "Pressure";
+    public static final String TOTAL_FLOW_FIELD = "TotalFlow";
+    public static final String TEMPERATURE_LIMIT_FIELD = "TemperatureLimit";
+    public static final String FAULT_STATUS_FIELD = "FaultStatus";
+    public static final String INLET_VALVE_FIELD = "InletValve";
+    public static final String LOCATION_FIELD = "Location";
+
+    // The value fields in the order of the data shape, the SensorName comes first in every snapshot
+    private static final String[] FIELDS = {TIME_FIELD, TEMPERATURE_FIELD, PRESSURE_FIELD, TOTAL_FLOW_FIELD,
+            TEMPERATURE_LIMIT_FIELD, FAULT_STATUS_FIELD, INLET_VALVE_FIELD, LOCATION_FIELD};
+    private static final BaseTypes[] FIELD_TYPES = {BaseTypes.DATETIME, BaseTypes.NUMBER, BaseTypes.NUMBER,
+            BaseTypes.NUMBER, BaseTypes.NUMBER, BaseTypes.BOOLEAN, BaseTypes.BOOLEAN, BaseTypes.LOCATION};
+
+    // The longs of a row
+    private static final int VERSION = 0;
+    private static final int TIME = 1;
+    private static final int TEMPERATURE = 2;
+    private static final int PRESSURE = 3;
+    private static final int TOTAL_FLOW = 4;
+    private static final int TEMPERATURE_LIMIT = 5;
+    private static final int LATITUDE = 6;
+    private static final int LONGITUDE = 7;
+    private static final int FLAGS = 8;
+    private static final int ROW = 9;
+    private static final long FAULT_STATUS_FLAG = 1;
+    private static final long INLET_VALVE_FLAG = 2;
+    // Reads of a row that is being written are retried this often before the snapshot waits for the writer
+    private static final int SPIN_READS = 64;
+
+    private final AtomicLongArray rows;
+    private final AtomicReferenceArray<String> names;
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong snapshots = new AtomicLong();
+
+    public FleetView(int capacity) {
+        rows = new AtomicLongArray(capacity * ROW);
+        names = new AtomicReferenceArray<String>(capacity);
+    }
+
+    // Reserves the row of a new sensor, which stays out of the snapshots until its first scan
+    public int register(String name) {
+        int slot = size.getAndIncrement();
+        if (slot >= getCapacity()) {
+            size.decrementAndGet();
+            throw new IllegalStateException("The fleet view is full with " + getCapacity() + " sensors");
+        }
+        names.set(slot, name);
+        return slot;
+    }
+
+    // Called by the scan of the sensor in slot, its only writer. The values are published with release stores
+    // between the two versions, so the scan never waits and does not allocate.
+    public void update(int slot, long time, double temperature, double pressure, double totalFlow,
+                       double temperatureLimit, boolean faultStatus, boolean inletValve, double latitude,
+                       double longitude) {
+        int row = slot * ROW;
+        long version = rows.get(row + VERSION);
+        rows.set(row + VERSION, version + 1);
+        rows.lazySet(row + TIME, time);
+        rows.lazySet(row + TEMPERATURE, Double.doubleToRawLongBits(temperature));
+        rows.lazySet(row + PRESSURE, Double.doubleToRawLongBits(pressure));
+        rows.lazySet(row + TOTAL_FLOW, Double.doubleToRawLongBits(totalFlow));
+        rows.lazySet(row + TEMPERATURE_LIMIT, Double.doubleToRawLongBits(temperatureLimit));
+        rows.lazySet(row + LATITUDE, Double.doubleToRawLongBits(latitude));
+        rows.lazySet(row + LONGITUDE, Double.doubleToRawLongBits(longitude));
+        rows.lazySet(row + FLAGS, (faultStatus ? FAULT_STATUS_FLAG : 0) | (inletValve ? INLET_VALVE_FLAG : 0));
+        rows.lazySet(row + VERSION, version + 2);
+    }
+
+    // The data shape of a snapshot with all the fields
+    public static FieldDefinitionCollection dataShapeFields() {
+        return fieldsOf(FIELDS);
+    }
+
+    // The sensors whose name starts with namePrefix, or all of them when it is empty, with only the faulted ones
+    // when faultedOnly is set. fields is a comma separated list of the fields to return, all of them when it is
+    // empty, the SensorName is always returned. Sensors that were not scanned yet are left out.
+    public InfoTable snapshot(String fields, String namePrefix, boolean faultedOnly) throws Exception {
+        boolean[] selected = selectFields(fields);
+        List<String> selectedNames = new ArrayList<String>(FIELDS.length);
+        for (int field = 0; field < FIELDS.length; field++) {
+            if (selected[field]) {
+                selectedNames.add(FIELDS[field]);
+            }
+        }
+        InfoTable table = new InfoTable(new DataShapeDefinition(
+                fieldsOf(selectedNames.toArray(new String[selectedNames.size()]))));
+        snapshots.incrementAndGet();
+        long[] values = new long[ROW];
+        int count = size.get();
+        for (int slot = 0; slot < count; slot++) {
+            String name = names.get(slot);
+            if (name == null || (namePrefix != null && !name.startsWith(namePrefix))) {
+                continue;
+            }
+            readRow(slot, values);
+            if (values[TIME] == 0 || (faultedOnly && (values[FLAGS] & FAULT_STATUS_FLAG) == 0)) {
+                continue;
+            }
+            table.addRow(toRow(name, values, selected));
+        }
+        return table;
+    }
+
+    // Copies a consistent version of the row of slot into values
+    private void readRow(int slot, long[] values) {
+        int row = slot * ROW;
+        int reads = 0;
+        while (true) {
+            long version = rows.get(row + VERSION);
+            if ((version & 1) == 0) {
+                for (int i = TIME; i < ROW; i++) {
+                    values[i] = rows.get(row + i);
+                }
+                if (rows.get(row + VERSION) == version) {
+                    return;
+                }
+            }
+            // The scan writing the row is preempted, let it finish
+            if (++reads >= SPIN_READS) {
+                Thread.yield();
+            }
+        }
+    }
+
+    private static ValueCollection toRow(String name, long[] values, boolean[] selected) throws Exception {
+        ValueCollection row = new ValueCollection();
+        row.put(SENSOR_NAME_FIELD, new StringPrimitive(name));
+        for (int field = 0; field < FIELDS.length; field++) {
+            if (!selected[field]) {
+                continue;
+            }
+            String fieldName = FIELDS[field];
+            if (TIME_FIELD.equals(fieldName)) {
+                row.put(fieldName, new DatetimePrimitive(new DateTime(values[TIME])));
+            } else if (TEMPERATURE_FIELD.equals(fieldName)) {
+                row.SetNumberValue(fieldName, Double.longBitsToDouble(values[TEMPERATURE]));
+            } else if (PRESSURE_FIELD.equals(fieldName)) {
+                row.SetNumberValue(fieldName, Double.longBitsToDouble(values[PRESSURE]));
+            } else if (TOTAL_FLOW_FIELD.equals(fieldName)) {
+                row.SetNumberValue(fieldName, Double.longBitsToDouble(values[TOTAL_FLOW]));
+            } else if (TEMPERATURE_LIMIT_FIELD.equals(fieldName)) {
+                row.SetNumberValue(fieldName, Double.longBitsToDouble(values[TEMPERATURE_LIMIT]));
+            } else if (FAULT_STATUS_FIELD.equals(fieldName)) {
+                row.put(fieldName, new BooleanPrimitive((values[FLAGS] & FAULT_STATUS_FLAG) != 0));
+            } else if (INLET_VALVE_FIELD.equals(fieldName)) {
+                row.put(fieldName, new BooleanPrimitive((values[FLAGS] & INLET_VALVE_FLAG) != 0));
+            } else {
+                row.put(fieldName, new LocationPrimitive(Double.longBitsToDouble(values[LATITUDE]),
+                        Double.longBitsToDouble(values[LONGITUDE]), 0.0));
+            }
+        }
+        return row;
+    }
+
+    // Checks a comma separated list of fields for snapshot, the message names all the unknown ones
+    public static void checkFields(String fields) {
+        selectFields(fields);
+    }
+
+    private static boolean[] selectFields(String fields) {
+        boolean[] selected = new boolean[FIELDS.length];
+        if (fields == null || fields.trim().isEmpty()) {
+            Arrays.fill(selected, true);
+            return selected;
+        }
+        List<String> unknown = new ArrayList<String>();
+        for (String field : fields.split(",")) {
+            String name = field.trim();
+            if (name.isEmpty() || SENSOR_NAME_FIELD.equals(name)) {
+                continue;
+            }
+            int index = indexOf(name);
+            if (index < 0) {
+                unknown.add(name);
+            } else {
+                selected[index] = true;
+            }
+        }
+        if (!unknown.isEmpty()) {
+            StringBuilder expected = new StringBuilder(SENSOR_NAME_FIELD);
+            for (String field : FIELDS) {
+                expected.append(", ").append(field);
+            }
+            throw new IllegalArgumentException("Unknown snapshot field" + (unknown.size() > 1 ? "s " : " ") + unknown
+                    + ", the fields are a comma separated list of " + expected);
+        }
+        return selected;
+    }
+
+    // -1 for a name that is no field
+    private static int indexOf(String field) {
+        for (int i = 0; i < FIELDS.length; i++) {
+            if (FIELDS[i].equals(field)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static FieldDefinitionCollection fieldsOf(String[] fields) {
+        FieldDefinitionCollection definitions = new FieldDefinitionCollection();
+        definitions.addFieldDefinition(new FieldDefinition(SENSOR_NAME_FIELD, BaseTypes.STRING));
+        for (String field : fields) {
+            definitions.addFieldDefinition(new FieldDefinition(field, FIELD_TYPES[indexOf(field)]));
+        }
+        return definitions;
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    public int getCapacity() {
+        return names.length();
+    }
+
+    // Snapshots taken since the start
+    public long getSnapshotCount() {
+        return snapshots.get();
+    }
+
+    // FleetSnapshots, the snapshots taken since the start
+    public void registerGauges(AgentMetrics metrics) {
+        metrics.registerGauge("FleetSnapshots", new Gauge() {
+            @Override
+            public long getValue() {
+                return getSnapshotCount();
+            }
+        });
+    }
+}
@@ -0,0 +1,263 @@
+package com.thingworx.sdk.steam.flush;
+
+import com.thingworx.communications.client.ConnectedThingClient;
+import com.thingworx.communications.client.things.VirtualThing;
+import com.thingworx.sdk.steam.buffer.StoreAndForward;
+import com.thingworx.sdk.steam.metrics.AgentMetrics;
+import com.thingworx.sdk.steam.scan.OutboundRateMonitor;
+import com.thingworx.sdk.steam.scan.ScanWorkerPools;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Sends the pending property updates and events of many things on behalf of the scan threads.
+// A thing registers with the coordinator and only marks itself dirty at the end of its scan. The coordinator collects dirty things into batches of up
+// to batchSize things, and flushes each batch on one of its own flush threads. A batch is closed when the scan
+// scheduler reports that a shard finished its scan (see scanCompleted), so the things of one shard scan go out
+// together, or at the latest lingerMillis after its first thing became dirty, which defaults to the scan rate.
+// A thing that is marked dirty several times before it is flushed is only flushed once, with all the values queued
+// since its last flush, and the scans never wait on the push timeouts. The dirty flag of a thing keeps it in the
+// queue at most once, so the queue is allocated for all the registered things when the coordinator starts and
+// marking a thing dirty allocates nothing.
+// Things that implement StatePublisher move their scanned values into their properties here, on the flush thread.
+public class FlushCoordinator {
+    private static final Logger LOG = LoggerFactory.getLogger(FlushCoordinator.class);
+    private static final int MAX_SCAN_MARKERS = 64;
+    // Queued by scanCompleted to close the batch being collected, at most MAX_SCAN_MARKERS at a time
+    private final FlushRegistration endOfScan = new FlushRegistration(this, null);
+
+    private final int batchSize;
+    private final long lingerMillis;
+    private final int propertyTimeout;
+    private final int eventTimeout;
+    private final OutboundRateMonitor outboundRate;
+    private final List<FlushRegistration> registrations = new ArrayList<FlushRegistration>();
+    // Created by start(), with room for every registered thing and the scan markers
+    private volatile ArrayBlockingQueue<FlushRegistration> dirtyQueue;
+    private final AtomicInteger dirtyCount = new AtomicInteger();
+    private final AtomicInteger scanMarkers = new AtomicInteger();
+    private final ExecutorService flushers;
+    private final Semaphore batchesInFlight;
+    private final Thread collector;
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong roundTripCount = new AtomicLong();
+    private volatile boolean running = true;
+    // The store-and-forward of each client, none when the updates are not buffered
+    private final Map<ConnectedThingClient, StoreAndForward> storeAndForward =
+            new ConcurrentHashMap<ConnectedThingClient, StoreAndForward>();
+    private volatile AgentMetrics metrics = new AgentMetrics();
+
+    public FlushCoordinator(int batchSize, long lingerMillis, int flushThreads, int propertyTimeout,
+                            int eventTimeout, OutboundRateMonitor outboundRate) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be positive");
+        }
+        this.batchSize = batchSize;
+        this.lingerMillis = Math.max(0, lingerMillis);
+        this.propertyTimeout = propertyTimeout;
+        this.eventTimeout = eventTimeout;
+        this.outboundRate = outboundRate;
+        this.flushers = Executors.newFixedThreadPool(Math.max(1, flushThreads), ScanWorkerPools.namedDaemonThreads("flush-worker"));
+        // Never collect more batches than there are threads to send them, the rest stay dirty and keep coalescing
+        this.batchesInFlight = new Semaphore(Math.max(1, flushThreads));
+        this.collector = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                collect();
+            }
+        }, "flush-collector");
+        this.collector.setDaemon(true);
+    }
+
+    // Things register before the coordinator starts
+    public synchronized FlushRegistration register(VirtualThing thing) {
+        if (dirtyQueue != null) {
+            throw new IllegalStateException("Things must be registered before the flush coordinator starts");
+        }
+        FlushRegistration registration = new FlushRegistration(this, thing);
+        registrations.add(registration);
+        return registration;
+    }
+
+    public synchronized void start() {
+        ArrayBlockingQueue<FlushRegistration> queue =
+                new ArrayBlockingQueue<FlushRegistration>(registrations.size() + MAX_SCAN_MARKERS);
+        // Things marked dirty before the start are flushed first
+        for (FlushRegistration registration : registrations) {
+            if (registration.dirty.get()) {
+                queue.offer(registration);
+            }
+        }
+        dirtyQueue = queue;
+        LOG.info("Flushing in batches of up to {} things with a linger of {} ms.", batchSize, lingerMillis);
+        collector.start();
+    }
+
+    // While the client is disconnected the updates of the flushed things of that client go to its store-and-forward
+    // buffer instead of the platform
+    public void setStoreAndForward(ConnectedThingClient client, StoreAndForward storeAndForward) {
+        this.storeAndForward.put(client, storeAndForward);
+    }
+
+    // The push latencies and errors are recorded in these metrics
+    public void setAgentMetrics(AgentMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    // The queue always has room for a thing that was not dirty, it is in the queue at most once
+    void markDirty(FlushRegistration registration) {
+        if (registration.dirty.compareAndSet(false, true)) {
+            dirtyCount.incrementAndGet();
+            ArrayBlockingQueue<FlushRegistration> queue = dirtyQueue;
+            if (queue != null) {
+                queue.offer(registration);
+            }
+        }
+    }
+
+    // Called by the scan scheduler when a shard finished scanning its things, the things it marked dirty are flushed
+    // without waiting for the linger time. While the collector is behind on MAX_SCAN_MARKERS of them the batch
+    // closes with the linger time instead.
+    public void scanCompleted() {
+        ArrayBlockingQueue<FlushRegistration> queue = dirtyQueue;
+        if (queue == null) {
+            return;
+        }
+        if (scanMarkers.incrementAndGet() > MAX_SCAN_MARKERS || !queue.offer(endOfScan)) {
+            scanMarkers.decrementAndGet();
+        }
+    }
+
+    public void shutdown(long timeoutMillis) throws InterruptedException {
+        running = false;
+        collector.interrupt();
+        collector.join(timeoutMillis);
+        flushers.shutdown();
+        if (!flushers.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+            LOG.warn("Flush workers did not finish within {} ms.", timeoutMillis);
+            flushers.shutdownNow();
+        }
+    }
+
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    public long getRoundTripCount() {
+        return roundTripCount.get();
+    }
+
+    public int getDirtyCount() {
+        return dirtyCount.get();
+    }
+
+    private void collect() {
+        ArrayBlockingQueue<FlushRegistration> queue = dirtyQueue;
+        // The batch being collected, its things are off the queue already and go with the last flush when the
+        // collector is interrupted before handing it on
+        List<FlushRegistration> batch = null;
+        while (running) {
+            try {
+                FlushRegistration first = queue.take();
+                if (first == endOfScan) {
+                    scanMarkers.decrementAndGet();
+                    continue;
+                }
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+                batch = new ArrayList<FlushRegistration>(Math.min(batchSize, 1024));
+                batch.add(first);
+                while (batch.size() < batchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    FlushRegistration next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == endOfScan) {
+                        scanMarkers.decrementAndGet();
+                        break;
+                    }
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                batchesInFlight.acquire();
+                final List<FlushRegistration> collected = batch;
+                flushers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            flush(collected);
+                        } finally {
+                            batchesInFlight.release();
+                        }
+                    }
+                });
+                batch = null;
+            } catch (InterruptedException e) {
+                break;
+            } catch (Exception e) {
+                LOG.error("Flush collection failed", e);
+            }
+        }
+        // Send whatever is still dirty before going away, without the interrupt failing the pushes
+        Thread.interrupted();
+        List<FlushRegistration> remaining = batch != null ? batch : new ArrayList<FlushRegistration>();
+        queue.drainTo(remaining);
+        remaining.removeAll(Collections.singleton(endOfScan));
+        if (!remaining.isEmpty()) {
+            flush(remaining);
+        }
+    }
+
+    private void flush(List<FlushRegistration> batch) {
+        int roundTrips = 0;
+        AgentMetrics metrics = this.metrics;
+        for (FlushRegistration registration : batch) {
+            VirtualThing thing = registration.getThing();
+            // Cleared before sending, so values set while this thing is being flushed mark it dirty again
+            dirtyCount.decrementAndGet();
+            registration.dirty.set(false);
+            try {
+                if (thing instanceof StatePublisher) {
+                    ((StatePublisher) thing).publishState();
+                }
+                StoreAndForward buffer = storeAndForward.isEmpty() ? null : storeAndForward.get(thing.getClient());
+                if (buffer != null && buffer.shouldStore()) {
+                    buffer.store(thing);
+                    continue;
+                }
+                if (!thing.getPendingPropertyUpdates().isEmpty()) {
+                    long start = System.nanoTime();
+                    thing.updateSubscribedProperties(propertyTimeout);
+                    metrics.recordPropertyPush(start);
+                    roundTrips++;
+                }
+                if (!thing.getPendingEvents().isEmpty()) {
+                    long start = System.nanoTime();
+                    thing.updateSubscribedEvents(eventTimeout);
+                    metrics.getEventPushLatency().recordMicrosSince(start);
+                    roundTrips++;
+                }
+            } catch (Exception e) {
+                metrics.countPushError();
+                // The SDK puts the updates back in the queue of the thing, they will go with its next flush
+                LOG.warn("Could not flush updates of [{}] : {}", thing.getName(), e.getMessage());
+            }
+        }
+        batchCount.incrementAndGet();
+        roundTripCount.addAndGet(roundTrips);
+        if (outboundRate != null) {
+            outboundRate.record(roundTrips);
+        }
+    }
+}
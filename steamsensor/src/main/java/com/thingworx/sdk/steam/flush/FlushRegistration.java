@@ -0,0 +1,28 @@
+package com.thingworx.sdk.steam.flush;
+
+import com.thingworx.communications.client.things.VirtualThing;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// A thing registered with a FlushCoordinator. The thing marks itself dirty through it at the end of a scan. The
+// dirty flag is set until the thing is flushed, so a thing is only queued once however often it is marked dirty,
+// and marking it dirty allocates nothing.
+public final class FlushRegistration {
+    private final FlushCoordinator coordinator;
+    private final VirtualThing thing;
+    final AtomicBoolean dirty = new AtomicBoolean();
+
+    FlushRegistration(FlushCoordinator coordinator, VirtualThing thing) {
+        this.coordinator = coordinator;
+        this.thing = thing;
+    }
+
+    public VirtualThing getThing() {
+        return thing;
+    }
+
+    // Called by the thing at the end of its scan, its pending properties and events will be sent in a later batch
+    public void markDirty() {
+        coordinator.markDirty(this);
+    }
+}
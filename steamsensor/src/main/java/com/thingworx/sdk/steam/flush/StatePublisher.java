@@ -0,0 +1,7 @@
+package com.thingworx.sdk.steam.flush;
+
+// A thing that keeps its scanned values outside of the SDK properties and only moves them into the properties
+// and event queue when it is flushed
+public interface StatePublisher {
+    void publishState() throws Exception;
+}
@@ -0,0 +1,69 @@
+package com.thingworx.sdk.steam.history;
+
+// The result of a history query, points in primitive columns with the oldest first
+final class HistoryPoints {
+    private final int valuesPerPoint;
+    private final long[] times;
+    private final double[] values0;
+    private final double[] values1;
+    private int size = 0;
+
+    HistoryPoints(int valuesPerPoint, int capacity) {
+        this.valuesPerPoint = valuesPerPoint;
+        this.times = new long[capacity];
+        this.values0 = new double[capacity];
+        this.values1 = new double[valuesPerPoint > 1 ? capacity : 0];
+    }
+
+    void add(long time, double value0, double value1) {
+        times[size] = time;
+        values0[size] = value0;
+        if (valuesPerPoint > 1) {
+            values1[size] = value1;
+        }
+        size++;
+    }
+
+    int size() {
+        return size;
+    }
+
+    long time(int index) {
+        return times[index];
+    }
+
+    double value0(int index) {
+        return values0[index];
+    }
+
+    double value1(int index) {
+        return values1[index];
+    }
+
+    // Divides the time covered into maxPoints equal intervals and returns the mean time and values of every
+    // interval that holds at least one point
+    HistoryPoints downsample(int maxPoints) {
+        HistoryPoints result = new HistoryPoints(valuesPerPoint, maxPoints);
+        long first = times[0];
+        double span = times[size - 1] - first + 1;
+        int index = 0;
+        while (index < size) {
+            int interval = (int) ((times[index] - first) / span * maxPoints);
+            double timeSum = 0;
+            double sum0 = 0;
+            double sum1 = 0;
+            int count = 0;
+            while (index < size && (int) ((times[index] - first) / span * maxPoints) == interval) {
+                timeSum += times[index];
+                sum0 += values0[index];
+                if (valuesPerPoint > 1) {
+                    sum1 += values1[index];
+                }
+                count++;
+                index++;
+            }
+            result.add(Math.round(timeSum / count), sum0 / count, sum1 / count);
+        }
+        return result;
+    }
+}
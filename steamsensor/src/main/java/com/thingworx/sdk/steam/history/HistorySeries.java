@@ -0,0 +1,149 @@
+package com.thingworx.sdk.steam.history;
+
+import java.nio.ByteBuffer;
+
+// The history of one property in three tiers: every raw sample, the mean of every minute and the mean of every
+// hour. The raw tier covers the shortest time and the hour tier the longest, so a query over a long range is
+// answered from the coarser tiers where the finer ones no longer reach back.
+// Recording does not allocate. The current minute and hour are accumulated in fields and written to their tier
+// once the first sample of the next minute or hour arrives. Until then a query takes their mean so far as the newest
+// point of their tier, so the samples of the open minute and hour are not missing where the finer tiers do not
+// hold them.
+final class HistorySeries {
+    static final long MINUTE = 60000;
+    static final long HOUR = 3600000;
+
+    private final int valuesPerPoint;
+    private final OffHeapRing raw;
+    private final OffHeapRing minutes;
+    private final OffHeapRing hours;
+    private final Accumulator minute;
+    private final Accumulator hour;
+
+    // Takes its rings from buffer, starting at its position, and moves the position past them
+    HistorySeries(ByteBuffer buffer, int valuesPerPoint, int rawPoints, int minutePoints, int hourPoints) {
+        this.valuesPerPoint = valuesPerPoint;
+        this.raw = new OffHeapRing(slice(buffer, rawPoints, valuesPerPoint), rawPoints, valuesPerPoint);
+        this.minutes = new OffHeapRing(slice(buffer, minutePoints, valuesPerPoint), minutePoints, valuesPerPoint);
+        this.hours = new OffHeapRing(slice(buffer, hourPoints, valuesPerPoint), hourPoints, valuesPerPoint);
+        this.minute = new Accumulator(MINUTE, minutes);
+        this.hour = new Accumulator(HOUR, hours);
+    }
+
+    static long bytes(int valuesPerPoint, int rawPoints, int minutePoints, int hourPoints) {
+        return OffHeapRing.bytes(rawPoints, valuesPerPoint) + OffHeapRing.bytes(minutePoints, valuesPerPoint)
+                + OffHeapRing.bytes(hourPoints, valuesPerPoint);
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int points, int valuesPerPoint) {
+        int bytes = (int) OffHeapRing.bytes(points, valuesPerPoint);
+        ByteBuffer region = buffer.duplicate();
+        region.limit(region.position() + bytes);
+        buffer.position(buffer.position() + bytes);
+        return region.slice();
+    }
+
+    int getValuesPerPoint() {
+        return valuesPerPoint;
+    }
+
+    void record(long time, double value0, double value1) {
+        raw.append(time, value0, value1);
+        minute.add(time, value0, value1);
+        hour.add(time, value0, value1);
+    }
+
+    // The points between start and end inclusive, oldest first. Each tier contributes the part of the range that
+    // the next finer tier no longer holds. When there are more than maxPoints, the range is divided into maxPoints
+    // equal intervals and the points of every interval are averaged.
+    HistoryPoints query(long start, long end, int maxPoints) {
+        HistoryPoints points = new HistoryPoints(valuesPerPoint,
+                count(hours, hour, start, end, minutes, minute) + count(minutes, minute, start, end, raw, null)
+                        + count(raw, null, start, end, null, null));
+        collect(hours, hour, start, end, minutes, minute, points);
+        collect(minutes, minute, start, end, raw, null, points);
+        collect(raw, null, start, end, null, null, points);
+        return points.size() > maxPoints ? points.downsample(maxPoints) : points;
+    }
+
+    // The oldest time of a tier, its open interval included, Long.MAX_VALUE when it holds nothing
+    private static long oldestTime(OffHeapRing ring, Accumulator open) {
+        if (ring.size() > 0) {
+            return ring.oldestTime();
+        }
+        return open != null && open.isOpen() ? open.intervalStart : Long.MAX_VALUE;
+    }
+
+    // The part of a tier inside the range that is older than the oldest point of the finer tier
+    private static long upperBound(long end, OffHeapRing finer, Accumulator finerOpen) {
+        if (finer == null) {
+            return end;
+        }
+        long oldest = oldestTime(finer, finerOpen);
+        return oldest == Long.MAX_VALUE ? end : Math.min(end, oldest - 1);
+    }
+
+    private static boolean openInRange(Accumulator open, long start, long upper) {
+        return open != null && open.isOpen() && open.intervalStart >= start && open.intervalStart <= upper;
+    }
+
+    private static int count(OffHeapRing ring, Accumulator open, long start, long end, OffHeapRing finer,
+                             Accumulator finerOpen) {
+        long upper = upperBound(end, finer, finerOpen);
+        if (upper < start) {
+            return 0;
+        }
+        return ring.firstAtOrAfter(upper == Long.MAX_VALUE ? upper : upper + 1) - ring.firstAtOrAfter(start)
+                + (openInRange(open, start, upper) ? 1 : 0);
+    }
+
+    private void collect(OffHeapRing ring, Accumulator open, long start, long end, OffHeapRing finer,
+                         Accumulator finerOpen, HistoryPoints points) {
+        long upper = upperBound(end, finer, finerOpen);
+        for (int position = ring.firstAtOrAfter(start); position < ring.size(); position++) {
+            long time = ring.time(position);
+            if (time > upper) {
+                break;
+            }
+            points.add(time, ring.value(position, 0), valuesPerPoint > 1 ? ring.value(position, 1) : 0);
+        }
+        // The open interval is newer than every point written to the ring
+        if (openInRange(open, start, upper)) {
+            points.add(open.intervalStart, open.sum0 / open.count, open.sum1 / open.count);
+        }
+    }
+
+    // The running mean of the current interval of a tier
+    private final class Accumulator {
+        private final long width;
+        private final OffHeapRing ring;
+        private long intervalStart = Long.MIN_VALUE;
+        private int count = 0;
+        private double sum0 = 0;
+        private double sum1 = 0;
+
+        private Accumulator(long width, OffHeapRing ring) {
+            this.width = width;
+            this.ring = ring;
+        }
+
+        // A tier that keeps no points has no open interval either
+        private boolean isOpen() {
+            return count > 0 && ring.capacity() > 0;
+        }
+
+        private void add(long time, double value0, double value1) {
+            long interval = time - Math.floorMod(time, width);
+            if (count > 0 && interval != intervalStart) {
+                ring.append(intervalStart, sum0 / count, sum1 / count);
+                count = 0;
+                sum0 = 0;
+                sum1 = 0;
+            }
+            intervalStart = interval;
+            count++;
+            sum0 += value0;
+            sum1 += value1;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.thingworx.sdk.steam.history;
+
+import java.nio.ByteBuffer;
+
+// A fixed size ring of points stored outside the Java heap. Every point is a millisecond timestamp followed by one
+// or two double values. The ring is a region of a larger direct buffer, so all the rings of a sensor take a single
+// allocation. Timestamps never decrease, which lets the queries find a time by binary search.
+// Not thread safe, the owning PropertyHistory synchronizes all access.
+final class OffHeapRing {
+    private final ByteBuffer buffer;
+    private final int capacity;
+    private final int valuesPerPoint;
+    private final int pointSize;
+    private int next = 0;
+    private int size = 0;
+
+    OffHeapRing(ByteBuffer buffer, int capacity, int valuesPerPoint) {
+        this.buffer = buffer;
+        this.capacity = capacity;
+        this.valuesPerPoint = valuesPerPoint;
+        this.pointSize = pointSize(valuesPerPoint);
+    }
+
+    static int pointSize(int valuesPerPoint) {
+        return 8 + 8 * valuesPerPoint;
+    }
+
+    static long bytes(int capacity, int valuesPerPoint) {
+        return (long) capacity * pointSize(valuesPerPoint);
+    }
+
+    // value1 is ignored for a ring of one value per point
+    void append(long time, double value0, double value1) {
+        if (capacity == 0) {
+            return;
+        }
+        // A clock that went back would break the binary search, the point keeps the time of the one before it
+        if (size > 0 && time < newestTime()) {
+            time = newestTime();
+        }
+        int offset = next * pointSize;
+        buffer.putLong(offset, time);
+        buffer.putDouble(offset + 8, value0);
+        if (valuesPerPoint > 1) {
+            buffer.putDouble(offset + 16, value1);
+        }
+        next = next + 1 == capacity ? 0 : next + 1;
+        if (size < capacity) {
+            size++;
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    // The point at position, 0 being the oldest point
+    private int offset(int position) {
+        int index = next - size + position;
+        if (index < 0) {
+            index += capacity;
+        }
+        return index * pointSize;
+    }
+
+    long time(int position) {
+        return buffer.getLong(offset(position));
+    }
+
+    double value(int position, int valueIndex) {
+        return buffer.getDouble(offset(position) + 8 + 8 * valueIndex);
+    }
+
+    long oldestTime() {
+        return size == 0 ? Long.MAX_VALUE : time(0);
+    }
+
+    long newestTime() {
+        return size == 0 ? Long.MIN_VALUE : time(size - 1);
+    }
+
+    // The position of the first point at or after time, size() when there is none
+    int firstAtOrAfter(long time) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (time(middle) < time) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,117 @@
+package com.thingworx.sdk.steam.history;
+
+import com.thingworx.metadata.DataShapeDefinition;
+import com.thingworx.metadata.FieldDefinition;
+import com.thingworx.metadata.collections.FieldDefinitionCollection;
+import com.thingworx.types.BaseTypes;
+import com.thingworx.types.InfoTable;
+import com.thingworx.types.collections.ValueCollection;
+import com.thingworx.types.primitives.LocationPrimitive;
+import org.joda.time.DateTime;
+
+import java.nio.ByteBuffer;
+
+// The local history of the Temperature, Pressure, TotalFlow and Location of one steam sensor, so recent history
+// can be charted without querying the platform. All the history of a sensor lives in one direct buffer whose size
+// is fixed by the number of raw, minute and hour points kept, see bytesPerSensor().
+// The scan thread records and service threads query, both synchronize on this history.
+public final class PropertyHistory {
+    public static final String DATA_SHAPE = "SteamSensor.PropertyHistory";
+    public static final String TIME_FIELD = "time";
+    public static final String VALUE_FIELD = "value";
+    public static final String LOCATION_FIELD = "location";
+
+    public static final int DEFAULT_MAX_POINTS = 500;
+    public static final int MAX_POINTS = 10000;
+
+    private static final String[] SCALAR_PROPERTIES = { "Temperature", "Pressure", "TotalFlow" };
+
+    private final HistorySeries temperature;
+    private final HistorySeries pressure;
+    private final HistorySeries totalFlow;
+    private final HistorySeries location;
+
+    public PropertyHistory(int rawPoints, int minutePoints, int hourPoints) {
+        if (rawPoints < 0 || minutePoints < 0 || hourPoints < 0) {
+            throw new IllegalArgumentException("History point counts must not be negative");
+        }
+        long bytes = bytesPerSensor(rawPoints, minutePoints, hourPoints);
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("History of " + bytes + " bytes per sensor is too large");
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect((int) bytes);
+        temperature = new HistorySeries(buffer, 1, rawPoints, minutePoints, hourPoints);
+        pressure = new HistorySeries(buffer, 1, rawPoints, minutePoints, hourPoints);
+        totalFlow = new HistorySeries(buffer, 1, rawPoints, minutePoints, hourPoints);
+        // Latitude and longitude
+        location = new HistorySeries(buffer, 2, rawPoints, minutePoints, hourPoints);
+    }
+
+    // The off-heap memory taken by the history of one sensor
+    public static long bytesPerSensor(int rawPoints, int minutePoints, int hourPoints) {
+        return SCALAR_PROPERTIES.length * HistorySeries.bytes(1, rawPoints, minutePoints, hourPoints)
+                + HistorySeries.bytes(2, rawPoints, minutePoints, hourPoints);
+    }
+
+    public static FieldDefinitionCollection dataShapeFields() {
+        FieldDefinitionCollection fields = new FieldDefinitionCollection();
+        fields.addFieldDefinition(new FieldDefinition(TIME_FIELD, BaseTypes.DATETIME));
+        fields.addFieldDefinition(new FieldDefinition(VALUE_FIELD, BaseTypes.NUMBER));
+        fields.addFieldDefinition(new FieldDefinition(LOCATION_FIELD, BaseTypes.LOCATION));
+        return fields;
+    }
+
+    public synchronized void recordTemperature(long time, double value) {
+        temperature.record(time, value, 0);
+    }
+
+    public synchronized void recordPressure(long time, double value) {
+        pressure.record(time, value, 0);
+    }
+
+    public synchronized void recordTotalFlow(long time, double value) {
+        totalFlow.record(time, value, 0);
+    }
+
+    public synchronized void recordLocation(long time, double latitude, double longitude) {
+        location.record(time, latitude, longitude);
+    }
+
+    private HistorySeries series(String property) {
+        if ("Temperature".equals(property)) {
+            return temperature;
+        } else if ("Pressure".equals(property)) {
+            return pressure;
+        } else if ("TotalFlow".equals(property)) {
+            return totalFlow;
+        } else if ("Location".equals(property)) {
+            return location;
+        }
+        throw new IllegalArgumentException("No history is kept for property " + property
+                + ", use Temperature, Pressure, TotalFlow or Location");
+    }
+
+    // The history of property between start and end inclusive, oldest first, in at most maxPoints rows.
+    // Location rows fill the location field, the other properties the value field.
+    public InfoTable query(String property, DataShapeDefinition shape, long start, long end, int maxPoints)
+            throws Exception {
+        HistorySeries series = series(property);
+        int points = Math.max(1, Math.min(maxPoints, MAX_POINTS));
+        HistoryPoints result;
+        synchronized (this) {
+            result = series.query(start, end, points);
+        }
+        InfoTable table = new InfoTable(shape);
+        for (int i = 0; i < result.size(); i++) {
+            ValueCollection row = new ValueCollection();
+            row.SetDateTimeValue(TIME_FIELD, new DateTime(result.time(i)));
+            if (series.getValuesPerPoint() > 1) {
+                row.put(LOCATION_FIELD, new LocationPrimitive(result.value0(i), result.value1(i), 0.0));
+            } else {
+                row.SetNumberValue(VALUE_FIELD, result.value0(i));
+            }
+            table.addRow(row);
+        }
+        return table;
+    }
+}
@@ -0,0 +1,135 @@
+package com.thingworx.sdk.steam.loadtest;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Locale;
+
+// Writes the steps of a load test as loadtest.csv, for further analysis, and loadtest.html, to be read directly.
+class LoadTestReport {
+    private static final String[] COLUMNS = { "sensors", "all_bound", "bind_ms", "property_updates_per_s",
+            "events_per_s", "messages_per_s", "bytes_per_s", "shard_scan_mean_ms", "shard_scan_max_ms", "overruns",
+            "push_latency_p50_ms", "push_latency_p99_ms", "heap_used_mb", "heap_max_mb", "heap_per_sensor_bytes",
+            "direct_mb", "cpu_percent" };
+
+    private final File directory;
+
+    LoadTestReport(File directory) {
+        this.directory = directory;
+    }
+
+    void write(List<LoadTestStep> steps, String settings) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create the report directory " + directory);
+        }
+        writeCsv(new File(directory, "loadtest.csv"), steps);
+        writeHtml(new File(directory, "loadtest.html"), steps, settings);
+    }
+
+    private static PrintWriter open(File file) throws IOException {
+        return new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+    }
+
+    private static String[] values(LoadTestStep step) {
+        return new String[] {
+                Integer.toString(step.sensors),
+                Boolean.toString(step.allBound),
+                Long.toString(step.bindMillis),
+                format("%.1f", step.propertyUpdateRate),
+                format("%.2f", step.eventRate),
+                format("%.1f", step.messageRate),
+                format("%.0f", step.byteRate),
+                format("%.1f", step.meanShardScanMillis),
+                format("%.1f", step.maxShardScanMillis),
+                Long.toString(step.overruns),
+                Long.toString(step.p50PushMillis),
+                Long.toString(step.p99PushMillis),
+                format("%.1f", step.heapUsedBytes / 1048576.0),
+                format("%.1f", step.heapMaxBytes / 1048576.0),
+                Long.toString(step.getHeapPerSensorBytes()),
+                format("%.1f", step.directBytes / 1048576.0),
+                step.cpuPercent < 0 ? "" : format("%.1f", step.cpuPercent)
+        };
+    }
+
+    private static String format(String format, double value) {
+        return String.format(Locale.ROOT, format, value);
+    }
+
+    private static void writeCsv(File file, List<LoadTestStep> steps) throws IOException {
+        PrintWriter out = open(file);
+        try {
+            out.println(join(COLUMNS));
+            for (LoadTestStep step : steps) {
+                out.println(join(values(step)));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String join(String[] values) {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                line.append(',');
+            }
+            line.append(values[i]);
+        }
+        return line.toString();
+    }
+
+    // A table of all the columns, followed by bars of the property update rate and the heap per step
+    private static void writeHtml(File file, List<LoadTestStep> steps, String settings) throws IOException {
+        double maxRate = 1;
+        double maxHeap = 1;
+        for (LoadTestStep step : steps) {
+            maxRate = Math.max(maxRate, step.propertyUpdateRate);
+            maxHeap = Math.max(maxHeap, step.heapUsedBytes);
+        }
+        PrintWriter out = open(file);
+        try {
+            out.println("<!DOCTYPE html>");
+            out.println("<html><head><meta charset=\"utf-8\"><title>Steam sensor load test</title>");
+            out.println("<style>body{font-family:sans-serif}table{border-collapse:collapse}"
+                    + "td,th{border:1px solid #ccc;padding:2px 6px;text-align:right}"
+                    + ".bar{background:#4a7ebb;height:12px}.heap{background:#bb7e4a}</style></head><body>");
+            out.println("<h1>Steam sensor load test</h1>");
+            out.println("<p>" + settings + "</p>");
+            out.println("<table><tr>");
+            for (String column : COLUMNS) {
+                out.print("<th>" + column + "</th>");
+            }
+            out.println("</tr>");
+            for (LoadTestStep step : steps) {
+                out.print("<tr>");
+                for (String value : values(step)) {
+                    out.print("<td>" + value + "</td>");
+                }
+                out.println("</tr>");
+            }
+            out.println("</table>");
+            out.println("<h2>Property updates per second</h2><table>");
+            for (LoadTestStep step : steps) {
+                out.println(barRow(step.sensors, step.propertyUpdateRate / maxRate, format("%.1f", step.propertyUpdateRate), "bar"));
+            }
+            out.println("</table><h2>Heap used (MB)</h2><table>");
+            for (LoadTestStep step : steps) {
+                out.println(barRow(step.sensors, step.heapUsedBytes / maxHeap, format("%.1f", step.heapUsedBytes / 1048576.0), "bar heap"));
+            }
+            out.println("</table></body></html>");
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String barRow(int sensors, double fraction, String label, String cssClass) {
+        int width = (int) Math.round(fraction * 600);
+        return "<tr><td>" + sensors + "</td><td style=\"text-align:left;width:620px\"><div class=\"" + cssClass
+                + "\" style=\"width:" + width + "px\"></div></td><td>" + label + "</td></tr>";
+    }
+}
@@ -0,0 +1,374 @@
+package com.thingworx.sdk.steam.loadtest;
+
+import com.thingworx.communications.client.ClientConfigurator;
+import com.thingworx.communications.client.ConnectedThingClient;
+import com.thingworx.communications.client.connection.IClientConnection;
+import com.thingworx.communications.client.connection.IClientConnectionFactory;
+import com.thingworx.sdk.steam.SamplePasswordCallback;
+import com.thingworx.sdk.steam.SteamSensorClient;
+import com.thingworx.sdk.steam.SteamThing;
+import com.thingworx.sdk.steam.connection.ClientConnections;
+import com.thingworx.sdk.steam.connection.ConnectionStats;
+import com.thingworx.sdk.steam.deadband.DeadbandConfig;
+import com.thingworx.sdk.steam.faults.FaultRule;
+import com.thingworx.sdk.steam.faults.FaultRuleEngine;
+import com.thingworx.sdk.steam.faults.FaultRules;
+import com.thingworx.sdk.steam.flush.FlushCoordinator;
+import com.thingworx.sdk.steam.history.PropertyHistory;
+import com.thingworx.sdk.steam.metrics.DirectMemory;
+import com.thingworx.sdk.steam.readings.ReadingsStore;
+import com.thingworx.sdk.steam.recording.RecordingReader;
+import com.thingworx.sdk.steam.recording.Replay;
+import com.thingworx.sdk.steam.sampling.FleetSampling;
+import com.thingworx.sdk.steam.sampling.SamplingConfig;
+import com.thingworx.sdk.steam.scan.FixedRateScanScheduler;
+import com.thingworx.sdk.steam.scan.OutboundRateMonitor;
+import com.thingworx.sdk.steam.scan.OverrunPolicy;
+import com.thingworx.sdk.steam.scan.ScanPhasing;
+import com.thingworx.sdk.steam.scan.ScanWorkerPools;
+import com.thingworx.sdk.steam.settings.InitialSettingsLoader;
+import com.thingworx.sdk.steam.simulation.SimulationConfig;
+import com.thingworx.sdk.steam.startup.FleetStartup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.lang.management.OperatingSystemMXBean;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Ramps the agent through an increasing number of sensors against a LoopbackServer, to find how many sensors one
+// JVM can serve. Every step runs a fresh client with the scan, flush and sensor settings of the agent. Once all the
+// sensors are bound and one scan period has passed, the throughput, shard scan time, push latency, heap and CPU
+// are measured over the step duration. The ramp stops early when the heap or the direct memory, where the property
+// history is kept, is nearly exhausted or the sensors could not be bound, and the steps are written to loadtest.csv
+// and loadtest.html.
+// The server runs in the same JVM, so the CPU figures include the cost of decoding the pushes.
+public class LoadTestRunner {
+    private static final Logger LOG = LoggerFactory.getLogger(LoadTestRunner.class);
+
+    static final List<String> PROPERTIES = Arrays.asList("Temperature", "Pressure", "FaultStatus", "InletValve",
+            "TemperatureLimit", "Location", "TotalFlow");
+    static final List<String> EVENTS = Arrays.asList("SteamSensorFault");
+    // The limit the server returns for TemperatureLimit, inside the simulated range so faults are raised as well
+    private static final double TEMPERATURE_LIMIT = 430;
+    private static final int SETTINGS_CONCURRENCY = 8;
+    private static final double HEAP_LIMIT = 0.9;
+    private static final double DIRECT_LIMIT = 0.9;
+    private static final int SERVER_THREADS = 4;
+
+    private final int[] steps;
+    private final long stepMillis;
+    private final long latencyMillis;
+    private final File reportDirectory;
+
+    private int scanRate = 3000;
+    private int scanThreads = Runtime.getRuntime().availableProcessors();
+    private int scanShards = FixedRateScanScheduler.defaultShardCount(scanThreads, ScanPhasing.SPREAD);
+    private boolean virtualThreads = false;
+    private OverrunPolicy overrunPolicy = OverrunPolicy.SKIP;
+    private ScanPhasing scanPhasing = ScanPhasing.SPREAD;
+    private int flushBatchSize = 500;
+    private int flushLinger = 3000;
+    private int flushThreads = 4;
+    private DeadbandConfig deadbandConfig = DeadbandConfig.fromAnnotations(SteamThing.class);
+    private int readingsCapacity = 1000;
+    // The default periods of the scan rate unless set
+    private SamplingConfig samplingConfig;
+    private List<FaultRule> faultRules = FaultRules.defaults();
+    private int faultThreads = Runtime.getRuntime().availableProcessors();
+    private SimulationConfig simulation = SimulationConfig.defaults(1);
+    private RecordingReader replayRecording;
+    private double replaySpeed = 1;
+    private int connectionCount = 1;
+    private long aggregateWindow = 0;
+    private long aggregateSlide;
+    private boolean aggregateRaw;
+    private boolean keepHistory = false;
+    private int historyRawPoints;
+    private int historyMinutePoints;
+    private int historyHourPoints;
+    private long heapBaselineBytes;
+
+    public LoadTestRunner(int[] steps, long stepMillis, long latencyMillis, File reportDirectory) {
+        if (steps.length == 0) {
+            throw new IllegalArgumentException("At least one load step is required");
+        }
+        this.steps = steps.clone();
+        this.stepMillis = stepMillis;
+        this.latencyMillis = latencyMillis;
+        this.reportDirectory = reportDirectory;
+    }
+
+    // Parses a comma separated list of sensor counts such as "1,10,100"
+    public static int[] parseSteps(String value) {
+        String[] parts = value.split(",");
+        int[] steps = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            steps[i] = Integer.parseInt(parts[i].trim());
+            if (steps[i] <= 0) {
+                throw new IllegalArgumentException("Load steps must be positive: " + value);
+            }
+        }
+        return steps;
+    }
+
+    public void setScanSettings(int scanRate, int scanThreads, int scanShards, boolean virtualThreads,
+                                OverrunPolicy overrunPolicy, ScanPhasing scanPhasing) {
+        this.scanRate = scanRate;
+        this.scanThreads = scanThreads;
+        this.scanShards = scanShards;
+        this.virtualThreads = virtualThreads;
+        this.overrunPolicy = overrunPolicy;
+        this.scanPhasing = scanPhasing;
+    }
+
+    public void setFlushSettings(int flushBatchSize, int flushLinger, int flushThreads) {
+        this.flushBatchSize = flushBatchSize;
+        this.flushLinger = flushLinger;
+        this.flushThreads = flushThreads;
+    }
+
+    public void setSensorSettings(DeadbandConfig deadbandConfig, int readingsCapacity) {
+        this.deadbandConfig = deadbandConfig;
+        this.readingsCapacity = readingsCapacity;
+    }
+
+    public void setSamplingConfig(SamplingConfig samplingConfig) {
+        this.samplingConfig = samplingConfig;
+    }
+
+    public void setFaultSettings(List<FaultRule> faultRules, int faultThreads) {
+        this.faultRules = faultRules;
+        this.faultThreads = faultThreads;
+    }
+
+    // Spreads the sensors over this many connections to the stand-in server
+    public void setConnections(int connectionCount) {
+        this.connectionCount = connectionCount;
+    }
+
+    // Every step simulates the same readings for its sensors, so steps and runs with the same seed are comparable
+    public void setSimulation(SimulationConfig simulation) {
+        this.simulation = simulation;
+    }
+
+    // Replays the recording instead of simulating the readings. Every step replays it from the start, the sensors
+    // beyond the recorded ones replay those again.
+    public void setReplay(RecordingReader recording, double speed) {
+        this.replayRecording = recording;
+        this.replaySpeed = speed;
+    }
+
+    // Pushes the Temperature and Pressure of every sensor as window statistics
+    public void setAggregationSettings(long windowMillis, long slideMillis, boolean publishRawValues) {
+        this.aggregateWindow = windowMillis;
+        this.aggregateSlide = slideMillis;
+        this.aggregateRaw = publishRawValues;
+    }
+
+    // Gives every sensor a property history of the given size
+    public void setHistorySettings(int rawPoints, int minutePoints, int hourPoints) {
+        this.keepHistory = true;
+        this.historyRawPoints = rawPoints;
+        this.historyMinutePoints = minutePoints;
+        this.historyHourPoints = hourPoints;
+    }
+
+    public void run() throws Exception {
+        List<LoadTestStep> results = new ArrayList<LoadTestStep>();
+        LoadTestReport report = new LoadTestReport(reportDirectory);
+        heapBaselineBytes = usedHeapAfterCollection().getUsed();
+        for (int sensors : steps) {
+            LOG.info("Load test step with {} sensors.", sensors);
+            LoadTestStep step = runStep(sensors);
+            results.add(step);
+            LOG.info(String.format("%d sensors: %.1f property updates/s, %.2f events/s, shard scan mean %.1f ms max %.1f ms, "
+                            + "push latency p50 %d ms p99 %d ms, heap %.1f MB, cpu %.1f%%", sensors,
+                    step.propertyUpdateRate, step.eventRate, step.meanShardScanMillis, step.maxShardScanMillis,
+                    step.p50PushMillis, step.p99PushMillis, step.heapUsedBytes / 1048576.0, step.cpuPercent));
+            // Write after every step, so the steps done are kept if a later one exhausts the JVM
+            report.write(results, describeSettings());
+            if (!step.allBound) {
+                LOG.warn("Not all {} sensors were bound, stopping the load test.", sensors);
+                break;
+            }
+            if (step.getHeapFraction() > HEAP_LIMIT) {
+                LOG.warn("The heap is {}% used with {} sensors, stopping the load test.",
+                        Math.round(step.getHeapFraction() * 100), sensors);
+                break;
+            }
+            if (step.getDirectFraction() > DIRECT_LIMIT) {
+                LOG.warn("The direct memory is {}% used with {} sensors, stopping the load test.",
+                        Math.round(step.getDirectFraction() * 100), sensors);
+                break;
+            }
+        }
+        LOG.info("Load test report written to {}.", reportDirectory.getAbsolutePath());
+    }
+
+    private String describeSettings() {
+        return String.format("Step duration %d s, server latency %d ms, scan rate %d ms, %d scan threads, %d shards, "
+                        + "phasing %s, overrun policy %s, flush batch %d, linger %d ms, %d flush threads, "
+                        + "%d readings per sensor, sampling %s, %d fault rules on %d threads, %s, %d connection(s), %s, %s, %d processors, Java %s",
+                stepMillis / 1000, latencyMillis, scanRate,
+                scanThreads, scanShards, scanPhasing, overrunPolicy, flushBatchSize, flushLinger, flushThreads,
+                readingsCapacity, samplingConfig != null ? samplingConfig : SamplingConfig.defaults(scanRate),
+                faultRules.size(), faultThreads,
+                replayRecording != null ? "replay of " + new Replay(replayRecording, replaySpeed) : "simulation " + simulation,
+                connectionCount,
+                aggregateWindow > 0 ? String.format("aggregate windows of %d ms every %d ms%s",
+                        aggregateWindow, aggregateSlide, aggregateRaw ? " with raw values" : "") : "no aggregation",
+                keepHistory ? String.format("history of %d/%d/%d raw/minute/hour points",
+                        historyRawPoints, historyMinutePoints, historyHourPoints) : "no history", Runtime.getRuntime().availableProcessors(), System.getProperty("java.version"));
+    }
+
+    private LoadTestStep runStep(final int sensors) throws Exception {
+        final LoopbackServer server = new LoopbackServer(latencyMillis, TEMPERATURE_LIMIT, PROPERTIES, EVENTS, SERVER_THREADS);
+        // A client closes its connection factory when it shuts down, the clients share the server and it is closed
+        // once they all are
+        final IClientConnectionFactory sharedServer = new IClientConnectionFactory() {
+            @Override
+            public IClientConnection createConnection(String name, URI uri, Integer timeout, boolean ignoreSSLErrors)
+                    throws Exception {
+                return server.createConnection(name, uri, timeout, ignoreSSLErrors);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        final ClientConnections connections = new ClientConnections(connectionCount, new ClientConnections.ClientFactory() {
+            @Override
+            public ConnectedThingClient create(int index, ConnectionStats stats) throws Exception {
+                ClientConfigurator config = new ClientConfigurator();
+                config.setUri("ws://loopback/Thingworx/WS");
+                config.setReconnectInterval(ClientConnections.reconnectInterval(15, index, connectionCount));
+                config.setSecurityClaims(new SamplePasswordCallback("loadtest"));
+                config.setName(null);
+                // The server asks every thing it bound to synchronize at once, the queue of the client has to take
+                // a request per sensor of the connection besides its usual traffic
+                config.setQueueSize(config.getQueueSize() + sensors / connectionCount + 1);
+                SteamSensorClient client = new SteamSensorClient(config, sharedServer);
+                client.setConnectionStats(stats);
+                return client;
+            }
+        });
+
+        OutboundRateMonitor outboundRate = new OutboundRateMonitor(4L * scanRate, 80);
+        FlushCoordinator flushCoordinator = new FlushCoordinator(flushBatchSize, flushLinger, flushThreads,
+                15000, 60000, outboundRate);
+        InitialSettingsLoader settingsLoader = new InitialSettingsLoader(connections.get(0).getClient(), null, SETTINGS_CONCURRENCY, 10000, 60000);
+        FleetStartup fleetStartup = new FleetStartup(Runtime.getRuntime().availableProcessors());
+        FaultRuleEngine faultRuleEngine = new FaultRuleEngine(sensors, faultRules, faultThreads);
+        FleetSampling sampling = new FleetSampling(
+                samplingConfig != null ? samplingConfig : SamplingConfig.defaults(scanRate), scanRate);
+        final Replay replay = replayRecording != null ? new Replay(replayRecording, replaySpeed) : null;
+        List<SteamThing> things = fleetStartup.build(sensors, new FleetStartup.ThingFactory<SteamThing>() {
+            @Override
+            public SteamThing create(int sensor) throws Exception {
+                String name = "LoadSensor" + sensor;
+                SteamThing thing = new SteamThing(name, "Load test sensor #" + sensor, null, connections.clientOf(name), null);
+                if (replay != null) {
+                    thing.setSensorSource(replay.newSource(name, sensor));
+                } else {
+                    thing.setSensorSource(simulation.newSensor(sensor));
+                }
+                return thing;
+            }
+        });
+        for (SteamThing thing : things) {
+            thing.setFlushCoordinator(flushCoordinator);
+            thing.setFaultRuleEngine(faultRuleEngine);
+            thing.setDeadbandConfig(deadbandConfig);
+            thing.setSampling(sampling);
+            thing.setReadingsStore(new ReadingsStore(readingsCapacity));
+            if (aggregateWindow > 0) {
+                thing.setAggregation(aggregateWindow, aggregateSlide, aggregateRaw);
+            }
+            if (keepHistory) {
+                thing.setPropertyHistory(new PropertyHistory(historyRawPoints, historyMinutePoints, historyHourPoints));
+            }
+            settingsLoader.register(thing, thing.getClient());
+            thing.getClient().bindThing(thing);
+        }
+        FixedRateScanScheduler scanScheduler = new FixedRateScanScheduler(connections.getClients(), scanRate, scanShards, overrunPolicy,
+                scanPhasing, ScanWorkerPools.newWorkerPool(scanThreads, virtualThreads), outboundRate);
+        scanScheduler.setFlushCoordinator(flushCoordinator);
+        try {
+            long bindStart = System.currentTimeMillis();
+            connections.start();
+            settingsLoader.start();
+            flushCoordinator.start();
+            scanScheduler.start();
+            faultRuleEngine.start(scanRate);
+            // Give every thousand sensors ten seconds to bind, and at least a minute
+            long bindDeadline = bindStart + Math.max(60000, sensors * 10L);
+            while (server.getBoundThingCount() < sensors && System.currentTimeMillis() < bindDeadline) {
+                Thread.sleep(100);
+            }
+            boolean allBound = server.getBoundThingCount() >= sensors;
+            long bindMillis = System.currentTimeMillis() - bindStart;
+            // Settle for one scan period so the first scans of the sensors are behind us
+            Thread.sleep(scanRate);
+            return measure(sensors, allBound, bindMillis, server, scanScheduler);
+        } finally {
+            scanScheduler.shutdown(scanRate);
+            faultRuleEngine.shutdown(scanRate);
+            flushCoordinator.shutdown(scanRate);
+            settingsLoader.shutdown();
+            connections.shutdown();
+            server.close();
+        }
+    }
+
+    private LoadTestStep measure(int sensors, boolean allBound, long bindMillis, LoopbackServer server,
+                                 FixedRateScanScheduler scanScheduler) throws InterruptedException {
+        long overruns = scanScheduler.getOverrunCount();
+        long propertyUpdates = server.getPropertyUpdateCount();
+        long events = server.getEventCount();
+        long messages = server.getMessageCount();
+        long bytes = server.getByteCount();
+        scanScheduler.resetShardScanStatistics();
+        server.getPushLatency().reset();
+        long cpuStart = processCpuNanos();
+        long start = System.nanoTime();
+
+        Thread.sleep(stepMillis);
+
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long cpuEnd = processCpuNanos();
+        double cpuPercent = cpuStart < 0 || cpuEnd < 0 ? -1
+                : (cpuEnd - cpuStart) / 1e9 / seconds / Runtime.getRuntime().availableProcessors() * 100;
+        // The heap that stays in use with all the sensors loaded
+        MemoryUsage heap = usedHeapAfterCollection();
+        return new LoadTestStep(sensors, allBound, bindMillis,
+                (server.getPropertyUpdateCount() - propertyUpdates) / seconds,
+                (server.getEventCount() - events) / seconds,
+                (server.getMessageCount() - messages) / seconds,
+                (server.getByteCount() - bytes) / seconds,
+                scanScheduler.getMeanShardScanMillis(), scanScheduler.getMaxShardScanMillis(),
+                scanScheduler.getOverrunCount() - overruns,
+                server.getPushLatency().getP50(), server.getPushLatency().getP99(),
+                heap.getUsed(), heap.getMax(), heapBaselineBytes, DirectMemory.used(), DirectMemory.max(), cpuPercent);
+    }
+
+    // The heap in use once a collection has removed the garbage
+    private static MemoryUsage usedHeapAfterCollection() {
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+    }
+
+    // CPU time used by this process, or -1 when the JVM does not provide it
+    private static long processCpuNanos() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime();
+        }
+        return -1;
+    }
+}
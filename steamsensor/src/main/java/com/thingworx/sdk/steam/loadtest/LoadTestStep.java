@@ -0,0 +1,62 @@
+package com.thingworx.sdk.steam.loadtest;
+
+// What was measured at one step of the load test, all rates are per second over the measuring window
+class LoadTestStep {
+    final int sensors;
+    final boolean allBound;
+    final long bindMillis;
+    final double propertyUpdateRate;
+    final double eventRate;
+    final double messageRate;
+    final double byteRate;
+    final double meanShardScanMillis;
+    final double maxShardScanMillis;
+    final long overruns;
+    final long p50PushMillis;
+    final long p99PushMillis;
+    final long heapUsedBytes;
+    final long heapMaxBytes;
+    // Heap in use before the first step, without any sensors
+    final long heapBaselineBytes;
+    // Memory of the direct buffers, outside the heap
+    final long directBytes;
+    final long directMaxBytes;
+    // Process CPU as a percentage of all processors, -1 when the JVM does not report it
+    final double cpuPercent;
+
+    LoadTestStep(int sensors, boolean allBound, long bindMillis, double propertyUpdateRate, double eventRate,
+                 double messageRate, double byteRate, double meanShardScanMillis, double maxShardScanMillis, long overruns,
+                 long p50PushMillis, long p99PushMillis, long heapUsedBytes, long heapMaxBytes, long heapBaselineBytes,
+                 long directBytes, long directMaxBytes, double cpuPercent) {
+        this.sensors = sensors;
+        this.allBound = allBound;
+        this.bindMillis = bindMillis;
+        this.propertyUpdateRate = propertyUpdateRate;
+        this.eventRate = eventRate;
+        this.messageRate = messageRate;
+        this.byteRate = byteRate;
+        this.meanShardScanMillis = meanShardScanMillis;
+        this.maxShardScanMillis = maxShardScanMillis;
+        this.overruns = overruns;
+        this.p50PushMillis = p50PushMillis;
+        this.p99PushMillis = p99PushMillis;
+        this.heapUsedBytes = heapUsedBytes;
+        this.heapMaxBytes = heapMaxBytes;
+        this.heapBaselineBytes = heapBaselineBytes;
+        this.directBytes = directBytes;
+        this.directMaxBytes = directMaxBytes;
+        this.cpuPercent = cpuPercent;
+    }
+
+    double getHeapFraction() {
+        return heapMaxBytes <= 0 ? 0 : heapUsedBytes / (double) heapMaxBytes;
+    }
+
+    double getDirectFraction() {
+        return directMaxBytes <= 0 ? 0 : directBytes / (double) directMaxBytes;
+    }
+
+    long getHeapPerSensorBytes() {
+        return sensors == 0 ? 0 : Math.max(0, heapUsedBytes - heapBaselineBytes) / sensors;
+    }
+}
@@ -0,0 +1,99 @@
+package com.thingworx.sdk.steam.loadtest;
+
+import com.thingworx.common.utils.FastByteArrayOutputStream;
+import com.thingworx.communications.client.connection.IClientConnection;
+import com.thingworx.communications.common.endpoints.CommunicationEndpoint;
+import com.thingworx.communications.common.messaging.ThingworxMessage;
+import com.thingworx.communications.common.protocol.PacketCollection;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+// The client side of a connection to the LoopbackServer. What the client writes goes to the server instead of a
+// WebSocket, and the server's responses are handed to the client's endpoint like frames read from the socket.
+class LoopbackConnection implements IClientConnection {
+    private final LoopbackServer server;
+    private volatile String id;
+    private volatile CommunicationEndpoint endpoint;
+    private volatile boolean connected = true;
+    // Packets of multipart requests received so far, by request id
+    private final ConcurrentHashMap<Integer, PacketCollection> partialRequests = new ConcurrentHashMap<Integer, PacketCollection>();
+
+    LoopbackConnection(LoopbackServer server, String id) {
+        this.server = server;
+        this.id = id;
+    }
+
+    @Override
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public void setCommunicationEndpoint(CommunicationEndpoint endpoint) {
+        this.endpoint = endpoint;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+
+    @Override
+    public void close() {
+        connected = false;
+    }
+
+    @Override
+    public void sendTextMessage(String message) {
+        // The client only uses binary messages
+    }
+
+    @Override
+    public void sendBinaryMessage(FastByteArrayOutputStream stream) throws Exception {
+        sendBinaryMessage(stream.toByteArray());
+    }
+
+    @Override
+    public void sendBinaryMessage(byte[] data) throws Exception {
+        if (!connected) {
+            throw new IllegalStateException("Loopback connection " + id + " is closed");
+        }
+        server.received(this, data);
+    }
+
+    @Override
+    public void ping() {
+    }
+
+    @Override
+    public void isCertificateValid() {
+    }
+
+    @Override
+    public void messageReceived(ThingworxMessage message) throws Exception {
+        CommunicationEndpoint current = endpoint;
+        if (current != null) {
+            current.messageReceived(message);
+        }
+    }
+
+    @Override
+    public void closeReceived() {
+        connected = false;
+    }
+
+    ConcurrentHashMap<Integer, PacketCollection> getPartialRequests() {
+        return partialRequests;
+    }
+
+    void deliver(ThingworxMessage message) throws Exception {
+        if (connected) {
+            messageReceived(message);
+        }
+    }
+}
@@ -0,0 +1,293 @@
+package com.thingworx.sdk.steam.loadtest;
+
+import com.thingworx.common.RESTAPIConstants;
+import com.thingworx.communications.client.connection.IClientConnection;
+import com.thingworx.communications.client.connection.IClientConnectionFactory;
+import com.thingworx.communications.common.contexts.APIRequestContext;
+import com.thingworx.communications.common.contexts.BaseContext;
+import com.thingworx.communications.common.contexts.BindRequestContext;
+import com.thingworx.communications.common.messaging.APIRequestMessage;
+import com.thingworx.communications.common.messaging.AuthRequestMessage;
+import com.thingworx.communications.common.messaging.BindRequestMessage;
+import com.thingworx.communications.common.messaging.RequestMessage;
+import com.thingworx.communications.common.messaging.ResponseMessage;
+import com.thingworx.communications.common.messaging.ThingworxMessage;
+import com.thingworx.communications.common.messaging.ThingworxMessageFactory;
+import com.thingworx.communications.common.protocol.PacketCollection;
+import com.thingworx.metadata.DataShapeDefinition;
+import com.thingworx.metadata.FieldDefinition;
+import com.thingworx.metadata.collections.FieldDefinitionCollection;
+import com.thingworx.relationships.RelationshipTypes;
+import com.thingworx.sdk.steam.metrics.Histogram;
+import com.thingworx.sdk.steam.scan.ScanWorkerPools;
+import com.thingworx.types.BaseTypes;
+import com.thingworx.types.InfoTable;
+import com.thingworx.types.collections.ValueCollection;
+import com.thingworx.types.constants.DataChangeType;
+import com.thingworx.types.primitives.IPrimitiveType;
+import com.thingworx.types.primitives.InfoTablePrimitive;
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// A stand-in for the ThingWorx platform that the client talks to in-process, used by the load test.
+// It takes the place of the WebSocket transport: the client encodes every message to the same binary frames it
+// would write to /Thingworx/WS, and the server decodes them with the SDK's own message classes. It accepts the
+// authentication and the binds, tells every bound thing to synchronize its state like the platform does, serves the
+// property and event subscriptions, takes the property pushes and events, and answers property reads with a fixed
+// value. Responses are sent from the server's own threads after an optional simulated network latency, as they
+// would arrive from a remote platform.
+public class LoopbackServer implements IClientConnectionFactory {
+    private static final Logger LOG = LoggerFactory.getLogger(LoopbackServer.class);
+    private static final String PROPERTY_UPDATE_SERVICE = "UpdateSubscribedPropertyValues";
+    private static final String EVENT_SERVICE = "ProcessRemoteEvents";
+    private static final String PROPERTY_SUBSCRIPTIONS_SERVICE = "GetPropertySubscriptions";
+    private static final String EVENT_SUBSCRIPTIONS_SERVICE = "GetEventSubscriptions";
+    private static final String NOTIFY_SERVICE = "NotifyPropertyUpdate";
+
+    private final long latencyMillis;
+    private final double propertyValue;
+    private final InfoTable propertySubscriptions;
+    private final InfoTable eventSubscriptions;
+    private final ScheduledExecutorService responders;
+    private final AtomicInteger nextSessionId = new AtomicInteger(1);
+    private final AtomicInteger nextEndpointId = new AtomicInteger(1);
+    private final AtomicInteger nextRequestId = new AtomicInteger(1);
+
+    private final AtomicLong messageCount = new AtomicLong();
+    private final AtomicLong byteCount = new AtomicLong();
+    private final AtomicLong boundThingCount = new AtomicLong();
+    private final AtomicLong propertyUpdateCount = new AtomicLong();
+    private final AtomicLong eventCount = new AtomicLong();
+    private final Histogram pushLatency = new Histogram("ms");
+
+    // latencyMillis is added before every response, propertyValue is returned for every property read. Every bound
+    // thing is subscribed to the given properties, pushed always, and to the given events.
+    public LoopbackServer(long latencyMillis, double propertyValue, List<String> properties, List<String> events,
+                          int threads) throws Exception {
+        this.latencyMillis = latencyMillis;
+        this.propertyValue = propertyValue;
+        this.propertySubscriptions = propertySubscriptions(properties);
+        this.eventSubscriptions = eventSubscriptions(events);
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(Math.max(1, threads),
+                ScanWorkerPools.namedDaemonThreads("loopback-server"));
+        executor.setRemoveOnCancelPolicy(true);
+        this.responders = executor;
+    }
+
+    private static InfoTable propertySubscriptions(List<String> properties) throws Exception {
+        FieldDefinitionCollection fields = new FieldDefinitionCollection();
+        fields.addFieldDefinition(new FieldDefinition("edgeName", BaseTypes.STRING));
+        fields.addFieldDefinition(new FieldDefinition("pushThreshold", BaseTypes.NUMBER));
+        fields.addFieldDefinition(new FieldDefinition("pushType", BaseTypes.STRING));
+        InfoTable table = new InfoTable(new DataShapeDefinition(fields));
+        for (String property : properties) {
+            ValueCollection row = new ValueCollection();
+            row.SetStringValue("edgeName", property);
+            row.SetNumberValue("pushThreshold", 0.0);
+            row.SetStringValue("pushType", DataChangeType.ALWAYS.name());
+            table.addRow(row);
+        }
+        return table;
+    }
+
+    private static InfoTable eventSubscriptions(List<String> events) throws Exception {
+        FieldDefinitionCollection fields = new FieldDefinitionCollection();
+        fields.addFieldDefinition(new FieldDefinition("edgeName", BaseTypes.STRING));
+        InfoTable table = new InfoTable(new DataShapeDefinition(fields));
+        for (String event : events) {
+            ValueCollection row = new ValueCollection();
+            row.SetStringValue("edgeName", event);
+            table.addRow(row);
+        }
+        return table;
+    }
+
+    @Override
+    public IClientConnection createConnection(String name, URI uri, Integer timeout, boolean ignoreSSLErrors) {
+        return new LoopbackConnection(this, name);
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        responders.shutdownNow();
+        responders.awaitTermination(1, TimeUnit.SECONDS);
+    }
+
+    public long getMessageCount() {
+        return messageCount.get();
+    }
+
+    public long getByteCount() {
+        return byteCount.get();
+    }
+
+    public long getBoundThingCount() {
+        return boundThingCount.get();
+    }
+
+    public long getPropertyUpdateCount() {
+        return propertyUpdateCount.get();
+    }
+
+    public long getEventCount() {
+        return eventCount.get();
+    }
+
+    // Time from the timestamp of a property value to its arrival at the server, in milliseconds
+    Histogram getPushLatency() {
+        return pushLatency;
+    }
+
+    // Called on the sending client thread with one encoded message
+    void received(final LoopbackConnection connection, byte[] data) throws Exception {
+        messageCount.incrementAndGet();
+        byteCount.addAndGet(data.length);
+        final long receivedAt = System.currentTimeMillis();
+        ThingworxMessage packet = ThingworxMessageFactory.fromBinary(data);
+        final ThingworxMessage message = packet.isMultipart() ? reassemble(connection, packet) : packet;
+        // Responses to the requests of the server, and packets of incomplete multipart messages, are not answered
+        if (message == null || !(message instanceof RequestMessage)) {
+            return;
+        }
+        message.getContext().initializeFromBinary(message.getMessageData());
+        Runnable respond = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    ResponseMessage response = handle(message, receivedAt);
+                    // Round trip the response through its binary form too, as the client would receive it
+                    connection.deliver(ThingworxMessageFactory.fromBinary(response.getContent()));
+                    if (message instanceof BindRequestMessage) {
+                        notifyBound(connection, ((BindRequestMessage) message).getRequestContext());
+                    }
+                } catch (Exception e) {
+                    LOG.warn("Loopback server could not answer a {} : {}", message.getClass().getSimpleName(), e.getMessage());
+                }
+            }
+        };
+        if (latencyMillis > 0) {
+            responders.schedule(respond, latencyMillis, TimeUnit.MILLISECONDS);
+        } else {
+            responders.execute(respond);
+        }
+    }
+
+    // Returns the whole message once its last packet arrived, null before. The request ids are those of the client,
+    // so the packets are collected per connection.
+    private ThingworxMessage reassemble(LoopbackConnection connection, ThingworxMessage packet) throws Exception {
+        ConcurrentHashMap<Integer, PacketCollection> partialRequests = connection.getPartialRequests();
+        int requestId = packet.getContext().getRequestId();
+        PacketCollection packets = partialRequests.get(requestId);
+        if (packets == null) {
+            // A collection only takes the packets of the request and endpoint it was created for
+            PacketCollection created = new PacketCollection();
+            created.setRequestId(requestId);
+            created.setEndpointId(packet.getContext().getEndpointId());
+            packets = partialRequests.putIfAbsent(requestId, created);
+            if (packets == null) {
+                packets = created;
+            }
+        }
+        synchronized (packets) {
+            packets.addMessage(packet);
+            if (!packets.isCompleted()) {
+                return null;
+            }
+        }
+        partialRequests.remove(requestId);
+        return ThingworxMessageFactory.fromBinary(packets.getCombinedPackets());
+    }
+
+    private ResponseMessage handle(ThingworxMessage message, long receivedAt) throws Exception {
+        BaseContext context = message.getContext();
+        int sessionId = context.getSessionId();
+        int endpointId = context.getEndpointId();
+        InfoTable result = null;
+        if (message instanceof AuthRequestMessage) {
+            sessionId = nextSessionId.getAndIncrement();
+            endpointId = nextEndpointId.getAndIncrement();
+        } else if (message instanceof BindRequestMessage) {
+            BindRequestContext bind = ((BindRequestMessage) message).getRequestContext();
+            if (bind.getNames() != null) {
+                long change = bind.getMethod() == RESTAPIConstants.Method.UNBINDREQUEST ? -1 : 1;
+                boundThingCount.addAndGet(change * bind.getNames().size());
+            }
+        } else if (message instanceof APIRequestMessage) {
+            result = handleRequest(((APIRequestMessage) message).getRequestContext(), receivedAt);
+        }
+        return new ResponseMessage(context.getRequestId(), endpointId, sessionId,
+                RESTAPIConstants.StatusCode.STATUS_SUCCESS, null, result);
+    }
+
+    private InfoTable handleRequest(APIRequestContext request, long receivedAt) throws Exception {
+        String target = request.getTarget();
+        if (request.getCharacteristic() == RESTAPIConstants.Characteristic.Services) {
+            if (PROPERTY_SUBSCRIPTIONS_SERVICE.equals(target)) {
+                return propertySubscriptions;
+            }
+            if (EVENT_SUBSCRIPTIONS_SERVICE.equals(target)) {
+                return eventSubscriptions;
+            }
+            InfoTable values = valuesOf(request);
+            if (PROPERTY_UPDATE_SERVICE.equals(target) && values != null) {
+                for (ValueCollection row : values.getRows()) {
+                    IPrimitiveType<?, ?> time = row.getPrimitive("time");
+                    if (time != null && time.getValue() instanceof DateTime) {
+                        pushLatency.record(receivedAt - ((DateTime) time.getValue()).getMillis());
+                    }
+                }
+                propertyUpdateCount.addAndGet(values.getRowCount());
+            } else if (EVENT_SERVICE.equals(target) && values != null) {
+                eventCount.addAndGet(values.getRowCount());
+            }
+            return null;
+        }
+        if (request.getCharacteristic() == RESTAPIConstants.Characteristic.Properties && target != null) {
+            FieldDefinitionCollection fields = new FieldDefinitionCollection();
+            fields.addFieldDefinition(new FieldDefinition(target, BaseTypes.NUMBER));
+            InfoTable result = new InfoTable(new DataShapeDefinition(fields));
+            ValueCollection row = new ValueCollection();
+            row.SetNumberValue(target, propertyValue);
+            result.addRow(row);
+            return result;
+        }
+        return null;
+    }
+
+    // The platform asks newly bound things to load their subscriptions and synchronize their state
+    private void notifyBound(LoopbackConnection connection, BindRequestContext bind) throws Exception {
+        if (bind.getMethod() != RESTAPIConstants.Method.BINDREQUEST || bind.getNames() == null) {
+            return;
+        }
+        for (String name : new ArrayList<String>(bind.getNames())) {
+            APIRequestMessage notify = new APIRequestMessage();
+            notify.getRequestContext().initialize(RelationshipTypes.ThingworxEntityTypes.Things, name,
+                    RESTAPIConstants.Characteristic.Services, NOTIFY_SERVICE, RESTAPIConstants.Method.POST,
+                    new ValueCollection(), new ValueCollection(), null);
+            notify.getRequestContext().setRequestId(nextRequestId.getAndIncrement());
+            notify.getRequestContext().setSessionId(bind.getSessionId());
+            notify.getRequestContext().setEndpointId(bind.getEndpointId());
+            connection.deliver(ThingworxMessageFactory.fromBinary(notify.getContent()));
+        }
+    }
+
+    private static InfoTable valuesOf(APIRequestContext request) {
+        ValueCollection parameters = request.getParameters();
+        Object values = parameters == null ? null : parameters.get("values");
+        if (values instanceof InfoTablePrimitive) {
+            return ((InfoTablePrimitive) values).getValue();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,42 @@
+package com.thingworx.sdk.steam.logging;
+
+import ch.qos.logback.classic.AsyncAppender;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// An asynchronous appender that never blocks the logging thread and counts what it drops.
+// Events go into a bounded queue that one worker thread drains into the attached appender. Once the queue is past
+// the discarding threshold, TRACE, DEBUG and INFO events are dropped, and when it is full every event is dropped,
+// so a slow disk or console can hold up the log output but never a scan.
+public class DroppingAsyncAppender extends AsyncAppender {
+    private final AtomicLong droppedEvents = new AtomicLong();
+
+    public DroppingAsyncAppender() {
+        setNeverBlock(true);
+        setIncludeCallerData(false);
+    }
+
+    @Override
+    protected void append(ILoggingEvent event) {
+        if (getRemainingCapacity() == 0) {
+            droppedEvents.incrementAndGet();
+            return;
+        }
+        super.append(event);
+    }
+
+    // Only asked once the queue is past the discarding threshold, an event that is discardable is dropped
+    @Override
+    protected boolean isDiscardable(ILoggingEvent event) {
+        boolean discard = super.isDiscardable(event);
+        if (discard) {
+            droppedEvents.incrementAndGet();
+        }
+        return discard;
+    }
+
+    public long getDroppedEvents() {
+        return droppedEvents.get();
+    }
+}
@@ -0,0 +1,79 @@
+package com.thingworx.sdk.steam.logging;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.Appender;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+
+// Switches log levels and appenders at runtime, for the command line and the logging services of the things.
+// The names match the appenders of logback.xml.
+public final class LogControl {
+    // The asynchronous appender in front of the rolling log file
+    public static final String FILE_APPENDER = "ROLLING";
+    // The asynchronous appender in front of the console
+    public static final String CONSOLE_APPENDER = "STDOUT";
+
+    private LogControl() {
+    }
+
+    private static LoggerContext context() {
+        return (LoggerContext) LoggerFactory.getILoggerFactory();
+    }
+
+    public static Logger rootLogger() {
+        return context().getLogger(Logger.ROOT_LOGGER_NAME);
+    }
+
+    // Sets the level of loggerName, the root logger when it is null or empty. An unknown level is rejected rather
+    // than turned into DEBUG the way Level.toLevel would.
+    public static void setLevel(String loggerName, String level) {
+        Level parsed = Level.toLevel(level, null);
+        if (parsed == null) {
+            throw new IllegalArgumentException("Unknown log level " + level
+                    + ", use TRACE, DEBUG, INFO, WARN, ERROR, OFF or ALL");
+        }
+        Logger logger = loggerName == null || loggerName.isEmpty() ? rootLogger() : context().getLogger(loggerName);
+        logger.setLevel(parsed);
+    }
+
+    // Removes the appender from the root logger and returns it, so it can be attached again later. Returns null
+    // when the configuration has no such appender.
+    public static Appender<ILoggingEvent> detach(String appenderName) {
+        Logger root = rootLogger();
+        Appender<ILoggingEvent> appender = root.getAppender(appenderName);
+        if (appender != null) {
+            root.detachAppender(appender);
+        }
+        return appender;
+    }
+
+    // Attaching an appender that is already attached does nothing
+    public static void attach(Appender<ILoggingEvent> appender) {
+        rootLogger().addAppender(appender);
+    }
+
+    public static boolean isAttached(Appender<ILoggingEvent> appender) {
+        return rootLogger().isAttached(appender);
+    }
+
+    // Events dropped by the asynchronous appenders of the root logger, attached or found through the appender
+    public static long droppedEvents(Appender<ILoggingEvent> fileAppender) {
+        long dropped = 0;
+        boolean fileCounted = false;
+        for (Iterator<Appender<ILoggingEvent>> it = rootLogger().iteratorForAppenders(); it.hasNext(); ) {
+            Appender<ILoggingEvent> appender = it.next();
+            if (appender instanceof DroppingAsyncAppender) {
+                dropped += ((DroppingAsyncAppender) appender).getDroppedEvents();
+                fileCounted |= appender == fileAppender;
+            }
+        }
+        if (!fileCounted && fileAppender instanceof DroppingAsyncAppender) {
+            dropped += ((DroppingAsyncAppender) fileAppender).getDroppedEvents();
+        }
+        return dropped;
+    }
+}
@@ -0,0 +1,263 @@
+package com.thingworx.sdk.steam.logging;
+
+import com.thingworx.metadata.DataShapeDefinition;
+import com.thingworx.metadata.FieldDefinition;
+import com.thingworx.metadata.collections.FieldDefinitionCollection;
+import com.thingworx.sdk.steam.payload.Compression;
+import com.thingworx.types.BaseTypes;
+import com.thingworx.types.InfoTable;
+import com.thingworx.types.collections.ValueCollection;
+import com.thingworx.types.primitives.BlobPrimitive;
+import org.joda.time.DateTime;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+// Ships the log directory incrementally. A caller asks for the bytes of a file past the offset it already has and
+// gets only those, compressed, with the offset to continue from, so a few new lines cost a few hundred bytes
+// instead of the whole file.
+// The agent also remembers, for every caller, the next offset of every file it shipped together with the identity of
+// the file, a caller that does not pass an offset continues from there. A file that was rotated away and replaced by
+// a new one under the same name has another identity, and is read from the start even when it already grew past the
+// old offset. Logback compresses the segments it rotates into .gz files, those are shipped as they are.
+public final class LogShipper {
+    public static final String DATA_SHAPE = "SteamSensor.LogChunk";
+    public static final String FILE_DATA_SHAPE = "SteamSensor.LogFile";
+    // The file logback.xml writes to, every other .log file is a rotated segment
+    public static final String ACTIVE_FILE = "SteamSensor.log";
+    public static final int DEFAULT_MAX_BYTES = 256 * 1024;
+    public static final int MAX_BYTES = 4 * 1024 * 1024;
+
+    private static final String SEALED_SUFFIX = ".gz";
+
+    private final File directory;
+    // The cursor of every caller and file shipped so far, by cursorKey
+    private final ConcurrentHashMap<String, Cursor> cursors = new ConcurrentHashMap<String, Cursor>();
+
+    public LogShipper(File directory) {
+        this.directory = directory;
+    }
+
+    public static FieldDefinitionCollection dataShapeFields() {
+        FieldDefinitionCollection fields = new FieldDefinitionCollection();
+        fields.addFieldDefinition(new FieldDefinition("file", BaseTypes.STRING));
+        fields.addFieldDefinition(new FieldDefinition("offset", BaseTypes.LONG));
+        fields.addFieldDefinition(new FieldDefinition("nextOffset", BaseTypes.LONG));
+        fields.addFieldDefinition(new FieldDefinition("fileSize", BaseTypes.LONG));
+        // The identity of the file, to pass back with nextOffset
+        fields.addFieldDefinition(new FieldDefinition("fileId", BaseTypes.STRING));
+        // True when the file is not the one the offset belongs to or is shorter than it, it was rotated and is read
+        // from the start
+        fields.addFieldDefinition(new FieldDefinition("restarted", BaseTypes.BOOLEAN));
+        fields.addFieldDefinition(new FieldDefinition("compression", BaseTypes.STRING));
+        fields.addFieldDefinition(new FieldDefinition("checksum", BaseTypes.LONG));
+        fields.addFieldDefinition(new FieldDefinition("data", BaseTypes.BLOB));
+        return fields;
+    }
+
+    public static FieldDefinitionCollection fileDataShapeFields() {
+        FieldDefinitionCollection fields = new FieldDefinitionCollection();
+        fields.addFieldDefinition(new FieldDefinition("file", BaseTypes.STRING));
+        fields.addFieldDefinition(new FieldDefinition("size", BaseTypes.LONG));
+        fields.addFieldDefinition(new FieldDefinition("lastModified", BaseTypes.DATETIME));
+        fields.addFieldDefinition(new FieldDefinition("sealed", BaseTypes.BOOLEAN));
+        fields.addFieldDefinition(new FieldDefinition("fileId", BaseTypes.STRING));
+        fields.addFieldDefinition(new FieldDefinition("shippedOffset", BaseTypes.LONG));
+        return fields;
+    }
+
+    // The files of the log directory, oldest first, with the offset shipped to caller so far
+    public InfoTable listFiles(String caller, DataShapeDefinition shape) throws Exception {
+        File[] files = directory.listFiles();
+        InfoTable table = new InfoTable(shape);
+        if (files == null) {
+            return table;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+        for (File file : files) {
+            if (!file.isFile()) {
+                continue;
+            }
+            String fileId = identityOf(file);
+            Cursor cursor = cursors.get(cursorKey(caller, file.getName()));
+            ValueCollection row = new ValueCollection();
+            row.SetStringValue("file", file.getName());
+            row.SetLongValue("size", file.length());
+            row.SetDateTimeValue("lastModified", new DateTime(file.lastModified()));
+            row.SetBooleanValue("sealed", file.getName().endsWith(SEALED_SUFFIX));
+            row.SetStringValue("fileId", fileId);
+            row.SetLongValue("shippedOffset", cursor == null || !cursor.fileId.equals(fileId) ? 0 : cursor.offset);
+            table.addRow(row);
+        }
+        return table;
+    }
+
+    // The bytes of fileName from offset on, at most maxBytes of them before compression. Without an offset the
+    // file continues where the last call of caller for it stopped. fileId is the identity the offset belongs to,
+    // when it is given and the file has another one the file is read from the start. Plain files are cut after the
+    // last complete line, so a line still being written is shipped whole by the next call.
+    public InfoTable read(String caller, String fileName, Long offset, String fileId, int maxBytes,
+                          Compression compression, DataShapeDefinition shape) throws Exception {
+        File file = resolve(fileName);
+        int limit = Math.max(1, Math.min(maxBytes, MAX_BYTES));
+        boolean sealed = fileName.endsWith(SEALED_SUFFIX);
+        String key = cursorKey(caller, fileName);
+        long start = 0;
+        String expectedId = null;
+        if (offset != null) {
+            start = offset;
+            expectedId = fileId == null || fileId.isEmpty() ? null : fileId;
+        } else {
+            Cursor cursor = cursors.get(key);
+            if (cursor != null) {
+                start = cursor.offset;
+                expectedId = cursor.fileId;
+            }
+        }
+        if (start < 0) {
+            throw new IllegalArgumentException("offset must not be negative");
+        }
+
+        // The identity is read before the file is opened, a rotation in between is seen by the next call
+        String currentId = identityOf(file);
+        boolean restarted = false;
+        if (expectedId != null && !expectedId.equals(currentId)) {
+            start = 0;
+            restarted = true;
+        }
+        byte[] data;
+        long fileSize;
+        int length;
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            fileSize = channel.size();
+            if (start > fileSize) {
+                start = 0;
+                restarted = true;
+            }
+            // Only the new bytes are read, with positional reads that leave the file position alone
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(limit, fileSize - start));
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, start + buffer.position()) < 0) {
+                    break;
+                }
+            }
+            data = buffer.array();
+            length = buffer.position();
+        } finally {
+            channel.close();
+        }
+        if (!sealed) {
+            length = completeLines(data, length);
+        }
+        long nextOffset = start + length;
+        if (cursors.put(key, new Cursor(currentId, nextOffset)) == null) {
+            forgetDeletedFiles();
+        }
+
+        // A sealed segment is compressed already
+        Compression used = sealed ? Compression.NONE : compression;
+        byte[] payload = compress(data, length, used);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        InfoTable table = new InfoTable(shape);
+        ValueCollection row = new ValueCollection();
+        row.SetStringValue("file", fileName);
+        row.SetLongValue("offset", start);
+        row.SetLongValue("nextOffset", nextOffset);
+        row.SetLongValue("fileSize", fileSize);
+        row.SetStringValue("fileId", currentId);
+        row.SetBooleanValue("restarted", restarted);
+        row.SetStringValue("compression", used.name());
+        row.SetLongValue("checksum", crc.getValue());
+        row.put("data", new BlobPrimitive(payload));
+        table.addRow(row);
+        return table;
+    }
+
+    // The file names hold no slash, so the caller is whatever comes before the last one
+    private static String cursorKey(String caller, String fileName) {
+        return (caller == null ? "" : caller) + "/" + fileName;
+    }
+
+    // The file key, the device and inode on Unix, or the creation time where the file system has no key
+    private static String identityOf(File file) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+        Object fileKey = attributes.fileKey();
+        return fileKey != null ? fileKey.toString() : "created:" + attributes.creationTime().toMillis();
+    }
+
+    // Drops the cursors of the segments logback deleted, checked whenever a cursor is added
+    private void forgetDeletedFiles() {
+        Iterator<Map.Entry<String, Cursor>> entries = cursors.entrySet().iterator();
+        while (entries.hasNext()) {
+            String key = entries.next().getKey();
+            if (!new File(directory, key.substring(key.lastIndexOf('/') + 1)).isFile()) {
+                entries.remove();
+            }
+        }
+    }
+
+    // Only plain names of files in the log directory, nothing outside it
+    private File resolve(String fileName) {
+        if (fileName == null || fileName.isEmpty() || fileName.contains("/") || fileName.contains("\\")
+                || fileName.startsWith(".")) {
+            throw new IllegalArgumentException("Invalid log file name " + fileName);
+        }
+        File file = new File(directory, fileName);
+        if (!file.isFile()) {
+            throw new IllegalArgumentException("No log file " + fileName);
+        }
+        return file;
+    }
+
+    // The length up to and including the last line feed, or all of it when there is none
+    private static int completeLines(byte[] data, int length) {
+        for (int i = length - 1; i >= 0; i--) {
+            if (data[i] == '\n') {
+                return i + 1;
+            }
+        }
+        return length;
+    }
+
+    private static byte[] compress(byte[] data, int length, Compression compression) throws IOException {
+        if (compression == Compression.NONE) {
+            return length == data.length ? data : Arrays.copyOf(data, length);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.max(64, length / 4));
+        OutputStream out = compression.wrap(bytes);
+        out.write(data, 0, length);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static final class Cursor {
+        private final String fileId;
+        private final long offset;
+
+        private Cursor(String fileId, long offset) {
+            this.fileId = fileId;
+            this.offset = offset;
+        }
+    }
+}
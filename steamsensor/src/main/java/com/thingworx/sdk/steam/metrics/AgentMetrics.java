@@ -0,0 +1,338 @@
+package com.thingworx.sdk.steam.metrics;
+
+import com.thingworx.communications.client.ConnectedThingClient;
+import com.thingworx.communications.client.ConnectedThingClientChangeEvent;
+import com.thingworx.communications.client.ConnectedThingClientChangeListener;
+import com.thingworx.communications.client.things.VirtualThing;
+import com.thingworx.metadata.DataShapeDefinition;
+import com.thingworx.metadata.FieldDefinition;
+import com.thingworx.metadata.collections.FieldDefinitionCollection;
+import com.thingworx.types.BaseTypes;
+import com.thingworx.types.InfoTable;
+import com.thingworx.types.collections.ValueCollection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+// The runtime metrics of the agent: histograms of the scan and push timings, counters of the errors, overruns and
+// reconnects, and gauges of the queue depths. One instance is shared by the scheduler, the flush coordinator and
+// the things of a client. The metrics are reported by the GetAgentMetrics service, as the properties of the
+// AgentThing, and over JMX under com.thingworx.sdk.steam:type=AgentMetrics.
+public class AgentMetrics implements AgentMetricsMXBean {
+    private static final Logger LOG = LoggerFactory.getLogger(AgentMetrics.class);
+
+    public static final String DATA_SHAPE = "SteamSensor.AgentMetric";
+    public static final String SCAN_DURATION = "ScanDuration";
+    public static final String SCAN_CYCLE_DURATION = "ScanCycleDuration";
+    public static final String SHARD_SCAN_DURATION = "ShardScanDuration";
+    public static final String PROPERTY_PUSH_LATENCY = "PropertyPushLatency";
+    public static final String EVENT_PUSH_LATENCY = "EventPushLatency";
+    public static final String SCAN_ERRORS = "ScanErrors";
+    public static final String SCAN_OVERRUNS = "ScanOverruns";
+    public static final String PUSH_ERRORS = "PushErrors";
+    public static final String RECONNECTS = "Reconnects";
+    public static final String FAULT_EVENTS_DROPPED = "FaultEventsDropped";
+    public static final String FAULT_EVENTS_COALESCED = "FaultEventsCoalesced";
+    public static final String FAULT_EVENTS_HELD = "FaultEventsHeld";
+    public static final String FAULT_BACKPRESSURED_SENSORS = "FaultBackpressuredSensors";
+    public static final String PENDING_EVENTS = "PendingEvents";
+    public static final String PENDING_PROPERTY_UPDATES = "PendingPropertyUpdates";
+
+    private static final String DOMAIN = "com.thingworx.sdk.steam";
+
+    private final Histogram scanDuration = new Histogram("us");
+    private final Histogram scanCycleDuration = new Histogram("us");
+    private final Histogram shardScanDuration = new Histogram("us");
+    private final Histogram propertyPushLatency = new Histogram("us");
+    private final Histogram eventPushLatency = new Histogram("us");
+    private final AtomicLong scanErrors = new AtomicLong();
+    private final AtomicLong scanOverruns = new AtomicLong();
+    private final AtomicLong pushErrors = new AtomicLong();
+    private final AtomicLong reconnects = new AtomicLong();
+    private final AtomicLong faultEventsDropped = new AtomicLong();
+    private final AtomicLong faultEventsCoalesced = new AtomicLong();
+    private final AtomicLong faultEventsHeld = new AtomicLong();
+    private final AtomicLong faultBackpressuredSensors = new AtomicLong();
+    private volatile long firstPushNanos = 0;
+    private final Map<String, Histogram> histograms = new LinkedHashMap<String, Histogram>();
+    // Guarded by itself, gauges are registered while the agent starts and read whenever the metrics are reported
+    private final Map<String, Gauge> gauges = new LinkedHashMap<String, Gauge>();
+    private final List<ObjectName> registeredNames = new ArrayList<ObjectName>();
+
+    public AgentMetrics() {
+        histograms.put(SCAN_DURATION, scanDuration);
+        histograms.put(SCAN_CYCLE_DURATION, scanCycleDuration);
+        histograms.put(SHARD_SCAN_DURATION, shardScanDuration);
+        histograms.put(PROPERTY_PUSH_LATENCY, propertyPushLatency);
+        histograms.put(EVENT_PUSH_LATENCY, eventPushLatency);
+        registerGauge(SCAN_ERRORS, counter(scanErrors));
+        registerGauge(SCAN_OVERRUNS, counter(scanOverruns));
+        registerGauge(PUSH_ERRORS, counter(pushErrors));
+        registerGauge(FAULT_EVENTS_DROPPED, counter(faultEventsDropped));
+        registerGauge(FAULT_EVENTS_COALESCED, counter(faultEventsCoalesced));
+        registerGauge(FAULT_EVENTS_HELD, counter(faultEventsHeld));
+        registerGauge(FAULT_BACKPRESSURED_SENSORS, counter(faultBackpressuredSensors));
+        registerGauge(RECONNECTS, counter(reconnects));
+    }
+
+    private static Gauge counter(final AtomicLong value) {
+        return new Gauge() {
+            @Override
+            public long getValue() {
+                return value.get();
+            }
+        };
+    }
+
+    // Time one thing takes to scan, in microseconds
+    public Histogram getScanDuration() {
+        return scanDuration;
+    }
+
+    // Time from the tick of the first shard of a scan cycle until the last shard has scanned all its things, in
+    // microseconds. With phasing it includes the phase offsets of the shards.
+    public Histogram getScanCycleDuration() {
+        return scanCycleDuration;
+    }
+
+    // Time one shard takes to scan all its things, in microseconds. A shard overruns when it exceeds the scan rate.
+    public Histogram getShardScanDuration() {
+        return shardScanDuration;
+    }
+
+    // Time of one updateSubscribedProperties call, in microseconds
+    public Histogram getPropertyPushLatency() {
+        return propertyPushLatency;
+    }
+
+    // Time of one updateSubscribedEvents call, in microseconds
+    public Histogram getEventPushLatency() {
+        return eventPushLatency;
+    }
+
+    // Records a property push that started at startNanos, the first one also marks the time of the first push
+    public void recordPropertyPush(long startNanos) {
+        propertyPushLatency.recordMicrosSince(startNanos);
+        if (firstPushNanos == 0) {
+            firstPushNanos = System.nanoTime();
+        }
+    }
+
+    // The System.nanoTime() of the first property push, 0 before it
+    public long getFirstPushNanos() {
+        return firstPushNanos;
+    }
+
+    public void countScanError() {
+        scanErrors.incrementAndGet();
+    }
+
+    public void countScanOverrun() {
+        scanOverruns.incrementAndGet();
+    }
+
+    public void countPushError() {
+        pushErrors.incrementAndGet();
+    }
+
+    // Counts what happened to the faults of a thing since its last flush: dropped from a full queue, coalesced into
+    // a waiting fault, and whether some had to wait for the rate limit or for earlier events to go out
+    public void countFaultEvents(long dropped, long coalesced, boolean held) {
+        if (dropped > 0) {
+            faultEventsDropped.addAndGet(dropped);
+        }
+        if (coalesced > 0) {
+            faultEventsCoalesced.addAndGet(coalesced);
+        }
+        if (held) {
+            faultEventsHeld.incrementAndGet();
+        }
+    }
+
+    // A sensor went into fault backpressure, its faults arrive faster than they may be sent, or out of it
+    public void countFaultBackpressure(boolean backpressured) {
+        if (backpressured) {
+            faultBackpressuredSensors.incrementAndGet();
+        } else {
+            faultBackpressuredSensors.decrementAndGet();
+        }
+    }
+
+    public void registerGauge(String name, Gauge gauge) {
+        synchronized (gauges) {
+            gauges.put(name, gauge);
+        }
+    }
+
+    // Histograms kept elsewhere, reported with the histograms of the agent. Register them before the metrics are
+    // first reported.
+    public void registerHistogram(String name, Histogram histogram) {
+        histograms.put(name, histogram);
+    }
+
+    public void attach(ConnectedThingClient client) {
+        attach(Collections.singletonList(client));
+    }
+
+    // Counts the reconnects of the clients and reports the property updates and events their things have queued
+    public void attach(final List<? extends ConnectedThingClient> clients) {
+        for (ConnectedThingClient client : clients) {
+            client.addChangeListener(new ConnectedThingClientChangeListener() {
+                // The first connection of a client is not a reconnect
+                private volatile boolean opened = false;
+
+                @Override
+                public void clientChangeEventReceived(ConnectedThingClientChangeEvent event) {
+                    if (event.getEventName() == ConnectedThingClientChangeEvent.EventName.ENDPOINT_OPENED) {
+                        if (opened) {
+                            reconnects.incrementAndGet();
+                        }
+                        opened = true;
+                    }
+                }
+            });
+        }
+        registerGauge(PENDING_EVENTS, new Gauge() {
+            @Override
+            public long getValue() {
+                long pending = 0;
+                for (ConnectedThingClient client : clients) {
+                    for (VirtualThing thing : client.getThings().values()) {
+                        pending += thing.getPendingEvents().size();
+                    }
+                }
+                return pending;
+            }
+        });
+        registerGauge(PENDING_PROPERTY_UPDATES, new Gauge() {
+            @Override
+            public long getValue() {
+                long pending = 0;
+                for (ConnectedThingClient client : clients) {
+                    for (VirtualThing thing : client.getThings().values()) {
+                        pending += thing.getPendingPropertyUpdates().size();
+                    }
+                }
+                return pending;
+            }
+        });
+    }
+
+    public Histogram getHistogram(String name) {
+        return histograms.get(name);
+    }
+
+    // The current value of a counter or gauge, 0 when there is none of that name
+    public long getValue(String name) {
+        Gauge gauge;
+        synchronized (gauges) {
+            gauge = gauges.get(name);
+        }
+        return gauge == null ? 0 : gauge.getValue();
+    }
+
+    @Override
+    public Map<String, Long> getValues() {
+        Map<String, Gauge> current;
+        synchronized (gauges) {
+            current = new LinkedHashMap<String, Gauge>(gauges);
+        }
+        Map<String, Long> values = new LinkedHashMap<String, Long>();
+        for (Map.Entry<String, Gauge> entry : current.entrySet()) {
+            values.put(entry.getKey(), entry.getValue().getValue());
+        }
+        return values;
+    }
+
+    // Clears the histograms, the counters keep counting since the start of the agent
+    @Override
+    public void reset() {
+        for (Histogram histogram : histograms.values()) {
+            histogram.reset();
+        }
+    }
+
+    public static FieldDefinitionCollection dataShapeFields() {
+        FieldDefinitionCollection fields = new FieldDefinitionCollection();
+        fields.addFieldDefinition(new FieldDefinition("name", BaseTypes.STRING));
+        fields.addFieldDefinition(new FieldDefinition("unit", BaseTypes.STRING));
+        fields.addFieldDefinition(new FieldDefinition("count", BaseTypes.LONG));
+        fields.addFieldDefinition(new FieldDefinition("value", BaseTypes.LONG));
+        fields.addFieldDefinition(new FieldDefinition("mean", BaseTypes.NUMBER));
+        fields.addFieldDefinition(new FieldDefinition("p50", BaseTypes.LONG));
+        fields.addFieldDefinition(new FieldDefinition("p90", BaseTypes.LONG));
+        fields.addFieldDefinition(new FieldDefinition("p99", BaseTypes.LONG));
+        fields.addFieldDefinition(new FieldDefinition("max", BaseTypes.LONG));
+        return fields;
+    }
+
+    // One row per histogram with its statistics, followed by one row per counter and gauge with its value
+    public InfoTable toInfoTable(DataShapeDefinition shape) throws Exception {
+        InfoTable table = new InfoTable(shape);
+        for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+            Histogram histogram = entry.getValue();
+            ValueCollection row = new ValueCollection();
+            row.SetStringValue("name", entry.getKey());
+            row.SetStringValue("unit", histogram.getUnit());
+            row.SetLongValue("count", histogram.getCount());
+            row.SetNumberValue("mean", histogram.getMean());
+            row.SetLongValue("p50", histogram.getP50());
+            row.SetLongValue("p90", histogram.getP90());
+            row.SetLongValue("p99", histogram.getP99());
+            row.SetLongValue("max", histogram.getMax());
+            table.addRow(row);
+        }
+        for (Map.Entry<String, Long> entry : getValues().entrySet()) {
+            ValueCollection row = new ValueCollection();
+            row.SetStringValue("name", entry.getKey());
+            row.SetLongValue("value", entry.getValue());
+            table.addRow(row);
+        }
+        return table;
+    }
+
+    // Registers these metrics, and every histogram on its own, with the platform MBean server
+    public synchronized void registerMBeans() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            register(server, new ObjectName(DOMAIN + ":type=AgentMetrics"), this);
+            for (Map.Entry<String, Histogram> entry : histograms.entrySet()) {
+                register(server, new ObjectName(DOMAIN + ":type=AgentMetrics,name=" + entry.getKey()), entry.getValue());
+            }
+        } catch (Exception e) {
+            LOG.warn("Could not register the agent metrics with JMX : {}", e.getMessage());
+        }
+    }
+
+    private void register(MBeanServer server, ObjectName name, Object bean) throws Exception {
+        // Replaces the metrics of an earlier client in the same JVM
+        if (server.isRegistered(name)) {
+            server.unregisterMBean(name);
+        }
+        server.registerMBean(bean, name);
+        registeredNames.add(name);
+    }
+
+    public synchronized void unregisterMBeans() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : registeredNames) {
+            try {
+                if (server.isRegistered(name)) {
+                    server.unregisterMBean(name);
+                }
+            } catch (Exception e) {
+                LOG.debug("Could not unregister {} : {}", name, e.getMessage());
+            }
+        }
+        registeredNames.clear();
+    }
+}
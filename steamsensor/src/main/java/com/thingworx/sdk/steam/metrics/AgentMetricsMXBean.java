@@ -0,0 +1,10 @@
+package com.thingworx.sdk.steam.metrics;
+
+import java.util.Map;
+
+// The JMX view of the agent counters and gauges, the histograms are registered as HistogramMXBeans of their own
+public interface AgentMetricsMXBean {
+    Map<String, Long> getValues();
+
+    void reset();
+}
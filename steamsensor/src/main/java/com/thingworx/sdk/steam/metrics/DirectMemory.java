@@ -0,0 +1,56 @@
+package com.thingworx.sdk.steam.metrics;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+
+// The memory of the direct buffers, outside the heap, and the limit the JVM puts on it.
+// The limit is -XX:MaxDirectMemorySize when it is set, and the maximum heap size otherwise, which is the default of
+// the JVM. Allocating beyond it fails with an OutOfMemoryError even when the heap has room.
+public final class DirectMemory {
+    private static final String MAX_DIRECT_MEMORY_OPTION = "-XX:MaxDirectMemorySize=";
+
+    private DirectMemory() {
+    }
+
+    // The memory of the direct buffers in use
+    public static long used() {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if ("direct".equals(pool.getName())) {
+                return pool.getMemoryUsed();
+            }
+        }
+        return 0;
+    }
+
+    // The most memory the direct buffers may take
+    public static long max() {
+        long max = Runtime.getRuntime().maxMemory();
+        for (String argument : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (argument.startsWith(MAX_DIRECT_MEMORY_OPTION)) {
+                long size = parseSize(argument.substring(MAX_DIRECT_MEMORY_OPTION.length()));
+                // 0 is the default as well, the last occurrence of the option wins
+                max = size > 0 ? size : Runtime.getRuntime().maxMemory();
+            }
+        }
+        return max;
+    }
+
+    // A size as the JVM options take it, such as 512m or 2G
+    static long parseSize(String value) {
+        String size = value.trim().toLowerCase();
+        long unit = 1;
+        if (size.endsWith("k")) {
+            unit = 1L << 10;
+        } else if (size.endsWith("m")) {
+            unit = 1L << 20;
+        } else if (size.endsWith("g")) {
+            unit = 1L << 30;
+        } else if (size.endsWith("t")) {
+            unit = 1L << 40;
+        }
+        if (unit != 1) {
+            size = size.substring(0, size.length() - 1);
+        }
+        return Long.parseLong(size) * unit;
+    }
+}
@@ -0,0 +1,6 @@
+package com.thingworx.sdk.steam.metrics;
+
+// A value that is read when the metrics are reported, such as the length of a queue
+public interface Gauge {
+    long getValue();
+}
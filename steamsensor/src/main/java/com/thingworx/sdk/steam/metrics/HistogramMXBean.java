@@ -0,0 +1,22 @@
+package com.thingworx.sdk.steam.metrics;
+
+// The JMX view of a Histogram, every histogram of the agent metrics is registered as its own MBean
+public interface HistogramMXBean {
+    String getUnit();
+
+    long getCount();
+
+    double getMean();
+
+    long getMax();
+
+    long getP50();
+
+    long getP90();
+
+    long getP99();
+
+    long getP999();
+
+    void reset();
+}
@@ -0,0 +1,194 @@
+package com.thingworx.sdk.steam.payload;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+// An immutable, possibly compressed payload split into numbered chunks.
+// The content only depends on the size, so the payload id (size, compression and chunk size) is enough to build the
+// same chunks again. A caller that lost its connection resumes by asking for the next chunk it is missing, even if
+// the payload was evicted from the cache or the agent restarted in the meantime.
+public final class ChunkedPayload {
+    public static final int MIN_CHUNK_SIZE = 1024;
+    public static final int MAX_CHUNK_SIZE = 1024 * 1024;
+    public static final int MAX_SIZE = 64 * 1024 * 1024;
+
+    private final String id;
+    private final int size;
+    private final Compression compression;
+    private final int chunkSize;
+    private final List<byte[]> chunks;
+    private final long[] checksums;
+    private final long storedSize;
+
+    private ChunkedPayload(int size, Compression compression, int chunkSize, List<byte[]> chunks) {
+        this.id = idOf(size, compression, chunkSize);
+        this.size = size;
+        this.compression = compression;
+        this.chunkSize = chunkSize;
+        this.chunks = Collections.unmodifiableList(chunks);
+        this.checksums = new long[chunks.size()];
+        long stored = 0;
+        for (int i = 0; i < chunks.size(); i++) {
+            CRC32 crc = new CRC32();
+            crc.update(chunks.get(i));
+            checksums[i] = crc.getValue();
+            stored += chunks.get(i).length;
+        }
+        this.storedSize = stored;
+    }
+
+    public static String idOf(int size, Compression compression, int chunkSize) {
+        return size + "-" + compression + "-" + chunkSize;
+    }
+
+    // Builds the payload identified by an id returned by getId()
+    public static ChunkedPayload fromId(String id) throws IOException {
+        String[] parts = id == null ? new String[0] : id.split("-");
+        if (parts.length != 3) {
+            throw new IllegalArgumentException("Unknown payload id " + id);
+        }
+        return generate(Integer.parseInt(parts[0]), Compression.fromString(parts[1]), Integer.parseInt(parts[2]));
+    }
+
+    // The content is streamed through the compressor straight into the chunks, the uncompressed payload is never
+    // held in memory as a whole
+    public static ChunkedPayload generate(int size, Compression compression, int chunkSize) throws IOException {
+        if (size < 0 || size > MAX_SIZE) {
+            throw new IllegalArgumentException("size must be between 0 and " + MAX_SIZE);
+        }
+        if (chunkSize < MIN_CHUNK_SIZE || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("chunkSize must be between " + MIN_CHUNK_SIZE + " and " + MAX_CHUNK_SIZE);
+        }
+        ChunkingOutputStream chunker = new ChunkingOutputStream(chunkSize);
+        OutputStream out = compression.wrap(chunker);
+        writeContent(out, size);
+        out.close();
+        return new ChunkedPayload(size, compression, chunkSize, chunker.finish());
+    }
+
+    // Diagnostic text of exactly size bytes, standing in for a real diagnostic dump
+    private static void writeContent(OutputStream out, int size) throws IOException {
+        StringBuilder line = new StringBuilder(80);
+        byte[] buffer = new byte[8192];
+        int fill = 0;
+        int written = 0;
+        for (int lineNumber = 0; written < size; lineNumber++) {
+            line.setLength(0);
+            int hash = lineNumber * 0x9e3779b1;
+            line.append(lineNumber).append(" SteamSensor diagnostic temperature=").append(400 + ((hash >>> 8) % 40))
+                    .append(" pressure=").append(18 + ((hash >>> 16) % 5)).append(" flow=").append(hash >>> 20)
+                    .append('\n');
+            for (int i = 0; i < line.length() && written < size; i++, written++) {
+                buffer[fill++] = (byte) line.charAt(i);
+                if (fill == buffer.length) {
+                    out.write(buffer, 0, fill);
+                    fill = 0;
+                }
+            }
+        }
+        out.write(buffer, 0, fill);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public Compression getCompression() {
+        return compression;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    public int getChunkCount() {
+        return chunks.size();
+    }
+
+    // The number of bytes of all chunks, after compression
+    public long getStoredSize() {
+        return storedSize;
+    }
+
+    public byte[] getChunk(int sequence) {
+        if (sequence < 0 || sequence >= chunks.size()) {
+            throw new IndexOutOfBoundsException("Chunk " + sequence + " of payload " + id + " does not exist");
+        }
+        return chunks.get(sequence);
+    }
+
+    public long getChecksum(int sequence) {
+        getChunk(sequence);
+        return checksums[sequence];
+    }
+
+    // Only valid for uncompressed payloads
+    public String asString() {
+        if (compression != Compression.NONE) {
+            throw new IllegalStateException("Payload " + id + " is compressed");
+        }
+        StringBuilder result = new StringBuilder(size);
+        for (byte[] chunk : chunks) {
+            result.append(new String(chunk, StandardCharsets.US_ASCII));
+        }
+        return result.toString();
+    }
+
+    // Cuts what is written to it into chunks of exactly chunkSize bytes, the last one may be shorter
+    private static final class ChunkingOutputStream extends OutputStream {
+        private final int chunkSize;
+        private final List<byte[]> chunks = new ArrayList<byte[]>();
+        private byte[] current;
+        private int position;
+
+        private ChunkingOutputStream(int chunkSize) {
+            this.chunkSize = chunkSize;
+            this.current = new byte[chunkSize];
+        }
+
+        @Override
+        public void write(int b) {
+            if (position == chunkSize) {
+                chunks.add(current);
+                current = new byte[chunkSize];
+                position = 0;
+            }
+            current[position++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) {
+            while (length > 0) {
+                if (position == chunkSize) {
+                    chunks.add(current);
+                    current = new byte[chunkSize];
+                    position = 0;
+                }
+                int count = Math.min(length, chunkSize - position);
+                System.arraycopy(data, offset, current, position, count);
+                position += count;
+                offset += count;
+                length -= count;
+            }
+        }
+
+        private List<byte[]> finish() {
+            if (position > 0) {
+                byte[] last = new byte[position];
+                System.arraycopy(current, 0, last, 0, position);
+                chunks.add(last);
+            }
+            current = null;
+            return chunks;
+        }
+    }
+}
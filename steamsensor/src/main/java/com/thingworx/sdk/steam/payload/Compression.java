@@ -0,0 +1,31 @@
+package com.thingworx.sdk.steam.payload;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+// How a large payload is compressed before it is split into chunks
+public enum Compression {
+    NONE,
+    GZIP,
+    DEFLATE;
+
+    public static Compression fromString(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return GZIP;
+        }
+        return Compression.valueOf(value.trim().toUpperCase());
+    }
+
+    public OutputStream wrap(OutputStream out) throws IOException {
+        switch (this) {
+            case GZIP:
+                return new GZIPOutputStream(out, 8192);
+            case DEFLATE:
+                return new DeflaterOutputStream(out);
+            default:
+                return out;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.thingworx.sdk.steam.payload;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Keeps recently requested payloads so their chunks can be fetched one service call at a time without building the
+// payload again. The least recently used payloads are dropped when the stored bytes exceed the budget, an evicted
+// payload is simply built again from its id when it is asked for.
+public class PayloadCache {
+    private static final Logger LOG = LoggerFactory.getLogger(PayloadCache.class);
+
+    private final long budget;
+    private final LinkedHashMap<String, ChunkedPayload> payloads = new LinkedHashMap<String, ChunkedPayload>(16, 0.75f, true);
+    private long storedSize = 0;
+
+    public PayloadCache(long budget) {
+        this.budget = budget;
+    }
+
+    public ChunkedPayload get(int size, Compression compression, int chunkSize) throws IOException {
+        return get(ChunkedPayload.idOf(size, compression, chunkSize));
+    }
+
+    public ChunkedPayload get(String id) throws IOException {
+        synchronized (this) {
+            ChunkedPayload payload = payloads.get(id);
+            if (payload != null) {
+                return payload;
+            }
+        }
+        // Built outside the lock, chunks of cached payloads stay available meanwhile. Two callers asking for the
+        // same missing payload at once both build it, which is harmless because the content is the same.
+        long started = System.currentTimeMillis();
+        ChunkedPayload payload = ChunkedPayload.fromId(id);
+        LOG.debug("Built payload {} of {} bytes in {} ms.", id, payload.getStoredSize(),
+                System.currentTimeMillis() - started);
+        put(payload);
+        return payload;
+    }
+
+    public synchronized long getStoredSize() {
+        return storedSize;
+    }
+
+    private synchronized void put(ChunkedPayload payload) {
+        ChunkedPayload previous = payloads.put(payload.getId(), payload);
+        if (previous != null) {
+            storedSize -= previous.getStoredSize();
+        }
+        storedSize += payload.getStoredSize();
+        // The payload just added is kept even if it alone exceeds the budget, its chunks are about to be fetched
+        Iterator<Map.Entry<String, ChunkedPayload>> oldest = payloads.entrySet().iterator();
+        while (storedSize > budget && payloads.size() > 1 && oldest.hasNext()) {
+            ChunkedPayload evicted = oldest.next().getValue();
+            if (evicted == payload) {
+                continue;
+            }
+            oldest.remove();
+            storedSize -= evicted.getStoredSize();
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package com.thingworx.sdk.steam.readings;
+
+import com.thingworx.metadata.DataShapeDefinition;
+import com.thingworx.types.InfoTable;
+import com.thingworx.types.collections.ValueCollection;
+import org.joda.time.DateTime;
+
+// The most recent readings of one steam sensor, in a fixed size ring of primitive columns.
+// Appending a reading does not allocate, so the scan can record every reading. Queries return pages of the
+// SteamSensorReadings data shape, newest reading first. The last page built is kept and returned again as long as
+// no reading was added and the same page is asked for, so polling mashups do not rebuild the table on every call.
+public final class ReadingsStore {
+    public static final String SENSOR_NAME_FIELD = "SensorName";
+    public static final String ACTIVE_TIME_FIELD = "ActivationTime";
+    public static final String TEMPERATURE_FIELD = "OutsideTemperature";
+    public static final String PRESSURE_FIELD = "BarometricPressure";
+    public static final String FAULT_STATUS_FIELD = "CurrentFaultStatus";
+    public static final String INLET_VALVE_FIELD = "CurrentInletValve";
+    public static final String TEMPERATURE_LIMIT_FIELD = "RatedTemperatureLimit";
+    public static final String TOTAL_FLOW_FIELD = "TotalFlowAmount";
+
+    public static final int DEFAULT_LIMIT = 100;
+    public static final int MAX_LIMIT = 1000;
+
+    private final long[] times;
+    private final double[] temperatures;
+    private final double[] pressures;
+    private final boolean[] faultStatuses;
+    private final boolean[] inletValves;
+    private final double[] temperatureLimits;
+    private final double[] totalFlows;
+    private int next = 0;
+    private int size = 0;
+    private long version = 0;
+
+    // The last page built, valid while version has not changed
+    private InfoTable cachedPage;
+    private long cachedVersion = -1;
+    private int cachedOffset;
+    private int cachedLimit;
+    private long cachedStart;
+    private long cachedEnd;
+
+    public ReadingsStore(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        times = new long[capacity];
+        temperatures = new double[capacity];
+        pressures = new double[capacity];
+        faultStatuses = new boolean[capacity];
+        inletValves = new boolean[capacity];
+        temperatureLimits = new double[capacity];
+        totalFlows = new double[capacity];
+    }
+
+    public synchronized void append(long time, double temperature, double pressure, boolean faultStatus,
+                                    boolean inletValve, double temperatureLimit, double totalFlow) {
+        times[next] = time;
+        temperatures[next] = temperature;
+        pressures[next] = pressure;
+        faultStatuses[next] = faultStatus;
+        inletValves[next] = inletValve;
+        temperatureLimits[next] = temperatureLimit;
+        totalFlows[next] = totalFlow;
+        next = (next + 1) % times.length;
+        if (size < times.length) {
+            size++;
+        }
+        version++;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public int getCapacity() {
+        return times.length;
+    }
+
+    // Returns up to limit readings taken between start and end (inclusive, in epoch milliseconds), newest first,
+    // skipping the offset newest ones. The returned table is shared with later calls and must not be modified.
+    public synchronized InfoTable query(String sensorName, DataShapeDefinition shape, int offset, int limit,
+                                        long start, long end) throws Exception {
+        offset = Math.max(0, offset);
+        limit = limit <= 0 ? DEFAULT_LIMIT : Math.min(limit, MAX_LIMIT);
+        if (cachedPage != null && cachedVersion == version && cachedOffset == offset && cachedLimit == limit
+                && cachedStart == start && cachedEnd == end) {
+            return cachedPage;
+        }
+
+        InfoTable table = new InfoTable(shape);
+        int skipped = 0;
+        for (int i = 0; i < size && table.getRowCount() < limit; i++) {
+            int index = (next - 1 - i + times.length) % times.length;
+            long time = times[index];
+            if (time > end) {
+                continue;
+            }
+            // The readings are in time order, nothing older can be in range
+            if (time < start) {
+                break;
+            }
+            if (skipped < offset) {
+                skipped++;
+                continue;
+            }
+            ValueCollection row = new ValueCollection();
+            row.SetStringValue(SENSOR_NAME_FIELD, sensorName);
+            row.SetDateTimeValue(ACTIVE_TIME_FIELD, new DateTime(time));
+            row.SetNumberValue(TEMPERATURE_FIELD, temperatures[index]);
+            row.SetNumberValue(PRESSURE_FIELD, pressures[index]);
+            row.SetBooleanValue(FAULT_STATUS_FIELD, faultStatuses[index]);
+            row.SetBooleanValue(INLET_VALVE_FIELD, inletValves[index]);
+            row.SetNumberValue(TEMPERATURE_LIMIT_FIELD, temperatureLimits[index]);
+            row.SetIntegerValue(TOTAL_FLOW_FIELD, (int) totalFlows[index]);
+            table.addRow(row);
+        }
+
+        cachedPage = table;
+        cachedVersion = version;
+        cachedOffset = offset;
+        cachedLimit = limit;
+        cachedStart = start;
+        cachedEnd = end;
+        return table;
+    }
+}
@@ -0,0 +1,73 @@
+package com.thingworx.sdk.steam.recording;
+
+import java.nio.ByteBuffer;
+
+// A growable byte array the recorder encodes the blocks in. It is reused for every block, so it only allocates while
+// the blocks grow.
+final class BlockEncoder {
+    private byte[] bytes = new byte[64 * 1024];
+    private int size;
+
+    void reset() {
+        size = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void putByte(int value) {
+        ensure(1);
+        bytes[size++] = (byte) value;
+    }
+
+    void putInt(int value) {
+        ensure(4);
+        bytes[size++] = (byte) (value >>> 24);
+        bytes[size++] = (byte) (value >>> 16);
+        bytes[size++] = (byte) (value >>> 8);
+        bytes[size++] = (byte) value;
+    }
+
+    void putLong(long value) {
+        putInt((int) (value >>> 32));
+        putInt((int) value);
+    }
+
+    void putDouble(double value) {
+        putLong(Double.doubleToLongBits(value));
+    }
+
+    void putUnsigned(long value) {
+        ensure(10);
+        while ((value & ~0x7fL) != 0) {
+            bytes[size++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        bytes[size++] = (byte) value;
+    }
+
+    void putSigned(long value) {
+        putUnsigned(VarInts.zigzag(value));
+    }
+
+    // Overwrites the int at position, for lengths that are only known once the block is encoded
+    void setInt(int position, int value) {
+        bytes[position] = (byte) (value >>> 24);
+        bytes[position + 1] = (byte) (value >>> 16);
+        bytes[position + 2] = (byte) (value >>> 8);
+        bytes[position + 3] = (byte) value;
+    }
+
+    void writeTo(ByteBuffer target) {
+        target.put(bytes, 0, size);
+    }
+
+    private void ensure(int length) {
+        if (size + length > bytes.length) {
+            byte[] grown = new byte[Math.max(bytes.length * 2, size + length)];
+            System.arraycopy(bytes, 0, grown, 0, size);
+            bytes = grown;
+        }
+    }
+}
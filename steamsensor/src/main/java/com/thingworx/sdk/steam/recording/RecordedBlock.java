@@ -0,0 +1,175 @@
+package com.thingworx.sdk.steam.recording;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// One decoded block of a recording: the samples of every sensor recorded in it, and its faults.
+public final class RecordedBlock {
+    private final Run[] runs;
+    private final int faultCount;
+    private final int[] faultSensors;
+    private final int[] faultRules;
+    private final long[] faultTimes;
+    private final double[] faultValues;
+    private final double[] faultLimits;
+
+    private RecordedBlock(Run[] runs, int faultCount) {
+        this.runs = runs;
+        this.faultCount = faultCount;
+        this.faultSensors = new int[faultCount];
+        this.faultRules = new int[faultCount];
+        this.faultTimes = new long[faultCount];
+        this.faultValues = new double[faultCount];
+        this.faultLimits = new double[faultCount];
+    }
+
+    static RecordedBlock decode(ByteBuffer in, int sensorCount) throws IOException {
+        try {
+            if (in.getInt() != RecordingFormat.BLOCK_MAGIC || in.getInt() != in.limit()) {
+                throw new IOException("Not a valid recording block");
+            }
+            long baseTime = in.getLong();
+            Run[] runs = new Run[sensorCount];
+            int runCount = VarInts.readInt(in);
+            for (int i = 0; i < runCount; i++) {
+                Run run = Run.decode(in, baseTime);
+                if (run.sensor >= sensorCount) {
+                    throw new IOException("Unknown sensor " + run.sensor + " in a recording block");
+                }
+                runs[run.sensor] = run;
+            }
+            RecordedBlock block = new RecordedBlock(runs, VarInts.readInt(in));
+            for (int fault = 0; fault < block.faultCount; fault++) {
+                block.faultSensors[fault] = VarInts.readInt(in);
+                block.faultRules[fault] = VarInts.readInt(in);
+                block.faultTimes[fault] = baseTime + VarInts.readSigned(in);
+                block.faultValues[fault] = in.getDouble();
+                block.faultLimits[fault] = in.getDouble();
+            }
+            return block;
+        } catch (RuntimeException e) {
+            // A truncated or corrupt block underflows the buffer or has a malformed varint
+            throw new IOException("Corrupt recording block: " + e, e);
+        }
+    }
+
+    // The samples of the sensor in this block, null if it has none
+    public Run getRun(int sensor) {
+        return sensor < runs.length ? runs[sensor] : null;
+    }
+
+    public int getFaultCount() {
+        return faultCount;
+    }
+
+    public int getFaultSensor(int fault) {
+        return faultSensors[fault];
+    }
+
+    // The id of the rule, see RecordingReader.getRuleName
+    public int getFaultRule(int fault) {
+        return faultRules[fault];
+    }
+
+    public long getFaultTime(int fault) {
+        return faultTimes[fault];
+    }
+
+    public double getFaultValue(int fault) {
+        return faultValues[fault];
+    }
+
+    public double getFaultLimit(int fault) {
+        return faultLimits[fault];
+    }
+
+    // The samples of one sensor in a block, in the order they were recorded
+    public static final class Run {
+        private final int sensor;
+        private final long[] times;
+        private final double[] temperature;
+        private final double[] pressure;
+        private final double[] totalFlow;
+        private final double[] latitude;
+        private final double[] longitude;
+        private final boolean[] inletValve;
+
+        private Run(int sensor, int rows) {
+            this.sensor = sensor;
+            this.times = new long[rows];
+            this.temperature = new double[rows];
+            this.pressure = new double[rows];
+            this.totalFlow = new double[rows];
+            this.latitude = new double[rows];
+            this.longitude = new double[rows];
+            this.inletValve = new boolean[rows];
+        }
+
+        private static Run decode(ByteBuffer in, long baseTime) {
+            Run run = new Run(VarInts.readInt(in), VarInts.readInt(in));
+            int rows = run.times.length;
+            long time = baseTime;
+            for (int row = 0; row < rows; row++) {
+                time += VarInts.readSigned(in);
+                run.times[row] = time;
+            }
+            decodeColumn(in, run.temperature, RecordingFormat.TEMPERATURE_SCALE);
+            decodeColumn(in, run.pressure, RecordingFormat.PRESSURE_SCALE);
+            decodeColumn(in, run.totalFlow, RecordingFormat.FLOW_SCALE);
+            decodeColumn(in, run.latitude, RecordingFormat.LOCATION_SCALE);
+            decodeColumn(in, run.longitude, RecordingFormat.LOCATION_SCALE);
+            int bits = 0;
+            for (int row = 0; row < rows; row++) {
+                if ((row & 7) == 0) {
+                    bits = in.get();
+                }
+                run.inletValve[row] = (bits & (1 << (row & 7))) != 0;
+            }
+            return run;
+        }
+
+        private static void decodeColumn(ByteBuffer in, double[] values, double scale) {
+            long value = 0;
+            for (int row = 0; row < values.length; row++) {
+                value += VarInts.readSigned(in);
+                values[row] = value / scale;
+            }
+        }
+
+        public int getSensor() {
+            return sensor;
+        }
+
+        public int size() {
+            return times.length;
+        }
+
+        public long getTime(int row) {
+            return times[row];
+        }
+
+        public double getTemperature(int row) {
+            return temperature[row];
+        }
+
+        public double getPressure(int row) {
+            return pressure[row];
+        }
+
+        public double getTotalFlow(int row) {
+            return totalFlow[row];
+        }
+
+        public double getLatitude(int row) {
+            return latitude[row];
+        }
+
+        public double getLongitude(int row) {
+            return longitude[row];
+        }
+
+        public boolean getInletValve(int row) {
+            return inletValve[row];
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package com.thingworx.sdk.steam.recording;
+
+// The layout of a recording directory.
+// The samples are written in blocks, one per flush of the recorder, to fixed size memory-mapped segment files
+// segment-NNNNN.rec. A segment starts with magic (int), write position (int) and a reserved long, followed by the
+// blocks:
+//   magic (int), length of the block (int), base time (long), number of runs (varint), runs, number of faults
+//   (varint), faults
+// A run holds the samples of one sensor in the block, column by column:
+//   sensor id, number of rows, the times as deltas from the previous time starting at the base time, the
+//   Temperature, Pressure, TotalFlow, latitude and longitude as deltas of their fixed-point values starting at 0,
+//   and the InletValve as one bit per row
+// A fault holds the sensor id, the rule id, its time as a delta from the base time, and its value and limit as
+// doubles. All the ids, counts and deltas are varints, the signed ones zigzag encoded.
+// The file recording.index lists the sensor and rule names and, for every block, the segment, offset and length,
+// first and last time, and number of samples and faults. It is written after the block, so a crash loses at most the
+// last block.
+final class RecordingFormat {
+    static final String INDEX_FILE = "recording.index";
+    static final int INDEX_MAGIC = 0x53524958; // "SRIX"
+    static final int VERSION = 1;
+    static final int SEGMENT_MAGIC = 0x53524553; // "SRES"
+    static final int BLOCK_MAGIC = 0x5352424b; // "SRBK"
+    static final int SEGMENT_HEADER_SIZE = 16;
+    static final int BLOCK_HEADER_SIZE = 16;
+
+    // The entries of the index
+    static final byte SENSOR_ENTRY = 1;
+    static final byte RULE_ENTRY = 2;
+    static final byte BLOCK_ENTRY = 3;
+
+    // The fixed-point resolution of the recorded values: a thousandth of a degree and of a unit of pressure, a
+    // millionth of a unit of flow, and 1e-7 degrees of latitude and longitude, about a centimeter
+    static final double TEMPERATURE_SCALE = 1e3;
+    static final double PRESSURE_SCALE = 1e3;
+    static final double FLOW_SCALE = 1e6;
+    static final double LOCATION_SCALE = 1e7;
+
+    private RecordingFormat() {
+    }
+}
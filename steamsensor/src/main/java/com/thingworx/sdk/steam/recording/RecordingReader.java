@@ -0,0 +1,205 @@
+package com.thingworx.sdk.steam.recording;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Reads a recording written by RecordingWriter: the index is loaded when it is opened, the segments are mapped
+// read-only when a block of them is first read. Several threads can read blocks at the same time.
+public final class RecordingReader {
+    private static final Logger LOG = LoggerFactory.getLogger(RecordingReader.class);
+
+    private final File directory;
+    private final List<String> sensorNames = new ArrayList<String>();
+    private final Map<String, Integer> sensorIds = new HashMap<String, Integer>();
+    private final List<String> ruleNames = new ArrayList<String>();
+    private final Map<Integer, RecordingSegment> segments = new HashMap<Integer, RecordingSegment>();
+    private int blockCount;
+    private int[] blockSegments = new int[64];
+    private int[] blockOffsets = new int[64];
+    private int[] blockLengths = new int[64];
+    private long[] blockFirstTimes = new long[64];
+    // The latest time of this and all the blocks before, ordered even if the clock went back while recording
+    private long[] blockEndTimes = new long[64];
+    private long sampleCount;
+    private long faultCount;
+
+    private RecordingReader(File directory) {
+        this.directory = directory;
+    }
+
+    public static RecordingReader open(File directory) throws IOException {
+        RecordingReader reader = new RecordingReader(directory);
+        reader.readIndex();
+        if (reader.blockCount == 0) {
+            throw new IOException("The recording in " + directory + " has no samples");
+        }
+        return reader;
+    }
+
+    private void readIndex() throws IOException {
+        File indexFile = new File(directory, RecordingFormat.INDEX_FILE);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+        try {
+            if (in.readInt() != RecordingFormat.INDEX_MAGIC) {
+                throw new IOException("Not a recording index: " + indexFile);
+            }
+            int version = in.readInt();
+            if (version != RecordingFormat.VERSION) {
+                throw new IOException("Unsupported recording version " + version + " in " + indexFile);
+            }
+            while (true) {
+                int entry = in.read();
+                if (entry < 0) {
+                    break;
+                }
+                if (entry == RecordingFormat.SENSOR_ENTRY) {
+                    int id = in.readInt();
+                    String name = in.readUTF();
+                    checkId(id, sensorNames.size(), indexFile);
+                    sensorNames.add(name);
+                    sensorIds.put(name, id);
+                } else if (entry == RecordingFormat.RULE_ENTRY) {
+                    int id = in.readInt();
+                    String name = in.readUTF();
+                    checkId(id, ruleNames.size(), indexFile);
+                    ruleNames.add(name);
+                } else if (entry == RecordingFormat.BLOCK_ENTRY) {
+                    addBlock(in.readInt(), in.readInt(), in.readInt(), in.readLong(), in.readLong());
+                    sampleCount += in.readInt();
+                    faultCount += in.readInt();
+                } else {
+                    throw new IOException("Unknown entry " + entry + " in " + indexFile);
+                }
+            }
+        } catch (EOFException e) {
+            // The recorder stopped while it wrote the last entry, its block is left out
+            LOG.warn("The index of the recording in {} ends with a partial entry, it is ignored.", directory);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void checkId(int id, int expected, File indexFile) throws IOException {
+        if (id != expected) {
+            throw new IOException("Name " + id + " out of order in " + indexFile);
+        }
+    }
+
+    private void addBlock(int segment, int offset, int length, long firstTime, long lastTime) {
+        if (blockCount == blockSegments.length) {
+            int capacity = blockCount * 2;
+            blockSegments = Arrays.copyOf(blockSegments, capacity);
+            blockOffsets = Arrays.copyOf(blockOffsets, capacity);
+            blockLengths = Arrays.copyOf(blockLengths, capacity);
+            blockFirstTimes = Arrays.copyOf(blockFirstTimes, capacity);
+            blockEndTimes = Arrays.copyOf(blockEndTimes, capacity);
+        }
+        blockSegments[blockCount] = segment;
+        blockOffsets[blockCount] = offset;
+        blockLengths[blockCount] = length;
+        blockFirstTimes[blockCount] = firstTime;
+        blockEndTimes[blockCount] = blockCount == 0 ? lastTime : Math.max(lastTime, blockEndTimes[blockCount - 1]);
+        blockCount++;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public int getBlockCount() {
+        return blockCount;
+    }
+
+    public long getSampleCount() {
+        return sampleCount;
+    }
+
+    public long getFaultCount() {
+        return faultCount;
+    }
+
+    public long getStartTime() {
+        return blockFirstTimes[0];
+    }
+
+    public long getEndTime() {
+        return blockEndTimes[blockCount - 1];
+    }
+
+    public List<String> getSensorNames() {
+        return Collections.unmodifiableList(sensorNames);
+    }
+
+    public int getSensorCount() {
+        return sensorNames.size();
+    }
+
+    // The id of the sensor recorded under name, -1 if there is none
+    public int getSensorId(String name) {
+        Integer id = sensorIds.get(name);
+        return id == null ? -1 : id;
+    }
+
+    public String getRuleName(int rule) {
+        return ruleNames.get(rule);
+    }
+
+    public long getBlockFirstTime(int block) {
+        return blockFirstTimes[block];
+    }
+
+    // The first block that has samples at or after time, the last block if time is after the recording
+    public int blockAt(long time) {
+        int low = 0;
+        int high = blockCount - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (blockEndTimes[middle] < time) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    public RecordedBlock readBlock(int block) throws IOException {
+        return RecordedBlock.decode(segment(blockSegments[block]).slice(blockOffsets[block], blockLengths[block]),
+                sensorNames.size());
+    }
+
+    private synchronized RecordingSegment segment(int number) throws IOException {
+        RecordingSegment segment = segments.get(number);
+        if (segment == null) {
+            segment = RecordingSegment.open(directory, number);
+            segments.put(number, segment);
+        }
+        return segment;
+    }
+
+    public synchronized void close() throws IOException {
+        for (RecordingSegment segment : segments.values()) {
+            segment.close();
+        }
+        segments.clear();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d samples and %d faults of %d sensors over %.1f s in %s", sampleCount, faultCount,
+                sensorNames.size(), (getEndTime() - getStartTime()) / 1000.0, directory);
+    }
+}
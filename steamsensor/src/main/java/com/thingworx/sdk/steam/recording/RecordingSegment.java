@@ -0,0 +1,99 @@
+package com.thingworx.sdk.steam.recording;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+// One memory-mapped segment file of a recording, see RecordingFormat. The recorder maps it for writing, the replay
+// for reading.
+final class RecordingSegment {
+    private static final int WRITE_POSITION = 4;
+    private static final String PREFIX = "segment-";
+    private static final String SUFFIX = ".rec";
+
+    private final int number;
+    private final File file;
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer map;
+
+    private RecordingSegment(int number, File file, int size, boolean create) throws IOException {
+        this.number = number;
+        this.file = file;
+        this.raf = new RandomAccessFile(file, create ? "rw" : "r");
+        if (create) {
+            raf.setLength(size);
+        }
+        this.map = raf.getChannel().map(create ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY,
+                0, raf.length());
+        if (create) {
+            map.putInt(0, RecordingFormat.SEGMENT_MAGIC);
+            map.putInt(WRITE_POSITION, RecordingFormat.SEGMENT_HEADER_SIZE);
+        } else if (map.capacity() < RecordingFormat.SEGMENT_HEADER_SIZE || map.getInt(0) != RecordingFormat.SEGMENT_MAGIC
+                || getWritePosition() > map.capacity()) {
+            close();
+            throw new IOException("Not a valid recording segment: " + file);
+        }
+    }
+
+    static RecordingSegment create(File directory, int number, int size) throws IOException {
+        return new RecordingSegment(number, fileOf(directory, number), size, true);
+    }
+
+    static RecordingSegment open(File directory, int number) throws IOException {
+        return new RecordingSegment(number, fileOf(directory, number), 0, false);
+    }
+
+    static File fileOf(File directory, int number) {
+        return new File(directory, String.format("%s%05d%s", PREFIX, number, SUFFIX));
+    }
+
+    int getNumber() {
+        return number;
+    }
+
+    int getWritePosition() {
+        return map.getInt(WRITE_POSITION);
+    }
+
+    boolean fits(int length) {
+        return getWritePosition() + length <= map.capacity();
+    }
+
+    // Appends the encoded block and returns its offset. The block is written before the write position is moved,
+    // so a crash never exposes half a block.
+    int append(BlockEncoder block) {
+        int position = getWritePosition();
+        ByteBuffer target = map.duplicate();
+        target.position(position);
+        block.writeTo(target);
+        map.putInt(WRITE_POSITION, position + block.size());
+        return position;
+    }
+
+    // Takes back the blocks appended from position on, the next block is appended at position again
+    void truncate(int position) {
+        map.putInt(WRITE_POSITION, position);
+    }
+
+    // A read-only view of the block at offset
+    ByteBuffer slice(int offset, int length) throws IOException {
+        if (offset < RecordingFormat.SEGMENT_HEADER_SIZE || offset + length > getWritePosition()) {
+            throw new IOException("Block at " + offset + " is outside the data of " + file);
+        }
+        ByteBuffer block = map.duplicate();
+        block.position(offset);
+        block.limit(offset + length);
+        return block.slice();
+    }
+
+    void force() {
+        map.force();
+    }
+
+    void close() throws IOException {
+        raf.close();
+    }
+}
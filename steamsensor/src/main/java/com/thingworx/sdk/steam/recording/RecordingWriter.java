@@ -0,0 +1,332 @@
+package com.thingworx.sdk.steam.recording;
+
+import com.thingworx.sdk.steam.metrics.AgentMetrics;
+import com.thingworx.sdk.steam.metrics.Gauge;
+import com.thingworx.sdk.steam.scan.ScanWorkerPools;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Records the readings and faults of the sensors to a directory, in the compact binary format of RecordingFormat,
+// so they can be replayed through the agent later, see Replay.
+// Every sensor records into its own SensorRecorder. A flusher thread periodically encodes what all of them
+// recorded into one block, column by column with delta and varint encoding, and appends it to the current
+// memory-mapped segment. A sample of one sensor takes about fifteen bytes.
+// The recorded columns are only cleared once their block is appended and indexed. When writing fails they are kept
+// and written again by the next flush, before the samples recorded since. The entries a block adds to the index are
+// written at once after the block is appended, and a block whose entries could not be written is taken back from
+// the segment, so a block is either appended and indexed once or not at all.
+public final class RecordingWriter {
+    private static final Logger LOG = LoggerFactory.getLogger(RecordingWriter.class);
+
+    private final File directory;
+    private final int segmentSize;
+    private final RandomAccessFile index;
+    // The entries of the next block, written to the index at once
+    private final ByteArrayOutputStream entryBytes = new ByteArrayOutputStream();
+    private final DataOutputStream entries = new DataOutputStream(entryBytes);
+    private final ScheduledExecutorService flusher;
+    private final BlockEncoder encoder = new BlockEncoder();
+    private final List<SensorRecorder> sensors = new ArrayList<SensorRecorder>();
+    private final Map<String, Integer> ruleIds = new HashMap<String, Integer>();
+    private final List<String> rules = new ArrayList<String>();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private int indexedSensors;
+    private int indexedRules;
+    // The length of the complete entries, a failed write leaves a part of an entry after it
+    private long indexLength;
+    private RecordingSegment segment;
+    private int segmentCount;
+    private volatile long blockCount;
+    private volatile long sampleCount;
+    private volatile long faultCount;
+    private volatile long byteCount;
+    private boolean closed;
+
+    public RecordingWriter(File directory, int segmentSize) throws IOException {
+        if (segmentSize < 64 * 1024) {
+            throw new IllegalArgumentException("Recording segments must hold at least 64 KB");
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create the recording directory " + directory);
+        }
+        File indexFile = new File(directory, RecordingFormat.INDEX_FILE);
+        if (indexFile.exists()) {
+            throw new IOException("There already is a recording in " + directory);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.index = new RandomAccessFile(indexFile, "rw");
+        index.writeInt(RecordingFormat.INDEX_MAGIC);
+        index.writeInt(RecordingFormat.VERSION);
+        this.indexLength = index.getFilePointer();
+        this.flusher = Executors.newSingleThreadScheduledExecutor(ScanWorkerPools.namedDaemonThreads("recording"));
+    }
+
+    // The recorder of a sensor, sensors are recorded under their name
+    public synchronized SensorRecorder sensor(String name) {
+        SensorRecorder recorder = new SensorRecorder(this, sensors.size(), name);
+        sensors.add(recorder);
+        return recorder;
+    }
+
+    int ruleId(String rule) {
+        synchronized (ruleIds) {
+            Integer id = ruleIds.get(rule);
+            if (id == null) {
+                id = rules.size();
+                ruleIds.put(rule, id);
+                rules.add(rule);
+            }
+            return id;
+        }
+    }
+
+    void dropped() {
+        droppedCount.incrementAndGet();
+    }
+
+    // Writes a block every periodMillis
+    public void start(long periodMillis) {
+        flusher.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flush();
+                } catch (Throwable t) {
+                    // An exception escaping a scheduled task would cancel all following flushes
+                    LOG.error("Recording flush failed", t);
+                }
+            }
+        }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Writes what the sensors recorded since the last flush as one block
+    public synchronized void flush() throws IOException {
+        if (closed) {
+            return;
+        }
+        List<SensorRecorder.Columns> recorded = new ArrayList<SensorRecorder.Columns>(sensors.size());
+        long baseTime = Long.MAX_VALUE;
+        long firstTime = Long.MAX_VALUE;
+        long lastTime = Long.MIN_VALUE;
+        int runs = 0;
+        int samples = 0;
+        int faults = 0;
+        for (SensorRecorder sensor : sensors) {
+            SensorRecorder.Columns sensorColumns = sensor.swap();
+            recorded.add(sensorColumns);
+            if (sensorColumns.size > 0) {
+                runs++;
+                samples += sensorColumns.size;
+                for (int row = 0; row < sensorColumns.size; row++) {
+                    firstTime = Math.min(firstTime, sensorColumns.times[row]);
+                    lastTime = Math.max(lastTime, sensorColumns.times[row]);
+                }
+            }
+            for (int fault = 0; fault < sensorColumns.faultCount; fault++) {
+                baseTime = Math.min(baseTime, sensorColumns.faultTimes[fault]);
+            }
+            faults += sensorColumns.faultCount;
+        }
+        if (runs == 0 && faults == 0) {
+            return;
+        }
+        baseTime = Math.min(baseTime, firstTime);
+        if (runs == 0) {
+            firstTime = baseTime;
+            lastTime = baseTime;
+        }
+
+        encoder.reset();
+        encoder.putInt(RecordingFormat.BLOCK_MAGIC);
+        encoder.putInt(0);
+        encoder.putLong(baseTime);
+        encoder.putUnsigned(runs);
+        for (int i = 0; i < recorded.size(); i++) {
+            if (recorded.get(i).size > 0) {
+                encodeRun(sensors.get(i).getId(), recorded.get(i), baseTime);
+            }
+        }
+        encoder.putUnsigned(faults);
+        for (int i = 0; i < recorded.size(); i++) {
+            SensorRecorder.Columns sensorColumns = recorded.get(i);
+            for (int fault = 0; fault < sensorColumns.faultCount; fault++) {
+                encoder.putUnsigned(sensors.get(i).getId());
+                encoder.putUnsigned(sensorColumns.faultRules[fault]);
+                encoder.putSigned(sensorColumns.faultTimes[fault] - baseTime);
+                encoder.putDouble(sensorColumns.faultValues[fault]);
+                encoder.putDouble(sensorColumns.faultLimits[fault]);
+            }
+        }
+        encoder.setInt(4, encoder.size());
+
+        if (segment == null || !segment.fits(encoder.size())) {
+            nextSegment(encoder.size());
+        }
+        int offset = segment.append(encoder);
+        // The names come before the first block that uses them
+        entryBytes.reset();
+        int sensorNames = sensors.size();
+        int ruleNames = writeNames(sensorNames);
+        entries.writeByte(RecordingFormat.BLOCK_ENTRY);
+        entries.writeInt(segment.getNumber());
+        entries.writeInt(offset);
+        entries.writeInt(encoder.size());
+        entries.writeLong(firstTime);
+        entries.writeLong(lastTime);
+        entries.writeInt(samples);
+        entries.writeInt(faults);
+        try {
+            // Overwrites what a failed write left of the entries of the block before
+            index.seek(indexLength);
+            index.write(entryBytes.toByteArray());
+        } catch (IOException e) {
+            segment.truncate(offset);
+            throw e;
+        }
+        indexLength += entryBytes.size();
+        indexedSensors = sensorNames;
+        indexedRules = ruleNames;
+        // Only now the samples are safe, the recorders keep adding to columns that were not cleared
+        for (SensorRecorder.Columns sensorColumns : recorded) {
+            sensorColumns.clear();
+        }
+        blockCount++;
+        sampleCount += samples;
+        faultCount += faults;
+        byteCount += encoder.size();
+    }
+
+    private void encodeRun(int sensor, SensorRecorder.Columns run, long baseTime) {
+        int rows = run.size;
+        encoder.putUnsigned(sensor);
+        encoder.putUnsigned(rows);
+        long previous = baseTime;
+        for (int row = 0; row < rows; row++) {
+            encoder.putSigned(run.times[row] - previous);
+            previous = run.times[row];
+        }
+        encodeColumn(run.temperature, rows, RecordingFormat.TEMPERATURE_SCALE);
+        encodeColumn(run.pressure, rows, RecordingFormat.PRESSURE_SCALE);
+        encodeColumn(run.totalFlow, rows, RecordingFormat.FLOW_SCALE);
+        encodeColumn(run.latitude, rows, RecordingFormat.LOCATION_SCALE);
+        encodeColumn(run.longitude, rows, RecordingFormat.LOCATION_SCALE);
+        int bits = 0;
+        for (int row = 0; row < rows; row++) {
+            if (run.inletValve[row]) {
+                bits |= 1 << (row & 7);
+            }
+            if ((row & 7) == 7 || row == rows - 1) {
+                encoder.putByte(bits);
+                bits = 0;
+            }
+        }
+    }
+
+    private void encodeColumn(double[] values, int rows, double scale) {
+        long previous = 0;
+        for (int row = 0; row < rows; row++) {
+            long value = Math.round(values[row] * scale);
+            encoder.putSigned(value - previous);
+            previous = value;
+        }
+    }
+
+    // Adds the entries of the sensors up to sensorNames and of the rules not indexed yet, and returns up to which
+    // rule they go
+    private int writeNames(int sensorNames) throws IOException {
+        for (int sensor = indexedSensors; sensor < sensorNames; sensor++) {
+            entries.writeByte(RecordingFormat.SENSOR_ENTRY);
+            entries.writeInt(sensor);
+            entries.writeUTF(sensors.get(sensor).getName());
+        }
+        synchronized (ruleIds) {
+            for (int rule = indexedRules; rule < rules.size(); rule++) {
+                entries.writeByte(RecordingFormat.RULE_ENTRY);
+                entries.writeInt(rule);
+                entries.writeUTF(rules.get(rule));
+            }
+            return rules.size();
+        }
+    }
+
+    // A block larger than a segment gets a segment of its own size
+    private void nextSegment(int blockSize) throws IOException {
+        if (segment != null) {
+            segment.force();
+            segment.close();
+        }
+        segment = RecordingSegment.create(directory, segmentCount++,
+                Math.max(segmentSize, RecordingFormat.SEGMENT_HEADER_SIZE + blockSize));
+    }
+
+    // Writes the last block and closes the files
+    public void close() throws IOException {
+        flusher.shutdownNow();
+        try {
+            flusher.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            flush();
+            closed = true;
+            if (segment != null) {
+                segment.force();
+                segment.close();
+            }
+            index.close();
+        }
+        LOG.info(String.format("Recorded %d samples and %d faults of %d sensors in %d blocks, %d bytes, %.1f bytes per sample, %d dropped, to %s",
+                sampleCount, faultCount, sensors.size(), blockCount, byteCount,
+                sampleCount == 0 ? 0.0 : (double) byteCount / sampleCount, droppedCount.get(), directory));
+    }
+
+    public long getSampleCount() {
+        return sampleCount;
+    }
+
+    public long getByteCount() {
+        return byteCount;
+    }
+
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    // RecordedSamples, RecordedBytes and RecordingDropped
+    public void registerGauges(AgentMetrics metrics) {
+        metrics.registerGauge("RecordedSamples", new Gauge() {
+            @Override
+            public long getValue() {
+                return getSampleCount();
+            }
+        });
+        metrics.registerGauge("RecordedBytes", new Gauge() {
+            @Override
+            public long getValue() {
+                return getByteCount();
+            }
+        });
+        metrics.registerGauge("RecordingDropped", new Gauge() {
+            @Override
+            public long getValue() {
+                return getDroppedCount();
+            }
+        });
+    }
+}
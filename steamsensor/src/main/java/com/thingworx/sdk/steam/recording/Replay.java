@@ -0,0 +1,96 @@
+package com.thingworx.sdk.steam.recording;
+
+import com.thingworx.sdk.steam.simulation.SensorSource;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Plays a recording back through the agent in place of the simulation, at 1 to 1000 times the recorded speed.
+// All the sensors share one clock, which starts with the first scan: a scan at wall time now sees the recording as
+// it was at start + (now - first scan) * speed, and the replay starts over when it reaches the end. A sensor replays
+// the recorded sensor of the same name, or else one of the recorded sensors by its index.
+// The faults are not replayed, the fault rules of the agent raise them again from the replayed values.
+// The replay is lossy whenever more than one sample was recorded per sensor in the time a scan replays: every scan
+// takes the last sample at its replay time and the ones in between are skipped, so at high speeds short excursions
+// of the recorded readings may not be replayed, and the faults they raised may not be raised again.
+public final class Replay {
+    public static final double MAX_SPEED = 1000;
+    // The decoded blocks the sensors are reading, they move through the recording together
+    private static final int CACHED_BLOCKS = 8;
+
+    private final RecordingReader reader;
+    private final double speed;
+    private final long startTime;
+    private final long duration;
+    private final AtomicLong wallStart = new AtomicLong(Long.MIN_VALUE);
+    private final Map<Integer, RecordedBlock> cache = new LinkedHashMap<Integer, RecordedBlock>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, RecordedBlock> eldest) {
+            return size() > CACHED_BLOCKS;
+        }
+    };
+
+    public Replay(RecordingReader reader, double speed) {
+        if (speed < 1 || speed > MAX_SPEED) {
+            throw new IllegalArgumentException("The replay speed must be from 1 to " + MAX_SPEED + ", not " + speed);
+        }
+        if (reader.getSensorCount() == 0) {
+            throw new IllegalArgumentException("The recording in " + reader.getDirectory() + " has no sensors");
+        }
+        this.reader = reader;
+        this.speed = speed;
+        this.startTime = reader.getStartTime();
+        this.duration = reader.getEndTime() - startTime + 1;
+    }
+
+    public SensorSource newSource(String name, int index) {
+        int sensor = reader.getSensorId(name);
+        if (sensor < 0) {
+            sensor = index % reader.getSensorCount();
+        }
+        return new ReplaySource(this, sensor);
+    }
+
+    // About how many recorded samples of a sensor one scan every scanRate milliseconds replays, all but one of them
+    // are skipped
+    public double samplesPerScan(long scanRate) {
+        double samplesPerSensor = (double) reader.getSampleCount() / reader.getSensorCount();
+        return samplesPerSensor * scanRate * speed / duration;
+    }
+
+    RecordingReader getReader() {
+        return reader;
+    }
+
+    // The recorded time replayed at wall time now
+    long timeAt(long now) {
+        long start = wallStart.get();
+        if (start == Long.MIN_VALUE) {
+            wallStart.compareAndSet(Long.MIN_VALUE, now);
+            start = wallStart.get();
+        }
+        long elapsed = (long) (Math.max(0, now - start) * speed);
+        return startTime + elapsed % duration;
+    }
+
+    synchronized RecordedBlock block(int block) {
+        RecordedBlock decoded = cache.get(block);
+        if (decoded == null) {
+            try {
+                decoded = reader.readBlock(block);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            cache.put(block, decoded);
+        }
+        return decoded;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s at %.0fx", reader, speed);
+    }
+}
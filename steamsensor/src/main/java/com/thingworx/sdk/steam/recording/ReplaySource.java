@@ -0,0 +1,100 @@
+package com.thingworx.sdk.steam.recording;
+
+import com.thingworx.sdk.steam.simulation.SensorSource;
+
+// The readings of one recorded sensor as of the replay time of each scan. The scan sees the last sample recorded at
+// or before that time, samples in between are skipped. The flow is the difference of the recorded TotalFlow since
+// the last read, so it adds up to the recorded total whatever the speed.
+final class ReplaySource implements SensorSource {
+    private final Replay replay;
+    private final int sensor;
+    private int block = -1;
+    private RecordedBlock.Run run;
+    private int row;
+    private long time = Long.MIN_VALUE;
+    private boolean flowRead;
+    private double readFlow;
+
+    ReplaySource(Replay replay, int sensor) {
+        this.replay = replay;
+        this.sensor = sensor;
+    }
+
+    @Override
+    public void startScan(long now) {
+        long replayTime = replay.timeAt(now);
+        if (replayTime < time) {
+            // Started over at the beginning of the recording, the flow counts from there
+            block = -1;
+            run = null;
+            flowRead = false;
+        }
+        time = replayTime;
+        int current = replay.getReader().blockAt(replayTime);
+        if (current != block) {
+            block = current;
+            RecordedBlock.Run next = replay.block(current).getRun(sensor);
+            // A block the sensor has no samples in keeps the values of the last one it had
+            if (next != null) {
+                run = next;
+                row = 0;
+            }
+        }
+        if (run != null) {
+            while (row + 1 < run.size() && run.getTime(row + 1) <= replayTime) {
+                row++;
+            }
+        }
+    }
+
+    @Override
+    public double nextTemperature() {
+        return run == null ? 0 : run.getTemperature(row);
+    }
+
+    @Override
+    public double nextPressure() {
+        return run == null ? 0 : run.getPressure(row);
+    }
+
+    @Override
+    public double nextFlow() {
+        if (run == null) {
+            return 0;
+        }
+        double total = run.getTotalFlow(row);
+        double flow = flowRead ? Math.max(0, total - readFlow) : 0;
+        flowRead = true;
+        readFlow = total;
+        return flow;
+    }
+
+    @Override
+    public boolean nextInletValve() {
+        return run == null || run.getInletValve(row);
+    }
+
+    @Override
+    public void nextLocation() {
+    }
+
+    @Override
+    public double latitude() {
+        return run == null ? 0 : run.getLatitude(row);
+    }
+
+    @Override
+    public double longitude() {
+        return run == null ? 0 : run.getLongitude(row);
+    }
+
+    // The position follows the clock of the replay
+    @Override
+    public long getPosition() {
+        return 0;
+    }
+
+    @Override
+    public void setPosition(long position) {
+    }
+}
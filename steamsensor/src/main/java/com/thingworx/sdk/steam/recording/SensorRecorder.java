@@ -0,0 +1,133 @@
+package com.thingworx.sdk.steam.recording;
+
+import java.util.Arrays;
+
+// Collects the samples and faults of one sensor between two flushes of the RecordingWriter.
+// The values go into primitive columns, which the writer swaps with a second set when it flushes, so recording a
+// sample allocates nothing in the steady state. A sensor records at most MAX_ROWS samples or faults per flush,
+// the rest are counted as dropped.
+public final class SensorRecorder {
+    static final int MAX_ROWS = 1 << 16;
+
+    private final RecordingWriter writer;
+    private final int id;
+    private final String name;
+    private Columns front = new Columns();
+    private Columns back = new Columns();
+
+    SensorRecorder(RecordingWriter writer, int id, String name) {
+        this.writer = writer;
+        this.id = id;
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    int getId() {
+        return id;
+    }
+
+    // The readings of one scan, the TotalFlow as the running total
+    public void recordSample(long time, double temperature, double pressure, double totalFlow, boolean inletValve,
+                             double latitude, double longitude) {
+        synchronized (this) {
+            if (front.add(time, temperature, pressure, totalFlow, inletValve, latitude, longitude)) {
+                return;
+            }
+        }
+        writer.dropped();
+    }
+
+    public void recordFault(long time, String rule, double value, double limit) {
+        // The rule id is looked up before the lock, the writer holds its own lock while it swaps the columns
+        int ruleId = writer.ruleId(rule);
+        synchronized (this) {
+            if (front.addFault(time, ruleId, value, limit)) {
+                return;
+            }
+        }
+        writer.dropped();
+    }
+
+    // Takes the columns recorded since the last flush, the caller clears them once they are written. Columns the
+    // caller failed to write are taken again instead, so they are written in a block of their own before the newer
+    // samples, which keep going to the front columns meanwhile.
+    synchronized Columns swap() {
+        if (back.size > 0 || back.faultCount > 0) {
+            return back;
+        }
+        Columns recorded = front;
+        front = back;
+        back = recorded;
+        return recorded;
+    }
+
+    static final class Columns {
+        int size;
+        long[] times = new long[16];
+        double[] temperature = new double[16];
+        double[] pressure = new double[16];
+        double[] totalFlow = new double[16];
+        double[] latitude = new double[16];
+        double[] longitude = new double[16];
+        boolean[] inletValve = new boolean[16];
+
+        int faultCount;
+        long[] faultTimes = new long[4];
+        int[] faultRules = new int[4];
+        double[] faultValues = new double[4];
+        double[] faultLimits = new double[4];
+
+        boolean add(long time, double temperature, double pressure, double totalFlow, boolean inletValve,
+                    double latitude, double longitude) {
+            if (size == times.length) {
+                if (size == MAX_ROWS) {
+                    return false;
+                }
+                int capacity = Math.min(MAX_ROWS, size * 2);
+                times = Arrays.copyOf(times, capacity);
+                this.temperature = Arrays.copyOf(this.temperature, capacity);
+                this.pressure = Arrays.copyOf(this.pressure, capacity);
+                this.totalFlow = Arrays.copyOf(this.totalFlow, capacity);
+                this.latitude = Arrays.copyOf(this.latitude, capacity);
+                this.longitude = Arrays.copyOf(this.longitude, capacity);
+                this.inletValve = Arrays.copyOf(this.inletValve, capacity);
+            }
+            times[size] = time;
+            this.temperature[size] = temperature;
+            this.pressure[size] = pressure;
+            this.totalFlow[size] = totalFlow;
+            this.inletValve[size] = inletValve;
+            this.latitude[size] = latitude;
+            this.longitude[size] = longitude;
+            size++;
+            return true;
+        }
+
+        boolean addFault(long time, int rule, double value, double limit) {
+            if (faultCount == faultTimes.length) {
+                if (faultCount == MAX_ROWS) {
+                    return false;
+                }
+                int capacity = Math.min(MAX_ROWS, faultCount * 2);
+                faultTimes = Arrays.copyOf(faultTimes, capacity);
+                faultRules = Arrays.copyOf(faultRules, capacity);
+                faultValues = Arrays.copyOf(faultValues, capacity);
+                faultLimits = Arrays.copyOf(faultLimits, capacity);
+            }
+            faultTimes[faultCount] = time;
+            faultRules[faultCount] = rule;
+            faultValues[faultCount] = value;
+            faultLimits[faultCount] = limit;
+            faultCount++;
+            return true;
+        }
+
+        void clear() {
+            size = 0;
+            faultCount = 0;
+        }
+    }
+}
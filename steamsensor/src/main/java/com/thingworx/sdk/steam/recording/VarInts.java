@@ -0,0 +1,42 @@
+package com.thingworx.sdk.steam.recording;
+
+import java.nio.ByteBuffer;
+
+// LEB128 variable length integers: 7 bits per byte, the high bit set on every byte but the last. Signed values are
+// zigzag encoded first, so small deltas of either sign take one or two bytes.
+final class VarInts {
+    private VarInts() {
+    }
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static long readUnsigned(ByteBuffer in) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = in.get();
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalStateException("Malformed varint at " + (in.position() - 1));
+    }
+
+    static long readSigned(ByteBuffer in) {
+        return unzigzag(readUnsigned(in));
+    }
+
+    static int readInt(ByteBuffer in) {
+        long value = readUnsigned(in);
+        if (value > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Varint " + value + " is out of range at " + in.position());
+        }
+        return (int) value;
+    }
+}
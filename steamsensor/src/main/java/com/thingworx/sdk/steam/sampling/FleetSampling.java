@@ -0,0 +1,58 @@
+package com.thingworx.sdk.steam.sampling;
+
+import com.thingworx.sdk.steam.metrics.AgentMetrics;
+import com.thingworx.sdk.steam.metrics.Gauge;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// The sampling of every reading of the sensors at one scan rate, shared by all the sensors. Each sensor takes its
+// own schedules of it, see SteamThing.setSampling, and the gauges report the rate the fleet samples each reading at.
+public final class FleetSampling {
+    private final SamplingConfig config;
+    private final long scanRate;
+    private final Map<String, PropertySampling> readings = new LinkedHashMap<String, PropertySampling>();
+
+    public FleetSampling(SamplingConfig config, long scanRate) {
+        this.config = config;
+        this.scanRate = scanRate;
+        for (Map.Entry<String, SamplingSettings> entry : config.getSettings().entrySet()) {
+            readings.put(entry.getKey(), new PropertySampling(entry.getKey(), entry.getValue(), scanRate));
+        }
+    }
+
+    public SamplingSchedule newSchedule(String reading) {
+        PropertySampling sampling = readings.get(reading);
+        if (sampling == null) {
+            throw new IllegalArgumentException("Unknown sampled reading [" + reading + "]");
+        }
+        return sampling.newSchedule();
+    }
+
+    public PropertySampling getSampling(String reading) {
+        return readings.get(reading);
+    }
+
+    // <Reading>SamplesPerMinute and <Reading>SamplePeriod, the mean period in milliseconds, for every reading
+    public void registerGauges(AgentMetrics metrics) {
+        for (final PropertySampling sampling : readings.values()) {
+            metrics.registerGauge(sampling.getReading() + "SamplesPerMinute", new Gauge() {
+                @Override
+                public long getValue() {
+                    return Math.round(sampling.getSamplesPerMinute());
+                }
+            });
+            metrics.registerGauge(sampling.getReading() + "SamplePeriod", new Gauge() {
+                @Override
+                public long getValue() {
+                    return Math.round(sampling.getMeanPeriod());
+                }
+            });
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("scan rate %d ms, %s", scanRate, config);
+    }
+}
@@ -0,0 +1,83 @@
+package com.thingworx.sdk.steam.sampling;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// The sampling of one reading across the fleet: its settings in scans, and the rate all the sensors sample it at.
+// The rate is kept as the sum of the sampling frequencies of the schedules, updated only when a period changes, so
+// it costs the scans nothing.
+public final class PropertySampling {
+    // Frequencies are summed in millionths of a sample per scan
+    private static final double FREQUENCY_SCALE = 1e6;
+
+    private final String reading;
+    private final SamplingSettings settings;
+    private final long scanRate;
+    private final int baseScans;
+    private final int minScans;
+    private final int maxScans;
+    private final AtomicInteger scheduleCount = new AtomicInteger();
+    private final AtomicLong frequencySum = new AtomicLong();
+
+    PropertySampling(String reading, SamplingSettings settings, long scanRate) {
+        this.reading = reading;
+        this.settings = settings;
+        this.scanRate = scanRate;
+        this.minScans = toScans(settings.getMin(), scanRate);
+        this.maxScans = toScans(settings.getMax(), scanRate);
+        this.baseScans = Math.min(maxScans, Math.max(minScans, toScans(settings.getBase(), scanRate)));
+    }
+
+    private static int toScans(long period, long scanRate) {
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, Math.round((double) period / scanRate)));
+    }
+
+    // The schedule of this reading for one sensor
+    public SamplingSchedule newSchedule() {
+        scheduleCount.incrementAndGet();
+        return new SamplingSchedule(this);
+    }
+
+    void periodChanged(int oldScans, int newScans) {
+        frequencySum.addAndGet(frequency(newScans) - frequency(oldScans));
+    }
+
+    private static long frequency(int scans) {
+        return scans == 0 ? 0 : Math.round(FREQUENCY_SCALE / scans);
+    }
+
+    public String getReading() {
+        return reading;
+    }
+
+    public SamplingSettings getSettings() {
+        return settings;
+    }
+
+    long getScanRate() {
+        return scanRate;
+    }
+
+    int getBaseScans() {
+        return baseScans;
+    }
+
+    int getMinScans() {
+        return minScans;
+    }
+
+    int getMaxScans() {
+        return maxScans;
+    }
+
+    // Samples per minute of the whole fleet at the current periods
+    public double getSamplesPerMinute() {
+        return frequencySum.get() / FREQUENCY_SCALE * 60000.0 / scanRate;
+    }
+
+    // The period the sensors sample at on average, in milliseconds
+    public double getMeanPeriod() {
+        long sum = frequencySum.get();
+        return sum == 0 ? 0 : scheduleCount.get() * FREQUENCY_SCALE * scanRate / sum;
+    }
+}
@@ -0,0 +1,114 @@
+package com.thingworx.sdk.steam.sampling;
+
+import com.thingworx.sdk.steam.config.GroupedSettings;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+// The sampling periods of the readings of a steam sensor: Temperature, Pressure, TotalFlow (which samples the
+// InletValve with the flow) and Location.
+// By default Temperature and Location are sampled every scan, Pressure and TotalFlow every third scan.
+// The defaults can be overridden by a properties file with one entry per setting, in milliseconds, for example:
+//   Temperature.min=1000
+//   Temperature.max=30000
+//   Temperature.change=2
+//   Pressure.base=6000
+//   Location.max=60000
+//   Location.change=0.0005
+// The settings of a reading are base, min, max and change, see SamplingSettings. The periods are rounded to whole
+// scans, a reading cannot be sampled faster than the scan rate.
+public final class SamplingConfig {
+    public static final String TEMPERATURE = "Temperature";
+    public static final String PRESSURE = "Pressure";
+    public static final String TOTAL_FLOW = "TotalFlow";
+    public static final String LOCATION = "Location";
+    private static final String BASE = "base";
+    private static final String MIN = "min";
+    private static final String MAX = "max";
+    private static final String CHANGE = "change";
+
+    private final Map<String, SamplingSettings> settings;
+
+    private SamplingConfig(Map<String, SamplingSettings> settings) {
+        this.settings = Collections.unmodifiableMap(settings);
+    }
+
+    public static SamplingConfig defaults(long scanRate) {
+        Map<String, SamplingSettings> settings = new LinkedHashMap<String, SamplingSettings>();
+        settings.put(TEMPERATURE, SamplingSettings.fixed(scanRate));
+        settings.put(PRESSURE, SamplingSettings.fixed(3 * scanRate));
+        settings.put(TOTAL_FLOW, SamplingSettings.fixed(3 * scanRate));
+        settings.put(LOCATION, SamplingSettings.fixed(scanRate));
+        return new SamplingConfig(settings);
+    }
+
+    public SamplingConfig withOverrides(File file) throws IOException {
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+        return withOverrides(properties);
+    }
+
+    public SamplingConfig withOverrides(Properties overrides) {
+        Map<String, Map<String, String>> byReading = GroupedSettings.byName(overrides, "Sampling", "reading");
+        Map<String, SamplingSettings> merged = new LinkedHashMap<String, SamplingSettings>(settings);
+        for (Map.Entry<String, Map<String, String>> entry : byReading.entrySet()) {
+            SamplingSettings current = settings.get(entry.getKey());
+            if (current == null) {
+                throw new IllegalArgumentException("Unknown sampled reading [" + entry.getKey() + "], expected "
+                        + TEMPERATURE + ", " + PRESSURE + ", " + TOTAL_FLOW + " or " + LOCATION);
+            }
+            long base = current.getBase();
+            long min = current.getMin();
+            long max = current.getMax();
+            double change = current.getChange();
+            for (Map.Entry<String, String> setting : entry.getValue().entrySet()) {
+                String name = setting.getKey();
+                String value = setting.getValue();
+                if (BASE.equals(name)) {
+                    base = Long.parseLong(value);
+                } else if (MIN.equals(name)) {
+                    min = Long.parseLong(value);
+                } else if (MAX.equals(name)) {
+                    max = Long.parseLong(value);
+                } else if (CHANGE.equals(name)) {
+                    change = Double.parseDouble(value);
+                } else {
+                    throw new IllegalArgumentException("Unknown sampling setting [" + entry.getKey() + "." + name + "]");
+                }
+            }
+            // A new base period moves the bounds of a fixed period along with it
+            if (!entry.getValue().containsKey(MIN)) {
+                min = Math.min(min, base);
+            }
+            if (!entry.getValue().containsKey(MAX)) {
+                max = Math.max(max, base);
+            }
+            merged.put(entry.getKey(), new SamplingSettings(base, min, max, change));
+        }
+        return new SamplingConfig(merged);
+    }
+
+    public SamplingSettings getSettings(String reading) {
+        return settings.get(reading);
+    }
+
+    public Map<String, SamplingSettings> getSettings() {
+        return settings;
+    }
+
+    @Override
+    public String toString() {
+        return settings.toString();
+    }
+}
@@ -0,0 +1,81 @@
+package com.thingworx.sdk.steam.sampling;
+
+// When one sensor samples one reading. Every scan asks isDue, which counts down the scans of the current period.
+// After a sample the scan reports how much the reading changed since the previous one, and an adaptive period is
+// set from the smoothed rate of change: to the period in which the reading changes by the change of the settings,
+// within the min and max periods. The period shortens at once when the reading starts moving, and at most doubles
+// per sample when it settles, so one quiet sample does not drop a moving reading to the slowest rate.
+// Not thread safe, it is used by the scan of one thing.
+public final class SamplingSchedule {
+    // Weight of a slower rate of change in the smoothed rate
+    private static final double ALPHA = 0.3;
+
+    private final PropertySampling sampling;
+    private final boolean adaptive;
+    private final double change;
+    private int period;
+    private int countdown;
+    private long lastSample;
+    private double rate = -1;
+
+    SamplingSchedule(PropertySampling sampling) {
+        this.sampling = sampling;
+        this.adaptive = sampling.getSettings().isAdaptive();
+        this.change = sampling.getSettings().getChange();
+        this.period = sampling.getBaseScans();
+        this.countdown = period;
+        sampling.periodChanged(0, period);
+    }
+
+    // Called once per scan, true when the reading is to be sampled in this scan
+    public boolean isDue() {
+        if (--countdown > 0) {
+            return false;
+        }
+        countdown = period;
+        return true;
+    }
+
+    // The reading was sampled at time and changed by change since the previous sample
+    public void sampled(long time, double change) {
+        if (!adaptive) {
+            return;
+        }
+        long elapsed = time - lastSample;
+        if (lastSample != 0 && elapsed > 0) {
+            double latest = Math.abs(change) / elapsed;
+            // A faster change is taken at once, a slower one is smoothed in
+            rate = latest > rate ? latest : rate + ALPHA * (latest - rate);
+            // The number of scans in which the reading changes by the configured change at the smoothed rate
+            double target = rate > 0 ? this.change / rate / sampling.getScanRate() : Double.MAX_VALUE;
+            int scans = (int) Math.max(sampling.getMinScans(), Math.min(sampling.getMaxScans(), target));
+            scans = Math.min(scans, 2 * period);
+            if (scans != period) {
+                sampling.periodChanged(period, scans);
+                period = scans;
+                countdown = scans;
+            }
+        }
+        lastSample = time;
+    }
+
+    // The current period in milliseconds
+    public long getPeriod() {
+        return period * sampling.getScanRate();
+    }
+
+    public int getPeriodScans() {
+        return period;
+    }
+
+    // Continues with the period a checkpoint saved, within the bounds of the current settings
+    public void restorePeriod(int scans) {
+        if (!adaptive || scans <= 0) {
+            return;
+        }
+        scans = Math.max(sampling.getMinScans(), Math.min(sampling.getMaxScans(), scans));
+        sampling.periodChanged(period, scans);
+        period = scans;
+        countdown = scans;
+    }
+}
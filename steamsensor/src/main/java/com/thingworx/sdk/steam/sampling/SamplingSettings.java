@@ -0,0 +1,57 @@
+package com.thingworx.sdk.steam.sampling;
+
+// Immutable sampling configuration of one property, the periods in milliseconds.
+// A property is sampled every base period to start with. When change is set the period adapts between min and
+// max to how fast the property changes: it aims at a change of about change between two samples, so a property that
+// is moving is sampled faster and a stable one slower. Without change, or with min and max equal to base, the
+// period is fixed.
+public final class SamplingSettings {
+    private final long base;
+    private final long min;
+    private final long max;
+    private final double change;
+
+    public SamplingSettings(long base, long min, long max, double change) {
+        if (min <= 0 || min > base || base > max) {
+            throw new IllegalArgumentException("Sampling periods must be positive with min <= base <= max, not "
+                    + min + " <= " + base + " <= " + max);
+        }
+        if (change < 0) {
+            throw new IllegalArgumentException("The sampling change cannot be negative");
+        }
+        this.base = base;
+        this.min = min;
+        this.max = max;
+        this.change = change;
+    }
+
+    public static SamplingSettings fixed(long period) {
+        return new SamplingSettings(period, period, period, 0);
+    }
+
+    public long getBase() {
+        return base;
+    }
+
+    public long getMin() {
+        return min;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public double getChange() {
+        return change;
+    }
+
+    public boolean isAdaptive() {
+        return change > 0 && min < max;
+    }
+
+    @Override
+    public String toString() {
+        return isAdaptive() ? "base=" + base + ", min=" + min + ", max=" + max + ", change=" + change
+                : "period=" + base;
+    }
+}
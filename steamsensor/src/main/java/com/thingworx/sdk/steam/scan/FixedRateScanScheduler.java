@@ -0,0 +1,400 @@
+package com.thingworx.sdk.steam.scan;
+
+import com.thingworx.communications.client.ConnectedThingClient;
+import com.thingworx.communications.client.things.VirtualThing;
+import com.thingworx.sdk.steam.flush.FlushCoordinator;
+import com.thingworx.sdk.steam.metrics.AgentMetrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Scans all Virtual Things of one or more clients at a fixed rate.
+// The things are split into shards, and every shard has a tick of its own on a single ticker thread, every
+// scanRate milliseconds from its phase offset, measured from the start time so the period does not drift with the
+// time the scans take. A tick only hands the shard to the worker pool, which scans its things back-to-back. A slow
+// thing only delays the other things of its own shard, and a shard that is still busy when its next tick arrives is
+// handled according to the OverrunPolicy.
+// With HASH or SPREAD phasing the phase offset of a thing (see ScanPhasing) decides its shard, shard i is ticked
+// i / shardCount of the period after the start, so the property and event pushes that follow the scans are spread
+// over the period in shardCount steps instead of leaving in one burst. Without phasing the things are put on the
+// shards by the hash of their name and all shards are ticked together. No worker ever waits for a phase, so there
+// may be more shards than worker threads.
+// A scan cycle is measured from the tick of the first shard to the end of the scans of the last one. Every shard
+// reports once for the cycle being measured, when it scanned for it or when its tick did not lead to a scan, and the
+// next measurement starts with the first cycle after all shards reported.
+public class FixedRateScanScheduler implements ScanScheduler {
+    private static final Logger LOG = LoggerFactory.getLogger(FixedRateScanScheduler.class);
+
+    private static final int IDLE = 0;
+    private static final int RUNNING = 1;
+    private static final int RUNNING_WITH_PENDING_TICK = 2;
+    // The cycle of a tick that does not take part in the measured cycle
+    private static final long NO_CYCLE = -1;
+    // Log the outbound rate statistics every this many cycles
+    private static final int REPORT_EVERY_CYCLES = 20;
+    // Shards per scan thread when the scans are phased, the finer the steps the smoother the outbound traffic
+    private static final int PHASED_SHARDS_PER_THREAD = 4;
+
+    private final List<? extends ConnectedThingClient> clients;
+    private final long scanRate;
+    private final OverrunPolicy overrunPolicy;
+    private final ScanPhasing phasing;
+    private final ExecutorService workers;
+    private final ScheduledExecutorService ticker;
+    private final Shard[] shards;
+    private final AtomicLong cycleCount = new AtomicLong();
+    private final AtomicLong overrunCount = new AtomicLong();
+    private final OutboundRateMonitor outboundRate;
+    private volatile AgentMetrics metrics = new AgentMetrics();
+    // Told when a shard finished its scan, none unless set
+    private volatile FlushCoordinator flushCoordinator;
+    private int assignedThingCount = -1;
+    private volatile boolean scanWhileDisconnected = false;
+    // The cycle being measured, written by the ticker once all shards reported for the previous one
+    private volatile long measuredCycle;
+    private volatile long measuredCycleStart;
+    private final AtomicInteger shardsToReport = new AtomicInteger();
+
+    public FixedRateScanScheduler(ConnectedThingClient client, long scanRate, int shardCount,
+                                  OverrunPolicy overrunPolicy, ScanPhasing phasing, ExecutorService workers,
+                                  OutboundRateMonitor outboundRate) {
+        this(Collections.singletonList(client), scanRate, shardCount, overrunPolicy, phasing, workers, outboundRate);
+    }
+
+    // Scans the things of all the clients together, a thing is only scanned while its own client is connected
+    public FixedRateScanScheduler(List<? extends ConnectedThingClient> clients, long scanRate, int shardCount,
+                                  OverrunPolicy overrunPolicy, ScanPhasing phasing, ExecutorService workers,
+                                  OutboundRateMonitor outboundRate) {
+        if (scanRate <= 0) {
+            throw new IllegalArgumentException("scanRate must be positive");
+        }
+        if (shardCount <= 0) {
+            throw new IllegalArgumentException("shardCount must be positive");
+        }
+        this.clients = clients;
+        this.scanRate = scanRate;
+        this.overrunPolicy = overrunPolicy;
+        this.phasing = phasing;
+        this.outboundRate = outboundRate;
+        this.workers = workers;
+        this.ticker = Executors.newSingleThreadScheduledExecutor(ScanWorkerPools.namedDaemonThreads("scan-ticker"));
+        this.shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(i);
+        }
+    }
+
+    // The default number of shards: one per scan thread, and with phasing enough to spread the scans in small steps
+    public static int defaultShardCount(int scanThreads, ScanPhasing phasing) {
+        int threads = Math.max(1, scanThreads);
+        return phasing == ScanPhasing.NONE ? threads : threads * PHASED_SHARDS_PER_THREAD;
+    }
+
+    @Override
+    public void start() {
+        LOG.info("Scanning every {} ms with {} shard(s), overrun policy {}, phasing {}.", scanRate, shards.length,
+                overrunPolicy, phasing);
+        // The first shard starts the cycle, the others follow at their offsets
+        for (final Shard shard : shards) {
+            ticker.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    tick(shard);
+                }
+            }, shardOffsetMillis(shard.index), scanRate, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    // Shard i is ticked i / shardCount of the period after the start when the scans are phased
+    private long shardOffsetMillis(int shard) {
+        return phasing == ScanPhasing.NONE ? 0 : shard * scanRate / shards.length;
+    }
+
+    @Override
+    public void shutdown(long timeoutMillis) throws InterruptedException {
+        ticker.shutdownNow();
+        workers.shutdown();
+        if (!workers.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS)) {
+            LOG.warn("Scan workers did not finish within {} ms.", timeoutMillis);
+            workers.shutdownNow();
+        }
+    }
+
+    @Override
+    public long getCycleCount() {
+        return cycleCount.get();
+    }
+
+    @Override
+    public long getOverrunCount() {
+        return overrunCount.get();
+    }
+
+    // The scan durations, cycle durations, errors and overruns are recorded in these metrics
+    public void setAgentMetrics(AgentMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    // The things of a shard are flushed as soon as the shard finished its scan
+    public void setFlushCoordinator(FlushCoordinator flushCoordinator) {
+        this.flushCoordinator = flushCoordinator;
+    }
+
+    public AgentMetrics getAgentMetrics() {
+        return metrics;
+    }
+
+    // The mean time a shard takes to scan its things. A shard overruns when it exceeds the scan rate.
+    public double getMeanShardScanMillis() {
+        return metrics.getShardScanDuration().getMean() / 1000.0;
+    }
+
+    public double getMaxShardScanMillis() {
+        return metrics.getShardScanDuration().getMax() / 1000.0;
+    }
+
+    public void resetShardScanStatistics() {
+        metrics.getShardScanDuration().reset();
+    }
+
+    public long getScanRate() {
+        return scanRate;
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    // Keep scanning while the client is disconnected, used when the updates are kept by a store-and-forward buffer
+    public void setScanWhileDisconnected(boolean scanWhileDisconnected) {
+        this.scanWhileDisconnected = scanWhileDisconnected;
+    }
+
+    public OutboundRateMonitor getOutboundRate() {
+        return outboundRate;
+    }
+
+    // Runs on the ticker thread. It must never block, or the following ticks would be delayed.
+    // The tick of the first shard starts a new cycle, which picks up things that were bound or unbound since.
+    private void tick(Shard shard) {
+        try {
+            long cycle = cycleCount.get();
+            // Only process the Virtual Things if a client is connected
+            if (!shouldScan()) {
+                shard.tick(shard.firstTickOf(cycle), false);
+                return;
+            }
+            if (shard.index == 0 || assignedThingCount < 0) {
+                cycle = startCycle(shard.index == 0);
+            }
+            shard.tick(shard.firstTickOf(cycle), true);
+        } catch (Throwable t) {
+            // An exception escaping a scheduled task would cancel all following ticks
+            LOG.error("Scan tick failed", t);
+        }
+    }
+
+    private long startCycle(boolean measure) {
+        long cycle = cycleCount.incrementAndGet();
+        if (measure && shardsToReport.get() == 0) {
+            measuredCycle = cycle;
+            measuredCycleStart = System.nanoTime();
+            shardsToReport.set(shards.length);
+        }
+        assignThingsToShards();
+        if (outboundRate != null && cycle % REPORT_EVERY_CYCLES == 0) {
+            LOG.info(String.format("Outbound pushes: mean %.1f/s, peak %.1f/s, peak-to-mean %.2f",
+                    outboundRate.getMeanRate(), outboundRate.getPeakRate(), outboundRate.getPeakToMeanRatio()));
+        }
+        return cycle;
+    }
+
+    // A shard is done with cycle, the last shard to report for the measured cycle records its duration
+    private void shardReported(long cycle) {
+        if (cycle != measuredCycle) {
+            return;
+        }
+        // Read before reporting, the next measurement may start as soon as the last shard reported
+        long start = measuredCycleStart;
+        if (shardsToReport.decrementAndGet() == 0) {
+            metrics.getScanCycleDuration().recordMicrosSince(start);
+        }
+    }
+
+    private boolean shouldScan() {
+        if (scanWhileDisconnected) {
+            return true;
+        }
+        for (ConnectedThingClient client : clients) {
+            if (client.isConnected()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean shouldScan(VirtualThing thing) {
+        return scanWhileDisconnected || thing.getClient().isConnected();
+    }
+
+    // Phased things are assigned to the shard of their phase offset, the others by the hash of their name, so a
+    // thing stays on the same shard while others are bound or unbound unless its phase depends on them, as with
+    // SPREAD. The assignment is only rebuilt when the number of things changes.
+    private void assignThingsToShards() {
+        List<VirtualThing> things = new ArrayList<VirtualThing>();
+        for (ConnectedThingClient client : clients) {
+            things.addAll(client.getThings().values());
+        }
+        if (things.size() == assignedThingCount) {
+            return;
+        }
+        Collections.sort(things, new Comparator<VirtualThing>() {
+            @Override
+            public int compare(VirtualThing a, VirtualThing b) {
+                return a.getName().compareTo(b.getName());
+            }
+        });
+        List<List<VirtualThing>> assignment = new ArrayList<List<VirtualThing>>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            assignment.add(new ArrayList<VirtualThing>());
+        }
+        for (int i = 0; i < things.size(); i++) {
+            VirtualThing thing = things.get(i);
+            int shard;
+            if (phasing == ScanPhasing.NONE) {
+                shard = shardOf(thing.getName(), shards.length);
+            } else {
+                long offset = phasing.offsetMillis(thing.getName(), i, things.size(), scanRate);
+                shard = (int) Math.min(shards.length - 1, offset * shards.length / scanRate);
+            }
+            assignment.get(shard).add(thing);
+        }
+        for (int i = 0; i < shards.length; i++) {
+            shards[i].things = assignment.get(i).toArray(new VirtualThing[0]);
+        }
+        assignedThingCount = things.size();
+        LOG.debug("Assigned {} things to {} scan shards.", assignedThingCount, shards.length);
+    }
+
+    static int shardOf(String thingName, int shardCount) {
+        return (mix(thingName.hashCode()) & 0x7fffffff) % shardCount;
+    }
+
+    // Spreads the bits, String.hashCode() of names that only differ in a trailing number is very regular
+    static int mix(int hash) {
+        hash ^= (hash >>> 16);
+        hash *= 0x85ebca6b;
+        hash ^= (hash >>> 13);
+        return hash;
+    }
+
+    private final class Shard implements Runnable {
+        private final int index;
+        private final AtomicInteger state = new AtomicInteger(IDLE);
+        private volatile VirtualThing[] things = new VirtualThing[0];
+        // The last cycle the shard was ticked in, only used by the ticker
+        private long tickedCycle;
+        // The cycle of the scan handed to the workers, and of the pending tick
+        private long scanCycle;
+        private volatile long pendingCycle;
+
+        private Shard(int index) {
+            this.index = index;
+        }
+
+        // The cycle this tick reports for, NO_CYCLE when the shard was ticked in the cycle before. That happens
+        // while the ticks of the first shard do not start cycles because the clients are disconnected.
+        private long firstTickOf(long cycle) {
+            if (cycle == tickedCycle) {
+                return NO_CYCLE;
+            }
+            tickedCycle = cycle;
+            return cycle;
+        }
+
+        private void tick(long cycle, boolean scan) {
+            if (!scan || things.length == 0) {
+                shardReported(cycle);
+                return;
+            }
+            if (state.compareAndSet(IDLE, RUNNING)) {
+                scanCycle = cycle;
+                try {
+                    workers.execute(this);
+                } catch (RejectedExecutionException e) {
+                    state.set(IDLE);
+                    shardReported(cycle);
+                }
+                return;
+            }
+            overrunCount.incrementAndGet();
+            metrics.countScanOverrun();
+            if (overrunPolicy == OverrunPolicy.CATCH_UP) {
+                LOG.debug("Scan shard {} overran its period, it will catch up when the current scan completes.", index);
+                // Only the ticker sets a pending tick, a tick that is pending already scans for its own cycle
+                if (state.get() == RUNNING) {
+                    pendingCycle = cycle;
+                    if (state.compareAndSet(RUNNING, RUNNING_WITH_PENDING_TICK)) {
+                        return;
+                    }
+                }
+            } else {
+                LOG.debug("Scan shard {} overran its period, skipping this tick.", index);
+            }
+            shardReported(cycle);
+        }
+
+        @Override
+        public void run() {
+            long cycle = scanCycle;
+            while (true) {
+                // Only the scans are measured, not the time the shard waited for a worker
+                long start = System.nanoTime();
+                scanThings();
+                metrics.getShardScanDuration().recordMicrosSince(start);
+                FlushCoordinator coordinator = flushCoordinator;
+                if (coordinator != null) {
+                    coordinator.scanCompleted();
+                }
+                shardReported(cycle);
+                // Either go back to idle, or consume the pending tick and scan again
+                if (state.compareAndSet(RUNNING, IDLE) || !state.compareAndSet(RUNNING_WITH_PENDING_TICK, RUNNING)) {
+                    return;
+                }
+                cycle = pendingCycle;
+            }
+        }
+
+        private void scanThings() {
+            for (VirtualThing thing : things) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+                // The things of a lost connection wait for it, the others are scanned as usual
+                if (!shouldScan(thing)) {
+                    continue;
+                }
+                AgentMetrics current = metrics;
+                long scanStart = System.nanoTime();
+                try {
+                    thing.processScanRequest();
+                } catch (Exception eProcessing) {
+                    current.countScanError();
+                    LOG.warn("Error Processing Scan Request for [{}] : {}", thing.getName(), eProcessing.getMessage());
+                }
+                current.getScanDuration().recordMicrosSince(scanStart);
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.thingworx.sdk.steam.scan;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Counts outbound updates in fixed time buckets so the burstiness of the traffic can be reported.
+// A perfectly smooth stream has a peak-to-mean ratio of 1, a single burst per period has a ratio equal to the
+// number of buckets in the period.
+// Every bucket is one long with the low 32 bits of its bucket id in the high half and its count in the low half, so
+// a bucket is reset for a new id and counted in one compare-and-set and no update is lost to a concurrent reset.
+public class OutboundRateMonitor {
+    private static final long COUNT_MASK = 0xffffffffL;
+
+    private final long bucketMillis;
+    private final int bucketCount;
+    private final AtomicLongArray buckets;
+
+    public OutboundRateMonitor(long windowMillis, int bucketCount) {
+        this.bucketCount = Math.max(2, bucketCount);
+        this.bucketMillis = Math.max(1, windowMillis / this.bucketCount);
+        // One extra bucket is kept for the bucket that is currently being filled
+        this.buckets = new AtomicLongArray(this.bucketCount + 1);
+    }
+
+    public void record(int updates) {
+        long bucketId = System.currentTimeMillis() / bucketMillis;
+        int index = (int) (bucketId % buckets.length());
+        long id = bucketId & COUNT_MASK;
+        while (true) {
+            long current = buckets.get(index);
+            // The first update of a new bucket replaces the count of the bucket that used the slot before
+            long next = (current >>> 32) == id ? current + updates : (id << 32) | updates;
+            if (buckets.compareAndSet(index, current, next)) {
+                return;
+            }
+        }
+    }
+
+    public long getBucketMillis() {
+        return bucketMillis;
+    }
+
+    // Mean number of updates per second over the complete buckets of the window
+    public double getMeanRate() {
+        long now = System.currentTimeMillis() / bucketMillis;
+        long total = 0;
+        for (long id = now - bucketCount; id < now; id++) {
+            total += countOf(id);
+        }
+        return total * 1000.0 / (bucketCount * bucketMillis);
+    }
+
+    // Highest number of updates per second seen in a single bucket of the window
+    public double getPeakRate() {
+        long now = System.currentTimeMillis() / bucketMillis;
+        long peak = 0;
+        for (long id = now - bucketCount; id < now; id++) {
+            peak = Math.max(peak, countOf(id));
+        }
+        return peak * 1000.0 / bucketMillis;
+    }
+
+    public double getPeakToMeanRatio() {
+        double mean = getMeanRate();
+        return mean == 0 ? 0 : getPeakRate() / mean;
+    }
+
+    private long countOf(long bucketId) {
+        long bucket = buckets.get((int) (bucketId % buckets.length()));
+        return (bucket >>> 32) == (bucketId & COUNT_MASK) ? bucket & COUNT_MASK : 0;
+    }
+}
@@ -0,0 +1,17 @@
+package com.thingworx.sdk.steam.scan;
+
+// What a shard does when a tick arrives while its previous scan is still running.
+public enum OverrunPolicy {
+    // Drop the tick. The shard is scanned again on the next tick that finds it idle.
+    SKIP,
+    // Remember the tick and start the next scan as soon as the running one finishes.
+    // Any number of missed ticks is coalesced into a single extra scan.
+    CATCH_UP;
+
+    public static OverrunPolicy fromString(String value) {
+        if (value == null) {
+            return SKIP;
+        }
+        return OverrunPolicy.valueOf(value.trim().toUpperCase().replace('-', '_'));
+    }
+}
@@ -0,0 +1,34 @@
+package com.thingworx.sdk.steam.scan;
+
+// How the scans of the things of a cycle are placed inside the scan period. The phase offset of a thing decides
+// the shard it is scanned with, see FixedRateScanScheduler, so it is rounded down to the tick of that shard.
+public enum ScanPhasing {
+    // Every thing is scanned right at the tick, back-to-back. All pushes leave in one burst.
+    NONE,
+    // The offset is derived from the hash of the thing name. It does not depend on the other things, so it is
+    // stable while things are bound and unbound, but the spread is only statistically even.
+    HASH,
+    // The things are ordered by name and spread evenly over the period.
+    SPREAD;
+
+    public static ScanPhasing fromString(String value) {
+        if (value == null) {
+            return SPREAD;
+        }
+        return ScanPhasing.valueOf(value.trim().toUpperCase());
+    }
+
+    // Returns the offset in milliseconds from the start of the cycle at which the thing should be scanned.
+    // index is the position of the thing in the name ordered list of count things.
+    public long offsetMillis(String thingName, int index, int count, long scanRate) {
+        switch (this) {
+            case HASH:
+                // Salted so the phase is independent of the shard, which is also chosen from the name hash
+                return (FixedRateScanScheduler.mix(thingName.hashCode() ^ 0x5bd1e995) & 0x7fffffffL) % scanRate;
+            case SPREAD:
+                return count == 0 ? 0 : (index * scanRate) / count;
+            default:
+                return 0;
+        }
+    }
+}
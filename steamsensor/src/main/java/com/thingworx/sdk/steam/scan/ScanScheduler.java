@@ -0,0 +1,18 @@
+package com.thingworx.sdk.steam.scan;
+
+// A scan scheduler drives processScanRequest() on every Virtual Thing bound to a client.
+// Implementations decide how the scan period is kept and how the work is spread over threads.
+public interface ScanScheduler {
+
+    // Starts issuing scan cycles. Returns immediately, the scans run on the scheduler's own threads.
+    void start();
+
+    // Stops issuing new scan cycles and waits up to the given time for the running ones to finish.
+    void shutdown(long timeoutMillis) throws InterruptedException;
+
+    // Number of scan cycles (ticks) that have been issued so far.
+    long getCycleCount();
+
+    // Number of shard scans that could not start on time because the previous one was still running.
+    long getOverrunCount();
+}
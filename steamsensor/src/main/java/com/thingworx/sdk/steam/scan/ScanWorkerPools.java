@@ -0,0 +1,48 @@
+package com.thingworx.sdk.steam.scan;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Creates the executors that run the shard scans.
+public final class ScanWorkerPools {
+    private static final Logger LOG = LoggerFactory.getLogger(ScanWorkerPools.class);
+
+    private ScanWorkerPools() {
+    }
+
+    // Returns a fixed pool of platform threads, or a virtual thread per task executor when requested and
+    // the running JDK supports it (Java 21+). This project is compiled for Java 8, so the virtual thread
+    // factory is looked up reflectively and we fall back to platform threads when it is not available.
+    public static ExecutorService newWorkerPool(int threads, boolean virtualThreads) {
+        if (virtualThreads) {
+            try {
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                ExecutorService executor = (ExecutorService) factory.invoke(null);
+                LOG.info("Scanning with virtual threads.");
+                return executor;
+            } catch (Exception e) {
+                LOG.warn("Virtual threads are not available on Java {}, using {} platform scan threads.",
+                        System.getProperty("java.version"), threads);
+            }
+        }
+        return Executors.newFixedThreadPool(Math.max(1, threads), namedDaemonThreads("scan-worker"));
+    }
+
+    public static ThreadFactory namedDaemonThreads(final String prefix) {
+        final AtomicInteger sequence = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, prefix + "-" + sequence.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
@@ -0,0 +1,13 @@
+package com.thingworx.sdk.steam.settings;
+
+// A thing whose configuration is held in numeric properties on the platform, read once at startup by the
+// InitialSettingsLoader
+public interface ConfigurableThing {
+    String getName();
+
+    // The properties read from the platform at startup
+    String[] getSettingNames();
+
+    // Called with a value read from the platform or the local cache, from a loader thread
+    void applySetting(String name, double value) throws Exception;
+}
@@ -0,0 +1,239 @@
+package com.thingworx.sdk.steam.settings;
+
+import com.thingworx.communications.client.ConnectedThingClient;
+import com.thingworx.relationships.RelationshipTypes;
+import com.thingworx.sdk.steam.scan.ScanWorkerPools;
+import com.thingworx.types.InfoTable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Loads the settings of all the things from the platform as a stage of its own, next to the scans instead of inside
+// them. The reads of all the things are issued together on a bounded pool, a read that fails or times out is tried
+// again after a backoff that doubles up to maxBackoffMillis, until it succeeds or the loader is shut down.
+// The last known values are kept in a cache file. They are applied before the client starts, so a restarted agent
+// scans with the limits it had right away, and the platform values replace them once they are read.
+public class InitialSettingsLoader {
+    private static final Logger LOG = LoggerFactory.getLogger(InitialSettingsLoader.class);
+    private static final long INITIAL_BACKOFF = 1000;
+    // How often the cache file is written when values changed
+    private static final long SAVE_PERIOD = 5000;
+
+    private final ConnectedThingClient client;
+    private final File cacheFile;
+    private final int timeoutMillis;
+    private final long maxBackoffMillis;
+    private final ScheduledThreadPoolExecutor readers;
+    private final List<ConfigurableThing> things = new ArrayList<ConfigurableThing>();
+    // The client each thing is read through
+    private final Map<ConfigurableThing, ConnectedThingClient> clients = new HashMap<ConfigurableThing, ConnectedThingClient>();
+    // The last known values by thing name and setting name, as written to the cache file
+    private final Map<String, Double> values = new ConcurrentHashMap<String, Double>();
+    private volatile boolean dirty = false;
+    private volatile boolean shutdown = false;
+    private CountDownLatch pending;
+
+    // cacheFile may be null to keep no cache. The things are read through client unless registered with their own.
+    public InitialSettingsLoader(ConnectedThingClient client, File cacheFile, int concurrency, int timeoutMillis,
+                                 long maxBackoffMillis) {
+        this.client = client;
+        this.cacheFile = cacheFile;
+        this.timeoutMillis = timeoutMillis;
+        this.maxBackoffMillis = Math.max(INITIAL_BACKOFF, maxBackoffMillis);
+        this.readers = new ScheduledThreadPoolExecutor(Math.max(1, concurrency),
+                ScanWorkerPools.namedDaemonThreads("settings-loader"));
+        this.readers.setRemoveOnCancelPolicy(true);
+    }
+
+    // Things must be registered before start
+    public synchronized void register(ConfigurableThing thing) {
+        register(thing, client);
+    }
+
+    // Reads the settings of the thing through the given client, the one the thing is bound through
+    public synchronized void register(ConfigurableThing thing, ConnectedThingClient client) {
+        things.add(thing);
+        clients.put(thing, client);
+    }
+
+    private static String key(ConfigurableThing thing, String setting) {
+        return thing.getName() + "/" + setting;
+    }
+
+    // Applies the values of the cache file to the registered things and returns how many were applied
+    public synchronized int applyCached() {
+        if (cacheFile == null || !cacheFile.isFile()) {
+            return 0;
+        }
+        Properties cached = new Properties();
+        try {
+            InputStream in = new FileInputStream(cacheFile);
+            try {
+                cached.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            LOG.warn("Could not read the settings cache {}: {}", cacheFile, e.getMessage());
+            return 0;
+        }
+        int applied = 0;
+        for (ConfigurableThing thing : things) {
+            for (String setting : thing.getSettingNames()) {
+                String value = cached.getProperty(key(thing, setting));
+                if (value == null) {
+                    continue;
+                }
+                try {
+                    double parsed = Double.parseDouble(value);
+                    thing.applySetting(setting, parsed);
+                    values.put(key(thing, setting), parsed);
+                    applied++;
+                } catch (Exception e) {
+                    LOG.warn("Could not apply the cached {} of [{}]: {}", setting, thing.getName(), e.getMessage());
+                }
+            }
+        }
+        LOG.info("Applied {} cached setting(s) from {}.", applied, cacheFile);
+        return applied;
+    }
+
+    // Starts reading the settings of every registered thing from the platform
+    public synchronized void start() {
+        int reads = 0;
+        for (ConfigurableThing thing : things) {
+            reads += thing.getSettingNames().length;
+        }
+        pending = new CountDownLatch(reads);
+        for (ConfigurableThing thing : things) {
+            for (String setting : thing.getSettingNames()) {
+                readers.execute(new Read(thing, setting, clients.get(thing)));
+            }
+        }
+        if (cacheFile != null) {
+            readers.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    save();
+                }
+            }, SAVE_PERIOD, SAVE_PERIOD, TimeUnit.MILLISECONDS);
+        }
+        LOG.info("Reading {} setting(s) of {} thing(s) from the server.", reads, things.size());
+    }
+
+    // Waits until every setting was read from the platform once, returns false on timeout
+    public boolean awaitLoaded(long timeoutMillis) throws InterruptedException {
+        CountDownLatch latch;
+        synchronized (this) {
+            latch = pending;
+        }
+        return latch == null || latch.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // Records a value the platform wrote later, so the cache holds the latest
+    public void update(ConfigurableThing thing, String setting, double value) {
+        Double previous = values.put(key(thing, setting), value);
+        if (previous == null || previous != value) {
+            dirty = true;
+        }
+    }
+
+    // Writes the cache file if a value changed since it was last written. The file is replaced as a whole so a crash
+    // while writing leaves the previous one.
+    public synchronized void save() {
+        if (cacheFile == null || !dirty) {
+            return;
+        }
+        dirty = false;
+        Properties cached = new Properties();
+        for (Map.Entry<String, Double> entry : values.entrySet()) {
+            cached.setProperty(entry.getKey(), Double.toString(entry.getValue()));
+        }
+        File partial = new File(cacheFile.getPath() + ".tmp");
+        try {
+            OutputStream out = new FileOutputStream(partial);
+            try {
+                cached.store(out, "Last known settings of the steam sensors");
+            } finally {
+                out.close();
+            }
+            Files.move(partial.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            dirty = true;
+            LOG.warn("Could not write the settings cache {}: {}", cacheFile, e.getMessage());
+        }
+    }
+
+    public void shutdown() {
+        shutdown = true;
+        readers.shutdownNow();
+        save();
+    }
+
+    // One setting of one thing, tried until it is read
+    private final class Read implements Runnable {
+        private final ConfigurableThing thing;
+        private final String setting;
+        private final ConnectedThingClient client;
+        private long backoff = INITIAL_BACKOFF;
+
+        private Read(ConfigurableThing thing, String setting, ConnectedThingClient client) {
+            this.thing = thing;
+            this.setting = setting;
+            this.client = client;
+        }
+
+        @Override
+        public void run() {
+            if (shutdown) {
+                return;
+            }
+            try {
+                if (!client.isConnected()) {
+                    throw new IllegalStateException("not connected");
+                }
+                InfoTable result = client.readProperty(RelationshipTypes.ThingworxEntityTypes.Things, thing.getName(),
+                        setting, timeoutMillis);
+                Object value = result.getFirstRow().getValue(setting);
+                if (!(value instanceof Number)) {
+                    throw new IllegalStateException("no numeric value");
+                }
+                double read = ((Number) value).doubleValue();
+                thing.applySetting(setting, read);
+                update(thing, setting, read);
+                pending.countDown();
+            } catch (Exception e) {
+                // The jitter keeps the retries of many things from arriving together
+                long delay = backoff / 2 + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+                LOG.debug("Could not read {} of [{}], trying again in {} ms: {}", setting, thing.getName(), delay,
+                        e.getMessage());
+                backoff = Math.min(backoff * 2, maxBackoffMillis);
+                try {
+                    readers.schedule(this, delay, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException rejected) {
+                    // Shut down in the meantime
+                }
+            }
+        }
+    }
+}
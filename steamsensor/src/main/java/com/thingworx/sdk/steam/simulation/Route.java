@@ -0,0 +1,52 @@
+package com.thingworx.sdk.steam.simulation;
+
+// A closed path the simulated sensors move along, precomputed once into primitive arrays of latitudes and
+// longitudes. Between two waypoints the path has stepsPerLeg points, linearly interpolated.
+// Immutable and shared by all sensors, each sensor only keeps its position on it.
+public final class Route {
+    // The waypoints of the original example, a path there and back
+    private static final double[][] WAYPOINTS = {
+        {40.0573, -75.67072}, {40.05971, -75.67428}, {40.06189, -75.67595}, {40.06322, -75.67791},
+        {40.06469, -75.67906}, {40.06534, -75.68052}, {40.06577, -75.68218}, {40.06498, -75.68393},
+        {40.06431, -75.68457}, {40.06374, -75.6851}, {40.06302, -75.68588}, {40.06259, -75.68534},
+        {40.06213, -75.68449}, {40.06133, -75.68366}, {40.0618, -75.68459}, {40.06133, -75.68366},
+        {40.06213, -75.68449}, {40.06259, -75.68534}, {40.06302, -75.68588}, {40.06374, -75.6851},
+        {40.06431, -75.68457}, {40.06498, -75.68393}, {40.06577, -75.68218}, {40.06534, -75.68052},
+        {40.06469, -75.67906}, {40.06322, -75.67791}, {40.06189, -75.67595}, {40.05971, -75.67428},
+        {40.0573, -75.67072}
+    };
+
+    private final double[] latitudes;
+    private final double[] longitudes;
+
+    public Route(int stepsPerLeg) {
+        if (stepsPerLeg <= 0) {
+            throw new IllegalArgumentException("A route needs at least one step per leg");
+        }
+        // The last waypoint is the first one again, the path wraps around to it
+        int legs = WAYPOINTS.length - 1;
+        latitudes = new double[legs * stepsPerLeg];
+        longitudes = new double[legs * stepsPerLeg];
+        for (int leg = 0; leg < legs; leg++) {
+            double[] from = WAYPOINTS[leg];
+            double[] to = WAYPOINTS[leg + 1];
+            for (int step = 0; step < stepsPerLeg; step++) {
+                double fraction = (double) step / stepsPerLeg;
+                latitudes[leg * stepsPerLeg + step] = from[0] + (to[0] - from[0]) * fraction;
+                longitudes[leg * stepsPerLeg + step] = from[1] + (to[1] - from[1]) * fraction;
+            }
+        }
+    }
+
+    public int length() {
+        return latitudes.length;
+    }
+
+    public double latitude(int position) {
+        return latitudes[position];
+    }
+
+    public double longitude(int position) {
+        return longitudes[position];
+    }
+}
@@ -0,0 +1,92 @@
+package com.thingworx.sdk.steam.simulation;
+
+import java.util.SplittableRandom;
+
+// The simulated readings of one sensor. It owns its random generator, so sensors scanned on different threads
+// never contend for one, and the values it produces depend only on the seed and the index of the sensor.
+// Not thread safe, it is used by the scan of one thing.
+public final class SensorSimulator implements SensorSource {
+    private final SplittableRandom random;
+    private final Signal temperature;
+    private final Signal pressure;
+    private final Signal flowRate;
+    private final int inletValvePeriod;
+    private final int inletValveOpen;
+    private final Route route;
+    private int inletValveSample;
+    private int position;
+
+    SensorSimulator(SimulationConfig config, SplittableRandom random) {
+        this.random = random;
+        this.temperature = new Signal(config.getTemperature());
+        this.pressure = new Signal(config.getPressure());
+        this.flowRate = new Signal(config.getFlowRate());
+        this.inletValvePeriod = config.getInletValvePeriod();
+        this.inletValveOpen = config.getInletValveOpen();
+        this.route = config.getRoute();
+        // The sensors start at different points of their cycles
+        this.inletValveSample = random.nextInt(inletValvePeriod);
+        this.position = random.nextInt(route.length());
+    }
+
+    // The simulated values do not depend on the time of the scan
+    @Override
+    public void startScan(long time) {
+    }
+
+    @Override
+    public double nextTemperature() {
+        return temperature.next(random);
+    }
+
+    @Override
+    public double nextPressure() {
+        return pressure.next(random);
+    }
+
+    // The flow since the last sample
+    @Override
+    public double nextFlow() {
+        return Math.max(0, flowRate.next(random));
+    }
+
+    // The valve is open for inletValveOpen samples of every inletValvePeriod
+    @Override
+    public boolean nextInletValve() {
+        boolean open = inletValveSample < inletValveOpen;
+        if (++inletValveSample == inletValvePeriod) {
+            inletValveSample = 0;
+        }
+        return open;
+    }
+
+    // Moves to the next point of the route, read it with latitude() and longitude()
+    @Override
+    public void nextLocation() {
+        if (++position == route.length()) {
+            position = 0;
+        }
+    }
+
+    @Override
+    public double latitude() {
+        return route.latitude(position);
+    }
+
+    @Override
+    public double longitude() {
+        return route.longitude(position);
+    }
+
+    // The point of the route and the sample of the inlet valve cycle
+    @Override
+    public long getPosition() {
+        return ((long) position << 32) | inletValveSample;
+    }
+
+    @Override
+    public void setPosition(long position) {
+        this.position = (int) Math.floorMod(position >>> 32, (long) route.length());
+        this.inletValveSample = (int) Math.floorMod(position & 0xffffffffL, (long) inletValvePeriod);
+    }
+}
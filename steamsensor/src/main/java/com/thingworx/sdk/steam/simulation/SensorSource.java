@@ -0,0 +1,30 @@
+package com.thingworx.sdk.steam.simulation;
+
+// Where the readings of one sensor come from: a seeded SensorSimulator, or the Replay of a recording.
+// The scan calls startScan once, then takes the readings it samples in that scan, always in the same order.
+// Not thread safe, it is used by the scan of one thing.
+public interface SensorSource {
+    // Called at the start of every scan with its time
+    void startScan(long time);
+
+    double nextTemperature();
+
+    double nextPressure();
+
+    // The flow since the last call
+    double nextFlow();
+
+    boolean nextInletValve();
+
+    // Moves to the next location, read it with latitude() and longitude()
+    void nextLocation();
+
+    double latitude();
+
+    double longitude();
+
+    // The position of the source in its cycles, kept by checkpoints so a restarted sensor continues from there
+    long getPosition();
+
+    void setPosition(long position);
+}
@@ -0,0 +1,31 @@
+package com.thingworx.sdk.steam.simulation;
+
+import java.util.SplittableRandom;
+
+// One simulated reading of one sensor, following a SignalModel.
+// Every sample draws the same number of random values whatever the model, so changing a setting of one reading does
+// not shift the values of the others.
+final class Signal {
+    private final SignalModel model;
+    private double drift;
+    private int stepRemaining;
+
+    Signal(SignalModel model) {
+        this.model = model;
+    }
+
+    double next(SplittableRandom random) {
+        double noise = random.nextDouble();
+        double walk = random.nextDouble();
+        double step = random.nextDouble();
+
+        double limit = model.getDriftLimit();
+        drift = Math.max(-limit, Math.min(limit, drift + (2 * walk - 1) * model.getDriftStep()));
+        if (stepRemaining > 0) {
+            stepRemaining--;
+        } else if (step < model.getStepProbability()) {
+            stepRemaining = model.getStepSamples();
+        }
+        return model.getBase() + model.getNoise() * noise + drift + (stepRemaining > 0 ? model.getStepSize() : 0);
+    }
+}
@@ -0,0 +1,71 @@
+package com.thingworx.sdk.steam.simulation;
+
+// The waveform of one simulated reading, a sum of:
+//   base + noise * uniform[0, 1)                  the value around which the reading moves
+//   + drift, a random walk of up to driftStep per sample that stays within +-driftLimit
+//   + stepSize while a step fault lasts, which starts with stepProbability per sample and lasts stepSamples
+// The model is immutable and shared, the drift and step of each sensor are kept in its Signal.
+public final class SignalModel {
+    private final double base;
+    private final double noise;
+    private final double driftStep;
+    private final double driftLimit;
+    private final double stepProbability;
+    private final double stepSize;
+    private final int stepSamples;
+
+    public SignalModel(double base, double noise, double driftStep, double driftLimit,
+                       double stepProbability, double stepSize, int stepSamples) {
+        if (noise < 0 || driftStep < 0 || driftLimit < 0 || stepSamples < 0
+                || stepProbability < 0 || stepProbability > 1) {
+            throw new IllegalArgumentException("The noise, drift and step settings must not be negative, "
+                    + "and the step probability must be at most 1");
+        }
+        this.base = base;
+        this.noise = noise;
+        this.driftStep = driftStep;
+        this.driftLimit = driftLimit;
+        this.stepProbability = stepProbability;
+        this.stepSize = stepSize;
+        this.stepSamples = stepSamples;
+    }
+
+    // Plain uniform noise, the waveform of the original example
+    public static SignalModel noise(double base, double noise) {
+        return new SignalModel(base, noise, 0, 0, 0, 0, 0);
+    }
+
+    public double getBase() {
+        return base;
+    }
+
+    public double getNoise() {
+        return noise;
+    }
+
+    public double getDriftStep() {
+        return driftStep;
+    }
+
+    public double getDriftLimit() {
+        return driftLimit;
+    }
+
+    public double getStepProbability() {
+        return stepProbability;
+    }
+
+    public double getStepSize() {
+        return stepSize;
+    }
+
+    public int getStepSamples() {
+        return stepSamples;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("base %s, noise %s, drift %s up to %s, steps of %s for %d samples with probability %s",
+                base, noise, driftStep, driftLimit, stepSize, stepSamples, stepProbability);
+    }
+}
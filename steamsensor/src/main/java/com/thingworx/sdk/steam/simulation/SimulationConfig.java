@@ -0,0 +1,206 @@
+package com.thingworx.sdk.steam.simulation;
+
+import com.thingworx.sdk.steam.config.GroupedSettings;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Properties;
+import java.util.SplittableRandom;
+
+// The seed and the waveform models of the simulated sensors.
+// Two runs with the same seed and settings produce the same values for every sensor, whatever the number of threads
+// and the order in which the sensors are scanned. The defaults are the ranges of the original example, and can be
+// overridden by a properties file with one entry per setting, for example:
+//   Temperature.driftStep=0.2
+//   Temperature.driftLimit=15
+//   Temperature.stepProbability=0.001
+//   Temperature.stepSize=30
+//   Temperature.stepSamples=20
+//   Pressure.noise=2
+//   FlowRate.base=0.5
+//   InletValve.period=15
+//   InletValve.open=14
+//   Location.stepsPerLeg=10
+// The signal settings are base, noise, driftStep, driftLimit, stepProbability, stepSize and stepSamples, see
+// SignalModel.
+public final class SimulationConfig {
+    // The increment of the generator of SplittableRandom
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    private final long seed;
+    private final SignalModel temperature;
+    private final SignalModel pressure;
+    private final SignalModel flowRate;
+    private final int inletValvePeriod;
+    private final int inletValveOpen;
+    private final Route route;
+    private final int stepsPerLeg;
+
+    private SimulationConfig(long seed, SignalModel temperature, SignalModel pressure, SignalModel flowRate,
+                             int inletValvePeriod, int inletValveOpen, int stepsPerLeg) {
+        if (inletValvePeriod <= 0 || inletValveOpen < 0 || inletValveOpen > inletValvePeriod) {
+            throw new IllegalArgumentException("The inlet valve must be open for 0 up to period samples of a positive period");
+        }
+        this.seed = seed;
+        this.temperature = temperature;
+        this.pressure = pressure;
+        this.flowRate = flowRate;
+        this.inletValvePeriod = inletValvePeriod;
+        this.inletValveOpen = inletValveOpen;
+        this.stepsPerLeg = stepsPerLeg;
+        this.route = new Route(stepsPerLeg);
+    }
+
+    public static SimulationConfig defaults(long seed) {
+        return new SimulationConfig(seed, SignalModel.noise(400, 40), SignalModel.noise(18, 5),
+                SignalModel.noise(0, 1), 15, 14, 1);
+    }
+
+    public SimulationConfig withSeed(long seed) {
+        return new SimulationConfig(seed, temperature, pressure, flowRate, inletValvePeriod, inletValveOpen,
+                stepsPerLeg);
+    }
+
+    public SimulationConfig withOverrides(File file) throws IOException {
+        Properties properties = new Properties();
+        InputStream in = new FileInputStream(file);
+        try {
+            properties.load(in);
+        } finally {
+            in.close();
+        }
+        return withOverrides(properties);
+    }
+
+    public SimulationConfig withOverrides(Properties overrides) {
+        Map<String, Map<String, String>> byReading = GroupedSettings.byName(overrides, "Simulation", "reading");
+
+        SignalModel newTemperature = temperature;
+        SignalModel newPressure = pressure;
+        SignalModel newFlowRate = flowRate;
+        int newPeriod = inletValvePeriod;
+        int newOpen = inletValveOpen;
+        int newStepsPerLeg = stepsPerLeg;
+        for (Map.Entry<String, Map<String, String>> entry : byReading.entrySet()) {
+            String reading = entry.getKey();
+            Map<String, String> settings = entry.getValue();
+            if ("Temperature".equals(reading)) {
+                newTemperature = withSettings(reading, newTemperature, settings);
+            } else if ("Pressure".equals(reading)) {
+                newPressure = withSettings(reading, newPressure, settings);
+            } else if ("FlowRate".equals(reading)) {
+                newFlowRate = withSettings(reading, newFlowRate, settings);
+            } else if ("InletValve".equals(reading)) {
+                for (Map.Entry<String, String> setting : settings.entrySet()) {
+                    if ("period".equals(setting.getKey())) {
+                        newPeriod = Integer.parseInt(setting.getValue());
+                    } else if ("open".equals(setting.getKey())) {
+                        newOpen = Integer.parseInt(setting.getValue());
+                    } else {
+                        throw unknownSetting(reading, setting.getKey());
+                    }
+                }
+            } else if ("Location".equals(reading)) {
+                for (Map.Entry<String, String> setting : settings.entrySet()) {
+                    if ("stepsPerLeg".equals(setting.getKey())) {
+                        newStepsPerLeg = Integer.parseInt(setting.getValue());
+                    } else {
+                        throw unknownSetting(reading, setting.getKey());
+                    }
+                }
+            } else {
+                throw new IllegalArgumentException("Unknown simulated reading [" + reading
+                        + "], expected Temperature, Pressure, FlowRate, InletValve or Location");
+            }
+        }
+        return new SimulationConfig(seed, newTemperature, newPressure, newFlowRate, newPeriod, newOpen, newStepsPerLeg);
+    }
+
+    private static SignalModel withSettings(String reading, SignalModel current, Map<String, String> settings) {
+        double base = current.getBase();
+        double noise = current.getNoise();
+        double driftStep = current.getDriftStep();
+        double driftLimit = current.getDriftLimit();
+        double stepProbability = current.getStepProbability();
+        double stepSize = current.getStepSize();
+        int stepSamples = current.getStepSamples();
+        for (Map.Entry<String, String> setting : settings.entrySet()) {
+            String name = setting.getKey();
+            String value = setting.getValue();
+            if ("base".equals(name)) {
+                base = Double.parseDouble(value);
+            } else if ("noise".equals(name)) {
+                noise = Double.parseDouble(value);
+            } else if ("driftStep".equals(name)) {
+                driftStep = Double.parseDouble(value);
+            } else if ("driftLimit".equals(name)) {
+                driftLimit = Double.parseDouble(value);
+            } else if ("stepProbability".equals(name)) {
+                stepProbability = Double.parseDouble(value);
+            } else if ("stepSize".equals(name)) {
+                stepSize = Double.parseDouble(value);
+            } else if ("stepSamples".equals(name)) {
+                stepSamples = Integer.parseInt(value);
+            } else {
+                throw unknownSetting(reading, name);
+            }
+        }
+        return new SignalModel(base, noise, driftStep, driftLimit, stepProbability, stepSize, stepSamples);
+    }
+
+    private static IllegalArgumentException unknownSetting(String reading, String setting) {
+        return new IllegalArgumentException("Unknown simulation setting [" + reading + "." + setting + "]");
+    }
+
+    // The simulator of the sensor with the given index. Its generator is seeded with the value a SplittableRandom
+    // of the seed would return as its index + 1st value, computed directly, so it does not matter in which order
+    // or on which thread the sensors are created.
+    public SensorSimulator newSensor(int index) {
+        return new SensorSimulator(this, new SplittableRandom(mix64(seed + (index + 1L) * GOLDEN_GAMMA)));
+    }
+
+    // The output function of SplittableRandom
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public SignalModel getTemperature() {
+        return temperature;
+    }
+
+    public SignalModel getPressure() {
+        return pressure;
+    }
+
+    public SignalModel getFlowRate() {
+        return flowRate;
+    }
+
+    public int getInletValvePeriod() {
+        return inletValvePeriod;
+    }
+
+    public int getInletValveOpen() {
+        return inletValveOpen;
+    }
+
+    public Route getRoute() {
+        return route;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("seed %d, Temperature %s, Pressure %s, FlowRate %s, InletValve open %d of %d, "
+                        + "%d route points", seed, temperature, pressure, flowRate, inletValveOpen, inletValvePeriod,
+                route.length());
+    }
+}
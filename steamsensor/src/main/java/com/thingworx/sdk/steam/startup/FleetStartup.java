@@ -0,0 +1,153 @@
+package com.thingworx.sdk.steam.startup;
+
+import com.thingworx.communications.client.things.VirtualThing;
+import com.thingworx.sdk.steam.metrics.AgentMetrics;
+import com.thingworx.sdk.steam.metrics.Gauge;
+import com.thingworx.sdk.steam.scan.ScanWorkerPools;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+// Brings up the things of an agent: builds them in parallel, binds them, and waits until the platform has
+// synchronized every one of them before the scans start, or until a timeout after which the others are scanned. The
+// time until all things are bound and until the first property push are reported as the TimeToBound and
+// TimeToFirstPush metrics, in milliseconds from the creation of this startup, the first push is logged in the
+// background so the scans do not wait for it.
+public class FleetStartup {
+    private static final Logger LOG = LoggerFactory.getLogger(FleetStartup.class);
+    // How often the first push is looked for
+    private static final long FIRST_PUSH_POLL = 10;
+
+    public interface ThingFactory<T extends VirtualThing> {
+        T create(int index) throws Exception;
+    }
+
+    private final long startNanos = System.nanoTime();
+    private final int threads;
+    private volatile CountDownLatch bound = new CountDownLatch(0);
+    private volatile long boundNanos = 0;
+    private volatile long firstPushNanos = 0;
+
+    public FleetStartup(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    // Creates count things on a pool of threads and returns them in index order. The factory is called from
+    // several threads at once.
+    public <T extends VirtualThing> List<T> build(int count, final ThingFactory<T> factory) throws Exception {
+        long start = System.nanoTime();
+        ExecutorService builders = Executors.newFixedThreadPool(Math.min(threads, Math.max(1, count)),
+                ScanWorkerPools.namedDaemonThreads("thing-builder"));
+        List<T> things = new ArrayList<T>(count);
+        try {
+            List<Future<T>> futures = new ArrayList<Future<T>>(count);
+            for (int index = 0; index < count; index++) {
+                final int thingIndex = index;
+                futures.add(builders.submit(new Callable<T>() {
+                    @Override
+                    public T call() throws Exception {
+                        return factory.create(thingIndex);
+                    }
+                }));
+            }
+            for (Future<T> future : futures) {
+                things.add(future.get());
+            }
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        } finally {
+            builders.shutdownNow();
+        }
+        LOG.info("Built {} things in {} ms on {} threads.", count, (System.nanoTime() - start) / 1000000, threads);
+        return things;
+    }
+
+    // Binds the things, each through the client it was created with. thingSynchronized must be called once for each
+    // of them when the platform synchronizes it.
+    public void bind(List<? extends VirtualThing> things) throws Exception {
+        bound = new CountDownLatch(things.size());
+        for (VirtualThing thing : things) {
+            thing.getClient().bindThing(thing);
+        }
+    }
+
+    // The time is taken before the last count down, so it is known to whoever the latch releases
+    public synchronized void thingSynchronized() {
+        CountDownLatch latch = bound;
+        if (latch.getCount() == 1 && boundNanos == 0) {
+            boundNanos = System.nanoTime();
+        }
+        latch.countDown();
+    }
+
+    // Logs on a daemon thread when the first property is pushed, or that none was within timeoutMillis, without
+    // holding up the caller
+    public void reportFirstPush(final AgentMetrics metrics, final long timeoutMillis) {
+        Thread reporter = ScanWorkerPools.namedDaemonThreads("fleet-startup").newThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    awaitFirstPush(metrics, timeoutMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        reporter.start();
+    }
+
+    // Waits until every bound thing was synchronized, returns false when some were not within the timeout
+    public boolean awaitBound(long timeoutMillis) throws InterruptedException {
+        CountDownLatch latch = bound;
+        if (latch.await(timeoutMillis, TimeUnit.MILLISECONDS)) {
+            LOG.info("All things bound {} ms after startup.", millisSinceStart(boundNanos));
+            return true;
+        }
+        LOG.warn("{} things were not bound within {} ms, scanning the others.", latch.getCount(), timeoutMillis);
+        return false;
+    }
+
+    // Waits for the first property push the metrics record and logs the time it took
+    public boolean awaitFirstPush(AgentMetrics metrics, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (metrics.getFirstPushNanos() == 0) {
+            if (System.currentTimeMillis() >= deadline) {
+                LOG.warn("No property was pushed within {} ms of the scans starting.", timeoutMillis);
+                return false;
+            }
+            Thread.sleep(FIRST_PUSH_POLL);
+        }
+        firstPushNanos = metrics.getFirstPushNanos();
+        LOG.info("First property push {} ms after startup.", millisSinceStart(firstPushNanos));
+        return true;
+    }
+
+    private long millisSinceStart(long nanos) {
+        return nanos == 0 ? -1 : Math.max(0, (nanos - startNanos) / 1000000);
+    }
+
+    // -1 until the time is known
+    public void registerGauges(final AgentMetrics metrics) {
+        metrics.registerGauge("TimeToBound", new Gauge() {
+            @Override
+            public long getValue() {
+                return millisSinceStart(boundNanos);
+            }
+        });
+        metrics.registerGauge("TimeToFirstPush", new Gauge() {
+            @Override
+            public long getValue() {
+                return millisSinceStart(firstPushNanos != 0 ? firstPushNanos : metrics.getFirstPushNanos());
+            }
+        });
+    }
+}
@@ -0,0 +1,162 @@
+package com.thingworx.sdk.steam.state;
+
+// The faults of one sensor waiting to be sent as SteamSensorFault events, in primitive arrays.
+// The queue is bounded, when it is full the oldest fault is dropped. A fault of a rule that already has one waiting
+// is coalesced into it: the count goes up and the last time, value and limit are replaced, so a sensor flapping
+// around its limit turns into one event per rule instead of a flood.
+// Faults leave the queue at the rate of a token bucket, the rest wait and keep coalescing. A drain that leaves faults
+// behind with no token to send them, or holds them behind events that did not go out yet, signals backpressure:
+// faults arrive faster than they may leave.
+// Not thread safe, it is guarded by the monitor of the SensorState that owns it.
+public final class FaultEventQueue {
+    public static final int DEFAULT_CAPACITY = 8;
+    public static final double DEFAULT_EVENTS_PER_MINUTE = 6;
+    public static final int DEFAULT_BURST = 3;
+
+    private final int[] rules;
+    private final double[] values;
+    private final double[] limits;
+    private final long[] firstTimes;
+    private final long[] lastTimes;
+    private final int[] counts;
+    private int size;
+
+    private final double tokensPerMilli;
+    private final double burst;
+    private double tokens;
+    private long refillTime = Long.MIN_VALUE;
+
+    // Since the last drain
+    private long dropped;
+    private long coalesced;
+    // In a target, the faults that stayed behind in the drained queue, and whether they had to
+    private int waiting;
+    private boolean backpressured;
+
+    // The faults taken from another queue at a flush, it is never drained itself
+    FaultEventQueue(int capacity) {
+        this(capacity, 1, 1);
+    }
+
+    public FaultEventQueue(int capacity, double eventsPerMinute, int burst) {
+        if (capacity <= 0 || eventsPerMinute <= 0 || burst <= 0) {
+            throw new IllegalArgumentException("The fault event capacity, rate and burst must be positive");
+        }
+        rules = new int[capacity];
+        values = new double[capacity];
+        limits = new double[capacity];
+        firstTimes = new long[capacity];
+        lastTimes = new long[capacity];
+        counts = new int[capacity];
+        this.tokensPerMilli = eventsPerMinute / 60000.0;
+        this.burst = burst;
+        this.tokens = burst;
+    }
+
+    public void offer(int rule, double value, double limit, long time) {
+        for (int i = 0; i < size; i++) {
+            if (rules[i] == rule) {
+                counts[i]++;
+                values[i] = value;
+                limits[i] = limit;
+                lastTimes[i] = time;
+                coalesced++;
+                return;
+            }
+        }
+        if (size == rules.length) {
+            remove(1);
+            dropped++;
+        }
+        rules[size] = rule;
+        values[size] = value;
+        limits[size] = limit;
+        firstTimes[size] = time;
+        lastTimes[size] = time;
+        counts[size] = 1;
+        size++;
+    }
+
+    // Moves the faults the token bucket allows at now into target, oldest first. Nothing leaves while held is set,
+    // because the events sent before have not gone out yet.
+    public void drainTo(FaultEventQueue target, long now, boolean held) {
+        if (refillTime != Long.MIN_VALUE && now > refillTime) {
+            tokens = Math.min(burst, tokens + (now - refillTime) * tokensPerMilli);
+        }
+        refillTime = now;
+        int count = held ? 0 : Math.min(size, Math.min(target.rules.length, (int) tokens));
+        target.size = count;
+        System.arraycopy(rules, 0, target.rules, 0, count);
+        System.arraycopy(values, 0, target.values, 0, count);
+        System.arraycopy(limits, 0, target.limits, 0, count);
+        System.arraycopy(firstTimes, 0, target.firstTimes, 0, count);
+        System.arraycopy(lastTimes, 0, target.lastTimes, 0, count);
+        System.arraycopy(counts, 0, target.counts, 0, count);
+        target.dropped = dropped;
+        target.coalesced = coalesced;
+        tokens -= count;
+        remove(count);
+        target.waiting = size;
+        target.backpressured = size > 0 && (held || tokens < 1);
+        dropped = 0;
+        coalesced = 0;
+    }
+
+    private void remove(int count) {
+        int remaining = size - count;
+        System.arraycopy(rules, count, rules, 0, remaining);
+        System.arraycopy(values, count, values, 0, remaining);
+        System.arraycopy(limits, count, limits, 0, remaining);
+        System.arraycopy(firstTimes, count, firstTimes, 0, remaining);
+        System.arraycopy(lastTimes, count, lastTimes, 0, remaining);
+        System.arraycopy(counts, count, counts, 0, remaining);
+        size = remaining;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getRule(int fault) {
+        return rules[fault];
+    }
+
+    public double getValue(int fault) {
+        return values[fault];
+    }
+
+    public double getLimit(int fault) {
+        return limits[fault];
+    }
+
+    public long getFirstTime(int fault) {
+        return firstTimes[fault];
+    }
+
+    public long getLastTime(int fault) {
+        return lastTimes[fault];
+    }
+
+    // Number of faults coalesced into this one
+    public int getCount(int fault) {
+        return counts[fault];
+    }
+
+    // Faults dropped because the queue was full, up to the drain that filled this target
+    public long getDropped() {
+        return dropped;
+    }
+
+    public long getCoalesced() {
+        return coalesced;
+    }
+
+    public int getWaiting() {
+        return waiting;
+    }
+
+    // In a target, true when faults stayed behind because the rate limit or the events not sent yet held them
+    public boolean isBackpressured() {
+        return backpressured;
+    }
+}
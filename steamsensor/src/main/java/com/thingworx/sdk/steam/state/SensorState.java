@@ -0,0 +1,277 @@
+package com.thingworx.sdk.steam.state;
+
+// Current values of a steam sensor kept in primitive fields.
+// The scan writes here without touching the SDK, so a steady state scan does not allocate. The values that changed
+// since the last flush are marked dirty and copied into a reusable Snapshot when the thing is flushed, and only then
+// turned into SDK property values and events. Every value keeps the time it was sampled, so a value that waits for
+// a later flush is still pushed with the time of its scan.
+// All access goes through the monitor of this object, the scan and the flush run on different threads.
+public final class SensorState {
+    public static final int TEMPERATURE = 1;
+    public static final int PRESSURE = 1 << 1;
+    public static final int TOTAL_FLOW = 1 << 2;
+    public static final int INLET_VALVE = 1 << 3;
+    public static final int FAULT_STATUS = 1 << 4;
+    public static final int LOCATION = 1 << 5;
+    public static final int TEMPERATURE_AGGREGATE = 1 << 6;
+    public static final int PRESSURE_AGGREGATE = 1 << 7;
+    // At most this many fault events are sent by one flush, the rest wait in the FaultEventQueue
+    public static final int MAX_FAULTS_PER_FLUSH = 8;
+    // Rule index of a fault raised by the scan itself, whose value is the temperature
+    public static final int TEMPERATURE_FAULT = -1;
+
+    private double temperature;
+    private double pressure;
+    private double totalFlow;
+    private boolean inletValve;
+    private boolean faultStatus;
+    private double latitude;
+    private double longitude;
+    private long temperatureTime;
+    private long pressureTime;
+    private long totalFlowTime;
+    private long inletValveTime;
+    private long faultStatusTime;
+    private long locationTime;
+    private int dirty;
+    private volatile double temperatureLimit;
+
+    private final Aggregate temperatureAggregate = new Aggregate();
+    private final Aggregate pressureAggregate = new Aggregate();
+
+    private FaultEventQueue faultEvents = new FaultEventQueue(FaultEventQueue.DEFAULT_CAPACITY,
+            FaultEventQueue.DEFAULT_EVENTS_PER_MINUTE, FaultEventQueue.DEFAULT_BURST);
+
+    public synchronized void setTemperature(double temperature, long time) {
+        this.temperature = temperature;
+        this.temperatureTime = time;
+        dirty |= TEMPERATURE;
+    }
+
+    public synchronized void setPressure(double pressure, long time) {
+        this.pressure = pressure;
+        this.pressureTime = time;
+        dirty |= PRESSURE;
+    }
+
+    public synchronized void setTotalFlow(double totalFlow, long time) {
+        this.totalFlow = totalFlow;
+        this.totalFlowTime = time;
+        dirty |= TOTAL_FLOW;
+    }
+
+    public synchronized void setInletValve(boolean inletValve, long time) {
+        this.inletValve = inletValve;
+        this.inletValveTime = time;
+        dirty |= INLET_VALVE;
+    }
+
+    public synchronized void setFaultStatus(boolean faultStatus, long time) {
+        this.faultStatus = faultStatus;
+        this.faultStatusTime = time;
+        dirty |= FAULT_STATUS;
+    }
+
+    public synchronized void setLocation(double latitude, double longitude, long time) {
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.locationTime = time;
+        dirty |= LOCATION;
+    }
+
+    // The statistics of the last closed window, property is TEMPERATURE_AGGREGATE or PRESSURE_AGGREGATE, time is when
+    // the window closed
+    public synchronized void setAggregate(int property, long count, double min, double max, double mean,
+                                          double stdDev, double rate, long time) {
+        Aggregate aggregate = property == TEMPERATURE_AGGREGATE ? temperatureAggregate : pressureAggregate;
+        aggregate.set(count, min, max, mean, stdDev, rate, time);
+        dirty |= property;
+    }
+
+    // The limit is written by the platform, it is not published back
+    public void setTemperatureLimit(double temperatureLimit) {
+        this.temperatureLimit = temperatureLimit;
+    }
+
+    public double getTemperatureLimit() {
+        return temperatureLimit;
+    }
+
+    public void raiseFault(double temperature, double limit, long time) {
+        raiseFault(TEMPERATURE_FAULT, temperature, limit, time);
+    }
+
+    // A fault of a rule of the FaultRuleEngine, value and limit are what the rule compared
+    public synchronized void raiseFault(int rule, double value, double limit, long time) {
+        faultEvents.offer(rule, value, limit, time);
+    }
+
+    // Replaces the fault event queue, the faults waiting in the old one are dropped
+    public synchronized void setFaultEventLimits(int capacity, double eventsPerMinute, int burst) {
+        faultEvents = new FaultEventQueue(capacity, eventsPerMinute, burst);
+    }
+
+    // Copies the dirty values and the fault events the rate limit allows at now into the snapshot and clears them
+    // here. While holdFaults is set no fault events are taken. Returns the dirty mask, a combination of the property
+    // constants above.
+    public synchronized int drainTo(Snapshot snapshot, long now, boolean holdFaults) {
+        snapshot.dirty = dirty;
+        snapshot.temperature = temperature;
+        snapshot.pressure = pressure;
+        snapshot.totalFlow = totalFlow;
+        snapshot.inletValve = inletValve;
+        snapshot.faultStatus = faultStatus;
+        snapshot.latitude = latitude;
+        snapshot.longitude = longitude;
+        snapshot.temperatureTime = temperatureTime;
+        snapshot.pressureTime = pressureTime;
+        snapshot.totalFlowTime = totalFlowTime;
+        snapshot.inletValveTime = inletValveTime;
+        snapshot.faultStatusTime = faultStatusTime;
+        snapshot.locationTime = locationTime;
+        snapshot.temperatureAggregate.copyFrom(temperatureAggregate);
+        snapshot.pressureAggregate.copyFrom(pressureAggregate);
+        faultEvents.drainTo(snapshot.faultEvents, now, holdFaults);
+        dirty = 0;
+        return snapshot.dirty;
+    }
+
+    // Window statistics of one property
+    public static final class Aggregate {
+        private long count;
+        private double min;
+        private double max;
+        private double mean;
+        private double stdDev;
+        private double rate;
+        private long time;
+
+        private void set(long count, double min, double max, double mean, double stdDev, double rate, long time) {
+            this.count = count;
+            this.min = min;
+            this.max = max;
+            this.mean = mean;
+            this.stdDev = stdDev;
+            this.rate = rate;
+            this.time = time;
+        }
+
+        private void copyFrom(Aggregate other) {
+            set(other.count, other.min, other.max, other.mean, other.stdDev, other.rate, other.time);
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMin() {
+            return min;
+        }
+
+        public double getMax() {
+            return max;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        public double getStdDev() {
+            return stdDev;
+        }
+
+        public double getRate() {
+            return rate;
+        }
+
+        public long getTime() {
+            return time;
+        }
+    }
+
+    // Reusable copy of the state taken at flush time
+    public static final class Snapshot {
+        private int dirty;
+        private double temperature;
+        private double pressure;
+        private double totalFlow;
+        private boolean inletValve;
+        private boolean faultStatus;
+        private double latitude;
+        private double longitude;
+        private long temperatureTime;
+        private long pressureTime;
+        private long totalFlowTime;
+        private long inletValveTime;
+        private long faultStatusTime;
+        private long locationTime;
+        private final Aggregate temperatureAggregate = new Aggregate();
+        private final Aggregate pressureAggregate = new Aggregate();
+        private final FaultEventQueue faultEvents = new FaultEventQueue(MAX_FAULTS_PER_FLUSH);
+
+        public boolean isDirty(int property) {
+            return (dirty & property) != 0;
+        }
+
+        public double getTemperature() {
+            return temperature;
+        }
+
+        public double getPressure() {
+            return pressure;
+        }
+
+        public double getTotalFlow() {
+            return totalFlow;
+        }
+
+        public boolean getInletValve() {
+            return inletValve;
+        }
+
+        public boolean getFaultStatus() {
+            return faultStatus;
+        }
+
+        public double getLatitude() {
+            return latitude;
+        }
+
+        public double getLongitude() {
+            return longitude;
+        }
+
+        // The time the value of property was sampled, property is one of the value constants above
+        public long getTime(int property) {
+            switch (property) {
+                case TEMPERATURE:
+                    return temperatureTime;
+                case PRESSURE:
+                    return pressureTime;
+                case TOTAL_FLOW:
+                    return totalFlowTime;
+                case INLET_VALVE:
+                    return inletValveTime;
+                case FAULT_STATUS:
+                    return faultStatusTime;
+                case LOCATION:
+                    return locationTime;
+                default:
+                    throw new IllegalArgumentException("No sample time for property " + property);
+            }
+        }
+
+        public Aggregate getTemperatureAggregate() {
+            return temperatureAggregate;
+        }
+
+        public Aggregate getPressureAggregate() {
+            return pressureAggregate;
+        }
+
+        // The fault events to send, with the number dropped and coalesced since the last flush
+        public FaultEventQueue getFaultEvents() {
+            return faultEvents;
+        }
+    }
+}